@@ -20,6 +20,12 @@ package com.arcusys.liferay.vaadinplugin;
  * #L%
  */
 
+import com.arcusys.liferay.vaadinplugin.util.AddonDirectoryWatcher;
+import com.arcusys.liferay.vaadinplugin.util.BatchingLog;
+import com.arcusys.liferay.vaadinplugin.util.CompileJobScheduler;
+import com.arcusys.liferay.vaadinplugin.util.CompilerDaemon;
+import com.arcusys.liferay.vaadinplugin.util.JobRegistry;
+import com.arcusys.liferay.vaadinplugin.util.OffPeakPrecompiler;
 import com.vaadin.server.DeploymentConfiguration;
 import com.vaadin.server.ServiceException;
 import com.vaadin.server.VaadinPortlet;
@@ -42,6 +48,18 @@ public class ControlPanelPortlet extends VaadinPortlet {
         };
         
         service.init();
+        OffPeakPrecompiler.start();
         return service;
     }
+
+    @Override
+    public void destroy() {
+        OffPeakPrecompiler.shutdownInstance();
+        CompileJobScheduler.shutdownInstance();
+        JobRegistry.shutdownInstance();
+        CompilerDaemon.shutdownInstance();
+        BatchingLog.shutdownFlusher();
+        AddonDirectoryWatcher.shutdownInstance();
+        super.destroy();
+    }
 }
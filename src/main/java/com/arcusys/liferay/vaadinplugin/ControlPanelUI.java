@@ -24,13 +24,16 @@ package com.arcusys.liferay.vaadinplugin;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.portlet.PortletPreferences;
 import javax.portlet.PortletRequest;
@@ -39,26 +42,48 @@ import org.joda.time.DateTime;
 
 import com.arcusys.liferay.vaadinplugin.ui.AdditionalDependenciesWindow;
 import com.arcusys.liferay.vaadinplugin.ui.ChangeVersionWindow;
+import com.arcusys.liferay.vaadinplugin.ui.CompileHistoryWindow;
+import com.arcusys.liferay.vaadinplugin.ui.CompileReportWindow;
 import com.arcusys.liferay.vaadinplugin.ui.DetailsWindow;
+import com.arcusys.liferay.vaadinplugin.ui.JobsWindow;
+import com.arcusys.liferay.vaadinplugin.ui.LoadStylesWindow;
 import com.arcusys.liferay.vaadinplugin.ui.OutputConsole;
+import com.arcusys.liferay.vaadinplugin.ui.WidgetsetBackupsWindow;
+import com.arcusys.liferay.vaadinplugin.util.AddonCatalog;
+import com.arcusys.liferay.vaadinplugin.util.AddonDirectoryWatcher;
+import com.arcusys.liferay.vaadinplugin.util.BatchingLog;
+import com.arcusys.liferay.vaadinplugin.util.ClientFingerprint;
+import com.arcusys.liferay.vaadinplugin.util.CompileJob;
+import com.arcusys.liferay.vaadinplugin.util.CompileJobScheduler;
+import com.arcusys.liferay.vaadinplugin.util.CompileProfile;
+import com.arcusys.liferay.vaadinplugin.util.CompileReport;
+import com.arcusys.liferay.vaadinplugin.util.CompileSettings;
 import com.arcusys.liferay.vaadinplugin.util.ControlPanelPortletUtil;
 import com.arcusys.liferay.vaadinplugin.util.DownloadInfo;
 import com.arcusys.liferay.vaadinplugin.util.ILog;
+import com.arcusys.liferay.vaadinplugin.util.JobRegistry;
+import com.arcusys.liferay.vaadinplugin.util.ModuleOptions;
+import com.arcusys.liferay.vaadinplugin.util.SnapshotStore;
+import com.arcusys.liferay.vaadinplugin.util.StagedWidgetset;
+import com.arcusys.liferay.vaadinplugin.util.UserAgentStatistics;
 import com.arcusys.liferay.vaadinplugin.util.VaadinAddonInfo;
 import com.arcusys.liferay.vaadinplugin.util.VaadinVersionFetcher;
 import com.arcusys.liferay.vaadinplugin.util.Version;
 import com.arcusys.liferay.vaadinplugin.util.VersionStorage;
-import com.arcusys.liferay.vaadinplugin.util.WidgetsetCompilationHandler;
+import com.arcusys.liferay.vaadinplugin.util.WidgetsetCompileJob;
 import com.arcusys.liferay.vaadinplugin.util.WidgetsetUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.HtmlUtil;
 import com.liferay.portal.kernel.util.ParamUtil;
 import com.liferay.portal.kernel.util.Validator;
 import com.liferay.portal.model.Portlet;
 import com.liferay.portal.service.PortletLocalServiceUtil;
 import com.liferay.portlet.PortletPreferencesFactoryUtil;
+import com.vaadin.data.Container;
 import com.vaadin.data.Property;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.shared.ui.label.ContentMode;
@@ -67,6 +92,7 @@ import com.vaadin.ui.Button;
 import com.vaadin.ui.FormLayout;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
+import com.vaadin.ui.NativeSelect;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.OptionGroup;
 import com.vaadin.ui.Panel;
@@ -113,15 +139,31 @@ public class ControlPanelUI extends UI {
     private Label additionalDependenciesLabel;
     private List<File> includedDependencies = null;
 
-    private boolean needsUpdating;
+    private Label widgetsetStatusLabel;
 
     private Button additionalDependenciesButton;
 
     private Button compileWidgetsetButton;
 
+    private NativeSelect compileProfileSelect;
+    private OptionGroup userAgentsOptionGroup;
+    private Button suggestUserAgentsButton;
+    private NativeSelect defaultLoadStyleSelect;
+    private Button loadStylesButton;
+    private Map<String, String> loadStyles;
+    private Button rollbackButton;
+    private Button activateStagedButton;
+
     private static final Log log = LogFactoryUtil.getLog(ControlPanelUI.class);
 
-    private WidgetsetCompilationHandler compiler;
+    private CompileJob compileJob;
+
+    private Label compileQueueLabel;
+
+    private Button jobsButton;
+
+    // Jobs whose output this UI follows, detached when the UI goes away
+    private final Map<CompileJob, CompileJob.Listener> attachedJobs = new ConcurrentHashMap<CompileJob, CompileJob.Listener>();
 
     private Button terminateCompilationButton;
 
@@ -129,11 +171,13 @@ public class ControlPanelUI extends UI {
 
     private DownloadInfo newestDownloadInfo;
 
-    private VaadinUpdater vaadinUpdater;
     private ILog outputLog;
+    private BatchingLog jobOutputLog;
 
     private Button detailsButton;
 
+    private AddonDirectoryWatcher.Listener addonWatcherListener;
+
     @Override
     protected void init(final VaadinRequest request) {
         //checkResources();
@@ -156,7 +200,59 @@ public class ControlPanelUI extends UI {
             }
         };
 
+        // Job output arrives line by line from compiler threads, so it is
+        // written to the console in batches under a single lock acquisition
+        jobOutputLog = BatchingLog.create(new BatchingLog.Sink() {
+            public void write(List<String> messages) {
+                getSession().getLockInstance().lock();
+                try {
+                    outputConsole.log(messages);
+                    updateCompilationProgress();
+                } finally {
+                    getSession().getLockInstance().unlock();
+                }
+            }
+        });
+
+        // Follow jars deployed to the add-on directory. Registered before the
+        // first listing, as changes are applied under the session lock held
+        // here and applying a jar already listed changes nothing
+        addonWatcherListener = new AddonDirectoryWatcher.Listener() {
+            public void addonsChanged(AddonCatalog.Changes changes) {
+                getSession().getLockInstance().lock();
+                try {
+                    applyAddonChanges(changes);
+                } finally {
+                    getSession().getLockInstance().unlock();
+                }
+            }
+        };
+        if (AddonDirectoryWatcher.addListener(addonWatcherListener)) {
+            setPollInterval((int) AddonDirectoryWatcher.getInterval());
+            refreshButton.setVisible(false);
+        } else {
+            addonWatcherListener = null;
+        }
+
         refreshAddons();
+
+        // Follow jobs started from another, possibly closed, session
+        for (CompileJob job : JobRegistry.getInstance().getActiveJobs()) {
+            attachToJob(job);
+        }
+    }
+
+    @Override
+    public void detach() {
+        for (Map.Entry<CompileJob, CompileJob.Listener> entry : attachedJobs.entrySet()) {
+            entry.getKey().detach(entry.getValue());
+        }
+        attachedJobs.clear();
+        if (addonWatcherListener != null) {
+            AddonDirectoryWatcher.removeListener(addonWatcherListener);
+        }
+        jobOutputLog.close();
+        super.detach();
     }
 
     private void createUI() {
@@ -197,6 +293,10 @@ public class ControlPanelUI extends UI {
         addonsListHolder = createIncludeAddonsListLayout(includeAddonsOptionGroup);
         settingsLayout.addComponent(addonsListHolder);
 
+        widgetsetStatusLabel = new Label("", ContentMode.HTML);
+        widgetsetStatusLabel.setCaption("Widget Set Status");
+        settingsLayout.addComponent(widgetsetStatusLabel);
+
         //addition dependencies
         additionalDependenciesLabel = createAdditionalDependenciesLabel();
         settingsLayout.addComponent(additionalDependenciesLabel);
@@ -207,6 +307,11 @@ public class ControlPanelUI extends UI {
         mainLayout.addComponent(additionalDependenciesButton);
 
         //Compilation layout
+        compileProfileSelect = createCompileProfileSelect();
+        settingsLayout.addComponent(compileProfileSelect);
+        settingsLayout.addComponent(createUserAgentsLayout());
+        settingsLayout.addComponent(createLoadStylesLayout());
+
         HorizontalLayout compilationlayout = new HorizontalLayout();
         compileWidgetsetButton = createCompileWidgetsetButton();
         compilationlayout.addComponent(compileWidgetsetButton);
@@ -215,6 +320,28 @@ public class ControlPanelUI extends UI {
         compilationProgressIndicator = createProgressIndicator();
         compilationlayout.addComponent(compilationProgressIndicator);
         compilationlayout.setComponentAlignment(compilationProgressIndicator, Alignment.MIDDLE_LEFT);
+        jobsButton = createJobsButton();
+        compilationlayout.addComponent(jobsButton);
+        compilationlayout.setComponentAlignment(jobsButton, Alignment.MIDDLE_LEFT);
+        Button historyButton = createHistoryButton();
+        compilationlayout.addComponent(historyButton);
+        compilationlayout.setComponentAlignment(historyButton, Alignment.MIDDLE_LEFT);
+        Button sizeReportButton = createSizeReportButton();
+        compilationlayout.addComponent(sizeReportButton);
+        compilationlayout.setComponentAlignment(sizeReportButton, Alignment.MIDDLE_LEFT);
+        rollbackButton = createRollbackButton();
+        compilationlayout.addComponent(rollbackButton);
+        compilationlayout.setComponentAlignment(rollbackButton, Alignment.MIDDLE_LEFT);
+        Button backupsButton = createBackupsButton();
+        compilationlayout.addComponent(backupsButton);
+        compilationlayout.setComponentAlignment(backupsButton, Alignment.MIDDLE_LEFT);
+        activateStagedButton = createActivateStagedButton();
+        compilationlayout.addComponent(activateStagedButton);
+        compilationlayout.setComponentAlignment(activateStagedButton, Alignment.MIDDLE_LEFT);
+        compileQueueLabel = new Label();
+        compileQueueLabel.setSizeUndefined();
+        compilationlayout.addComponent(compileQueueLabel);
+        compilationlayout.setComponentAlignment(compileQueueLabel, Alignment.MIDDLE_LEFT);
         settingsLayout.addComponent(compilationlayout);
 
         //Output console
@@ -424,6 +551,157 @@ public class ControlPanelUI extends UI {
         }
 
         additionalDependencies = ControlPanelPortletUtil.getLibs(exclude);
+        updateWidgetsetStatus();
+    }
+
+    /**
+     * Replaces the add-ons and dependencies of the jars reported by the
+     * add-on directory watcher with their current state, keeping the
+     * selection of updated add-ons.
+     */
+    @SuppressWarnings("unchecked")
+    private void applyAddonChanges(AddonCatalog.Changes changes) {
+        Set<File> jars = new HashSet<File>();
+        for (File jar : changes.getChangedJars()) {
+            jars.add(jar.getAbsoluteFile());
+        }
+        Set<File> removedJars = new HashSet<File>();
+        for (File jar : changes.getRemovedJars()) {
+            removedJars.add(jar.getAbsoluteFile());
+        }
+        jars.addAll(removedJars);
+
+        Set<File> selectedJars = new HashSet<File>();
+        Collection<VaadinAddonInfo> selected = (Collection<VaadinAddonInfo>) includeAddonsOptionGroup.getValue();
+        List<String> names = new ArrayList<String>();
+        for (VaadinAddonInfo addon : new ArrayList<VaadinAddonInfo>(
+                (Collection<VaadinAddonInfo>) includeAddonsOptionGroup.getItemIds())) {
+            File jar = addon.getJarFile().getAbsoluteFile();
+            if (jars.contains(jar)) {
+                if (selected.contains(addon)) {
+                    selectedJars.add(jar);
+                }
+                includeAddonsOptionGroup.removeItem(addon);
+                if (removedJars.contains(jar)) {
+                    names.add("removed " + addon);
+                }
+            }
+        }
+        List<File> libs = new ArrayList<File>();
+        for (File lib : additionalDependencies) {
+            if (!jars.contains(lib.getAbsoluteFile())) {
+                libs.add(lib);
+            }
+        }
+
+        // Add-ons are kept ordered by jar name
+        Container.Indexed addons = (Container.Indexed) includeAddonsOptionGroup.getContainerDataSource();
+        File vaadinServerJar = ControlPanelPortletUtil.getVaadinServerJarLocation().getAbsoluteFile();
+        for (File jar : changes.getChangedJars()) {
+            VaadinAddonInfo addon = changes.getAddon(jar);
+            if (addon == null) {
+                if (!vaadinServerJar.equals(jar.getAbsoluteFile())) {
+                    libs.add(jar);
+                }
+                continue;
+            }
+            int index = 0;
+            for (Object itemId : addons.getItemIds()) {
+                if (((VaadinAddonInfo) itemId).getJarFile().getName().compareTo(jar.getName()) < 0) {
+                    index++;
+                }
+            }
+            addons.addItemAt(index, addon);
+            if (selectedJars.contains(jar.getAbsoluteFile())) {
+                includeAddonsOptionGroup.select(addon);
+            }
+            names.add(addon.toString());
+        }
+        additionalDependencies = libs;
+
+        if (includedDependencies != null) {
+            List<File> dependencies = new ArrayList<File>();
+            for (File dependency : includedDependencies) {
+                if (!removedJars.contains(dependency.getAbsoluteFile())) {
+                    dependencies.add(dependency);
+                }
+            }
+            if (dependencies.size() != includedDependencies.size()) {
+                updateDependencies(dependencies);
+            }
+        }
+
+        addonsListHolder.removeAllComponents();
+        if (addons.size() == 0) {
+            addonsListHolder.addComponent(addonsNotFoundLabel);
+        } else {
+            addonsListHolder.addComponent(includeAddonsOptionGroup);
+        }
+        updateWidgetsetStatus();
+
+        if (!names.isEmpty()) {
+            // Called on the watcher thread, where there is no current UI
+            new Notification("Add-on directory changed", join(names), Notification.Type.TRAY_NOTIFICATION)
+                    .show(getPage());
+        }
+    }
+
+    /**
+     * Shows whether the deployed widgetset has the client code of the
+     * selected add-ons.
+     */
+    private void updateWidgetsetStatus() {
+        if (widgetsetStatusLabel == null) {
+            return;
+        }
+        String value;
+        try {
+            Map<String, ClientFingerprint> deployed = ClientFingerprint.getDeployedAddons(
+                    activeWidgetsetLabel.getValue());
+            if (deployed == null) {
+                value = "<i>Unknown, the widget set has not been compiled here</i>";
+            } else {
+                ClientFingerprint.Changes changes = ClientFingerprint.compare(deployed, getIncludeAddons());
+                if (changes.isStale()) {
+                    value = "<b>Needs compiling</b>: " + HtmlUtil.escape(join(changes.getClientChanges()));
+                } else {
+                    value = "Up to date";
+                }
+                if (!changes.getServerChanges().isEmpty()) {
+                    value += "<br/>Server side changes only, no compiling needed: "
+                            + HtmlUtil.escape(join(changes.getServerChanges()));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not compare add-ons with the deployed widgetset.", e);
+            value = "<i>Unknown: " + HtmlUtil.escape(e.getMessage()) + "</i>";
+        }
+        StagedWidgetset staged = null;
+        try {
+            staged = StagedWidgetset.load(activeWidgetsetLabel.getValue());
+        } catch (IOException e) {
+            log.warn("Could not read the staged widgetset build.", e);
+        }
+        if (staged != null) {
+            value += "<br/>Precompiled with changed add-ons on "
+                    + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(staged.getTime()))
+                    + ", ready to be activated";
+        }
+        if (activateStagedButton != null) {
+            activateStagedButton.setVisible(staged != null);
+        }
+        widgetsetStatusLabel.setValue(value);
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(value);
+        }
+        return result.toString();
     }
 
     private OutputConsole createOutputConsole() {
@@ -460,7 +738,7 @@ public class ControlPanelUI extends UI {
         includeAddonsOptionGroup.setMultiSelect(true);
         includeAddonsOptionGroup.addValueChangeListener(new Property.ValueChangeListener() {
             public void valueChange(Property.ValueChangeEvent event) {
-                needsUpdating = true;
+                updateWidgetsetStatus();
             }
         });
         return includeAddonsOptionGroup;
@@ -502,7 +780,6 @@ public class ControlPanelUI extends UI {
 
     private void updateDependencies(List<File> dependencies) {
         includedDependencies = dependencies;
-        needsUpdating = true;
 
         // update the list of selected dependencies
         Label newDependenciesLabel = createAdditionalDependenciesLabel();
@@ -514,43 +791,467 @@ public class ControlPanelUI extends UI {
         return new Label("<i>Vaadin add-ons not found from the add-on directory</i>.", ContentMode.HTML);
     }
 
+    private NativeSelect createCompileProfileSelect() {
+        NativeSelect select = new NativeSelect("Compile Profile");
+        for (CompileProfile profile : CompileProfile.values()) {
+            select.addItem(profile);
+        }
+        select.setNullSelectionAllowed(false);
+        select.setValue(CompileProfile.getDefault());
+        return select;
+    }
+
+    private HorizontalLayout createUserAgentsLayout() {
+        HorizontalLayout layout = new HorizontalLayout();
+        layout.setCaption("Target Browsers");
+        layout.setSpacing(true);
+
+        userAgentsOptionGroup = new OptionGroup();
+        userAgentsOptionGroup.setMultiSelect(true);
+        userAgentsOptionGroup.addStyleName("horizontal");
+        ModuleOptions defaults = ModuleOptions.getDefault();
+        for (String userAgent : defaults.getSupportedUserAgents()) {
+            userAgentsOptionGroup.addItem(userAgent);
+        }
+        Set<String> userAgents = defaults.getUserAgents();
+        userAgentsOptionGroup.setValue(userAgents.isEmpty() ? defaults.getSupportedUserAgents() : userAgents);
+        layout.addComponent(userAgentsOptionGroup);
+
+        final String logFile = ControlPanelPortletUtil.getProperty(UserAgentStatistics.LOG_FILE_PROPERTY, "");
+        suggestUserAgentsButton = new Button("Suggest", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                suggestUserAgents(new File(logFile));
+            }
+        });
+        suggestUserAgentsButton.setDescription("Select the browsers seen in " + logFile);
+        suggestUserAgentsButton.setVisible(logFile.length() > 0);
+        layout.addComponent(suggestUserAgentsButton);
+        return layout;
+    }
+
+    private HorizontalLayout createLoadStylesLayout() {
+        HorizontalLayout layout = new HorizontalLayout();
+        layout.setCaption("Connector Loading");
+        layout.setSpacing(true);
+
+        ModuleOptions defaults = ModuleOptions.getDefault();
+        defaultLoadStyleSelect = new NativeSelect();
+        defaultLoadStyleSelect.addItem("");
+        defaultLoadStyleSelect.setItemCaption("", "As annotated");
+        defaultLoadStyleSelect.addItem(ModuleOptions.LAZY);
+        defaultLoadStyleSelect.setItemCaption(ModuleOptions.LAZY, "Lazy except core");
+        defaultLoadStyleSelect.addItem(ModuleOptions.DEFERRED);
+        defaultLoadStyleSelect.setItemCaption(ModuleOptions.DEFERRED, "Deferred except core");
+        defaultLoadStyleSelect.setNullSelectionAllowed(false);
+        String defaultLoadStyle = defaults.getDefaultLoadStyle();
+        defaultLoadStyleSelect.setValue(defaultLoadStyleSelect.containsId(defaultLoadStyle) ? defaultLoadStyle : "");
+        layout.addComponent(defaultLoadStyleSelect);
+
+        loadStyles = new LinkedHashMap<String, String>(defaults.getLoadStyles());
+        loadStylesButton = new Button("Per Add-on", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                showLoadStylesWindow();
+            }
+        });
+        loadStylesButton.setStyleName(BaseTheme.BUTTON_LINK);
+        loadStylesButton.setDescription("Set the load style of the connectors of single add-ons");
+        layout.addComponent(loadStylesButton);
+
+        if (!defaults.isLoadStylesSupported()) {
+            layout.setDescription("Connector load styles need Vaadin 7.1 or later");
+            defaultLoadStyleSelect.setEnabled(false);
+            loadStylesButton.setEnabled(false);
+        }
+        return layout;
+    }
+
+    private void showLoadStylesWindow() {
+        final LoadStylesWindow loadStylesWindow = new LoadStylesWindow(getIncludeAddons(), loadStyles);
+        loadStylesWindow.setModal(true);
+        loadStylesWindow.addCloseListener(new Window.CloseListener() {
+
+            public void windowClose(Window.CloseEvent e) {
+                loadStylesButton.setEnabled(true);
+                loadStyles = loadStylesWindow.getLoadStyles();
+            }
+        });
+        addWindow(loadStylesWindow);
+        loadStylesWindow.center();
+        loadStylesButton.setEnabled(false);
+    }
+
+    private void suggestUserAgents(File logFile) {
+        List<String> supportedUserAgents = ModuleOptions.getSupportedUserAgents(
+                ControlPanelPortletUtil.getPortalVaadinVersion());
+        UserAgentStatistics statistics;
+        try {
+            statistics = UserAgentStatistics.read(logFile, supportedUserAgents);
+        } catch (IOException e) {
+            log.warn("Could not read user agent statistics from " + logFile, e);
+            Notification.show("Could not read user agent statistics from " + logFile,
+                    Notification.Type.ERROR_MESSAGE);
+            return;
+        }
+        if (statistics.getTotal() == 0) {
+            Notification.show("No known browsers found in " + logFile, Notification.Type.WARNING_MESSAGE);
+            return;
+        }
+
+        double coverage = GetterUtil.getDouble(ControlPanelPortletUtil.getProperty(
+                UserAgentStatistics.COVERAGE_PROPERTY, "99"), 99) / 100;
+        Set<String> suggestion = statistics.suggest(coverage);
+        for (String userAgent : supportedUserAgents) {
+            long count = statistics.getCount(userAgent);
+            outputLog.log(userAgent + ": " + count + " requests ("
+                    + String.format("%.1f", 100.0 * count / statistics.getTotal()) + "%)");
+        }
+        outputLog.log("Suggested target browsers: " + suggestion);
+        userAgentsOptionGroup.setValue(suggestion);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ModuleOptions getModuleOptions() {
+        ModuleOptions options = ModuleOptions.getDefault();
+        options.setUserAgents((Collection<String>) userAgentsOptionGroup.getValue());
+        options.setDefaultLoadStyle((String) defaultLoadStyleSelect.getValue());
+        options.setLoadStyles(loadStyles);
+        return options;
+    }
+
     private Button createCompileWidgetsetButton() {
         return new Button("Compile Widget Set",
                 new Button.ClickListener() {
 
                     public void buttonClick(Button.ClickEvent event) {
-                        setCompilationModeEnabled(true);
-                        outputConsole.clear();
-
-                        compiler = new WidgetsetCompilationHandler(activeWidgetsetLabel.getValue(), getIncludeAddons(), includedDependencies, outputLog
-                        ) {
-                            @Override
-                            public void compilationFinished() {
-                                System.out.println("Compilation has been finished successfully");
-                                getUI().getSession().getLockInstance().lock();
-                                outputLog.log("Compilation has been finished successfully");
-
-                                try {
-                                    setCompilationModeEnabled(false);
-
-                                } finally {
-                                    getUI().getSession().getLockInstance().unlock();
-                                }
-                            }
-                        };
-                        ExecutorService executor = Executors.newSingleThreadExecutor();
-                        executor.execute(compiler);
+                        submitCompileJob(new WidgetsetCompileJob(activeWidgetsetLabel.getValue(),
+                                getIncludeAddons(), includedDependencies,
+                                (CompileProfile) compileProfileSelect.getValue(), getModuleOptions(),
+                                CompileJob.Priority.NORMAL));
                     }
                 });
     }
 
+    private void submitCompileJob(CompileJob job) {
+        setCompilationModeEnabled(true);
+        outputConsole.clear();
+        jobOutputLog.clear();
+
+        CompileJobScheduler scheduler = CompileJobScheduler.getInstance();
+        CompileJob.Listener listener = createCompileJobListener();
+        compileJob = scheduler.submit(job, listener);
+        trackAttachedJob(compileJob, listener);
+        if (compileJob != job) {
+            outputLog.log("An identical compilation is already scheduled, showing its output");
+        }
+        if (compileJob.getState() == CompileJob.State.QUEUED) {
+            int ahead = scheduler.getJobsAhead(compileJob) + scheduler.getRunningCount();
+            if (ahead > 0) {
+                outputLog.log("Compilation queued, waiting for " + ahead + " other compile job(s)");
+            }
+        }
+        updateCompileQueueLabel();
+    }
+
+    /**
+     * Deploys the staged precompiled build by repeating its compilation,
+     * which finds the build by its inputs instead of compiling.
+     */
+    private Button createActivateStagedButton() {
+        Button button = new Button("Activate precompiled", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                StagedWidgetset staged;
+                try {
+                    staged = StagedWidgetset.load(activeWidgetsetLabel.getValue());
+                } catch (IOException e) {
+                    log.warn("Could not read the staged widgetset build.", e);
+                    staged = null;
+                }
+                if (staged == null) {
+                    Notification.show("No precompiled widgetset is staged", Notification.Type.WARNING_MESSAGE);
+                    updateWidgetsetStatus();
+                    return;
+                }
+                CompileSettings settings = staged.getSettings();
+                File libDir = new File(ControlPanelPortletUtil.getPortalLibLocationPath());
+                submitCompileJob(new WidgetsetCompileJob(settings.getWidgetset(),
+                        settings.findAddons(WidgetsetUtil.getAvailableWidgetSets(libDir)),
+                        settings.findDependencies(libDir), settings.getProfile(), settings.createModuleOptions(),
+                        CompileJob.Priority.NORMAL));
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        button.setDescription("Deploy the widgetset precompiled in the background after the add-ons changed");
+        button.setVisible(false);
+        return button;
+    }
+
+    private CompileJob.Listener createCompileJobListener() {
+        return new CompileJob.Listener() {
+            public void log(String message) {
+                jobOutputLog.log(message);
+            }
+
+            public void jobStarted(CompileJob job) {
+                getSession().getLockInstance().lock();
+                try {
+                    updateCompileQueueLabel();
+                } finally {
+                    getSession().getLockInstance().unlock();
+                }
+            }
+
+            public void jobFinished(CompileJob job) {
+                attachedJobs.remove(job);
+                jobOutputLog.flush();
+                getSession().getLockInstance().lock();
+                try {
+                    if (job.isCancelled()) {
+                        log.info("Compilation has been cancelled");
+                        outputLog.log("Compilation has been cancelled");
+                    } else if (job.isSuccessful()) {
+                        log.info("Compilation has been finished successfully");
+                        outputLog.log("Compilation has been finished successfully");
+                    } else {
+                        outputLog.log("Compilation failed");
+                    }
+                    setCompilationModeEnabled(false);
+                    updateCompileQueueLabel();
+                    updateWidgetsetStatus();
+                } finally {
+                    getSession().getLockInstance().unlock();
+                }
+            }
+        };
+    }
+
+    private CompileJob.Listener createUpgradeJobListener() {
+        return new CompileJob.Listener() {
+            public void log(String message) {
+                jobOutputLog.log(message);
+            }
+
+            public void jobStarted(CompileJob job) {
+            }
+
+            public void jobFinished(CompileJob job) {
+                attachedJobs.remove(job);
+                jobOutputLog.flush();
+                getSession().getLockInstance().lock();
+                try {
+                    refreshVersionInfo();
+                    // Stop polling
+                    versionUpgradeProgressIndicator.setEnabled(false);
+                    versionUpgradeProgressIndicator.setVisible(false);
+                    setButtonsEnabled(true);
+                    updateCompileQueueLabel();
+                } finally {
+                    getSession().getLockInstance().unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Remembers a listener attached by the scheduler, for detaching it with
+     * the UI. A job which finished before it is remembered has already
+     * notified and dropped its listeners, so it is forgotten again.
+     */
+    private void trackAttachedJob(CompileJob job, CompileJob.Listener listener) {
+        CompileJob.Listener previous = attachedJobs.put(job, listener);
+        if (previous != null && previous != listener) {
+            // Merged into a job this UI already follows
+            job.detach(previous);
+        }
+        if (job.isDone()) {
+            attachedJobs.remove(job);
+        }
+    }
+
+    /**
+     * Shows the output of a job in the output console, following it if the
+     * job is still running.
+     */
+    private void attachToJob(CompileJob job) {
+        if (attachedJobs.containsKey(job)) {
+            return;
+        }
+        CompileJob.Listener listener;
+        if (job instanceof VaadinUpgradeJob) {
+            listener = createUpgradeJobListener();
+            if (!job.isDone()) {
+                versionUpgradeProgressIndicator.setEnabled(true);
+                versionUpgradeProgressIndicator.setVisible(true);
+                setButtonsEnabled(false);
+            }
+        } else {
+            listener = createCompileJobListener();
+            if (!job.isDone()) {
+                compileJob = job;
+                setCompilationModeEnabled(true);
+            }
+        }
+        outputConsole.clear();
+        jobOutputLog.clear();
+        outputLog.log("Output of job: " + job.getDescription());
+        if (!job.isDone()) {
+            attachedJobs.put(job, listener);
+        }
+        job.attach(listener);
+        updateCompileQueueLabel();
+    }
+
+    private Button createRollbackButton() {
+        Button button = new Button("Roll back", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                String widgetsetDir = ControlPanelPortletUtil.getWidgetsetDir() + activeWidgetsetLabel.getValue();
+                try {
+                    WidgetsetUtil.rollbackWidgetset(widgetsetDir);
+                    ClientFingerprint.clearDeployed(activeWidgetsetLabel.getValue());
+                    CompileReport.clearDeployed(activeWidgetsetLabel.getValue());
+                    updateWidgetsetStatus();
+                    outputLog.log("Widgetset rolled back to the previous version");
+                    Notification.show("Widgetset rolled back to the previous version");
+                } catch (IOException e) {
+                    log.warn("Could not roll back widgetset.", e);
+                    Notification.show("Could not roll back widgetset", e.getMessage(),
+                            Notification.Type.ERROR_MESSAGE);
+                }
+                rollbackButton.setEnabled(canRollbackWidgetset());
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        button.setDescription("Swap the deployed widgetset with the previously deployed one");
+        button.setEnabled(canRollbackWidgetset());
+        return button;
+    }
+
+    private Button createBackupsButton() {
+        Button button = new Button("Earlier versions", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                final String widgetset = activeWidgetsetLabel.getValue();
+                final String widgetsetDir = ControlPanelPortletUtil.getWidgetsetDir() + widgetset;
+                List<String> snapshots;
+                try {
+                    snapshots = WidgetsetUtil.getWidgetsetSnapshots(widgetsetDir, SnapshotStore.getDefault());
+                } catch (IOException e) {
+                    log.warn("Could not list earlier widgetset versions.", e);
+                    Notification.show("Could not list earlier versions", e.getMessage(),
+                            Notification.Type.ERROR_MESSAGE);
+                    return;
+                }
+                if (snapshots.isEmpty()) {
+                    Notification.show("No earlier versions of the widgetset are kept", Notification.Type.WARNING_MESSAGE);
+                    return;
+                }
+                final WidgetsetBackupsWindow window = new WidgetsetBackupsWindow(widgetset, snapshots);
+                window.addCloseListener(new Window.CloseListener() {
+                    public void windowClose(Window.CloseEvent e) {
+                        if (window.getSelectedSnapshot() != null) {
+                            restoreWidgetset(widgetset, widgetsetDir, window.getSelectedSnapshot());
+                        }
+                    }
+                });
+                addWindow(window);
+                window.center();
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        button.setDescription("Restore a widgetset deployed before the previous one");
+        return button;
+    }
+
+    private void restoreWidgetset(String widgetset, String widgetsetDir, String snapshotId) {
+        try {
+            WidgetsetUtil.restoreWidgetset(widgetsetDir, snapshotId, SnapshotStore.getDefault());
+            ClientFingerprint.clearDeployed(widgetset);
+            CompileReport.clearDeployed(widgetset);
+            updateWidgetsetStatus();
+            outputLog.log("Widgetset restored from snapshot " + snapshotId);
+            Notification.show("Widgetset restored");
+        } catch (IOException e) {
+            log.warn("Could not restore widgetset.", e);
+            Notification.show("Could not restore widgetset", e.getMessage(), Notification.Type.ERROR_MESSAGE);
+        }
+        rollbackButton.setEnabled(canRollbackWidgetset());
+    }
+
+    private boolean canRollbackWidgetset() {
+        return WidgetsetUtil.canRollbackWidgetset(
+                ControlPanelPortletUtil.getWidgetsetDir() + activeWidgetsetLabel.getValue());
+    }
+
+    private Button createHistoryButton() {
+        Button button = new Button("History", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                CompileHistoryWindow window = new CompileHistoryWindow();
+                addWindow(window);
+                window.center();
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        return button;
+    }
+
+    private Button createSizeReportButton() {
+        Button button = new Button("Size", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                String widgetset = activeWidgetsetLabel.getValue();
+                CompileReport report = null;
+                try {
+                    report = CompileReport.load(CompileReport.getDeployedReportFile(widgetset));
+                } catch (IOException e) {
+                    log.warn("Could not read size report of " + widgetset, e);
+                }
+                CompileReportWindow window = new CompileReportWindow(widgetset, report);
+                addWindow(window);
+                window.center();
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        button.setDescription("JavaScript size of the deployed widgetset per add-on");
+        return button;
+    }
+
+    private Button createJobsButton() {
+        Button button = new Button("Jobs", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                JobsWindow window = new JobsWindow(new JobsWindow.JobSelectionListener() {
+                    public void jobSelected(CompileJob job) {
+                        attachToJob(job);
+                    }
+                });
+                addWindow(window);
+                window.center();
+            }
+        });
+        button.setStyleName(BaseTheme.BUTTON_LINK);
+        return button;
+    }
+
+    private void updateCompileQueueLabel() {
+        int queued = CompileJobScheduler.getInstance().getQueueDepth();
+        compileQueueLabel.setValue(queued > 0 ? "Compile jobs waiting: " + queued : "");
+    }
+
     private void setCompilationModeEnabled(boolean enabled) {
         setButtonsEnabled(!enabled);
+        compilationProgressIndicator.setIndeterminate(true);
         compilationProgressIndicator.setEnabled(enabled);
         compilationProgressIndicator.setVisible(enabled);
         terminateCompilationButton.setVisible(enabled);
     }
 
+    private void updateCompilationProgress() {
+        CompileJob job = compileJob;
+        float progress = job != null && job.getState() == CompileJob.State.RUNNING ? job.getProgress() : -1;
+        if (progress < 0) {
+            compilationProgressIndicator.setIndeterminate(true);
+        } else {
+            compilationProgressIndicator.setIndeterminate(false);
+            compilationProgressIndicator.setValue(progress);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private List<VaadinAddonInfo> getIncludeAddons() {
         List<VaadinAddonInfo> addons = new ArrayList<VaadinAddonInfo>();
@@ -566,6 +1267,14 @@ public class ControlPanelUI extends UI {
         includeAddonsOptionGroup.setEnabled(enabled);
         additionalDependenciesButton.setEnabled(enabled);
         compileWidgetsetButton.setEnabled(enabled);
+        compileProfileSelect.setEnabled(enabled);
+        rollbackButton.setEnabled(enabled && canRollbackWidgetset());
+        activateStagedButton.setEnabled(enabled);
+        userAgentsOptionGroup.setEnabled(enabled);
+        suggestUserAgentsButton.setEnabled(enabled);
+        boolean loadStylesSupported = ModuleOptions.supportsLoadStyles(ControlPanelPortletUtil.getPortalVaadinVersion());
+        defaultLoadStyleSelect.setEnabled(enabled && loadStylesSupported);
+        loadStylesButton.setEnabled(enabled && loadStylesSupported);
         changeVersionButton.setEnabled(enabled);
         updateVaadinVersionButton.setEnabled(enabled);
         detailsButton.setEnabled(enabled);
@@ -575,7 +1284,7 @@ public class ControlPanelUI extends UI {
         Button button = new Button("Cancel", new Button.ClickListener() {
 
             public void buttonClick(Button.ClickEvent event) {
-                compiler.terminate();
+                compileJob.cancel();
             }
         });
         button.setVisible(false);
@@ -654,48 +1363,19 @@ public class ControlPanelUI extends UI {
 
 
     private void downloadVaadin(DownloadInfo version) {
-
-        vaadinUpdater = new VaadinUpdater(version,
-                new VaadinUpdater.UpgradeListener() {
-
-                    public void updateComplete() {
-                        getSession().getLockInstance().lock();
-                        outputLog.log("Vaadin version upgraded successfully.");
-                        outputLog.log("Don't forget to compile widgetset.");
-                        done(true);
-                        getSession().getLockInstance().unlock();
-                    }
-
-                    private void done(boolean success) {
-                        getSession().getLockInstance().lock();
-                        refreshVersionInfo();
-                        // Stop polling
-                        versionUpgradeProgressIndicator.setEnabled(false);
-                        versionUpgradeProgressIndicator.setVisible(false);
-                        setButtonsEnabled(true);
-
-                        vaadinUpdater = null;
-                        getSession().getLockInstance().unlock();
-                    }
-
-                    public void updateFailed(String message) {
-                        getSession().getLockInstance().lock();
-                        outputLog.log(message);
-                        try {
-                            vaadinUpdater.restoreFromBackup();
-                        } catch (Exception ex) {
-                            outputLog.log("ERROR: Can't restore files. Exception: " + ex.getMessage());
-                        }
-                        done(false);
-                        getSession().getLockInstance().unlock();
-                    }
-                }, outputLog);
-
+        CompileJob.Listener listener = createUpgradeJobListener();
+        CompileJob job = CompileJobScheduler.getInstance().submit(new VaadinUpgradeJob(version), listener);
+        if (job == null) {
+            Notification.show("Another Vaadin version change is queued or running",
+                    "Change the version to " + version.getVersion() + " after it has finished",
+                    Notification.Type.WARNING_MESSAGE);
+            return;
+        }
         versionUpgradeProgressIndicator.setEnabled(true);
         versionUpgradeProgressIndicator.setVisible(true);
         setButtonsEnabled(false);
-
-        new Thread(vaadinUpdater).start();
+        trackAttachedJob(job, listener);
+        updateCompileQueueLabel();
     }
 
     private class WarningWindow extends Window {
@@ -0,0 +1,95 @@
+package com.arcusys.liferay.vaadinplugin;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.arcusys.liferay.vaadinplugin.util.ControlPanelPortletUtil;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Serves the portal's own VAADIN directory, normally
+ * <code>/html/VAADIN/*</code> of the portal context, like the
+ * {@link VaadinResourceServlet} serves the one of this plugin.
+ *
+ * The filter is added to the portal context by the
+ * <code>liferay-hook.xml</code> of the plugin. Requests it cannot answer,
+ * for files that do not exist or with methods other than GET and HEAD, are
+ * passed on to the portal.
+ */
+public class VaadinResourceFilter implements Filter {
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.resources.portal.filter";
+
+    private static final String VAADIN_PATH = "/VAADIN/";
+
+    private ServletContext servletContext;
+    private boolean enabled;
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+        servletContext = filterConfig.getServletContext();
+        enabled = ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, true);
+    }
+
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        File file = null;
+        if (enabled && (head || "GET".equals(method))) {
+            String path = getVaadinPath(request.getRequestURI().substring(request.getContextPath().length()));
+            String root = VaadinResourceServlet.getPortalRoot();
+            if (path != null && root != null) {
+                file = VaadinResourceServlet.findFile(path, Collections.singletonList(root));
+            }
+        }
+        if (file == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        VaadinResourceServlet.serve(request, response, file, servletContext, !head);
+    }
+
+    public void destroy() {
+    }
+
+    /**
+     * @return the part of a context relative path after its VAADIN
+     * directory, starting with a slash, or null if it is not under one
+     */
+    static String getVaadinPath(String path) {
+        int index = path.indexOf(VAADIN_PATH);
+        return index >= 0 ? path.substring(index + VAADIN_PATH.length() - 1) : null;
+    }
+}
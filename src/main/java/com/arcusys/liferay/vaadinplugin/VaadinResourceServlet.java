@@ -0,0 +1,301 @@
+package com.arcusys.liferay.vaadinplugin;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.ControlPanelPortletUtil;
+import com.arcusys.liferay.vaadinplugin.util.PrecompressedResources;
+import com.arcusys.liferay.vaadinplugin.util.ResourceCache;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves the static files of the VAADIN directory: the widgetsets and
+ * themes of this plugin and, after them, the ones deployed to the portal.
+ *
+ * Files with <code>.cache.</code> in their name are fingerprinted by the
+ * GWT compiler and are served as immutable; other files are revalidated
+ * with their ETag. Clients accepting gzip get the precompressed variant
+ * when there is one. Single byte ranges of uncompressed content are
+ * supported, and small files are served from a {@link ResourceCache}.
+ *
+ * The portal serves its own VAADIN directory under its context; the
+ * {@link VaadinResourceFilter} serves those requests the same way.
+ */
+public class VaadinResourceServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Log log = LogFactoryUtil.getLog(VaadinResourceServlet.class);
+
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE_CACHE_CONTROL = "public, max-age=0, must-revalidate";
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    @Override
+    protected void doHead(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        serve(request, response, false);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        serve(request, response, true);
+    }
+
+    private void serve(HttpServletRequest request, HttpServletResponse response, boolean sendContent)
+            throws IOException {
+        List<String> roots = new ArrayList<String>();
+        String ownRoot = getServletContext().getRealPath("/VAADIN");
+        if (ownRoot != null) {
+            roots.add(ownRoot);
+        }
+        String portalRoot = getPortalRoot();
+        if (portalRoot != null) {
+            roots.add(portalRoot);
+        }
+        File file = findFile(request.getPathInfo(), roots);
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        serve(request, response, file, getServletContext(), sendContent);
+    }
+
+    /**
+     * @return the VAADIN directory of the portal, or null if it is not
+     * available
+     */
+    static String getPortalRoot() {
+        try {
+            return ControlPanelPortletUtil.getVaadinResourceDir();
+        } catch (RuntimeException e) {
+            log.debug("Portal VAADIN directory is not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sends a file of a VAADIN directory with the caching, compression and
+     * range handling described above.
+     */
+    static void serve(HttpServletRequest request, HttpServletResponse response, File file,
+                      ServletContext servletContext, boolean sendContent) throws IOException {
+
+        String rangeHeader = request.getHeader("Range");
+        File content = file;
+        boolean compressed = false;
+        if (rangeHeader == null && acceptsGzip(request)) {
+            File variant = PrecompressedResources.getVariant(file);
+            if (variant.isFile() && variant.lastModified() >= file.lastModified()) {
+                content = variant;
+                compressed = true;
+            }
+        }
+
+        String etag = "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified())
+                + (compressed ? "-gz" : "") + "\"";
+        String mimeType = servletContext.getMimeType(file.getName());
+        response.setContentType(mimeType != null ? mimeType : "application/octet-stream");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", file.lastModified());
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Vary", "Accept-Encoding");
+        if (file.getName().contains(".cache.")) {
+            response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+            response.setDateHeader("Expires", System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000);
+        } else {
+            response.setHeader("Cache-Control", REVALIDATE_CACHE_CONTROL);
+        }
+
+        if (isNotModified(request, etag, file.lastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (compressed) {
+            // Only with a body, a 304 response has no content encoding
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        long length = content.length();
+        long[] range = null;
+        if (rangeHeader != null && isRangeValid(request, etag)) {
+            range = parseRange(rangeHeader, length);
+            if (range == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (range.length == 0) {
+                // Several ranges or a syntax we do not support: send the whole file
+                range = null;
+            }
+        }
+
+        long start = range != null ? range[0] : 0;
+        long end = range != null ? range[1] : length - 1;
+        if (range != null) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        response.setContentLength((int) (end - start + 1));
+        if (!sendContent) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        byte[] cached = ResourceCache.getInstance().get(content);
+        if (cached != null && cached.length == length) {
+            out.write(cached, (int) start, (int) (end - start + 1));
+        } else {
+            copyRange(content, out, start, end - start + 1);
+        }
+    }
+
+    /**
+     * Resolves a path relative to a VAADIN directory against the given
+     * directories in order.
+     *
+     * @return the file, or null if there is none or the path leaves the
+     * VAADIN directories
+     */
+    static File findFile(String path, List<String> roots) {
+        if (path == null || path.contains("..") || path.contains("\\") || path.endsWith("/")) {
+            return null;
+        }
+        for (String root : roots) {
+            File file = new File(root, path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean isRangeValid(HttpServletRequest request, String etag) {
+        String ifRange = request.getHeader("If-Range");
+        return ifRange == null || ifRange.trim().equals(etag);
+    }
+
+    static boolean matchesEtag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a <code>Range</code> header with a single byte range.
+     *
+     * @return the first and last byte of the range, an empty array if the
+     * header is ignored and the whole content is sent, or null if the range
+     * cannot be satisfied
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return new long[0];
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1
+                        ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static void copyRange(File file, OutputStream out, long start, long count) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) {
+                    throw new IOException("Could not skip to " + start + " in " + file);
+                }
+                skipped += n;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = count;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
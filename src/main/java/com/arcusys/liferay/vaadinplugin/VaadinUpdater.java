@@ -30,6 +30,8 @@ import org.apache.commons.io.FileUtils;
 import java.io.*;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
@@ -82,8 +84,12 @@ public class VaadinUpdater implements Runnable {
         this.currentVaadinVersion = ControlPanelPortletUtil.getPortalVaadinVersion();
     }
 
-   private File backupDir = null;
-   private String backupPath = null;
+   private static final String SNAPSHOT_NAME = "vaadin";
+   private static final String RESOURCES_ENTRY = "resources";
+   private static final String FILES_ENTRY = "files/";
+
+   private final SnapshotStore snapshotStore = SnapshotStore.getDefault();
+   private String snapshotId = null;
 
    private final String fileSeparator = ControlPanelPortletUtil.FileSeparator;
 
@@ -97,9 +103,6 @@ public class VaadinUpdater implements Runnable {
             tmpDir = WidgetsetUtil.createTempDir();
             tmpPath = tmpDir.getPath();
 
-            backupDir = WidgetsetUtil.createBackupDir();
-            backupPath = backupDir.getPath();
-
             File vaadinClientJarsDir = ControlPanelPortletUtil.getVaadinClientJarsLocation();
             if (vaadinClientJarsDir.exists()) {
                 FileUtils.deleteDirectory(vaadinClientJarsDir);
@@ -170,6 +173,8 @@ public class VaadinUpdater implements Runnable {
                 return;
             }
 
+            precompressResources(vaadinResource);
+
             Version downloadedVersion = downloadInfo.getVersion();
             VaadinVersion downloadVaadinInfo = VaadinVersion.getVaadinVersion(downloadedVersion);
             Collection<VaadinFileInfo> vaadinFileInfos = downloadVaadinInfo.getVaadinFilesInfo();
@@ -191,93 +196,81 @@ public class VaadinUpdater implements Runnable {
     }
 
     private void backupOldFiles() throws IOException {
-        outputLog.log("Backup old vaadin files to " + backupPath);
-
         String vaadinResourcePath = ControlPanelPortletUtil.getVaadinResourceDir();
-        File vaadinResource = new File(vaadinResourcePath);
-        outputLog.log("Backup old vaadin resources : " + vaadinResourcePath + " to " + backupPath);
-        String backupreSourcesPath = backupDir.getPath() + fileSeparator +  "resources";
-        File backupreSourcesDir = new File(backupreSourcesPath);
-        if (backupreSourcesDir.exists()) FileUtils.deleteDirectory(backupreSourcesDir);
-        if(!backupreSourcesDir.mkdir()){
-            outputLog.log("Can't backup resources. Can't create directory " + backupreSourcesPath);
-        }else
-        {
-            FileUtils.copyDirectory(vaadinResource, backupreSourcesDir);
-        }
+        outputLog.log("Backup old vaadin resources : " + vaadinResourcePath);
 
-        String backupFilesPath = backupPath + fileSeparator;
+        Map<String, File> entries = new LinkedHashMap<String, File>();
+        entries.put(RESOURCES_ENTRY, new File(vaadinResourcePath));
 
         File vaadin6Version = ControlPanelPortletUtil.get6VersionVaadinJarLocation();
         if (vaadin6Version.exists()) {
             outputLog.log("Backup vaadin.jar : " + vaadin6Version.getAbsolutePath());
-            replaceFile(vaadin6Version.getParent() + fileSeparator, backupFilesPath, vaadin6Version.getName());
+            entries.put(FILES_ENTRY + vaadin6Version.getName(), vaadin6Version);
         }
 
         VaadinVersion currentVaadinInfo = VaadinVersion.getVaadinVersion(currentVaadinVersion);
-        Collection<VaadinFileInfo> vaadinFileInfos = currentVaadinInfo.getVaadinFilesInfo();
-
         StringBuffer sb = new StringBuffer();
-        Boolean isExistsNotBackuped = false;
-
-        for (VaadinFileInfo fileInfo : vaadinFileInfos) {
-            try {
-                replaceFile(fileInfo.getPlace(), backupFilesPath, fileInfo.getName());
-            } catch (Exception ex) {
+        for (VaadinFileInfo fileInfo : currentVaadinInfo.getVaadinFilesInfo()) {
+            File file = new File(fileInfo.getPlace() + fileInfo.getName());
+            if (file.exists()) {
+                entries.put(FILES_ENTRY + fileInfo.getName(), file);
+            } else {
                 sb.append(fileInfo.getName()).append(", ");
-                isExistsNotBackuped = true;
             }
         }
-
-        if (isExistsNotBackuped) {
+        if (sb.length() > 0) {
             outputLog.log("Can't backup next files : " + sb.toString());
         }
+
+        // Files unchanged since an earlier upgrade are already in the store
+        snapshotId = snapshotStore.create(SNAPSHOT_NAME, entries, false);
+        outputLog.log("Backup old vaadin files to snapshot " + snapshotId);
     }
 
     public void restoreFromBackup() throws IOException {
-
-        outputLog.log("Restore old vaadin files from " + backupPath);
+        if (snapshotId == null) {
+            outputLog.log("Nothing to restore, old vaadin files were not changed.");
+            return;
+        }
+        outputLog.log("Restore old vaadin files from snapshot " + snapshotId);
 
         String vaadinResourcePath = ControlPanelPortletUtil.getVaadinResourceDir();
-        File vaadinResource = new File(vaadinResourcePath);
-        outputLog.log("Restore old vaadin resources : " + vaadinResourcePath + " to " + backupPath);
-        String backupreSourcesPath = backupDir.getPath() + "/resources";
-        File backupreSourcesDir = new File(backupreSourcesPath);
-        if (!backupreSourcesDir.exists()) {
-            outputLog.log("Can't restore resources. Can't find directory " + backupreSourcesPath);
-        }else
-        {
-            FileUtils.copyDirectory(backupreSourcesDir, vaadinResource);
+        outputLog.log("Restore old vaadin resources : " + vaadinResourcePath);
+        if (!snapshotStore.restore(SNAPSHOT_NAME, snapshotId, RESOURCES_ENTRY, new File(vaadinResourcePath))) {
+            outputLog.log("Can't restore resources. Snapshot " + snapshotId + " has no resources.");
+        } else {
+            precompressResources(new File(vaadinResourcePath));
         }
 
-//        File vaadin6Version = ControlPanelPortletUtil.get6VersionVaadinJarLocation();
-//        if (vaadin6Version.exists()) {
-//            outputLog.log("Backup vaadin.jar : " + vaadin6Version.getAbsolutePath());
-//            FileUtils.copyFile(vaadin6Version, backupDir);
-//        }
-
-        String backupFilesPath = backupPath + "/";
+        File vaadin6Version = ControlPanelPortletUtil.get6VersionVaadinJarLocation();
+        snapshotStore.restore(SNAPSHOT_NAME, snapshotId, FILES_ENTRY + vaadin6Version.getName(), vaadin6Version);
 
         VaadinVersion currentVaadinInfo = VaadinVersion.getVaadinVersion(currentVaadinVersion);
-        Collection<VaadinFileInfo> vaadinFileInfos = currentVaadinInfo.getVaadinFilesInfo();
-
         StringBuffer sb = new StringBuffer();
-        Boolean isExistsNotBackuped = false;
-
-        for (VaadinFileInfo fileInfo : vaadinFileInfos) {
+        for (VaadinFileInfo fileInfo : currentVaadinInfo.getVaadinFilesInfo()) {
             try {
-                replaceFile(backupFilesPath,fileInfo.getPlace() , fileInfo.getName());
+                if (!snapshotStore.restore(SNAPSHOT_NAME, snapshotId, FILES_ENTRY + fileInfo.getName(),
+                        new File(fileInfo.getPlace() + fileInfo.getName()))) {
+                    sb.append(fileInfo.getName()).append(", ");
+                }
             } catch (Exception ex) {
                 sb.append(fileInfo.getName()).append(", ");
-                isExistsNotBackuped = true;
             }
         }
 
-        if (isExistsNotBackuped) {
+        if (sb.length() > 0) {
             outputLog.log("Can't restore next files : " + sb.toString());
         }
     }
 
+    private void precompressResources(File vaadinResource) throws IOException {
+        if (PrecompressedResources.isEnabled()) {
+            outputLog.log("Compressing vaadin resources : " + vaadinResource.getAbsolutePath());
+            int compressed = PrecompressedResources.update(vaadinResource);
+            outputLog.log("Compressed " + compressed + " resources");
+        }
+    }
+
     private String exctractZipFile(File vaadinZipFile, String tmpPath) throws IOException {
         byte[] buf = new byte[1024];
         String zipDestinationPath = tmpPath +  fileSeparator +"unzip" + fileSeparator;
@@ -327,7 +320,16 @@ public class VaadinUpdater implements Runnable {
         outputLog.log("Copying files: " + sourceFilePath + " to " + destinatoinFilePath);
         File newJar = new File(sourceFilePath);
         File oldJar = new File(destinatoinFilePath);
-        FileUtils.copyFile(newJar, oldJar, true);
+        // The old file may be a link into the snapshot store, so it is
+        // replaced instead of overwritten
+        File tmpJar = new File(destinatoinFilePath + ".tmp");
+        FileUtils.copyFile(newJar, tmpJar, true);
+        if (!tmpJar.renameTo(oldJar)) {
+            if (!oldJar.delete() || !tmpJar.renameTo(oldJar)) {
+                FileUtils.deleteQuietly(tmpJar);
+                throw new IOException("Could not replace " + destinatoinFilePath);
+            }
+        }
     }
 
     private boolean extractVAADINFolder(String sourceDirPath, String jarName, String tmpFolderName, String destination) throws IOException {
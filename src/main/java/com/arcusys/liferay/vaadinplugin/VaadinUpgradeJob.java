@@ -0,0 +1,101 @@
+package com.arcusys.liferay.vaadinplugin;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.CompileJob;
+import com.arcusys.liferay.vaadinplugin.util.DownloadInfo;
+
+/**
+ * Changes the Vaadin version of the portal through the
+ * {@link com.arcusys.liferay.vaadinplugin.util.CompileJobScheduler}. The job
+ * is exclusive, so it never runs at the same time as a widgetset
+ * compilation reading the Vaadin jars or deploying into the VAADIN
+ * directory. Restores the previous version if the upgrade fails.
+ *
+ * All upgrades share one key, so only one is queued or running at a time.
+ * A request for the same version joins it, a request for another version
+ * is rejected.
+ */
+public class VaadinUpgradeJob extends CompileJob {
+
+    public static final String KEY = "vaadin-upgrade";
+
+    private final DownloadInfo downloadInfo;
+
+    public VaadinUpgradeJob(DownloadInfo downloadInfo) {
+        super(KEY, Priority.HIGH);
+        this.downloadInfo = downloadInfo;
+    }
+
+    public DownloadInfo getDownloadInfo() {
+        return downloadInfo;
+    }
+
+    @Override
+    protected boolean conflictsWith(CompileJob other) {
+        return !(other instanceof VaadinUpgradeJob) || !downloadInfo.getVersion().toString().equals(
+                ((VaadinUpgradeJob) other).getDownloadInfo().getVersion().toString());
+    }
+
+    @Override
+    protected boolean isExclusive() {
+        return true;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Change Vaadin version to " + downloadInfo.getVersion();
+    }
+
+    @Override
+    protected void execute() {
+        final boolean[] completed = new boolean[1];
+        final VaadinUpdater[] updater = new VaadinUpdater[1];
+        updater[0] = new VaadinUpdater(downloadInfo, new VaadinUpdater.UpgradeListener() {
+            public void updateComplete() {
+                log("Vaadin version upgraded successfully.");
+                log("Don't forget to compile widgetset.");
+                completed[0] = true;
+            }
+
+            public void updateFailed(String message) {
+                log(message);
+                try {
+                    updater[0].restoreFromBackup();
+                } catch (Exception ex) {
+                    log("ERROR: Can't restore files. Exception: " + ex.getMessage());
+                }
+            }
+        }, this);
+        updater[0].run();
+        setSuccessful(completed[0]);
+    }
+
+    @Override
+    protected boolean isCancellable() {
+        // Stopping halfway would leave the portal without a usable Vaadin version
+        return false;
+    }
+
+    @Override
+    protected void terminate() {
+    }
+}
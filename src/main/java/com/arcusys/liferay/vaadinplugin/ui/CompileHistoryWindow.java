@@ -0,0 +1,105 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.CompileHistory;
+import com.arcusys.liferay.vaadinplugin.util.CompileProgress;
+import com.arcusys.liferay.vaadinplugin.util.CompileRecord;
+import com.vaadin.data.Item;
+import com.vaadin.ui.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Shows the past widgetset compilations with their phase timings and what
+ * changed compared to the previous compilation of the same widgetset.
+ */
+@SuppressWarnings("serial")
+public class CompileHistoryWindow extends Window {
+
+    public CompileHistoryWindow() {
+        super("Compile History");
+        setModal(true);
+        setWidth("1000px");
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setMargin(true);
+        layout.setSpacing(true);
+        setContent(layout);
+
+        layout.addComponent(createHistoryTable());
+        layout.addComponent(new Button("Close", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                close();
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Table createHistoryTable() {
+        Table table = new Table();
+        table.setWidth("100%");
+        table.setPageLength(15);
+        table.addContainerProperty("started", String.class, null, "Started", null, null);
+        table.addContainerProperty("profile", String.class, null, "Profile", null, null);
+        table.addContainerProperty("result", String.class, null, "Result", null, null);
+        table.addContainerProperty("total", String.class, null, "Total", null, Table.Align.RIGHT);
+        for (CompileProgress.Phase phase : CompileProgress.Phase.values()) {
+            table.addContainerProperty(phase, String.class, null, capitalize(phase.toString()), null,
+                    Table.Align.RIGHT);
+        }
+        table.addContainerProperty("permutations", Integer.class, null, "Perms", null, Table.Align.RIGHT);
+        table.addContainerProperty("output", String.class, null, "Output", null, Table.Align.RIGHT);
+        table.addContainerProperty("changes", String.class, null, "Changes", null, null);
+        table.setColumnExpandRatio("changes", 1);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        CompileHistory history = CompileHistory.getDefault();
+        List<CompileRecord> records = history.getRecords();
+        // Newest first
+        for (int i = records.size() - 1; i >= 0; i--) {
+            CompileRecord record = records.get(i);
+            Item item = table.addItem(record);
+            item.getItemProperty("started").setValue(format.format(new Date(record.getStartTime())));
+            item.getItemProperty("profile").setValue(record.getProfile());
+            item.getItemProperty("result").setValue(capitalize(record.getResult().name().toLowerCase()));
+            item.getItemProperty("total").setValue(formatSeconds(record.getWallMillis()));
+            for (CompileProgress.Phase phase : CompileProgress.Phase.values()) {
+                item.getItemProperty(phase).setValue(formatSeconds(record.getPhaseMillis(phase)));
+            }
+            item.getItemProperty("permutations").setValue(record.getPermutationCount());
+            item.getItemProperty("output").setValue(record.getOutputBytes() / 1024 + " KB");
+            item.getItemProperty("changes").setValue(
+                    CompileHistory.describeChanges(history.getPrevious(record), record));
+        }
+        return table;
+    }
+
+    private static String formatSeconds(long millis) {
+        return String.format("%.1f s", millis / 1000.0);
+    }
+
+    private static String capitalize(String value) {
+        return value.substring(0, 1).toUpperCase() + value.substring(1);
+    }
+}
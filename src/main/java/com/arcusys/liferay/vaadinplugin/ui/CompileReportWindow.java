@@ -0,0 +1,85 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.CompileReport;
+import com.vaadin.data.Item;
+import com.vaadin.ui.*;
+
+import java.util.Map;
+
+/**
+ * Shows the JavaScript size of the deployed widgetset per add-on and per
+ * package, for the initial download and for the code loaded at split
+ * points.
+ */
+@SuppressWarnings("serial")
+public class CompileReportWindow extends Window {
+
+    public CompileReportWindow(String widgetset, CompileReport report) {
+        super("Size Report");
+        setModal(true);
+        setWidth("800px");
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setMargin(true);
+        layout.setSpacing(true);
+        setContent(layout);
+
+        if (report == null) {
+            layout.addComponent(new Label("No size report for " + widgetset + ". Enable "
+                    + CompileReport.ENABLED_PROPERTY + " and compile the widgetset."));
+        } else {
+            layout.addComponent(new Label(widgetset + ": initial download " + formatKilobytes(report.getInitialSize())
+                    + ", split points " + formatKilobytes(report.getDeferredSize())));
+            layout.addComponent(createSizeTable("Add-on", report.getAddonSizes(), 8));
+            layout.addComponent(createSizeTable("Package", report.getPackageSizes(), 12));
+        }
+        layout.addComponent(new Button("Close", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                close();
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Table createSizeTable(String nameHeader, Map<String, long[]> sizes, int pageLength) {
+        Table table = new Table();
+        table.setWidth("100%");
+        table.setPageLength(Math.min(pageLength, sizes.size()));
+        table.addContainerProperty("name", String.class, null, nameHeader, null, null);
+        table.addContainerProperty("initial", String.class, null, "Initial", null, Table.Align.RIGHT);
+        table.addContainerProperty("deferred", String.class, null, "Split points", null, Table.Align.RIGHT);
+        table.setColumnExpandRatio("name", 1);
+
+        for (String name : CompileReport.sortBySize(sizes)) {
+            Item item = table.addItem(name);
+            item.getItemProperty("name").setValue(name);
+            item.getItemProperty("initial").setValue(formatKilobytes(sizes.get(name)[0]));
+            item.getItemProperty("deferred").setValue(formatKilobytes(sizes.get(name)[1]));
+        }
+        return table;
+    }
+
+    private static String formatKilobytes(long bytes) {
+        return String.format("%.1f KB", bytes / 1024.0);
+    }
+}
@@ -0,0 +1,177 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.CompileJob;
+import com.arcusys.liferay.vaadinplugin.util.JobRegistry;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.ui.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists the compile and upgrade jobs of the portal, including recently
+ * finished ones, and lets the user follow or cancel them.
+ */
+@SuppressWarnings("serial")
+public class JobsWindow extends Window {
+
+    public interface JobSelectionListener {
+        void jobSelected(CompileJob job);
+    }
+
+    private final JobSelectionListener selectionListener;
+    private final Table jobsTable;
+    private final Button showOutputButton;
+    private final Button cancelButton;
+
+    public JobsWindow(JobSelectionListener selectionListener) {
+        super("Jobs");
+        this.selectionListener = selectionListener;
+        setModal(true);
+        setWidth("700px");
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setMargin(true);
+        layout.setSpacing(true);
+        setContent(layout);
+
+        jobsTable = createJobsTable();
+        layout.addComponent(jobsTable);
+
+        HorizontalLayout buttons = new HorizontalLayout();
+        buttons.setSpacing(true);
+        showOutputButton = createShowOutputButton();
+        buttons.addComponent(showOutputButton);
+        cancelButton = createCancelButton();
+        buttons.addComponent(cancelButton);
+        buttons.addComponent(createRefreshButton());
+        buttons.addComponent(createCloseButton());
+        layout.addComponent(buttons);
+
+        refresh();
+    }
+
+    private Table createJobsTable() {
+        Table table = new Table();
+        table.setWidth("100%");
+        table.setPageLength(10);
+        table.setSelectable(true);
+        table.setImmediate(true);
+        table.addContainerProperty("description", String.class, null, "Job", null, null);
+        table.addContainerProperty("state", String.class, null, "State", null, null);
+        table.addContainerProperty("started", String.class, null, "Started", null, null);
+        table.addContainerProperty("finished", String.class, null, "Finished", null, null);
+        table.addValueChangeListener(new Property.ValueChangeListener() {
+            public void valueChange(Property.ValueChangeEvent event) {
+                updateButtons();
+            }
+        });
+        return table;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refresh() {
+        Object selected = jobsTable.getValue();
+        jobsTable.removeAllItems();
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<CompileJob> jobs = JobRegistry.getInstance().getJobs();
+        // Newest first
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            CompileJob job = jobs.get(i);
+            Item item = jobsTable.addItem(job);
+            item.getItemProperty("description").setValue(job.getDescription());
+            item.getItemProperty("state").setValue(getStateCaption(job));
+            item.getItemProperty("started").setValue(
+                    job.getStartTime() > 0 ? format.format(new Date(job.getStartTime())) : "");
+            item.getItemProperty("finished").setValue(
+                    job.getFinishTime() > 0 ? format.format(new Date(job.getFinishTime())) : "");
+        }
+
+        if (selected != null && jobsTable.containsId(selected)) {
+            jobsTable.setValue(selected);
+        }
+        updateButtons();
+    }
+
+    private static String getStateCaption(CompileJob job) {
+        switch (job.getState()) {
+            case QUEUED:
+                return "Queued";
+            case RUNNING:
+                return "Running";
+            case CANCELLED:
+                return "Cancelled";
+            default:
+                return job.isSuccessful() ? "Finished" : "Failed";
+        }
+    }
+
+    private void updateButtons() {
+        CompileJob job = (CompileJob) jobsTable.getValue();
+        showOutputButton.setEnabled(job != null);
+        cancelButton.setEnabled(job != null && !job.isDone());
+    }
+
+    private Button createShowOutputButton() {
+        return new Button("Show output", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                CompileJob job = (CompileJob) jobsTable.getValue();
+                if (job != null) {
+                    close();
+                    selectionListener.jobSelected(job);
+                }
+            }
+        });
+    }
+
+    private Button createCancelButton() {
+        return new Button("Cancel job", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                CompileJob job = (CompileJob) jobsTable.getValue();
+                if (job != null) {
+                    job.cancel();
+                    refresh();
+                }
+            }
+        });
+    }
+
+    private Button createRefreshButton() {
+        return new Button("Refresh", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                refresh();
+            }
+        });
+    }
+
+    private Button createCloseButton() {
+        return new Button("Close", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                close();
+            }
+        });
+    }
+}
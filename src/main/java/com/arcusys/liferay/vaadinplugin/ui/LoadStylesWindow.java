@@ -0,0 +1,119 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2010 - 2013 Vaadin Ltd.
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.ModuleOptions;
+import com.arcusys.liferay.vaadinplugin.util.VaadinAddonInfo;
+import com.vaadin.ui.*;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Edits the connector load styles of the compiled widgetset: one style for
+ * the connectors of each included add-on, and styles for single connector
+ * classes or packages.
+ */
+@SuppressWarnings("serial")
+public class LoadStylesWindow extends Window {
+
+    private static final String DEFAULT_STYLE = "Default";
+
+    private final Table addonsTable;
+    private final Map<String, NativeSelect> addonStyleSelects = new LinkedHashMap<String, NativeSelect>();
+    private final TextArea connectorRulesTextArea;
+
+    public LoadStylesWindow(List<VaadinAddonInfo> addons, Map<String, String> loadStyles) {
+        setCaption("Connector load styles");
+        setWidth("550px");
+        setHeight("450px");
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setSizeFull();
+        layout.setMargin(true);
+        layout.setSpacing(true);
+        setContent(layout);
+
+        Map<String, String> otherStyles = new LinkedHashMap<String, String>(loadStyles);
+        addonsTable = new Table("Add-ons");
+        addonsTable.addContainerProperty("Add-on", String.class, null);
+        addonsTable.addContainerProperty("Connectors", String.class, null);
+        addonsTable.addContainerProperty("Load Style", NativeSelect.class, null);
+        addonsTable.setSizeFull();
+        for (VaadinAddonInfo addon : addons) {
+            for (String widgetset : addon.getWidgetsets()) {
+                String pattern = ModuleOptions.getAddonPattern(widgetset);
+                if (addonStyleSelects.containsKey(pattern)) {
+                    continue;
+                }
+                NativeSelect select = createStyleSelect(otherStyles.remove(pattern));
+                addonStyleSelects.put(pattern, select);
+                addonsTable.addItem(new Object[]{addon.getName(), pattern, select}, pattern);
+            }
+        }
+        layout.addComponent(addonsTable);
+        layout.setExpandRatio(addonsTable, 1);
+
+        connectorRulesTextArea = new TextArea("Connectors and packages (one class or package.* : style per line)");
+        connectorRulesTextArea.setWidth("100%");
+        connectorRulesTextArea.setRows(4);
+        StringBuilder rules = new StringBuilder();
+        for (Map.Entry<String, String> entry : otherStyles.entrySet()) {
+            rules.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        connectorRulesTextArea.setValue(rules.toString());
+        layout.addComponent(connectorRulesTextArea);
+
+        layout.addComponent(new Button("Close", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                close();
+            }
+        }));
+    }
+
+    private NativeSelect createStyleSelect(String loadStyle) {
+        NativeSelect select = new NativeSelect();
+        select.addItem(DEFAULT_STYLE);
+        for (String style : ModuleOptions.LOAD_STYLES) {
+            select.addItem(style);
+        }
+        select.setNullSelectionAllowed(false);
+        select.setValue(loadStyle != null ? loadStyle : DEFAULT_STYLE);
+        return select;
+    }
+
+    /**
+     * @return the edited load styles by connector class or package pattern
+     */
+    public Map<String, String> getLoadStyles() {
+        Map<String, String> loadStyles = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, NativeSelect> entry : addonStyleSelects.entrySet()) {
+            Object style = entry.getValue().getValue();
+            if (ModuleOptions.LOAD_STYLES.contains(style)) {
+                loadStyles.put(entry.getKey(), (String) style);
+            }
+        }
+        loadStyles.putAll(ModuleOptions.parseLoadStyles(connectorRulesTextArea.getValue()));
+        return loadStyles;
+    }
+}
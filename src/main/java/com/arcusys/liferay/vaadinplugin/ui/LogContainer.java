@@ -0,0 +1,237 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.arcusys.liferay.vaadinplugin.util.LogBuffer;
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.AbstractContainer;
+import com.vaadin.data.util.ObjectProperty;
+import com.vaadin.data.util.PropertysetItem;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read only container exposing the lines of a {@link LogBuffer} to a
+ * {@link com.vaadin.ui.Table}, which then fetches only the rows it shows.
+ *
+ * Item ids are absolute line numbers, so ids stay valid while older lines
+ * are pushed out of the buffer. Items are created on demand.
+ */
+@SuppressWarnings("serial")
+public class LogContainer extends AbstractContainer implements Container.Indexed, Container.ItemSetChangeNotifier {
+
+    public static final String LINE_PROPERTY = "line";
+
+    private final LogBuffer buffer;
+
+    public LogContainer(int capacity) {
+        buffer = new LogBuffer(capacity);
+    }
+
+    /**
+     * Appends lines and notifies the listeners once.
+     */
+    public void addLines(List<String> lines) {
+        for (String line : lines) {
+            buffer.add(line);
+        }
+        fireItemSetChange();
+    }
+
+    public void clear() {
+        buffer.clear();
+        fireItemSetChange();
+    }
+
+    private long getFirstLineNumber() {
+        return buffer.getDroppedCount();
+    }
+
+    private int toIndex(Object itemId) {
+        if (!(itemId instanceof Long)) {
+            return -1;
+        }
+        long index = (Long) itemId - getFirstLineNumber();
+        return index >= 0 && index < buffer.size() ? (int) index : -1;
+    }
+
+    public int indexOfId(Object itemId) {
+        return toIndex(itemId);
+    }
+
+    public Object getIdByIndex(int index) {
+        if (index < 0 || index >= buffer.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + buffer.size());
+        }
+        return getFirstLineNumber() + index;
+    }
+
+    public List<?> getItemIds(int startIndex, int numberOfItems) {
+        int end = Math.min(buffer.size(), startIndex + numberOfItems);
+        List<Long> ids = new ArrayList<Long>(Math.max(0, end - startIndex));
+        for (int i = startIndex; i < end; i++) {
+            ids.add(getFirstLineNumber() + i);
+        }
+        return ids;
+    }
+
+    public Collection<?> getItemIds() {
+        final long first = getFirstLineNumber();
+        final int size = buffer.size();
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int index) {
+                return first + index;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public Object nextItemId(Object itemId) {
+        int index = toIndex(itemId);
+        return index >= 0 && index + 1 < buffer.size() ? getIdByIndex(index + 1) : null;
+    }
+
+    public Object prevItemId(Object itemId) {
+        int index = toIndex(itemId);
+        return index > 0 ? getIdByIndex(index - 1) : null;
+    }
+
+    public Object firstItemId() {
+        return buffer.size() > 0 ? getIdByIndex(0) : null;
+    }
+
+    public Object lastItemId() {
+        return buffer.size() > 0 ? getIdByIndex(buffer.size() - 1) : null;
+    }
+
+    public boolean isFirstId(Object itemId) {
+        return buffer.size() > 0 && toIndex(itemId) == 0;
+    }
+
+    public boolean isLastId(Object itemId) {
+        return buffer.size() > 0 && toIndex(itemId) == buffer.size() - 1;
+    }
+
+    public Item getItem(Object itemId) {
+        int index = toIndex(itemId);
+        if (index < 0) {
+            return null;
+        }
+        PropertysetItem item = new PropertysetItem();
+        item.addItemProperty(LINE_PROPERTY, new ObjectProperty<String>(buffer.get(index), String.class, true));
+        return item;
+    }
+
+    public Collection<?> getContainerPropertyIds() {
+        return Collections.singletonList(LINE_PROPERTY);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Property getContainerProperty(Object itemId, Object propertyId) {
+        Item item = LINE_PROPERTY.equals(propertyId) ? getItem(itemId) : null;
+        return item != null ? item.getItemProperty(LINE_PROPERTY) : null;
+    }
+
+    public Class<?> getType(Object propertyId) {
+        return LINE_PROPERTY.equals(propertyId) ? String.class : null;
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    public boolean containsId(Object itemId) {
+        return toIndex(itemId) >= 0;
+    }
+
+    @Override
+    public void addItemSetChangeListener(ItemSetChangeListener listener) {
+        super.addItemSetChangeListener(listener);
+    }
+
+    @Override
+    @Deprecated
+    public void addListener(ItemSetChangeListener listener) {
+        super.addListener(listener);
+    }
+
+    @Override
+    public void removeItemSetChangeListener(ItemSetChangeListener listener) {
+        super.removeItemSetChangeListener(listener);
+    }
+
+    @Override
+    @Deprecated
+    public void removeListener(ItemSetChangeListener listener) {
+        super.removeListener(listener);
+    }
+
+    public Object addItemAt(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Item addItemAt(int index, Object newItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object addItemAfter(Object previousItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Item addItemAfter(Object previousItemId, Object newItemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Item addItem(Object itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object addItem() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeItem(Object itemId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean addContainerProperty(Object propertyId, Class<?> type, Object defaultValue) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeContainerProperty(Object propertyId) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeAllItems() {
+        throw new UnsupportedOperationException();
+    }
+}
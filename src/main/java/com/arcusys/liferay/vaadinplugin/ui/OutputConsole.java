@@ -21,19 +21,54 @@ package com.arcusys.liferay.vaadinplugin.ui;
  * #L%
  */
 
-import com.vaadin.shared.ui.label.ContentMode;
+import com.arcusys.liferay.vaadinplugin.util.ControlPanelPortletUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.vaadin.server.FileDownloader;
+import com.vaadin.server.StreamResource;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Button;
 import com.vaadin.ui.CustomComponent;
+import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
-
 import com.vaadin.ui.Panel;
+import com.vaadin.ui.Table;
 import com.vaadin.ui.VerticalLayout;
-import com.vaadin.ui.Notification;
+import com.vaadin.ui.themes.BaseTheme;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Shows the most recent output lines in a table which only sends the
+ * visible rows to the browser. All lines are also written to a temporary
+ * file which can be downloaded as the full log.
+ */
 @SuppressWarnings("serial")
 public class OutputConsole extends CustomComponent {
+    private static final Log log = LogFactoryUtil.getLog(OutputConsole.class);
+
+    public static final String LINES_PROPERTY = "vaadin.control.panel.output.console.lines";
+
+    private static final int DEFAULT_LINES = 10000;
 
-    private Label outputLabel = new Label("", ContentMode.HTML);
-    private Label scrollToLabel = new Label();
+    private final LogContainer lines;
+    private final Table table;
+    private final Label lineCountLabel = new Label();
+    private long lineCount;
+
+    private File spoolFile;
+    private Writer spoolWriter;
 
     public OutputConsole(String caption) {
         Panel panel = new Panel();
@@ -42,31 +77,120 @@ public class OutputConsole extends CustomComponent {
         setCompositionRoot(panel);
 
         VerticalLayout layout = new VerticalLayout();
-        layout.setSizeUndefined();
+        layout.setSizeFull();
         panel.setContent(layout);
 
-        VerticalLayout outputLabelLayout = new VerticalLayout();
-        outputLabelLayout.setSizeUndefined();
-        outputLabelLayout.setMargin(true);
-        layout.addComponent(outputLabelLayout);
+        lines = new LogContainer(ControlPanelPortletUtil.getIntegerProperty(LINES_PROPERTY, DEFAULT_LINES));
+        table = new Table(null, lines);
+        table.setSizeFull();
+        table.setColumnHeaderMode(Table.ColumnHeaderMode.HIDDEN);
+        table.setSortEnabled(false);
+        table.setCacheRate(1);
+        table.setColumnExpandRatio(LogContainer.LINE_PROPERTY, 1);
+        layout.addComponent(table);
+        layout.setExpandRatio(table, 1);
 
-        outputLabel.setSizeUndefined();
-        outputLabelLayout.addComponent(outputLabel);
+        HorizontalLayout footer = new HorizontalLayout();
+        footer.setSpacing(true);
+        footer.setMargin(true);
+        lineCountLabel.setSizeUndefined();
+        footer.addComponent(lineCountLabel);
+        footer.setComponentAlignment(lineCountLabel, Alignment.MIDDLE_LEFT);
+        Button downloadButton = new Button("Download full log");
+        downloadButton.setStyleName(BaseTheme.BUTTON_LINK);
+        new FileDownloader(createLogResource()).extend(downloadButton);
+        footer.addComponent(downloadButton);
+        footer.setComponentAlignment(downloadButton, Alignment.MIDDLE_LEFT);
+        layout.addComponent(footer);
+        updateLineCount();
+    }
 
-        scrollToLabel.setWidth("0px");
-        scrollToLabel.setHeight("0px");
-        layout.addComponent(scrollToLabel);
+    private StreamResource createLogResource() {
+        StreamResource resource = new StreamResource(new StreamResource.StreamSource() {
+            public InputStream getStream() {
+                synchronized (OutputConsole.this) {
+                    if (spoolFile == null) {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+                    try {
+                        spoolWriter.flush();
+                        return new FileInputStream(spoolFile);
+                    } catch (IOException e) {
+                        log.warn("Could not read output log " + spoolFile, e);
+                        return null;
+                    }
+                }
+            }
+        }, "output.log");
+        resource.setMIMEType("text/plain");
+        resource.setCacheTime(0);
+        return resource;
     }
 
     public void clear() {
-        outputLabel.setValue("");
+        lines.clear();
+        lineCount = 0;
+        updateLineCount();
+        closeSpool();
     }
 
+    /**
+     * Must be called holding the session lock.
+     */
     public void log(String msg) {
-        synchronized (getUI()) {
-            msg = "<div>" + msg + "</div>";
-            outputLabel.setValue(outputLabel.getValue() + msg);
-            getUI().scrollIntoView(scrollToLabel);
+        log(Collections.singletonList(msg));
+    }
+
+    /**
+     * Appends several lines with a single update of the console. Must be
+     * called holding the session lock.
+     */
+    public void log(List<String> messages) {
+        lines.addLines(messages);
+        lineCount += messages.size();
+        updateLineCount();
+        spool(messages);
+        table.setCurrentPageFirstItemIndex(lines.size() - 1);
+    }
+
+    private void updateLineCount() {
+        int shown = lines.size();
+        lineCountLabel.setValue(lineCount > shown
+                ? lineCount + " lines, last " + shown + " shown"
+                : lineCount + " lines");
+    }
+
+    private synchronized void spool(List<String> messages) {
+        try {
+            if (spoolWriter == null) {
+                spoolFile = File.createTempFile("vaadin-output", ".log");
+                spoolWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spoolFile), "UTF-8"));
+            }
+            for (String message : messages) {
+                spoolWriter.write(message);
+                spoolWriter.write('\n');
+            }
+        } catch (FileNotFoundException e) {
+            log.warn("Could not create output log file.", e);
+        } catch (IOException e) {
+            log.warn("Could not write output log " + spoolFile, e);
         }
     }
+
+    private synchronized void closeSpool() {
+        if (spoolWriter != null) {
+            ControlPanelPortletUtil.close(spoolWriter);
+            spoolWriter = null;
+        }
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+
+    @Override
+    public void detach() {
+        closeSpool();
+        super.detach();
+    }
 }
@@ -0,0 +1,97 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2010 - 2013 Vaadin Ltd.
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.vaadin.data.Property;
+import com.vaadin.ui.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists the earlier versions of a widgetset kept in the snapshot store and
+ * lets one of them be chosen for restoring.
+ */
+@SuppressWarnings("serial")
+public class WidgetsetBackupsWindow extends Window {
+
+    private final Table backupsTable;
+    private String selectedSnapshot;
+
+    /**
+     * @param snapshotIds ids of the snapshots, newest first
+     */
+    public WidgetsetBackupsWindow(String widgetset, List<String> snapshotIds) {
+        super("Earlier versions of " + widgetset);
+        setModal(true);
+        setWidth("400px");
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setMargin(true);
+        layout.setSpacing(true);
+        setContent(layout);
+
+        backupsTable = new Table();
+        backupsTable.setWidth("100%");
+        backupsTable.setPageLength(Math.min(10, Math.max(1, snapshotIds.size())));
+        backupsTable.setSelectable(true);
+        backupsTable.setImmediate(true);
+        backupsTable.addContainerProperty("replaced", String.class, null, "Replaced", null, null);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (String id : snapshotIds) {
+            // Snapshot ids are the times they were taken
+            backupsTable.addItem(new Object[]{format.format(new Date(Long.parseLong(id)))}, id);
+        }
+        layout.addComponent(backupsTable);
+
+        HorizontalLayout buttons = new HorizontalLayout();
+        buttons.setSpacing(true);
+        final Button restoreButton = new Button("Restore", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                selectedSnapshot = (String) backupsTable.getValue();
+                close();
+            }
+        });
+        restoreButton.setEnabled(false);
+        backupsTable.addValueChangeListener(new Property.ValueChangeListener() {
+            public void valueChange(Property.ValueChangeEvent event) {
+                restoreButton.setEnabled(backupsTable.getValue() != null);
+            }
+        });
+        buttons.addComponent(restoreButton);
+        buttons.addComponent(new Button("Close", new Button.ClickListener() {
+            public void buttonClick(Button.ClickEvent event) {
+                close();
+            }
+        }));
+        layout.addComponent(buttons);
+    }
+
+    /**
+     * @return id of the snapshot chosen for restoring, or null if the window
+     * was closed without choosing one
+     */
+    public String getSelectedSnapshot() {
+        return selectedSnapshot;
+    }
+}
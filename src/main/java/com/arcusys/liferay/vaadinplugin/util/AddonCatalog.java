@@ -0,0 +1,348 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Index of the add-on jars in the portal lib directory, so that listing the
+ * add-ons does not open every jar.
+ *
+ * Jars are keyed by path, size and modification time. Only new and changed
+ * jars are read, in parallel, and jars which are not add-ons are indexed
+ * too. The index is kept in memory and persisted in the plugin data
+ * directory, so it also survives restarts of the portal.
+ */
+public class AddonCatalog {
+    private static final Log log = LogFactoryUtil.getLog(AddonCatalog.class);
+
+    private static final String INDEX_FILE = "addon-index.properties";
+    private static final String SEPARATOR = "\t";
+
+    private static AddonCatalog instance;
+
+    private final File indexFile;
+    // Absolute path to the indexed state of the jar
+    private Map<String, Entry> entries;
+
+    /**
+     * Indexed state of one jar.
+     */
+    static class Entry {
+        final long length;
+        final long lastModified;
+        // Null if the jar is not an add-on
+        final VaadinAddonInfo addon;
+
+        Entry(long length, long lastModified, VaadinAddonInfo addon) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.addon = addon;
+        }
+
+        boolean matches(File jar) {
+            return jar.length() == length && jar.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * Current state of the jars passed to {@link #update(Collection)}.
+     */
+    public static class Changes {
+        private final List<File> changedJars = new ArrayList<File>();
+        private final List<File> removedJars = new ArrayList<File>();
+        private final Map<File, VaadinAddonInfo> addons = new HashMap<File, VaadinAddonInfo>();
+
+        /**
+         * @return the jars which were added or modified, ordered by name
+         */
+        public List<File> getChangedJars() {
+            return Collections.unmodifiableList(changedJars);
+        }
+
+        /**
+         * @return the jars which no longer exist
+         */
+        public List<File> getRemovedJars() {
+            return Collections.unmodifiableList(removedJars);
+        }
+
+        /**
+         * @return the add-on in a changed jar, or null if it is not an add-on
+         */
+        public VaadinAddonInfo getAddon(File jar) {
+            return addons.get(jar);
+        }
+
+        public boolean isEmpty() {
+            return changedJars.isEmpty() && removedJars.isEmpty();
+        }
+    }
+
+    AddonCatalog(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public static synchronized AddonCatalog getDefault() {
+        if (instance == null) {
+            instance = new AddonCatalog(new File(ControlPanelPortletUtil.getPluginDataDir(), INDEX_FILE));
+        }
+        return instance;
+    }
+
+    /**
+     * Lists the add-ons in a directory, reading only the jars which are not
+     * in the index or have changed since they were indexed.
+     *
+     * @return the add-ons, ordered by jar name
+     */
+    public synchronized List<VaadinAddonInfo> getAddons(File dir) {
+        if (entries == null) {
+            entries = load();
+        }
+        File[] jars = dir.listFiles(WidgetsetUtil.JAR_FILES_ONLY);
+        if (jars == null) {
+            return new ArrayList<VaadinAddonInfo>();
+        }
+        Arrays.sort(jars);
+
+        List<File> changed = new ArrayList<File>();
+        for (File jar : jars) {
+            Entry entry = entries.get(jar.getAbsolutePath());
+            if (entry == null || !entry.matches(jar)) {
+                changed.add(jar);
+            }
+        }
+        boolean modified = !changed.isEmpty();
+        if (modified) {
+            entries.putAll(read(changed));
+        }
+
+        // Forget jars removed from this directory, and earlier entries of
+        // jars which could not be read now
+        Map<String, Entry> current = new HashMap<String, Entry>();
+        for (File jar : jars) {
+            Entry entry = entries.get(jar.getAbsolutePath());
+            if (entry != null && entry.matches(jar)) {
+                current.put(jar.getAbsolutePath(), entry);
+            }
+        }
+        File absoluteDir = dir.getAbsoluteFile();
+        for (String path : new ArrayList<String>(entries.keySet())) {
+            if (absoluteDir.equals(new File(path).getParentFile()) && !current.containsKey(path)) {
+                entries.remove(path);
+                modified = true;
+            }
+        }
+        if (modified) {
+            store();
+        }
+
+        List<VaadinAddonInfo> addons = new ArrayList<VaadinAddonInfo>();
+        for (File jar : jars) {
+            Entry entry = current.get(jar.getAbsolutePath());
+            if (entry != null && entry.addon != null) {
+                addons.add(entry.addon);
+            }
+        }
+        return addons;
+    }
+
+    /**
+     * Updates the index for jars reported as added, modified or removed,
+     * without listing their directory. Only the jars which differ from the
+     * index are read.
+     *
+     * The result has the current state of every given jar, also those the
+     * index already had, so that it can be applied to lists built from an
+     * earlier state of the index.
+     */
+    public synchronized Changes update(Collection<File> jars) {
+        if (entries == null) {
+            entries = load();
+        }
+        Changes changes = new Changes();
+        List<File> changed = new ArrayList<File>();
+        boolean modified = false;
+        for (File jar : jars) {
+            String path = jar.getAbsolutePath();
+            if (jar.isFile()) {
+                changes.changedJars.add(jar);
+                Entry entry = entries.get(path);
+                if (entry == null || !entry.matches(jar)) {
+                    changed.add(jar);
+                }
+            } else {
+                changes.removedJars.add(jar);
+                modified |= entries.remove(path) != null;
+            }
+        }
+        if (!changed.isEmpty()) {
+            Map<String, Entry> read = read(changed);
+            for (File jar : changed) {
+                // An outdated entry of a jar which could not be read is dropped
+                entries.remove(jar.getAbsolutePath());
+            }
+            entries.putAll(read);
+            modified = true;
+        }
+        if (modified) {
+            store();
+        }
+
+        Collections.sort(changes.changedJars);
+        for (File jar : changes.changedJars) {
+            Entry entry = entries.get(jar.getAbsolutePath());
+            if (entry != null && entry.addon != null) {
+                changes.addons.put(jar, entry.addon);
+            }
+        }
+        return changes;
+    }
+
+    private static Map<String, Entry> read(List<File> jars) {
+        List<Callable<Entry>> tasks = new ArrayList<Callable<Entry>>();
+        for (final File jar : jars) {
+            tasks.add(new Callable<Entry>() {
+                public Entry call() {
+                    // Size and time before reading, so a jar replaced while
+                    // being read is read again next time
+                    long length = jar.length();
+                    long lastModified = jar.lastModified();
+                    try {
+                        return new Entry(length, lastModified, WidgetsetUtil.readAddonInfo(jar));
+                    } catch (IOException e) {
+                        // Not indexed, so it is read again on the next scan
+                        log.warn("Could not read add-on jar " + jar + ", skipping it for now", e);
+                        return null;
+                    }
+                }
+            });
+        }
+
+        Map<String, Entry> result = new HashMap<String, Entry>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Entry>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < jars.size(); i++) {
+                Entry entry = futures.get(i).get();
+                if (entry != null) {
+                    result.put(jars.get(i).getAbsolutePath(), entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading add-ons", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        if (!indexFile.exists()) {
+            return loaded;
+        }
+        try {
+            Properties properties = ControlPanelPortletUtil.loadProperties(indexFile);
+            for (String path : properties.stringPropertyNames()) {
+                Entry entry = parseEntry(new File(path), properties.getProperty(path));
+                if (entry != null) {
+                    loaded.put(path, entry);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read add-on index " + indexFile + ", reading all jars.", e);
+        }
+        return loaded;
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            properties.setProperty(entry.getKey(), formatEntry(entry.getValue()));
+        }
+        try {
+            ControlPanelPortletUtil.storeProperties(properties, indexFile, "Vaadin add-ons by jar");
+        } catch (IOException e) {
+            log.warn("Could not write add-on index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Formats an entry as length, modification time and, for add-ons, name,
+     * version and widgetsets separated by tabs.
+     */
+    static String formatEntry(Entry entry) {
+        StringBuilder value = new StringBuilder();
+        value.append(entry.length).append(SEPARATOR).append(entry.lastModified);
+        if (entry.addon != null) {
+            value.append(SEPARATOR).append(entry.addon.getName());
+            value.append(SEPARATOR).append(entry.addon.getVersion());
+            for (String widgetset : entry.addon.getWidgetsets()) {
+                value.append(SEPARATOR).append(widgetset);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the entry, or null if the value is not valid
+     */
+    static Entry parseEntry(File jar, String value) {
+        String[] fields = value.split(SEPARATOR);
+        if (fields.length != 2 && fields.length < 5) {
+            return null;
+        }
+        try {
+            VaadinAddonInfo addon = null;
+            if (fields.length >= 5) {
+                addon = new VaadinAddonInfo(fields[2], fields[3], jar,
+                        new ArrayList<String>(Arrays.asList(fields).subList(4, fields.length)));
+            }
+            return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), addon);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
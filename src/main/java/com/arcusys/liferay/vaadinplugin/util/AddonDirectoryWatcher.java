@@ -0,0 +1,229 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.apache.commons.io.monitor.FileAlterationMonitor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Watches the portal lib directory for added, modified and removed jars and
+ * reports them to listeners, such as open control panels.
+ *
+ * The directory is polled, as the portal may run on Java 6. Changes are
+ * collected until no jar has changed for a quiet period, so that a burst of
+ * changes, such as a rolling deployment or a jar still being copied, is
+ * reported once. The changed jars are then updated in the
+ * {@link AddonCatalog}, which reads only those.
+ *
+ * The directory is watched while there are listeners.
+ */
+public class AddonDirectoryWatcher extends FileAlterationListenerAdaptor {
+    private static final Log log = LogFactoryUtil.getLog(AddonDirectoryWatcher.class);
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.addons.watch";
+    public static final String INTERVAL_PROPERTY = "vaadin.control.panel.addons.watch.interval";
+    public static final String QUIET_PERIOD_PROPERTY = "vaadin.control.panel.addons.watch.quiet.period";
+
+    private static final long DEFAULT_INTERVAL_MS = 2000;
+    private static final long DEFAULT_QUIET_PERIOD_MS = 5000;
+
+    private static AddonDirectoryWatcher instance;
+    private static FileAlterationMonitor monitor;
+
+    /**
+     * Receives the changes of the watched directory, on the watcher thread.
+     */
+    public interface Listener {
+        void addonsChanged(AddonCatalog.Changes changes);
+    }
+
+    private final FileAlterationObserver observer;
+    private final AddonCatalog catalog;
+    private final long quietPeriodMs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // Accessed only by the polling thread
+    private final Set<File> pending = new LinkedHashSet<File>();
+    private long lastChange;
+    private boolean changedInPoll;
+
+    AddonDirectoryWatcher(File dir, AddonCatalog catalog, long quietPeriodMs) {
+        this.observer = new FileAlterationObserver(dir, FileFilterUtils.suffixFileFilter(".jar"));
+        this.catalog = catalog;
+        this.quietPeriodMs = quietPeriodMs;
+        observer.addListener(this);
+    }
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, true);
+    }
+
+    /**
+     * @return milliseconds between two polls of the directory
+     */
+    public static long getInterval() {
+        return ControlPanelPortletUtil.getLongProperty(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * Adds a listener, starting to watch the portal lib directory if this is
+     * the first one.
+     *
+     * @return false if watching is disabled
+     */
+    public static synchronized boolean addListener(Listener listener) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (instance == null) {
+            AddonDirectoryWatcher watcher = new AddonDirectoryWatcher(ControlPanelPortletUtil.getPortalLibLocation(),
+                    AddonCatalog.getDefault(),
+                    ControlPanelPortletUtil.getLongProperty(QUIET_PERIOD_PROPERTY, DEFAULT_QUIET_PERIOD_MS));
+            FileAlterationMonitor newMonitor = new FileAlterationMonitor(getInterval(), watcher.observer);
+            newMonitor.setThreadFactory(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "vaadin-addon-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                newMonitor.start();
+            } catch (Exception e) {
+                log.warn("Could not watch the add-on directory.", e);
+                return false;
+            }
+            instance = watcher;
+            monitor = newMonitor;
+        }
+        instance.listeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Removes a listener, and stops watching when none are left.
+     */
+    public static synchronized void removeListener(Listener listener) {
+        if (instance != null) {
+            instance.listeners.remove(listener);
+            if (instance.listeners.isEmpty()) {
+                shutdownInstance();
+            }
+        }
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (monitor != null) {
+            try {
+                monitor.stop();
+            } catch (Exception e) {
+                log.warn("Could not stop watching the add-on directory.", e);
+            }
+            monitor = null;
+        }
+        instance = null;
+    }
+
+    void addWatcherListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Takes the current state of the directory as the state changes are
+     * compared with.
+     */
+    void initialize() throws Exception {
+        observer.initialize();
+    }
+
+    /**
+     * Checks the directory once, as the monitor does on each interval.
+     */
+    void poll() {
+        observer.checkAndNotify();
+    }
+
+    @Override
+    public void onStart(FileAlterationObserver observer) {
+        changedInPoll = false;
+    }
+
+    @Override
+    public void onFileCreate(File file) {
+        changed(file);
+    }
+
+    @Override
+    public void onFileChange(File file) {
+        changed(file);
+    }
+
+    @Override
+    public void onFileDelete(File file) {
+        changed(file);
+    }
+
+    private void changed(File file) {
+        pending.add(file);
+        changedInPoll = true;
+        lastChange = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onStop(FileAlterationObserver observer) {
+        // A jar still being written changes on every poll, so it is only
+        // reported after a poll which found no changes
+        if (pending.isEmpty() || changedInPoll || System.currentTimeMillis() - lastChange < quietPeriodMs) {
+            return;
+        }
+        AddonCatalog.Changes changes;
+        try {
+            changes = catalog.update(pending);
+        } catch (RuntimeException e) {
+            log.warn("Could not read the changed add-on jars.", e);
+            return;
+        } finally {
+            pending.clear();
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.addonsChanged(changes);
+            } catch (RuntimeException e) {
+                log.warn("Could not report add-on changes to " + listener, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link ILog} which queues messages without locking and hands them to
+ * a {@link Sink} in batches at a fixed interval, so that threads reading
+ * compiler output never wait for a UI session lock.
+ *
+ * Messages below the minimum level are discarded when logged. When the
+ * queue is full, new messages are either dropped, and a count of them is
+ * reported with the next batch, or the logging thread waits for the next
+ * flush.
+ */
+public class BatchingLog implements ILog {
+    private static final Log log = LogFactoryUtil.getLog(BatchingLog.class);
+
+    public static final String LEVEL_PROPERTY = "vaadin.control.panel.output.level";
+    public static final String QUEUE_SIZE_PROPERTY = "vaadin.control.panel.output.queue.size";
+    public static final String OVERFLOW_PROPERTY = "vaadin.control.panel.output.overflow";
+
+    public static final long FLUSH_INTERVAL_MS = 250;
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    /**
+     * Receives the batches, always from one thread at a time.
+     */
+    public interface Sink {
+        void write(List<String> messages);
+    }
+
+    private static ScheduledExecutorService flusher;
+
+    private final Sink sink;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private volatile LogLevel minLevel;
+
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object flushLock = new Object();
+    private final ScheduledFuture<?> flushTask;
+    private volatile boolean closed;
+
+    /**
+     * Creates a log configured from the portal properties.
+     */
+    public static BatchingLog create(Sink sink) {
+        return new BatchingLog(sink,
+                ControlPanelPortletUtil.getIntegerProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+                OverflowPolicy.valueOf(ControlPanelPortletUtil.getProperty(OVERFLOW_PROPERTY, "drop").toUpperCase()),
+                LogLevel.parse(ControlPanelPortletUtil.getProperty(LEVEL_PROPERTY, "info"), LogLevel.INFO),
+                true);
+    }
+
+    /**
+     * @param scheduled false for flushing only with {@link #flush()}
+     */
+    BatchingLog(Sink sink, int capacity, OverflowPolicy overflowPolicy, LogLevel minLevel, boolean scheduled) {
+        this.sink = sink;
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.minLevel = minLevel;
+        flushTask = scheduled ? getFlusher().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS) : null;
+    }
+
+    public void setMinLevel(LogLevel minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    public LogLevel getMinLevel() {
+        return minLevel;
+    }
+
+    public void log(String message) {
+        if (closed || LogLevel.of(message).compareTo(minLevel) < 0) {
+            return;
+        }
+        while (true) {
+            int current = size.get();
+            if (current < capacity) {
+                if (size.compareAndSet(current, current + 1)) {
+                    break;
+                }
+                continue;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP || closed || Thread.currentThread().isInterrupted()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+        }
+        queue.offer(message);
+    }
+
+    /**
+     * Hands the queued messages to the sink in the calling thread.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<String> batch = new ArrayList<String>();
+            String message;
+            while ((message = queue.poll()) != null) {
+                size.decrementAndGet();
+                batch.add(message);
+            }
+            long droppedCount = dropped.getAndSet(0);
+            if (droppedCount > 0) {
+                batch.add("... " + droppedCount + " lines dropped, output was produced faster than it could be shown");
+            }
+            if (batch.isEmpty() || closed) {
+                return;
+            }
+            try {
+                sink.write(batch);
+            } catch (RuntimeException e) {
+                log.warn("Output sink failed, closing the output log.", e);
+                close();
+            }
+        }
+    }
+
+    /**
+     * Discards the queued messages, for example when the console they would
+     * be written to is cleared. Does not wait for a running flush, as the
+     * caller may hold the lock the sink needs.
+     */
+    public void clear() {
+        while (queue.poll() != null) {
+            size.decrementAndGet();
+        }
+        dropped.set(0);
+    }
+
+    /**
+     * Stops flushing and discards queued and later messages.
+     */
+    public void close() {
+        closed = true;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        queue.clear();
+        size.set(0);
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "vaadin-output-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return flusher;
+    }
+
+    /**
+     * Stops the thread flushing all logs, when the portlet is destroyed.
+     */
+    public static synchronized void shutdownFlusher() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Removes the jars a widgetset compilation does not need from its
+ * classpath, so that the GWT compiler scans fewer entries.
+ *
+ * The modules inherited by the widgetset are followed through the
+ * <code>&lt;inherits&gt;</code> of the module files found on the classpath.
+ * A jar is needed if it contains one of these modules, or files under the
+ * source, super source or public paths of one of them. A jar is also needed
+ * if it defines a class referenced from the client code of these modules,
+ * such as the server side component named in <code>@Connect</code>, or
+ * from such a class, like its superclasses. References are read from the
+ * constant pools of class files and from the qualified names and imports of
+ * Java sources.
+ *
+ * Directories and jars which cannot be read are always kept, the latter so
+ * that {@link CompilePreflight} reports them.
+ */
+public class ClasspathMinimizer {
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.compile.classpath.minimize";
+
+    private static final String MODULE_SUFFIX = ".gwt.xml";
+    private static final Pattern PATH_ELEMENT = Pattern.compile(
+            "<(source|super-source|public)\\s[^>]*?path\\s*=\\s*[\"']([^\"']*)[\"']");
+    private static final Pattern PATHLESS_ELEMENT = Pattern.compile("<(source|super-source|public)(\\s*/?>|\\s+[^>]*/?>)");
+    private static final Pattern SOURCE_REFERENCE = Pattern.compile("\\b(?:[a-z_$][\\w$]*\\.)+[A-Z][\\w$]*");
+    private static final Pattern INTERNAL_NAME = Pattern.compile("[\\w$]+(?:/[\\w$]+)+");
+    private static final Pattern DESCRIPTOR_NAME = Pattern.compile("L([\\w$]+(?:/[\\w$]+)+);");
+
+    /**
+     * Module files and directories found in one jar.
+     */
+    private static class JarIndex {
+        final File file;
+        boolean readable = true;
+        // Module name to the modules it inherits
+        final Map<String, List<String>> modules = new HashMap<String, List<String>>();
+        // Module name to the directories of its source, super source and public paths
+        final Map<String, List<String>> modulePaths = new HashMap<String, List<String>>();
+        // Directories containing files, ending with '/'
+        final Set<String> directories = new HashSet<String>();
+        // Class name to the class file, or the source if there is none
+        final Map<String, String> classEntries = new HashMap<String, String>();
+
+        JarIndex(File file) {
+            this.file = file;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, true);
+    }
+
+    /**
+     * @param fixedEntries entries which are always kept, like Vaadin's jars;
+     *                     their modules end the search
+     * @param candidates   entries which are kept only if needed
+     * @param rootModules  modules inherited by the compiled widgetset
+     * @return the needed candidates, in their original order
+     */
+    public static List<File> minimize(List<File> fixedEntries, List<File> candidates, Collection<String> rootModules)
+            throws InterruptedException {
+        Set<String> fixedModules = new HashSet<String>();
+        for (JarIndex index : index(fixedEntries, false)) {
+            fixedModules.addAll(index.modules.keySet());
+        }
+        List<JarIndex> indexes = index(candidates, true);
+
+        Map<String, List<String>> inherits = new HashMap<String, List<String>>();
+        Map<String, List<String>> paths = new HashMap<String, List<String>>();
+        for (JarIndex index : indexes) {
+            for (Map.Entry<String, List<String>> module : index.modules.entrySet()) {
+                if (!inherits.containsKey(module.getKey())) {
+                    inherits.put(module.getKey(), module.getValue());
+                    paths.put(module.getKey(), index.modulePaths.get(module.getKey()));
+                }
+            }
+        }
+
+        // Modules needed from the candidates and the paths they compile
+        Set<String> closure = new HashSet<String>();
+        List<String> neededPaths = new ArrayList<String>();
+        LinkedList<String> pending = new LinkedList<String>(rootModules);
+        while (!pending.isEmpty()) {
+            String module = pending.removeFirst();
+            if (fixedModules.contains(module) || !inherits.containsKey(module) || !closure.add(module)) {
+                continue;
+            }
+            pending.addAll(inherits.get(module));
+            neededPaths.addAll(paths.get(module));
+        }
+
+        Set<JarIndex> neededIndexes = new HashSet<JarIndex>();
+        for (JarIndex index : indexes) {
+            if (!index.readable || isNeeded(index, closure, neededPaths)) {
+                neededIndexes.add(index);
+            }
+        }
+        addReferencedJars(indexes, neededIndexes, neededPaths);
+
+        List<File> needed = new ArrayList<File>();
+        for (JarIndex index : indexes) {
+            if (neededIndexes.contains(index)) {
+                needed.add(index.file);
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Adds the jars defining the classes referenced from the compiled paths
+     * of the needed jars, and from the classes found this way.
+     */
+    private static void addReferencedJars(List<JarIndex> indexes, Set<JarIndex> needed, List<String> neededPaths) {
+        Map<String, JarIndex> owners = new HashMap<String, JarIndex>();
+        for (JarIndex index : indexes) {
+            for (String className : index.classEntries.keySet()) {
+                if (!owners.containsKey(className)) {
+                    owners.put(className, index);
+                }
+            }
+        }
+
+        Set<String> visited = new HashSet<String>();
+        LinkedList<String> pending = new LinkedList<String>();
+        for (JarIndex index : needed) {
+            for (Map.Entry<String, String> entry : index.classEntries.entrySet()) {
+                for (String path : neededPaths) {
+                    if (entry.getValue().startsWith(path)) {
+                        pending.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+
+        Map<JarIndex, JarFile> openJars = new HashMap<JarIndex, JarFile>();
+        try {
+            while (!pending.isEmpty()) {
+                String className = pending.removeFirst();
+                JarIndex owner = owners.get(className);
+                if (owner == null || !visited.add(className)) {
+                    continue;
+                }
+                needed.add(owner);
+                try {
+                    JarFile jar = openJars.get(owner);
+                    if (jar == null) {
+                        jar = new JarFile(owner.file);
+                        openJars.put(owner, jar);
+                    }
+                    pending.addAll(readReferences(jar, owner.classEntries.get(className)));
+                } catch (IOException e) {
+                    // The jar is kept, only its references are unknown
+                }
+            }
+        } finally {
+            for (JarFile jar : openJars.values()) {
+                try {
+                    jar.close();
+                } catch (IOException e) {
+                    // Ignored, the jar was only read
+                }
+            }
+        }
+    }
+
+    private static Set<String> readReferences(JarFile jar, String entryName) throws IOException {
+        InputStream in = jar.getInputStream(jar.getEntry(entryName));
+        try {
+            byte[] content = IOUtils.toByteArray(in);
+            return entryName.endsWith(".class") ? getClassReferences(content)
+                    : getSourceReferences(new String(content, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the classes named in the constant pool of a class file, as
+     * class constants or in descriptors and annotation values.
+     *
+     * @return the class names, empty if the class file is not valid
+     */
+    static Set<String> getClassReferences(byte[] classFile) {
+        Set<String> references = new HashSet<String>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        try {
+            if (in.readInt() != 0xcafebabe) {
+                return references;
+            }
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        String value = in.readUTF();
+                        if (INTERNAL_NAME.matcher(value).matches()) {
+                            references.add(value.replace('/', '.'));
+                        }
+                        Matcher descriptor = DESCRIPTOR_NAME.matcher(value);
+                        while (descriptor.find()) {
+                            references.add(descriptor.group(1).replace('/', '.'));
+                        }
+                        break;
+                    case 5:
+                    case 6:
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    case 7:
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        in.skipBytes(2);
+                        break;
+                    case 15:
+                        in.skipBytes(3);
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        in.skipBytes(4);
+                        break;
+                    default:
+                        return references;
+                }
+            }
+        } catch (IOException e) {
+            // Truncated, the references read so far are used
+        }
+        return references;
+    }
+
+    /**
+     * Returns the qualified class names in a Java source, which include its
+     * imports.
+     */
+    static Set<String> getSourceReferences(String source) {
+        Set<String> references = new HashSet<String>();
+        Matcher matcher = SOURCE_REFERENCE.matcher(source);
+        while (matcher.find()) {
+            references.add(matcher.group());
+        }
+        return references;
+    }
+
+    private static boolean isNeeded(JarIndex index, Set<String> closure, List<String> neededPaths) {
+        for (String module : index.modules.keySet()) {
+            if (closure.contains(module)) {
+                return true;
+            }
+        }
+        for (String directory : index.directories) {
+            for (String path : neededPaths) {
+                if (directory.startsWith(path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<JarIndex> index(List<File> entries, final boolean readModules) throws InterruptedException {
+        List<Callable<JarIndex>> tasks = new ArrayList<Callable<JarIndex>>();
+        for (final File entry : entries) {
+            tasks.add(new Callable<JarIndex>() {
+                public JarIndex call() {
+                    JarIndex index = new JarIndex(entry);
+                    if (!entry.isFile()) {
+                        // Directories and missing entries are kept
+                        index.readable = false;
+                        return index;
+                    }
+                    try {
+                        indexJar(entry, index, readModules);
+                    } catch (IOException e) {
+                        index.readable = false;
+                    }
+                    return index;
+                }
+            });
+        }
+        if (tasks.isEmpty()) {
+            return new ArrayList<JarIndex>();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<JarIndex> indexes = new ArrayList<JarIndex>();
+            for (Future<JarIndex> future : executor.invokeAll(tasks)) {
+                try {
+                    indexes.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return indexes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void indexJar(File file, JarIndex index, boolean readModules) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                index.directories.add(name.substring(0, name.lastIndexOf('/') + 1));
+                if (readModules && (name.endsWith(".class") || name.endsWith(".java"))) {
+                    String className = name.substring(0, name.lastIndexOf('.')).replace('/', '.');
+                    if (name.endsWith(".class") || !index.classEntries.containsKey(className)) {
+                        index.classEntries.put(className, name);
+                    }
+                }
+                if (!name.endsWith(MODULE_SUFFIX)) {
+                    continue;
+                }
+                String module = CompilePreflight.toModuleName(name);
+                if (!readModules) {
+                    index.modules.put(module, new ArrayList<String>());
+                    continue;
+                }
+                InputStream in = jar.getInputStream(entry);
+                try {
+                    String content = IOUtils.toString(in, "UTF-8");
+                    index.modules.put(module, CompilePreflight.parseInherits(content));
+                    index.modulePaths.put(module, getModulePaths(name, content));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Returns the directories a module compiles or publishes: its source,
+     * super source and public paths relative to its package. Without such
+     * elements, GWT uses <code>client</code> and <code>public</code>.
+     *
+     * @param entryName name of the module file, like
+     *                  <code>org/vaadin/addon/AddonWidgetset.gwt.xml</code>
+     */
+    static List<String> getModulePaths(String entryName, String module) {
+        String base = entryName.substring(0, entryName.lastIndexOf('/') + 1);
+        List<String> paths = new ArrayList<String>();
+        Set<String> declared = new HashSet<String>();
+        Matcher matcher = PATH_ELEMENT.matcher(module);
+        while (matcher.find()) {
+            declared.add(matcher.group(1));
+            String path = matcher.group(2).trim();
+            paths.add(base + (path.length() > 0 ? path + "/" : ""));
+        }
+        Matcher pathless = PATHLESS_ELEMENT.matcher(module);
+        while (pathless.find()) {
+            if (!pathless.group(0).contains("path")) {
+                declared.add(pathless.group(1));
+                paths.add(base);
+            }
+        }
+        if (!declared.contains("source")) {
+            paths.add(base + "client/");
+        }
+        if (!declared.contains("public")) {
+            paths.add(base + "public/");
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,281 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fingerprints of the client side parts of add-on jars, which decide
+ * whether a widgetset has to be compiled again.
+ *
+ * A fingerprint covers the module files of a jar and the entries under the
+ * source, super source and public paths of its modules, plus any
+ * <code>client</code>, <code>shared</code> and <code>public</code>
+ * packages. Generators run by the compiler are covered too: the packages of
+ * the classes named in <code>&lt;generate-with&gt;</code> and
+ * <code>&lt;replace-with&gt;</code> of its modules, and any
+ * <code>rebind</code> and <code>widgetsetutils</code> packages. It is computed from the names, sizes and CRCs in the central
+ * directory, so server side changes to a jar leave it unchanged.
+ *
+ * The fingerprints of the add-ons of the deployed build of each widgetset
+ * are stored with the key of its inputs, see
+ * {@link WidgetsetArtifactStore#computeKey}.
+ */
+public class ClientFingerprint {
+
+    private static final String MODULE_SUFFIX = ".gwt.xml";
+    private static final String KEY_PROPERTY = "key";
+    private static final String ADDON_PREFIX = "addon.";
+    private static final Pattern REBIND_CLASS = Pattern.compile(
+            "<(?:generate-with|replace-with)\\s[^>]*?class\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    private static final ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+
+    private final String clientFingerprint;
+    private final String fileFingerprint;
+
+    ClientFingerprint(String clientFingerprint, String fileFingerprint) {
+        this.clientFingerprint = clientFingerprint;
+        this.fileFingerprint = fileFingerprint;
+    }
+
+    /**
+     * Returns the fingerprint of the client side entries of a jar. Results
+     * are cached by path, size and modification time.
+     */
+    public static String of(File jar) throws IOException {
+        String key = jar.getAbsolutePath() + "|" + jar.length() + "|" + jar.lastModified();
+        String fingerprint = fingerprints.get(key);
+        if (fingerprint == null) {
+            fingerprint = compute(jar);
+            fingerprints.put(key, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static String compute(File file) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            List<String> paths = new ArrayList<String>();
+            List<JarEntry> entries = new ArrayList<JarEntry>();
+            Enumeration<JarEntry> enumeration = jar.entries();
+            while (enumeration.hasMoreElements()) {
+                JarEntry entry = enumeration.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                entries.add(entry);
+                if (entry.getName().endsWith(MODULE_SUFFIX)) {
+                    InputStream in = jar.getInputStream(entry);
+                    try {
+                        String module = IOUtils.toString(in, "UTF-8");
+                        paths.addAll(ClasspathMinimizer.getModulePaths(entry.getName(), module));
+                        paths.addAll(getRebindPaths(module));
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+
+            // Entry order in a jar depends on how it was built
+            Map<String, String> clientEntries = new TreeMap<String, String>();
+            for (JarEntry entry : entries) {
+                if (isClientEntry(entry.getName(), paths)) {
+                    clientEntries.put(entry.getName(), entry.getSize() + ":" + Long.toHexString(entry.getCrc()));
+                }
+            }
+            MessageDigest md = FileDigestUtil.createSha1();
+            for (Map.Entry<String, String> entry : clientEntries.entrySet()) {
+                md.update((entry.getKey() + "=" + entry.getValue() + "\n").getBytes("UTF-8"));
+            }
+            return FileDigestUtil.toHex(md.digest());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Returns the packages of the generators and replacement classes a
+     * module declares, as directories ending with '/'.
+     */
+    static List<String> getRebindPaths(String module) {
+        List<String> paths = new ArrayList<String>();
+        Matcher matcher = REBIND_CLASS.matcher(module);
+        while (matcher.find()) {
+            String className = matcher.group(1).trim();
+            int end = className.lastIndexOf('.');
+            if (end > 0) {
+                paths.add(className.substring(0, end).replace('.', '/') + "/");
+            }
+        }
+        return paths;
+    }
+
+    static boolean isClientEntry(String name, Collection<String> modulePaths) {
+        if (name.endsWith(MODULE_SUFFIX) || name.contains("/client/") || name.contains("/shared/")
+                || name.contains("/public/") || name.contains("/rebind/") || name.contains("/widgetsetutils/")) {
+            return true;
+        }
+        for (String path : modulePaths) {
+            if (name.startsWith(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the input key and the add-on fingerprints of a deployed build
+     * of a widgetset.
+     */
+    public static void storeDeployed(String widgetset, String key, Collection<VaadinAddonInfo> addons)
+            throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_PROPERTY, key);
+        for (VaadinAddonInfo addon : addons) {
+            File jar = addon.getJarFile();
+            properties.setProperty(ADDON_PREFIX + jar.getName(), of(jar) + "," + FileDigestUtil.sha1(jar));
+        }
+        File file = getDeployedFile(widgetset);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create dir: " + parent.getAbsolutePath());
+        }
+        ControlPanelPortletUtil.storeProperties(properties, file, "Client fingerprints of the deployed widgetset");
+    }
+
+    /**
+     * Forgets the deployed build of a widgetset, for example after it was
+     * rolled back to an older build.
+     */
+    public static void clearDeployed(String widgetset) {
+        getDeployedFile(widgetset).delete();
+    }
+
+    /**
+     * @return the input key of the deployed build, or null if unknown
+     */
+    public static String getDeployedKey(String widgetset) throws IOException {
+        File file = getDeployedFile(widgetset);
+        return file.exists() ? ControlPanelPortletUtil.loadProperties(file).getProperty(KEY_PROPERTY) : null;
+    }
+
+    /**
+     * @return fingerprints of the add-on jars of the deployed build by jar
+     * name, or null if unknown
+     */
+    public static Map<String, ClientFingerprint> getDeployedAddons(String widgetset) throws IOException {
+        File file = getDeployedFile(widgetset);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = ControlPanelPortletUtil.loadProperties(file);
+        Map<String, ClientFingerprint> addons = new TreeMap<String, ClientFingerprint>();
+        for (String name : properties.stringPropertyNames()) {
+            String[] values = properties.getProperty(name).split(",");
+            if (name.startsWith(ADDON_PREFIX) && values.length == 2) {
+                addons.put(name.substring(ADDON_PREFIX.length()), new ClientFingerprint(values[0], values[1]));
+            }
+        }
+        return addons;
+    }
+
+    private static File getDeployedFile(String widgetset) {
+        return new File(ControlPanelPortletUtil.getPluginDataDir(),
+                "client-fingerprints" + File.separator + widgetset + ".properties");
+    }
+
+    /**
+     * Differences between the selected add-ons and the ones of a deployed
+     * build.
+     */
+    public static class Changes {
+        private final List<String> clientChanges = new ArrayList<String>();
+        private final List<String> serverChanges = new ArrayList<String>();
+
+        /**
+         * @return the changes which need a compilation
+         */
+        public List<String> getClientChanges() {
+            return clientChanges;
+        }
+
+        /**
+         * @return the add-ons with only server side changes
+         */
+        public List<String> getServerChanges() {
+            return serverChanges;
+        }
+
+        public boolean isStale() {
+            return !clientChanges.isEmpty();
+        }
+    }
+
+    /**
+     * Compares the selected add-ons with the ones of the deployed build.
+     *
+     * @param deployed fingerprints of the deployed build, see
+     *                 {@link #getDeployedAddons(String)}
+     */
+    public static Changes compare(Map<String, ClientFingerprint> deployed, Collection<VaadinAddonInfo> selected)
+            throws IOException {
+        Changes changes = new Changes();
+        Map<String, ClientFingerprint> removed = new TreeMap<String, ClientFingerprint>(deployed);
+        for (VaadinAddonInfo addon : selected) {
+            File jar = addon.getJarFile();
+            ClientFingerprint previous = removed.remove(jar.getName());
+            if (previous == null) {
+                changes.clientChanges.add(addon.getName() + " added");
+            } else if (!previous.clientFingerprint.equals(of(jar))) {
+                changes.clientChanges.add("client code of " + addon.getName() + " changed");
+            } else if (!previous.fileFingerprint.equals(FileDigestUtil.sha1(jar))) {
+                changes.serverChanges.add(addon.getName());
+            }
+        }
+        for (String jarName : removed.keySet()) {
+            changes.clientChanges.add(jarName + " removed");
+        }
+        return changes;
+    }
+}
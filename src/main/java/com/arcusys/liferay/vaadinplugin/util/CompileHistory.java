@@ -0,0 +1,230 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent list of past widgetset compilations with their timings, for
+ * finding the add-on or flag change which made compilations slower.
+ *
+ * The records are kept in a tab separated file in the plugin data
+ * directory, oldest first.
+ */
+public class CompileHistory {
+    private static final Log log = LogFactoryUtil.getLog(CompileHistory.class);
+
+    public static final String MAX_RECORDS_PROPERTY = "vaadin.control.panel.compile.history.size";
+
+    private static final int DEFAULT_MAX_RECORDS = 100;
+    private static final String ENCODING = "UTF-8";
+    private static final String LIST_SEPARATOR = ";";
+
+    private static CompileHistory instance;
+
+    private final File file;
+    private final int maxRecords;
+    private List<CompileRecord> records;
+
+    CompileHistory(File file, int maxRecords) {
+        this.file = file;
+        this.maxRecords = maxRecords;
+    }
+
+    public static synchronized CompileHistory getDefault() {
+        if (instance == null) {
+            instance = new CompileHistory(new File(ControlPanelPortletUtil.getPluginDataDir(), "compile-history.txt"),
+                    ControlPanelPortletUtil.getIntegerProperty(MAX_RECORDS_PROPERTY, DEFAULT_MAX_RECORDS));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the records, oldest first
+     */
+    public synchronized List<CompileRecord> getRecords() {
+        return Collections.unmodifiableList(new ArrayList<CompileRecord>(load()));
+    }
+
+    public synchronized void add(CompileRecord record) throws IOException {
+        List<CompileRecord> current = load();
+        current.add(record);
+        while (current.size() > maxRecords) {
+            current.remove(0);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (CompileRecord each : current) {
+            lines.add(format(each));
+        }
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileUtils.writeLines(tmpFile, ENCODING, lines);
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not write " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent record of the same widgetset before the given
+     * one, or null.
+     */
+    public synchronized CompileRecord getPrevious(CompileRecord record) {
+        CompileRecord previous = null;
+        for (CompileRecord each : load()) {
+            if (each == record) {
+                break;
+            }
+            if (each.getWidgetset().equals(record.getWidgetset())) {
+                previous = each;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Describes what changed between two compilations of a widgetset, for
+     * example <code>+MyAddon 1.0, -OldAddon 2.1, profile draft -> production</code>.
+     */
+    public static String describeChanges(CompileRecord previous, CompileRecord current) {
+        if (previous == null) {
+            return "";
+        }
+        List<String> changes = new ArrayList<String>();
+        for (String addon : current.getAddons()) {
+            if (!previous.getAddons().contains(addon)) {
+                changes.add("+" + addon);
+            }
+        }
+        for (String addon : previous.getAddons()) {
+            if (!current.getAddons().contains(addon)) {
+                changes.add("-" + addon);
+            }
+        }
+        if (!previous.getProfile().equals(current.getProfile())) {
+            changes.add("profile " + previous.getProfile() + " -> " + current.getProfile());
+        }
+        if (!previous.getFlags().equals(current.getFlags())) {
+            changes.add("flags " + join(previous.getFlags(), " ") + " -> " + join(current.getFlags(), " "));
+        }
+        return join(changes, ", ");
+    }
+
+    private List<CompileRecord> load() {
+        if (records == null) {
+            records = new ArrayList<CompileRecord>();
+            if (file.exists()) {
+                try {
+                    for (Object line : FileUtils.readLines(file, ENCODING)) {
+                        CompileRecord record = parse((String) line);
+                        if (record != null) {
+                            records.add(record);
+                        }
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not read compile history " + file, e);
+                }
+            }
+        }
+        return records;
+    }
+
+    static String format(CompileRecord record) {
+        StringBuilder line = new StringBuilder();
+        line.append(record.getStartTime()).append('\t')
+                .append(clean(record.getWidgetset())).append('\t')
+                .append(clean(record.getProfile())).append('\t')
+                .append(record.getResult()).append('\t')
+                .append(record.getWallMillis());
+        for (CompileProgress.Phase phase : CompileProgress.Phase.values()) {
+            line.append('\t').append(record.getPhaseMillis(phase));
+        }
+        line.append('\t').append(record.getPermutationCount())
+                .append('\t').append(record.getOutputBytes())
+                .append('\t').append(joinClean(record.getAddons()))
+                .append('\t').append(joinClean(record.getFlags()));
+        return line.toString();
+    }
+
+    static CompileRecord parse(String line) {
+        String[] fields = line.split("\t", -1);
+        int phases = CompileProgress.Phase.values().length;
+        if (fields.length != 9 + phases) {
+            return null;
+        }
+        try {
+            Map<CompileProgress.Phase, Long> phaseMillis =
+                    new EnumMap<CompileProgress.Phase, Long>(CompileProgress.Phase.class);
+            for (int i = 0; i < phases; i++) {
+                phaseMillis.put(CompileProgress.Phase.values()[i], Long.parseLong(fields[5 + i]));
+            }
+            return new CompileRecord(Long.parseLong(fields[0]), fields[1], fields[2],
+                    CompileRecord.Result.valueOf(fields[3]), Long.parseLong(fields[4]), phaseMillis,
+                    Integer.parseInt(fields[5 + phases]), Long.parseLong(fields[6 + phases]),
+                    split(fields[7 + phases]), split(fields[8 + phases]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static List<String> split(String value) {
+        if (value.length() == 0) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(Arrays.asList(value.split(LIST_SEPARATOR)));
+    }
+
+    private static String joinClean(List<String> values) {
+        List<String> cleaned = new ArrayList<String>();
+        for (String value : values) {
+            cleaned.add(clean(value).replace(LIST_SEPARATOR, ","));
+        }
+        return join(cleaned, LIST_SEPARATOR);
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String join(List<String> values, String separator) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(separator);
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,372 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A job run by the {@link CompileJobScheduler}.
+ *
+ * Jobs with equal keys do the same work, so a job submitted while an equal
+ * one is queued or running is merged into it and its listener receives the
+ * output of the already scheduled job. A job that
+ * {@linkplain #conflictsWith(CompileJob) conflicts} with the scheduled job
+ * of its key is rejected instead.
+ *
+ * Jobs run in parallel up to the limit of the scheduler, except that an
+ * {@linkplain #isExclusive() exclusive} job runs alone and jobs changing
+ * the same {@linkplain #getResource() resource} run one after another.
+ *
+ * The job keeps the most recent lines of its output, which are replayed to
+ * listeners attaching later. Listeners which fail, for example because
+ * their UI session ended, are detached; the job itself keeps running.
+ */
+public abstract class CompileJob implements Runnable, Comparable<CompileJob>, ILog {
+    private static final Log log = LogFactoryUtil.getLog(CompileJob.class);
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, CANCELLED
+    }
+
+    public interface Listener extends ILog {
+        void jobStarted(CompileJob job);
+
+        void jobFinished(CompileJob job);
+    }
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final String key;
+    private final long sequenceNumber = sequence.incrementAndGet();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final LogBuffer logBuffer;
+    private final long submitTime = System.currentTimeMillis();
+
+    private Priority priority;
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelRequested;
+    private volatile boolean successful;
+    private volatile long startTime;
+    private volatile long finishTime;
+    private CompileJobScheduler scheduler;
+
+    protected CompileJob(String key, Priority priority) {
+        this(key, priority, JobRegistry.getInstance().getLogLines());
+    }
+
+    protected CompileJob(String key, Priority priority, int logLines) {
+        this.key = key;
+        this.priority = priority;
+        this.logBuffer = new LogBuffer(logLines);
+    }
+
+    /**
+     * @return human readable description of the job
+     */
+    public abstract String getDescription();
+
+    /**
+     * Does the work of the job in the calling thread.
+     */
+    protected abstract void execute();
+
+    /**
+     * Stops a running {@link #execute()}.
+     */
+    protected abstract void terminate();
+
+    /**
+     * @return false if a running job can not be stopped
+     */
+    protected boolean isCancellable() {
+        return true;
+    }
+
+    /**
+     * @return estimated share of the work done, between 0 and 1, or a
+     * negative value if the job does not report its progress
+     */
+    public float getProgress() {
+        return -1;
+    }
+
+    protected void setSuccessful(boolean successful) {
+        this.successful = successful;
+    }
+
+    public long getId() {
+        return sequenceNumber;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if this job has the key of the given job but would do
+     * different work, so that it can neither be merged into it nor run
+     * next to it
+     */
+    protected boolean conflictsWith(CompileJob other) {
+        return false;
+    }
+
+    /**
+     * @return true if the job must not run at the same time as any other
+     * job, for example because it replaces files the other jobs read
+     */
+    protected boolean isExclusive() {
+        return false;
+    }
+
+    /**
+     * @return name of the resource the job changes, or null if it changes
+     * none shared with other jobs
+     */
+    protected String getResource() {
+        return null;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    public boolean isDone() {
+        return state == State.FINISHED || state == State.CANCELLED;
+    }
+
+    /**
+     * @return true if the job finished and did its work
+     */
+    public boolean isSuccessful() {
+        return state == State.FINISHED && successful;
+    }
+
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * @return start time or 0 if the job has not started
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return finish time or 0 if the job is not done
+     */
+    public long getFinishTime() {
+        return finishTime;
+    }
+
+    public final void run() {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            startTime = System.currentTimeMillis();
+            state = State.RUNNING;
+        }
+
+        for (Listener listener : listeners) {
+            try {
+                listener.jobStarted(this);
+            } catch (RuntimeException e) {
+                detachFailed(listener, e);
+            }
+        }
+        List<Lock> locks = Collections.emptyList();
+        try {
+            if (scheduler != null) {
+                locks = scheduler.lock(this);
+            }
+            // Possibly cancelled while waiting for other jobs
+            if (!cancelRequested) {
+                execute();
+            }
+        } catch (RuntimeException e) {
+            log.error("Job " + key + " failed", e);
+            log("ERROR: " + e.getMessage());
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            synchronized (this) {
+                finishTime = System.currentTimeMillis();
+                state = cancelRequested ? State.CANCELLED : State.FINISHED;
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Cancels the job. A queued job is removed from the queue, a running job
+     * is terminated.
+     */
+    public void cancel() {
+        boolean wasQueued;
+        synchronized (this) {
+            if (state == State.QUEUED) {
+                finishTime = System.currentTimeMillis();
+                state = State.CANCELLED;
+                wasQueued = true;
+            } else if (state == State.RUNNING && isCancellable()) {
+                cancelRequested = true;
+                wasQueued = false;
+            } else {
+                return;
+            }
+        }
+
+        if (wasQueued) {
+            if (scheduler != null) {
+                scheduler.removeQueued(this);
+            }
+            finish();
+        } else {
+            log("Cancelling " + getDescription());
+            terminate();
+        }
+    }
+
+    public void log(String message) {
+        List<Listener> targets;
+        synchronized (logBuffer) {
+            logBuffer.add(message);
+            targets = new ArrayList<Listener>(listeners);
+        }
+        // Listeners are called without holding a lock, they may lock a UI session
+        for (Listener listener : targets) {
+            try {
+                listener.log(message);
+            } catch (RuntimeException e) {
+                detachFailed(listener, e);
+            }
+        }
+    }
+
+    /**
+     * Replays the buffered output to the listener and then keeps it informed
+     * about this job. If the job is already done, the listener is notified of
+     * that instead.
+     */
+    public void attach(Listener listener) {
+        List<String> lines;
+        long dropped;
+        boolean done;
+        synchronized (logBuffer) {
+            lines = logBuffer.getLines();
+            dropped = logBuffer.getDroppedCount();
+            synchronized (this) {
+                done = isDone();
+                if (!done) {
+                    listeners.add(listener);
+                }
+            }
+        }
+
+        if (dropped > 0) {
+            listener.log("... " + dropped + " earlier lines not shown");
+        }
+        for (String line : lines) {
+            listener.log(line);
+        }
+        if (done) {
+            listener.jobFinished(this);
+        } else if (state == State.RUNNING) {
+            listener.jobStarted(this);
+        }
+    }
+
+    public void detach(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int compareTo(CompileJob other) {
+        int result = priority.compareTo(other.priority);
+        if (result == 0) {
+            result = sequenceNumber < other.sequenceNumber ? -1 : (sequenceNumber == other.sequenceNumber ? 0 : 1);
+        }
+        return result;
+    }
+
+    void addListener(Listener listener) {
+        if (listener != null) {
+            attach(listener);
+        }
+    }
+
+    void setScheduler(CompileJobScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * May only be called while the job is not in the scheduler queue, as the
+     * queue order depends on it.
+     */
+    void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    private void finish() {
+        List<Listener> finishedListeners;
+        synchronized (this) {
+            finishedListeners = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        if (scheduler != null) {
+            scheduler.jobDone(this);
+        }
+        for (Listener listener : finishedListeners) {
+            try {
+                listener.jobFinished(this);
+            } catch (RuntimeException e) {
+                log.warn("Job listener failed", e);
+            }
+        }
+    }
+
+    private void detachFailed(Listener listener, RuntimeException e) {
+        log.info("Detaching listener of job " + key + ": " + e);
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,226 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Portal wide queue of compile jobs.
+ *
+ * All control panel sessions share one scheduler, which runs at most a
+ * configured number of jobs at a time in priority order and merges a job
+ * into an equal one that is already queued or running. A started job
+ * waits while an exclusive job, or another job changing the same resource,
+ * is running. The scheduler lives as long as the control panel portlet.
+ */
+public class CompileJobScheduler {
+    private static final Log log = LogFactoryUtil.getLog(CompileJobScheduler.class);
+
+    public static final String MAX_CONCURRENT_PROPERTY = "vaadin.control.panel.compile.max.concurrent";
+    private static final int DEFAULT_MAX_CONCURRENT = 1;
+
+    private static CompileJobScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, CompileJob> activeJobs = new HashMap<String, CompileJob>();
+    // Shared by running jobs, held alone by an exclusive one; fair, so that
+    // a waiting exclusive job is not overtaken
+    private final ReentrantReadWriteLock exclusiveLock = new ReentrantReadWriteLock(true);
+    private final Map<String, Lock> resourceLocks = new HashMap<String, Lock>();
+    private final JobRegistry registry;
+
+    CompileJobScheduler(int maxConcurrent, JobRegistry registry) {
+        this.registry = registry;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Vaadin compile job " + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized CompileJobScheduler getInstance() {
+        if (instance == null) {
+            int maxConcurrent = ControlPanelPortletUtil.getIntegerProperty(MAX_CONCURRENT_PROPERTY,
+                    DEFAULT_MAX_CONCURRENT);
+            instance = new CompileJobScheduler(Math.max(1, maxConcurrent), JobRegistry.getInstance());
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Queues a job, or merges it into an equal queued or running job.
+     *
+     * @param job      the job to run
+     * @param listener receives the output and state changes of the job
+     * @return the job that will do the work, which is not the given job if it
+     * was merged, or null if the job conflicts with the queued or running job
+     * of its key
+     */
+    public synchronized CompileJob submit(CompileJob job, CompileJob.Listener listener) {
+        CompileJob existing = activeJobs.get(job.getKey());
+        if (existing != null) {
+            if (job.conflictsWith(existing)) {
+                log.info("Rejected compile job " + job.getDescription() + ", conflicting with "
+                        + existing.getDescription());
+                return null;
+            }
+            existing.addListener(listener);
+            if (existing.getState() == CompileJob.State.QUEUED
+                    && job.getPriority().compareTo(existing.getPriority()) < 0
+                    && executor.remove(existing)) {
+                existing.setPriority(job.getPriority());
+                executor.execute(existing);
+            }
+            log.info("Merged compile job " + job.getKey() + " into queued or running job");
+            return existing;
+        }
+
+        job.setScheduler(this);
+        job.addListener(listener);
+        activeJobs.put(job.getKey(), job);
+        registry.register(job);
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * @return number of jobs waiting for a free slot
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of jobs currently running
+     */
+    public int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return number of queued jobs which will run before the given job
+     */
+    public int getJobsAhead(CompileJob job) {
+        int ahead = 0;
+        for (Runnable queued : executor.getQueue().toArray(new Runnable[0])) {
+            if (queued != job && ((CompileJob) queued).compareTo(job) < 0) {
+                ahead++;
+            }
+        }
+        return ahead;
+    }
+
+    /**
+     * Waits until the job may run next to the running jobs. Locks are always
+     * taken in the same order, the exclusive lock before the resource lock.
+     *
+     * @return the locks held by the job, to be released in reverse order
+     */
+    List<Lock> lock(CompileJob job) {
+        List<Lock> locks = new ArrayList<Lock>();
+        locks.add(job.isExclusive() ? exclusiveLock.writeLock() : exclusiveLock.readLock());
+        String resource = job.getResource();
+        if (resource != null) {
+            synchronized (resourceLocks) {
+                Lock lock = resourceLocks.get(resource);
+                if (lock == null) {
+                    lock = new ReentrantLock(true);
+                    resourceLocks.put(resource, lock);
+                }
+                locks.add(lock);
+            }
+        }
+
+        for (int i = 0; i < locks.size(); i++) {
+            Lock lock = locks.get(i);
+            if (!tryLock(lock)) {
+                if (i > 0) {
+                    job.log("Waiting for another job changing " + resource + " to finish");
+                } else if (job.isExclusive()) {
+                    job.log("Waiting for the running jobs to finish");
+                } else {
+                    job.log("Waiting for an exclusive job to finish");
+                }
+                lock.lock();
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Unlike {@link Lock#tryLock()}, a timed try keeps the lock fair.
+     */
+    private static boolean tryLock(Lock lock) {
+        try {
+            return lock.tryLock(0, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    synchronized void jobDone(CompileJob job) {
+        if (activeJobs.get(job.getKey()) == job) {
+            activeJobs.remove(job.getKey());
+        }
+    }
+
+    void removeQueued(CompileJob job) {
+        executor.remove(job);
+    }
+
+    private void shutdown() {
+        List<CompileJob> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<CompileJob>(activeJobs.values());
+        }
+        executor.shutdown();
+        for (CompileJob job : jobs) {
+            job.cancel();
+        }
+    }
+}
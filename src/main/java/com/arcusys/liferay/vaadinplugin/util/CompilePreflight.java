@@ -0,0 +1,374 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the classpath of a widgetset compilation before the compiler is
+ * started, so that a broken setup fails in moments instead of after a long
+ * compilation.
+ *
+ * Errors are classpath entries which do not exist or are not valid jars,
+ * GWT modules inherited by the widgetset or by add-on modules which are not
+ * on the classpath, Vaadin jars of another version than the portal's and
+ * add-ons built for Vaadin 6. Warnings are client side sources or classes
+ * found in more than one add-on, or in an add-on and Vaadin, and add-ons
+ * with an unknown package format.
+ *
+ * The jars are read in parallel, and only their central directories and
+ * manifests are read, except for the module files of add-ons.
+ */
+public class CompilePreflight {
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.compile.preflight";
+
+    private static final String MODULE_SUFFIX = ".gwt.xml";
+    private static final Pattern INHERITS = Pattern.compile("<inherits\\s+name\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final String VAADIN_6_WIDGETSET = "com.vaadin.terminal.gwt.DefaultWidgetSet";
+    private static final String SUPPORTED_PACKAGE_VERSION = "1";
+    // Jars released with the Vaadin version; other Vaadin jars like the
+    // compiler dependencies have their own versions
+    private static final Set<String> VERSIONED_BUNDLES = new HashSet<String>(Arrays.asList(
+            "vaadin-server", "vaadin-shared", "vaadin-client", "vaadin-client-compiler", "vaadin-themes"));
+
+    private final Version vaadinVersion;
+
+    /**
+     * Result of a check.
+     */
+    public static class Report {
+        private final List<String> errors = new ArrayList<String>();
+        private final List<String> warnings = new ArrayList<String>();
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+    }
+
+    /**
+     * What was found in one classpath entry.
+     */
+    private static class EntryIndex {
+        final File file;
+        final boolean vaadin;
+        String error;
+        String bundleName;
+        String implementationVersion;
+        String packageVersion;
+        // Module name to the modules it inherits; empty for Vaadin's modules
+        final Map<String, List<String>> modules = new HashMap<String, List<String>>();
+        // Client side entry name to its CRC
+        final Map<String, Long> clientEntries = new HashMap<String, Long>();
+
+        EntryIndex(File file, boolean vaadin) {
+            this.file = file;
+            this.vaadin = vaadin;
+        }
+    }
+
+    public CompilePreflight(Version vaadinVersion) {
+        this.vaadinVersion = vaadinVersion;
+    }
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, true);
+    }
+
+    /**
+     * @param vaadinEntries jars of Vaadin itself, including GWT
+     * @param otherEntries  add-on jars, dependencies and source directories
+     * @param rootModules   modules inherited by the compiled widgetset
+     */
+    public Report check(List<File> vaadinEntries, List<File> otherEntries, Collection<String> rootModules)
+            throws InterruptedException {
+        List<EntryIndex> indexes = index(vaadinEntries, otherEntries);
+        Report report = new Report();
+
+        Map<String, EntryIndex> modules = new HashMap<String, EntryIndex>();
+        for (EntryIndex index : indexes) {
+            if (index.error != null) {
+                report.errors.add(index.error);
+                continue;
+            }
+            for (String module : index.modules.keySet()) {
+                if (!modules.containsKey(module)) {
+                    modules.put(module, index);
+                }
+            }
+            checkVersion(index, report);
+        }
+
+        checkModules(rootModules, modules, report);
+        checkDuplicates(indexes, report);
+        return report;
+    }
+
+    private List<EntryIndex> index(List<File> vaadinEntries, List<File> otherEntries) throws InterruptedException {
+        List<Callable<EntryIndex>> tasks = new ArrayList<Callable<EntryIndex>>();
+        for (File entry : vaadinEntries) {
+            tasks.add(createIndexTask(entry, true));
+        }
+        for (File entry : otherEntries) {
+            tasks.add(createIndexTask(entry, false));
+        }
+
+        int threads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<EntryIndex> indexes = new ArrayList<EntryIndex>();
+            for (Future<EntryIndex> future : executor.invokeAll(tasks)) {
+                try {
+                    indexes.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return indexes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<EntryIndex> createIndexTask(final File entry, final boolean vaadin) {
+        return new Callable<EntryIndex>() {
+            public EntryIndex call() {
+                EntryIndex index = new EntryIndex(entry, vaadin);
+                if (!entry.exists()) {
+                    index.error = "Classpath entry " + entry.getName() + " (" + entry.getAbsolutePath()
+                            + ") does not exist";
+                } else if (entry.isDirectory()) {
+                    indexDirectory(entry, index);
+                } else {
+                    try {
+                        indexJar(entry, index);
+                    } catch (IOException e) {
+                        index.error = entry.getName() + " (" + entry.getAbsolutePath()
+                                + ") is not a valid jar: " + e.getMessage();
+                    }
+                }
+                return index;
+            }
+        };
+    }
+
+    private static void indexJar(File file, EntryIndex index) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            Manifest manifest = jar.getManifest();
+            if (manifest != null) {
+                Attributes attributes = manifest.getMainAttributes();
+                index.bundleName = attributes.getValue("Bundle-Name");
+                index.implementationVersion = attributes.getValue("Implementation-Version");
+                index.packageVersion = attributes.getValue("Vaadin-Package-Version");
+            }
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(MODULE_SUFFIX)) {
+                    List<String> inherits = new ArrayList<String>();
+                    if (!index.vaadin) {
+                        InputStream in = jar.getInputStream(entry);
+                        try {
+                            inherits = parseInherits(IOUtils.toString(in, "UTF-8"));
+                        } finally {
+                            in.close();
+                        }
+                    }
+                    index.modules.put(toModuleName(name), inherits);
+                } else if (isClientEntry(name)) {
+                    index.clientEntries.put(name, entry.getCrc());
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void indexDirectory(File dir, EntryIndex index) {
+        String root = dir.getAbsolutePath();
+        for (Object each : FileUtils.listFiles(dir, null, true)) {
+            File file = (File) each;
+            String name = file.getAbsolutePath().substring(root.length() + 1).replace(File.separatorChar, '/');
+            if (name.endsWith(MODULE_SUFFIX)) {
+                try {
+                    index.modules.put(toModuleName(name), parseInherits(FileUtils.readFileToString(file, "UTF-8")));
+                } catch (IOException e) {
+                    index.error = "Could not read module " + file.getAbsolutePath() + ": " + e.getMessage();
+                }
+            }
+        }
+    }
+
+    static String toModuleName(String entryName) {
+        return entryName.substring(0, entryName.length() - MODULE_SUFFIX.length()).replace('/', '.');
+    }
+
+    static List<String> parseInherits(String module) {
+        List<String> inherits = new ArrayList<String>();
+        Matcher matcher = INHERITS.matcher(module);
+        while (matcher.find()) {
+            inherits.add(matcher.group(1).trim());
+        }
+        return inherits;
+    }
+
+    /**
+     * GWT only compiles sources in client packages, by convention named
+     * <code>client</code>.
+     */
+    static boolean isClientEntry(String name) {
+        return (name.endsWith(".java") || name.endsWith(".class")) && name.contains("/client/");
+    }
+
+    private void checkVersion(EntryIndex index, Report report) {
+        if (index.vaadin) {
+            if (vaadinVersion != null && VERSIONED_BUNDLES.contains(index.bundleName)
+                    && index.implementationVersion != null
+                    && !sameMinorVersion(new Version(index.implementationVersion), vaadinVersion)) {
+                report.errors.add(index.file.getName() + " is for Vaadin " + index.implementationVersion
+                        + ", but the portal has Vaadin " + vaadinVersion);
+            }
+            return;
+        }
+        if (index.packageVersion != null && !SUPPORTED_PACKAGE_VERSION.equals(index.packageVersion.trim())) {
+            report.warnings.add(index.file.getName() + " has unknown add-on package version "
+                    + index.packageVersion);
+        }
+        if (vaadinVersion != null && vaadinVersion.compareTo(new Integer[]{7}) >= 0) {
+            for (Map.Entry<String, List<String>> module : index.modules.entrySet()) {
+                if (module.getValue().contains(VAADIN_6_WIDGETSET)) {
+                    report.errors.add(index.file.getName() + " is built for Vaadin 6: module "
+                            + module.getKey() + " inherits " + VAADIN_6_WIDGETSET);
+                }
+            }
+        }
+    }
+
+    private static boolean sameMinorVersion(Version version, Version other) {
+        Integer[] numbers = version.getNumericVersion();
+        Integer[] otherNumbers = other.getNumericVersion();
+        for (int i = 0; i < 2; i++) {
+            Integer number = i < numbers.length ? numbers[i] : null;
+            Integer otherNumber = i < otherNumbers.length ? otherNumbers[i] : null;
+            if (number == null ? otherNumber != null : !number.equals(otherNumber)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Follows the inherited modules from the root modules. Modules of Vaadin
+     * and GWT are not followed, as their own inherits are consistent.
+     */
+    private static void checkModules(Collection<String> rootModules, Map<String, EntryIndex> modules, Report report) {
+        Set<String> visited = new HashSet<String>();
+        LinkedList<String[]> pending = new LinkedList<String[]>();
+        for (String module : rootModules) {
+            pending.add(new String[]{module, null});
+        }
+        while (!pending.isEmpty()) {
+            String[] next = pending.removeFirst();
+            String module = next[0];
+            if (!visited.add(module)) {
+                continue;
+            }
+            EntryIndex index = modules.get(module);
+            if (index == null) {
+                report.errors.add("Module " + module + (next[1] != null ? " inherited by " + next[1] : "")
+                        + " is not on the classpath");
+                continue;
+            }
+            for (String inherited : index.modules.get(module)) {
+                pending.add(new String[]{inherited, module});
+            }
+        }
+    }
+
+    private static void checkDuplicates(List<EntryIndex> indexes, Report report) {
+        Map<String, EntryIndex> owners = new HashMap<String, EntryIndex>();
+        // Reported once per pair of jars, with an example
+        Map<String, String> conflicts = new HashMap<String, String>();
+        Map<String, Integer> conflictCounts = new HashMap<String, Integer>();
+        for (EntryIndex index : indexes) {
+            for (Map.Entry<String, Long> entry : index.clientEntries.entrySet()) {
+                EntryIndex owner = owners.get(entry.getKey());
+                if (owner == null) {
+                    owners.put(entry.getKey(), index);
+                    continue;
+                }
+                if (owner.vaadin && index.vaadin) {
+                    // Vaadin's own jars share GWT classes
+                    continue;
+                }
+                boolean identical = entry.getValue() != -1
+                        && entry.getValue().equals(owner.clientEntries.get(entry.getKey()));
+                String pair = (identical ? "Duplicate" : "Conflicting") + " client classes in "
+                        + owner.file.getName() + " and " + index.file.getName();
+                if (!conflicts.containsKey(pair)) {
+                    conflicts.put(pair, entry.getKey());
+                    conflictCounts.put(pair, 0);
+                }
+                conflictCounts.put(pair, conflictCounts.get(pair) + 1);
+            }
+        }
+        for (Map.Entry<String, String> conflict : conflicts.entrySet()) {
+            report.warnings.add(conflict.getKey() + ": " + conflictCounts.get(conflict.getKey())
+                    + " entries, for example " + conflict.getValue());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Widgetset compilation profiles.
+ */
+public enum CompileProfile {
+    /**
+     * Fast compilation with readable output, for trying out add-ons.
+     */
+    DRAFT("Draft"),
+    /**
+     * Fully optimized obfuscated output.
+     */
+    PRODUCTION("Production"),
+    /**
+     * Flags taken from the vaadin.control.panel.compile.custom.* portal
+     * properties.
+     */
+    CUSTOM("Custom");
+
+    public static final String PROFILE_PROPERTY = "vaadin.control.panel.compile.profile";
+
+    private static final String CUSTOM_PREFIX = "vaadin.control.panel.compile.custom.";
+
+    // GWT 2.5, shipped with Vaadin 7.0, introduced the closure compiler pass
+    private static final Version CLOSURE_COMPILER_MIN_VERSION = new Version("7.0.0");
+
+    private final String caption;
+
+    private CompileProfile(String caption) {
+        this.caption = caption;
+    }
+
+    public String getCaption() {
+        return caption;
+    }
+
+    @Override
+    public String toString() {
+        return caption;
+    }
+
+    public static CompileProfile getDefault() {
+        String name = ControlPanelPortletUtil.getProperty(PROFILE_PROPERTY, PRODUCTION.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return PRODUCTION;
+        }
+    }
+
+    /**
+     * Returns the GWT compiler flags which affect the compiled output.
+     *
+     * @param vaadinVersion the Vaadin version the widgetset is compiled with,
+     *                      may be null if unknown
+     */
+    public List<String> getCompilerFlags(Version vaadinVersion) {
+        List<String> flags = new ArrayList<String>();
+        switch (this) {
+            case DRAFT:
+                flags.add("-style");
+                flags.add("PRETTY");
+                flags.add("-draftCompile");
+                break;
+            case PRODUCTION:
+                flags.add("-style");
+                flags.add("OBF");
+                flags.add("-optimize");
+                flags.add("9");
+                if (vaadinVersion != null && vaadinVersion.compareTo(CLOSURE_COMPILER_MIN_VERSION) >= 0) {
+                    flags.add("-XenableClosureCompiler");
+                }
+                break;
+            case CUSTOM:
+                flags.add("-style");
+                flags.add(ControlPanelPortletUtil.getProperty(CUSTOM_PREFIX + "style", "OBF"));
+                if (ControlPanelPortletUtil.getBooleanProperty(CUSTOM_PREFIX + "draft", false)) {
+                    flags.add("-draftCompile");
+                }
+                flags.add("-optimize");
+                flags.add(String.valueOf(ControlPanelPortletUtil.getIntegerProperty(CUSTOM_PREFIX + "optimize", 9)));
+                String extraFlags = ControlPanelPortletUtil.getProperty(CUSTOM_PREFIX + "flags", "");
+                for (String flag : extraFlags.split("\\s+")) {
+                    if (flag.length() > 0) {
+                        flags.add(flag);
+                    }
+                }
+                break;
+        }
+        return flags;
+    }
+
+    /**
+     * @return GWT log level for this profile
+     */
+    public String getLogLevel() {
+        if (this == CUSTOM) {
+            return ControlPanelPortletUtil.getProperty(CUSTOM_PREFIX + "log.level", "INFO");
+        }
+        return "INFO";
+    }
+
+    /**
+     * @return fixed heap size in megabytes or 0 to size it automatically
+     */
+    public int getHeapMegabytes() {
+        return this == CUSTOM ? ControlPanelPortletUtil.getIntegerProperty(CUSTOM_PREFIX + "heap", 0) : 0;
+    }
+
+    /**
+     * @return fixed number of local workers or 0 to size it automatically
+     */
+    public int getLocalWorkers() {
+        return this == CUSTOM ? ControlPanelPortletUtil.getIntegerProperty(CUSTOM_PREFIX + "workers", 0) : 0;
+    }
+}
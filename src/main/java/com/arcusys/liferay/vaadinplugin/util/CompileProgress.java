@@ -0,0 +1,188 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks the phases of a GWT compilation from the compiler output.
+ *
+ * The monolithic compiler reports its phases in its output; a staged
+ * compilation starts the phases explicitly with {@link #startPhase(Phase)}.
+ * Permutation progress counts started permutations, so with several
+ * workers it runs slightly ahead of the completed ones.
+ */
+public class CompileProgress {
+
+    public enum Phase {
+        PRECOMPILE(0.3f), PERMUTATIONS(0.6f), LINK(0.1f);
+
+        private final float weight;
+
+        Phase(float weight) {
+            this.weight = weight;
+        }
+
+        public float getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final Pattern PERMUTATION_COUNT = Pattern.compile("Compiling (\\d+) permutations");
+    private static final Pattern PERMUTATION_STARTED = Pattern.compile("Compiling permutation (\\d+)");
+
+    private final Map<Phase, Long> startTimes = new EnumMap<Phase, Long>(Phase.class);
+    private final Map<Phase, Long> endTimes = new EnumMap<Phase, Long>(Phase.class);
+    private Phase currentPhase;
+    private int permutationCount;
+    private int permutationsStarted;
+    private boolean finished;
+
+    /**
+     * Updates the progress from a line of compiler output.
+     */
+    public synchronized void parse(String line) {
+        Matcher matcher = PERMUTATION_COUNT.matcher(line);
+        if (matcher.find()) {
+            startPhase(Phase.PERMUTATIONS);
+            permutationCount = Integer.parseInt(matcher.group(1));
+            return;
+        }
+        if (PERMUTATION_STARTED.matcher(line).find()) {
+            if (currentPhase != Phase.PERMUTATIONS) {
+                startPhase(Phase.PERMUTATIONS);
+            }
+            permutationsStarted++;
+            return;
+        }
+        if (line.contains("Compiling module") || line.contains("Precompiling module")) {
+            if (currentPhase == null) {
+                startPhase(Phase.PRECOMPILE);
+            }
+        } else if (line.contains("Compile of permutations succeeded")) {
+            endPhase(Phase.PERMUTATIONS);
+        } else if (line.contains("Linking into") && currentPhase != Phase.LINK) {
+            startPhase(Phase.LINK);
+        } else if (line.contains("Link succeeded")) {
+            endPhase(Phase.LINK);
+        }
+    }
+
+    /**
+     * Forgets all phases, for a compilation which is started again.
+     */
+    public synchronized void reset() {
+        startTimes.clear();
+        endTimes.clear();
+        currentPhase = null;
+        permutationCount = 0;
+        permutationsStarted = 0;
+        finished = false;
+    }
+
+    /**
+     * Starts a phase, ending the previous one.
+     */
+    public synchronized void startPhase(Phase phase) {
+        if (currentPhase != null) {
+            endPhase(currentPhase);
+        }
+        currentPhase = phase;
+        startTimes.put(phase, System.currentTimeMillis());
+        endTimes.remove(phase);
+    }
+
+    /**
+     * Sets the number of permutations compiled in this run, for a staged
+     * compilation which does not report it in the output.
+     */
+    public synchronized void setPermutationCount(int permutationCount) {
+        this.permutationCount = permutationCount;
+    }
+
+    /**
+     * Ends the current phase and marks the compilation as complete.
+     */
+    public synchronized void finish() {
+        if (currentPhase != null) {
+            endPhase(currentPhase);
+        }
+        finished = true;
+    }
+
+    private void endPhase(Phase phase) {
+        if (startTimes.containsKey(phase) && !endTimes.containsKey(phase)) {
+            endTimes.put(phase, System.currentTimeMillis());
+        }
+        if (currentPhase == phase) {
+            currentPhase = null;
+        }
+    }
+
+    /**
+     * @return the phase running now or null
+     */
+    public synchronized Phase getCurrentPhase() {
+        return currentPhase;
+    }
+
+    /**
+     * @return duration of the phase so far, 0 if it was not started
+     */
+    public synchronized long getPhaseMillis(Phase phase) {
+        Long start = startTimes.get(phase);
+        if (start == null) {
+            return 0;
+        }
+        Long end = endTimes.get(phase);
+        return (end != null ? end : System.currentTimeMillis()) - start;
+    }
+
+    public synchronized int getPermutationCount() {
+        return permutationCount;
+    }
+
+    /**
+     * @return estimated share of the compilation done, between 0 and 1
+     */
+    public synchronized float getProgress() {
+        if (finished) {
+            return 1;
+        }
+        float progress = 0;
+        for (Phase phase : Phase.values()) {
+            if (endTimes.containsKey(phase)) {
+                progress += phase.getWeight();
+            } else if (phase == currentPhase && phase == Phase.PERMUTATIONS && permutationCount > 0) {
+                progress += phase.getWeight() * Math.min(permutationsStarted, permutationCount) / permutationCount;
+            }
+        }
+        return Math.min(1, progress);
+    }
+}
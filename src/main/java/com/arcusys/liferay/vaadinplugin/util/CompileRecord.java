@@ -0,0 +1,111 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One widgetset compilation in the {@link CompileHistory}.
+ */
+public class CompileRecord {
+
+    public enum Result {
+        SUCCESSFUL, FAILED, CANCELLED, CACHED, UP_TO_DATE, STAGED
+    }
+
+    private final long startTime;
+    private final String widgetset;
+    private final String profile;
+    private final Result result;
+    private final long wallMillis;
+    private final Map<CompileProgress.Phase, Long> phaseMillis;
+    private final int permutationCount;
+    private final long outputBytes;
+    private final List<String> addons;
+    private final List<String> flags;
+
+    public CompileRecord(long startTime, String widgetset, String profile, Result result, long wallMillis,
+                         Map<CompileProgress.Phase, Long> phaseMillis, int permutationCount, long outputBytes,
+                         List<String> addons, List<String> flags) {
+        this.startTime = startTime;
+        this.widgetset = widgetset;
+        this.profile = profile;
+        this.result = result;
+        this.wallMillis = wallMillis;
+        this.phaseMillis = phaseMillis;
+        this.permutationCount = permutationCount;
+        this.outputBytes = outputBytes;
+        this.addons = addons;
+        this.flags = flags;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getWidgetset() {
+        return widgetset;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return total duration of the compilation
+     */
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public long getPhaseMillis(CompileProgress.Phase phase) {
+        Long millis = phaseMillis.get(phase);
+        return millis == null ? 0 : millis;
+    }
+
+    public int getPermutationCount() {
+        return permutationCount;
+    }
+
+    /**
+     * @return size of the compiled widgetset directory
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return names and versions of the included add-ons
+     */
+    public List<String> getAddons() {
+        return Collections.unmodifiableList(addons);
+    }
+
+    public List<String> getFlags() {
+        return Collections.unmodifiableList(flags);
+    }
+}
@@ -0,0 +1,314 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * JavaScript size breakdown of a compiled widgetset, read from the story of
+ * your compile (SOYC) size maps GWT writes with <code>-compileReport</code>.
+ *
+ * Sizes are summed per Java package and per add-on, separately for the
+ * initial download (fragment 0) and for the fragments loaded later at split
+ * points. Sizes of classes are attributed to the add-on whose jar contains
+ * their package; others to Vaadin or to "Other".
+ */
+public class CompileReport {
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.compile.report";
+
+    public static final String VAADIN = "Vaadin";
+    public static final String OTHER = "Other";
+
+    private static final String INITIAL_KEY = "initial";
+    private static final String DEFERRED_KEY = "deferred";
+    private static final String ADDON_PREFIX = "addon.";
+    private static final String PACKAGE_PREFIX = "package.";
+
+    private long initialSize;
+    private long deferredSize;
+    // Name to initial and deferred size
+    private final Map<String, long[]> addonSizes = new TreeMap<String, long[]>();
+    private final Map<String, long[]> packageSizes = new TreeMap<String, long[]>();
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, false);
+    }
+
+    /**
+     * Returns the size map file written for a widgetset under the directory
+     * given to GWT with <code>-extra</code>.
+     */
+    public static File getStoriesFile(File extraDir, String widgetset) {
+        return new File(extraDir, widgetset + File.separator + "soycReport" + File.separator + "stories0.xml.gz");
+    }
+
+    /**
+     * Reads a gzipped SOYC size map file.
+     *
+     * @param packageOwners add-on names by the client packages in their jars
+     */
+    public static CompileReport read(File storiesFile, Map<String, String> packageOwners) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(storiesFile));
+        try {
+            return read(in, packageOwners);
+        } finally {
+            in.close();
+        }
+    }
+
+    static CompileReport read(InputStream in, final Map<String, String> packageOwners) throws IOException {
+        final CompileReport report = new CompileReport();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(false);
+            factory.newSAXParser().parse(in, new DefaultHandler() {
+                private boolean initial;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("sizemap".equals(qName)) {
+                        initial = "0".equals(attributes.getValue("fragment"));
+                    } else if ("size".equals(qName)) {
+                        String ref = attributes.getValue("ref");
+                        String size = attributes.getValue("size");
+                        if (ref != null && size != null) {
+                            report.add(attributes.getValue("type"), ref, Long.parseLong(size), initial,
+                                    packageOwners);
+                        }
+                    }
+                }
+            });
+        } catch (SAXException e) {
+            throw new IOException("Invalid compile report: " + e.getMessage(), e);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        return report;
+    }
+
+    private void add(String type, String ref, long size, boolean initial, Map<String, String> packageOwners) {
+        String packageName;
+        if ("string".equals(type) || "var".equals(type)) {
+            packageName = "(" + type + "s)";
+        } else {
+            int methodStart = ref.indexOf("::");
+            String className = methodStart >= 0 ? ref.substring(0, methodStart) : ref;
+            int packageEnd = className.lastIndexOf('.');
+            packageName = packageEnd > 0 ? className.substring(0, packageEnd) : "(default)";
+        }
+
+        int index = initial ? 0 : 1;
+        if (initial) {
+            initialSize += size;
+        } else {
+            deferredSize += size;
+        }
+        getSizes(packageSizes, packageName)[index] += size;
+        getSizes(addonSizes, getOwner(packageName, packageOwners))[index] += size;
+    }
+
+    static String getOwner(String packageName, Map<String, String> packageOwners) {
+        String name = packageName;
+        while (true) {
+            String owner = packageOwners.get(name);
+            if (owner != null) {
+                return owner;
+            }
+            int end = name.lastIndexOf('.');
+            if (end < 0) {
+                break;
+            }
+            name = name.substring(0, end);
+        }
+        if (packageName.startsWith("com.vaadin.") || packageName.startsWith("com.google.")
+                || packageName.startsWith("java.") || packageName.startsWith("javaemul.")) {
+            return VAADIN;
+        }
+        return OTHER;
+    }
+
+    private static long[] getSizes(Map<String, long[]> sizes, String name) {
+        long[] result = sizes.get(name);
+        if (result == null) {
+            result = new long[2];
+            sizes.put(name, result);
+        }
+        return result;
+    }
+
+    public long getInitialSize() {
+        return initialSize;
+    }
+
+    public long getDeferredSize() {
+        return deferredSize;
+    }
+
+    /**
+     * @return initial and deferred sizes by add-on
+     */
+    public Map<String, long[]> getAddonSizes() {
+        return Collections.unmodifiableMap(addonSizes);
+    }
+
+    /**
+     * @return initial and deferred sizes by package
+     */
+    public Map<String, long[]> getPackageSizes() {
+        return Collections.unmodifiableMap(packageSizes);
+    }
+
+    /**
+     * @return names of the given sizes, largest initial size first
+     */
+    public static List<String> sortBySize(final Map<String, long[]> sizes) {
+        List<String> names = new ArrayList<String>(sizes.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                long[] s1 = sizes.get(o1);
+                long[] s2 = sizes.get(o2);
+                int result = Long.valueOf(s2[0]).compareTo(s1[0]);
+                return result != 0 ? result : Long.valueOf(s2[1]).compareTo(s1[1]);
+            }
+        });
+        return names;
+    }
+
+    /**
+     * Checks the initial download size against a maximum size and against
+     * the allowed growth from a previous report.
+     *
+     * @param maxInitialSize maximum initial size in bytes, 0 for none
+     * @param maxGrowthPercent maximum growth of the initial size, 0 for none
+     * @return descriptions of the exceeded budgets, empty if none
+     */
+    public List<String> checkBudget(CompileReport previous, long maxInitialSize, int maxGrowthPercent) {
+        List<String> exceeded = new ArrayList<String>();
+        if (maxInitialSize > 0 && initialSize > maxInitialSize) {
+            exceeded.add("Initial download is " + initialSize / 1024 + " KB, budget is " + maxInitialSize / 1024
+                    + " KB");
+        }
+        if (maxGrowthPercent > 0 && previous != null && previous.initialSize > 0
+                && initialSize > previous.initialSize * (100 + maxGrowthPercent) / 100) {
+            exceeded.add("Initial download grew from " + previous.initialSize / 1024 + " KB to "
+                    + initialSize / 1024 + " KB, more than the allowed " + maxGrowthPercent + "%"
+                    + describeGrowth(previous));
+        }
+        return exceeded;
+    }
+
+    private String describeGrowth(CompileReport previous) {
+        String largest = null;
+        long largestGrowth = 0;
+        for (Map.Entry<String, long[]> addon : addonSizes.entrySet()) {
+            long[] previousSizes = previous.addonSizes.get(addon.getKey());
+            long growth = addon.getValue()[0] - (previousSizes != null ? previousSizes[0] : 0);
+            if (growth > largestGrowth) {
+                largest = addon.getKey();
+                largestGrowth = growth;
+            }
+        }
+        return largest != null ? ", mostly " + largest + " (+" + largestGrowth / 1024 + " KB)" : "";
+    }
+
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(INITIAL_KEY, Long.toString(initialSize));
+        properties.setProperty(DEFERRED_KEY, Long.toString(deferredSize));
+        storeSizes(properties, ADDON_PREFIX, addonSizes);
+        storeSizes(properties, PACKAGE_PREFIX, packageSizes);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create dir: " + parent.getAbsolutePath());
+        }
+        ControlPanelPortletUtil.storeProperties(properties, file, "Widgetset size report");
+    }
+
+    /**
+     * @return the stored report, or null if there is none
+     */
+    public static CompileReport load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = ControlPanelPortletUtil.loadProperties(file);
+        CompileReport report = new CompileReport();
+        try {
+            report.initialSize = Long.parseLong(properties.getProperty(INITIAL_KEY, "0"));
+            report.deferredSize = Long.parseLong(properties.getProperty(DEFERRED_KEY, "0"));
+            for (String key : properties.stringPropertyNames()) {
+                String[] sizes = properties.getProperty(key).split(",");
+                if (sizes.length != 2) {
+                    continue;
+                }
+                long[] values = new long[]{Long.parseLong(sizes[0]), Long.parseLong(sizes[1])};
+                if (key.startsWith(ADDON_PREFIX)) {
+                    report.addonSizes.put(key.substring(ADDON_PREFIX.length()), values);
+                } else if (key.startsWith(PACKAGE_PREFIX)) {
+                    report.packageSizes.put(key.substring(PACKAGE_PREFIX.length()), values);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid size report " + file + ": " + e.getMessage());
+        }
+        return report;
+    }
+
+    private static void storeSizes(Properties properties, String prefix, Map<String, long[]> sizes) {
+        for (Map.Entry<String, long[]> entry : sizes.entrySet()) {
+            properties.setProperty(prefix + entry.getKey(), entry.getValue()[0] + "," + entry.getValue()[1]);
+        }
+    }
+
+    /**
+     * Returns the file of the report of the deployed build of a widgetset.
+     */
+    public static File getDeployedReportFile(String widgetset) {
+        return new File(ControlPanelPortletUtil.getPluginDataDir(),
+                "compile-reports" + File.separator + widgetset + ".properties");
+    }
+
+    /**
+     * Forgets the report of the deployed build, when the deployed widgetset
+     * no longer comes from a build with a known report.
+     */
+    public static void clearDeployed(String widgetset) {
+        getDeployedReportFile(widgetset).delete();
+    }
+}
@@ -0,0 +1,245 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The inputs of a widgetset compilation, stored so that the compilation can
+ * be repeated without a control panel, as the {@link OffPeakPrecompiler}
+ * does when the add-ons of the deployed widgetset change.
+ *
+ * Add-ons and dependencies are stored by jar name. An add-on whose jar has
+ * been replaced by one with another name, such as a new version, is found by
+ * its add-on name.
+ */
+public class CompileSettings {
+
+    private static final String WIDGETSET_KEY = "widgetset";
+    private static final String PROFILE_KEY = "profile";
+    private static final String ADDON_PREFIX = "addon.";
+    private static final String DEPENDENCIES_KEY = "dependencies";
+    private static final String USER_AGENTS_KEY = "user.agents";
+    private static final String DEFAULT_LOAD_STYLE_KEY = "default.load.style";
+    private static final String LOAD_STYLES_KEY = "load.styles";
+
+    private final String widgetset;
+    private final CompileProfile profile;
+    // Add-on names by jar name
+    private final Map<String, String> addons = new TreeMap<String, String>();
+    private final List<String> dependencies = new ArrayList<String>();
+    private final Properties moduleOptions = new Properties();
+
+    public CompileSettings(String widgetset, CompileProfile profile, Collection<VaadinAddonInfo> addons,
+                           Collection<File> dependencies, ModuleOptions moduleOptions) {
+        this.widgetset = widgetset;
+        this.profile = profile;
+        for (VaadinAddonInfo addon : addons) {
+            this.addons.put(addon.getJarFile().getName(), addon.getName());
+        }
+        if (dependencies != null) {
+            for (File dependency : dependencies) {
+                this.dependencies.add(dependency.getName());
+            }
+        }
+        this.moduleOptions.setProperty(USER_AGENTS_KEY, join(moduleOptions.getUserAgents(), ","));
+        setIfNotNull(DEFAULT_LOAD_STYLE_KEY, moduleOptions.getDefaultLoadStyle());
+        List<String> loadStyles = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : moduleOptions.getLoadStyles().entrySet()) {
+            loadStyles.add(entry.getKey() + ":" + entry.getValue());
+        }
+        this.moduleOptions.setProperty(LOAD_STYLES_KEY, join(loadStyles, ";"));
+    }
+
+    private CompileSettings(String widgetset, CompileProfile profile) {
+        this.widgetset = widgetset;
+        this.profile = profile;
+    }
+
+    private void setIfNotNull(String key, String value) {
+        if (value != null) {
+            moduleOptions.setProperty(key, value);
+        }
+    }
+
+    public String getWidgetset() {
+        return widgetset;
+    }
+
+    public CompileProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the add-on names by jar name
+     */
+    public Map<String, String> getAddons() {
+        return addons;
+    }
+
+    /**
+     * Finds the stored add-ons among the available ones, by jar name or else
+     * by add-on name. Add-ons which are no longer available are left out.
+     */
+    public List<VaadinAddonInfo> findAddons(List<VaadinAddonInfo> available) {
+        List<VaadinAddonInfo> result = new ArrayList<VaadinAddonInfo>();
+        for (Map.Entry<String, String> addon : addons.entrySet()) {
+            VaadinAddonInfo byName = null;
+            VaadinAddonInfo byJar = null;
+            for (VaadinAddonInfo candidate : available) {
+                if (candidate.getJarFile().getName().equals(addon.getKey())) {
+                    byJar = candidate;
+                } else if (candidate.getName().equals(addon.getValue())) {
+                    byName = candidate;
+                }
+            }
+            if (byJar != null) {
+                result.add(byJar);
+            } else if (byName != null) {
+                result.add(byName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the dependencies which still exist in the given directory
+     */
+    public List<File> findDependencies(File dir) {
+        List<File> result = new ArrayList<File>();
+        for (String name : dependencies) {
+            File file = new File(dir, name);
+            if (file.isFile()) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored module options on top of the current portal
+     * properties, so that the generated module is the same as when the
+     * settings were stored.
+     */
+    public ModuleOptions createModuleOptions() {
+        ModuleOptions options = ModuleOptions.getDefault();
+        applyTo(options);
+        return options;
+    }
+
+    void applyTo(ModuleOptions options) {
+        options.setUserAgents(split(moduleOptions.getProperty(USER_AGENTS_KEY, ""), ","));
+        options.setDefaultLoadStyle(moduleOptions.getProperty(DEFAULT_LOAD_STYLE_KEY));
+        options.setLoadStyles(ModuleOptions.parseLoadStyles(moduleOptions.getProperty(LOAD_STYLES_KEY, "")));
+    }
+
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(moduleOptions);
+        properties.setProperty(WIDGETSET_KEY, widgetset);
+        properties.setProperty(PROFILE_KEY, profile.name());
+        for (Map.Entry<String, String> addon : addons.entrySet()) {
+            properties.setProperty(ADDON_PREFIX + addon.getKey(), addon.getValue());
+        }
+        properties.setProperty(DEPENDENCIES_KEY, join(dependencies, ";"));
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create dir: " + parent.getAbsolutePath());
+        }
+        ControlPanelPortletUtil.storeProperties(properties, file, "Widgetset compile settings");
+    }
+
+    /**
+     * @return the stored settings, or null if there are none
+     */
+    public static CompileSettings load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = ControlPanelPortletUtil.loadProperties(file);
+        String widgetset = properties.getProperty(WIDGETSET_KEY);
+        CompileProfile profile;
+        try {
+            profile = CompileProfile.valueOf(properties.getProperty(PROFILE_KEY, ""));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid compile settings " + file + ": " + e.getMessage());
+        }
+        if (widgetset == null) {
+            throw new IOException("Invalid compile settings " + file + ": no widgetset");
+        }
+
+        CompileSettings settings = new CompileSettings(widgetset, profile);
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(ADDON_PREFIX)) {
+                settings.addons.put(key.substring(ADDON_PREFIX.length()), properties.getProperty(key));
+            } else if (Arrays.asList(USER_AGENTS_KEY, DEFAULT_LOAD_STYLE_KEY, LOAD_STYLES_KEY).contains(key)) {
+                settings.moduleOptions.setProperty(key, properties.getProperty(key));
+            }
+        }
+        settings.dependencies.addAll(split(properties.getProperty(DEPENDENCIES_KEY, ""), ";"));
+        return settings;
+    }
+
+    /**
+     * Returns the file of the settings the deployed build of a widgetset was
+     * compiled with.
+     */
+    public static File getDeployedFile(String widgetset) {
+        return new File(getDeployedDir(), widgetset + ".properties");
+    }
+
+    /**
+     * Returns the directory of the settings of the deployed builds.
+     */
+    public static File getDeployedDir() {
+        return new File(ControlPanelPortletUtil.getPluginDataDir(), "compile-settings");
+    }
+
+    private static List<String> split(String value, String separator) {
+        List<String> result = new ArrayList<String>();
+        for (String part : value.split(separator)) {
+            if (part.trim().length() > 0) {
+                result.add(part.trim());
+            }
+        }
+        return result;
+    }
+
+    private static String join(Collection<String> values, String separator) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(separator);
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,282 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of the persistent compiler worker JVM.
+ *
+ * The worker is started on first use and reused for later compilations as
+ * long as it was started with the same JVM arguments and tool classpath.
+ * It is restarted when it crashes, when its heap stays too full after a
+ * compilation or after a number of jobs, since generators of add-ons may
+ * leak memory.
+ */
+public class CompilerDaemon {
+    private static final Log log = LogFactoryUtil.getLog(CompilerDaemon.class);
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.compiler.daemon.enabled";
+    public static final String MAX_JOBS_PROPERTY = "vaadin.control.panel.compiler.daemon.max.jobs";
+    public static final String MAX_MEMORY_PERCENT_PROPERTY = "vaadin.control.panel.compiler.daemon.max.memory.percent";
+
+    private static final int DEFAULT_MAX_JOBS = 20;
+    private static final int DEFAULT_MAX_MEMORY_PERCENT = 75;
+    private static final long STARTUP_TIMEOUT_MS = 60000;
+
+    private static CompilerDaemon instance;
+
+    private final ReentrantLock jobLock = new ReentrantLock();
+
+    private Process process;
+    private String processKey;
+    private int port;
+    private String token;
+    private int jobCount;
+    private Socket activeSocket;
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, false);
+    }
+
+    public static synchronized CompilerDaemon getInstance() {
+        if (instance == null) {
+            instance = new CompilerDaemon();
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    /**
+     * Runs a compilation in the worker JVM.
+     *
+     * @param java            the java executable
+     * @param jvmArgs         arguments for the worker JVM
+     * @param toolClasspath   jars of the GWT compiler, put on the worker classpath
+     * @param jobClasspath    full classpath of the compilation
+     * @param compilerArgs    arguments for com.google.gwt.dev.Compiler
+     * @param outputLog       receives the compiler output
+     * @return the compiler exit code
+     * @throws IOException if the worker is busy, could not be started or
+     *                     crashed; the caller should fall back to a forked compiler
+     */
+    public int compile(String java, List<String> jvmArgs, List<File> toolClasspath, List<File> jobClasspath,
+                       List<String> compilerArgs, ILog outputLog) throws IOException {
+        if (!jobLock.tryLock()) {
+            throw new IOException("Compiler daemon is busy");
+        }
+        try {
+            ensureStarted(java, jvmArgs, toolClasspath, outputLog);
+            return runJob(jobClasspath, compilerArgs, outputLog);
+        } catch (IOException e) {
+            stop();
+            throw e;
+        } finally {
+            jobLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the running compilation by stopping the worker JVM, it is
+     * started again for the next job.
+     */
+    public void terminateActiveJob() {
+        Socket socket = activeSocket;
+        if (socket != null) {
+            stop();
+        }
+    }
+
+    private int runJob(List<File> jobClasspath, List<String> compilerArgs, ILog outputLog) throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        activeSocket = socket;
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            out.println(token);
+            out.println(jobClasspath.size());
+            for (File entry : jobClasspath) {
+                out.println(entry.getAbsolutePath());
+            }
+            out.println(compilerArgs.size());
+            for (String arg : compilerArgs) {
+                out.println(arg);
+            }
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(CompilerDaemonMain.EXIT_PREFIX)) {
+                    return finishJob(line.substring(CompilerDaemonMain.EXIT_PREFIX.length()));
+                }
+                outputLog.log(line);
+            }
+            throw new IOException("Compiler daemon closed the connection");
+        } finally {
+            activeSocket = null;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private int finishJob(String status) {
+        String[] parts = status.trim().split(" ");
+        int exitCode = Integer.parseInt(parts[0]);
+        long usedMemory = Long.parseLong(parts[1]);
+        long maxMemory = Long.parseLong(parts[2]);
+
+        jobCount++;
+        int maxMemoryPercent = ControlPanelPortletUtil.getIntegerProperty(MAX_MEMORY_PERCENT_PROPERTY,
+                DEFAULT_MAX_MEMORY_PERCENT);
+        if (usedMemory * 100 > maxMemory * maxMemoryPercent) {
+            log.info("Restarting compiler daemon, heap usage " + usedMemory / (1024 * 1024) + "M");
+            stop();
+        } else if (jobCount >= ControlPanelPortletUtil.getIntegerProperty(MAX_JOBS_PROPERTY, DEFAULT_MAX_JOBS)) {
+            log.info("Restarting compiler daemon after " + jobCount + " jobs");
+            stop();
+        }
+        return exitCode;
+    }
+
+    private void ensureStarted(String java, List<String> jvmArgs, List<File> toolClasspath, ILog outputLog)
+            throws IOException {
+        String key = jvmArgs + "|" + toolClasspath;
+        if (process != null && isAlive(process) && key.equals(processKey)) {
+            return;
+        }
+        stop();
+
+        List<String> args = new ArrayList<String>();
+        args.add(java);
+        args.addAll(jvmArgs);
+        args.add("-classpath");
+        args.add(getDaemonClasspath(toolClasspath));
+        args.add(CompilerDaemonMain.class.getName());
+
+        outputLog.log("Starting compiler daemon");
+        token = UUID.randomUUID().toString();
+        process = new ProcessBuilder(args).redirectErrorStream(true).start();
+        processKey = key;
+        jobCount = 0;
+
+        PrintWriter stdin = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+        stdin.println(token);
+        stdin.flush();
+
+        port = readPort(process);
+    }
+
+    private static int readPort(final Process process) throws IOException {
+        final BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        final int[] port = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    String line;
+                    while ((line = stdout.readLine()) != null) {
+                        if (port[0] == 0 && line.startsWith(CompilerDaemonMain.PORT_PREFIX)) {
+                            synchronized (port) {
+                                port[0] = Integer.parseInt(line.substring(CompilerDaemonMain.PORT_PREFIX.length()).trim());
+                                port.notifyAll();
+                            }
+                        } else {
+                            log.info("Compiler daemon: " + line);
+                        }
+                    }
+                } catch (IOException e) {
+                    // daemon stopped
+                }
+            }
+        }, "Vaadin compiler daemon output");
+        reader.setDaemon(true);
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        synchronized (port) {
+            while (port[0] == 0 && isAlive(process) && System.currentTimeMillis() < deadline) {
+                try {
+                    port.wait(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (port[0] == 0) {
+            process.destroy();
+            throw new IOException("Compiler daemon did not start");
+        }
+        return port[0];
+    }
+
+    private static String getDaemonClasspath(List<File> toolClasspath) throws IOException {
+        StringBuilder classpath = new StringBuilder();
+        try {
+            classpath.append(new File(CompilerDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+        } catch (URISyntaxException e) {
+            throw new IOException("Could not locate plugin classes: " + e.getMessage());
+        }
+        for (File entry : toolClasspath) {
+            classpath.append(File.pathSeparator).append(entry.getAbsolutePath());
+        }
+        return classpath.toString();
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private synchronized void stop() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+            processKey = null;
+        }
+    }
+}
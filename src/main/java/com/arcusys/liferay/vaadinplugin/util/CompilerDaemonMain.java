@@ -0,0 +1,189 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Entry point of the long-lived compiler worker JVM started by
+ * {@link CompilerDaemon}.
+ *
+ * The worker listens on a loopback port, announced on stdout, and runs one
+ * GWT compilation per connection. The compiler is driven through reflection
+ * so this class does not depend on a particular GWT version and can be
+ * loaded without GWT on the classpath. Each job runs with its own class
+ * loader holding the job's classpath, which GWT uses for module and source
+ * lookup.
+ *
+ * This class runs outside the portal and must not use portal or plugin
+ * classes.
+ */
+public class CompilerDaemonMain {
+
+    static final String PORT_PREFIX = "@@DAEMON-PORT ";
+    static final String EXIT_PREFIX = "@@DAEMON-EXIT ";
+
+    private final String token;
+
+    private CompilerDaemonMain(String token) {
+        this.token = token;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        String token = stdin.readLine();
+        if (token == null) {
+            System.exit(1);
+        }
+
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        System.out.println(PORT_PREFIX + serverSocket.getLocalPort());
+        System.out.flush();
+
+        CompilerDaemonMain daemon = new CompilerDaemonMain(token);
+        while (true) {
+            Socket socket = serverSocket.accept();
+            try {
+                daemon.handle(socket);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        if (!token.equals(in.readLine())) {
+            return;
+        }
+
+        URL[] classpath = new URL[Integer.parseInt(in.readLine())];
+        for (int i = 0; i < classpath.length; i++) {
+            classpath[i] = new File(in.readLine()).toURI().toURL();
+        }
+        String[] compilerArgs = new String[Integer.parseInt(in.readLine())];
+        for (int i = 0; i < compilerArgs.length; i++) {
+            compilerArgs[i] = in.readLine();
+        }
+
+        PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        int exitCode;
+
+        URLClassLoader jobClassLoader = new URLClassLoader(classpath, CompilerDaemonMain.class.getClassLoader());
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(jobClassLoader);
+        // Generators may print directly, so all output goes to the client
+        System.setOut(out);
+        System.setErr(out);
+        try {
+            exitCode = compile(compilerArgs, out) ? 0 : 1;
+        } catch (Throwable t) {
+            t.printStackTrace(out);
+            exitCode = 2;
+        } finally {
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+            thread.setContextClassLoader(contextClassLoader);
+            clearModuleCache();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        out.println(EXIT_PREFIX + exitCode + " " + usedMemory + " " + runtime.maxMemory());
+        out.flush();
+    }
+
+    private boolean compile(String[] compilerArgs, OutputStream out) throws Exception {
+        Class<?> optionsInterface = Class.forName("com.google.gwt.dev.CompilerOptions");
+        Object options = Class.forName("com.google.gwt.dev.CompilerOptionsImpl").newInstance();
+
+        Constructor<?> argProcessorConstructor = Class.forName("com.google.gwt.dev.Compiler$ArgProcessor")
+                .getDeclaredConstructor(optionsInterface);
+        argProcessorConstructor.setAccessible(true);
+        Object argProcessor = argProcessorConstructor.newInstance(options);
+        Method processArgs = Class.forName("com.google.gwt.util.tools.ToolBase")
+                .getDeclaredMethod("processArgs", String[].class);
+        processArgs.setAccessible(true);
+        if (!(Boolean) processArgs.invoke(argProcessor, (Object) compilerArgs)) {
+            return false;
+        }
+
+        Class<?> treeLoggerClass = Class.forName("com.google.gwt.core.ext.TreeLogger");
+        Class<?> typeClass = Class.forName("com.google.gwt.core.ext.TreeLogger$Type");
+        Object logger = Class.forName("com.google.gwt.dev.util.log.PrintWriterTreeLogger")
+                .getConstructor(PrintWriter.class)
+                .newInstance(new PrintWriter(out, true));
+        Object logLevel = options.getClass().getMethod("getLogLevel").invoke(options);
+        logger.getClass().getMethod("setMaxDetail", typeClass).invoke(logger, logLevel);
+
+        Class<?> compilerClass = Class.forName("com.google.gwt.dev.Compiler");
+        try {
+            try {
+                // GWT 2.7 and later
+                Method compile = compilerClass.getMethod("compile", treeLoggerClass, optionsInterface);
+                return (Boolean) compile.invoke(null, logger, options);
+            } catch (NoSuchMethodException e) {
+                Object compiler = compilerClass.getConstructor(optionsInterface).newInstance(options);
+                return (Boolean) compilerClass.getMethod("run", treeLoggerClass).invoke(compiler, logger);
+            }
+        } catch (InvocationTargetException e) {
+            if ("com.google.gwt.core.ext.UnableToCompleteException".equals(e.getCause().getClass().getName())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * GWT caches loaded modules per class loader, drop the cache so job class
+     * loaders can be collected.
+     */
+    private static void clearModuleCache() {
+        try {
+            Class.forName("com.google.gwt.dev.cfg.ModuleDefLoader").getMethod("clearModuleCache").invoke(null);
+        } catch (Exception ignored) {
+        } catch (LinkageError ignored) {
+        }
+    }
+}
@@ -22,6 +22,8 @@ package com.arcusys.liferay.vaadinplugin.util;
 
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsKeys;
 import com.liferay.portal.kernel.util.PropsUtil;
 import com.liferay.portal.util.PortalUtil;
 import com.vaadin.server.Constants;
@@ -263,6 +265,68 @@ public abstract class ControlPanelPortletUtil {
         return getVaadinResourceDir() + "/widgetsets/";
     }
 
+    /**
+     * Returns the directory where the plugin keeps its own state (caches,
+     * indexes, history). The directory is created if it does not exist.
+     */
+    public static File getPluginDataDir() {
+        // return ".../liferay-home/data/vaadin-control-panel/";
+        File dir = new File(PropsUtil.get(PropsKeys.LIFERAY_HOME) + FileSeparator + "data"
+                + FileSeparator + "vaadin-control-panel");
+        if (!dir.exists() && !dir.mkdirs()) {
+            log.warn("Could not create plugin data directory: " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    public static String getProperty(String key, String defaultValue) {
+        String value = PropsUtil.get(key);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    public static long getLongProperty(String key, long defaultValue) {
+        return GetterUtil.getLong(PropsUtil.get(key), defaultValue);
+    }
+
+    public static int getIntegerProperty(String key, int defaultValue) {
+        return GetterUtil.getInteger(PropsUtil.get(key), defaultValue);
+    }
+
+    public static boolean getBooleanProperty(String key, boolean defaultValue) {
+        return GetterUtil.getBoolean(PropsUtil.get(key), defaultValue);
+    }
+
+    public static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            close(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Stores the properties through a temporary file which is then renamed,
+     * so readers never see a half-written file.
+     */
+    public static void storeProperties(Properties properties, File file, String comment) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            properties.store(out, comment);
+        } finally {
+            close(out);
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not write " + file.getAbsolutePath());
+            }
+        }
+    }
+
     public static List<File> getLibs(List<File> exclude) {
         List<File> libs = new ArrayList<File>();
 
@@ -0,0 +1,185 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Persistent GWT unit cache shared between widgetset compilations.
+ *
+ * Each cache directory is keyed by a fingerprint of the inputs that make
+ * cached compilation units unusable: the Vaadin version, the Vaadin client
+ * and compiler jars and the compiler flags. Add-on jars are not part of the
+ * key, GWT itself re-parses only the units whose sources changed, so a cache
+ * stays useful when add-ons are added, removed or updated.
+ *
+ * Directories whose fingerprint no longer matches are never reused and are
+ * removed least recently used first once the total size exceeds the cap.
+ */
+public class GwtUnitCache {
+    private static final Log log = LogFactoryUtil.getLog(GwtUnitCache.class);
+
+    public static final String MAX_SIZE_PROPERTY = "vaadin.control.panel.unit.cache.max.size";
+    private static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String UNIT_CACHE_DIR = "gwt-unitCache";
+    private static final String DESCRIPTOR_FILE = "fingerprint.properties";
+    private static final String ADDON_JAR_PREFIX = "addon.";
+
+    private final File cacheRoot;
+    private final long maxSize;
+
+    public GwtUnitCache(File cacheRoot, long maxSize) {
+        this.cacheRoot = cacheRoot;
+        this.maxSize = maxSize;
+    }
+
+    public static GwtUnitCache getDefault() {
+        return new GwtUnitCache(new File(ControlPanelPortletUtil.getPluginDataDir(), UNIT_CACHE_DIR),
+                ControlPanelPortletUtil.getLongProperty(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Returns the unit cache directory to be used for a compilation with the
+     * given inputs. Creates the directory if there is no cache with a matching
+     * fingerprint yet and garbage collects stale ones.
+     *
+     * @param vaadinVersion  the Vaadin version the widgetset is compiled with
+     * @param vaadinJars     Vaadin jars needed for compilation
+     * @param addonJars      add-on jars and additional dependencies
+     * @param compilerFlags  GWT compiler flags, without output dir and module
+     */
+    public File prepare(String vaadinVersion, Collection<File> vaadinJars, Collection<File> addonJars,
+                        List<String> compilerFlags, ILog outputLog) throws IOException {
+        String fingerprint = fingerprint(vaadinVersion, vaadinJars, compilerFlags);
+        File cacheDir = new File(cacheRoot, fingerprint);
+        File descriptorFile = new File(cacheDir, DESCRIPTOR_FILE);
+
+        Properties addonHashes = hashJars(addonJars);
+        if (descriptorFile.exists()) {
+            Properties previous = ControlPanelPortletUtil.loadProperties(descriptorFile);
+            int changed = countChanged(previous, addonHashes);
+            outputLog.log("Reusing GWT unit cache " + fingerprint + " (" + changed + " of "
+                    + addonJars.size() + " add-on jars changed)");
+        } else {
+            outputLog.log("Creating GWT unit cache " + fingerprint);
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                throw new IOException("Could not create dir: " + cacheDir.getAbsolutePath());
+            }
+        }
+
+        Properties descriptor = new Properties();
+        descriptor.setProperty("vaadin.version", String.valueOf(vaadinVersion));
+        descriptor.setProperty("compiler.flags", compilerFlags.toString());
+        descriptor.putAll(addonHashes);
+        // Rewriting the descriptor also marks the cache as the most recently used one
+        ControlPanelPortletUtil.storeProperties(descriptor, descriptorFile, "GWT unit cache fingerprint");
+
+        collectGarbage(cacheDir);
+        return cacheDir;
+    }
+
+    private String fingerprint(String vaadinVersion, Collection<File> vaadinJars, List<String> compilerFlags)
+            throws IOException {
+        List<String> jarHashes = new ArrayList<String>();
+        for (File jar : vaadinJars) {
+            if (jar.isFile()) {
+                jarHashes.add(jar.getName() + "=" + FileDigestUtil.sha1(jar));
+            }
+        }
+        Collections.sort(jarHashes);
+        return FileDigestUtil.sha1(vaadinVersion + "\n" + jarHashes + "\n" + compilerFlags).substring(0, 16);
+    }
+
+    private Properties hashJars(Collection<File> jars) throws IOException {
+        Properties hashes = new Properties();
+        for (File jar : jars) {
+            if (jar.isFile()) {
+                hashes.setProperty(ADDON_JAR_PREFIX + jar.getName(), FileDigestUtil.sha1(jar));
+            }
+        }
+        return hashes;
+    }
+
+    private int countChanged(Properties previous, Properties current) {
+        int changed = 0;
+        for (String key : current.stringPropertyNames()) {
+            if (!current.getProperty(key).equals(previous.getProperty(key))) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes least recently used cache directories until the total size of
+     * the cache fits the configured maximum. The cache in use is never removed.
+     */
+    void collectGarbage(File inUse) {
+        File[] dirs = cacheRoot.listFiles();
+        if (dirs == null) {
+            return;
+        }
+
+        Arrays.sort(dirs, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return Long.valueOf(lastUsed(o1)).compareTo(lastUsed(o2));
+            }
+        });
+
+        long totalSize = 0;
+        long[] sizes = new long[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            sizes[i] = dirs[i].isDirectory() ? FileUtils.sizeOfDirectory(dirs[i]) : dirs[i].length();
+            totalSize += sizes[i];
+        }
+
+        for (int i = 0; i < dirs.length && totalSize > maxSize; i++) {
+            if (dirs[i].equals(inUse)) {
+                continue;
+            }
+            try {
+                FileUtils.forceDelete(dirs[i]);
+                totalSize -= sizes[i];
+                log.info("Removed GWT unit cache " + dirs[i].getName());
+            } catch (IOException e) {
+                log.warn("Could not remove GWT unit cache " + dirs[i].getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private static long lastUsed(File cacheDir) {
+        File descriptorFile = new File(cacheDir, DESCRIPTOR_FILE);
+        return descriptorFile.exists() ? descriptorFile.lastModified() : cacheDir.lastModified();
+    }
+}
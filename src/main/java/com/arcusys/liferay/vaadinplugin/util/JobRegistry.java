@@ -0,0 +1,124 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server side registry of compile and upgrade jobs.
+ *
+ * Jobs are registered independently of the UI that started them, so a job
+ * keeps running when its session ends and any control panel UI can attach
+ * to it later. Finished jobs are kept for a configurable time.
+ */
+public class JobRegistry {
+
+    public static final String RETENTION_PROPERTY = "vaadin.control.panel.job.retention.minutes";
+    public static final String LOG_LINES_PROPERTY = "vaadin.control.panel.job.log.lines";
+
+    private static final int DEFAULT_RETENTION_MINUTES = 60;
+    private static final int DEFAULT_LOG_LINES = 5000;
+
+    private static JobRegistry instance;
+
+    private final Map<Long, CompileJob> jobs = new LinkedHashMap<Long, CompileJob>();
+    private final long retentionMillis;
+    private final int logLines;
+
+    JobRegistry(long retentionMillis, int logLines) {
+        this.retentionMillis = retentionMillis;
+        this.logLines = logLines;
+    }
+
+    public static synchronized JobRegistry getInstance() {
+        if (instance == null) {
+            int retention = ControlPanelPortletUtil.getIntegerProperty(RETENTION_PROPERTY, DEFAULT_RETENTION_MINUTES);
+            int logLines = ControlPanelPortletUtil.getIntegerProperty(LOG_LINES_PROPERTY, DEFAULT_LOG_LINES);
+            instance = new JobRegistry(retention * 60L * 1000L, logLines);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.cancelAll();
+            instance = null;
+        }
+    }
+
+    /**
+     * @return number of log lines each job keeps for replay
+     */
+    public int getLogLines() {
+        return logLines;
+    }
+
+    public synchronized void register(CompileJob job) {
+        removeExpired();
+        jobs.put(job.getId(), job);
+    }
+
+    public synchronized CompileJob getJob(long id) {
+        removeExpired();
+        return jobs.get(id);
+    }
+
+    /**
+     * @return registered jobs, oldest first
+     */
+    public synchronized List<CompileJob> getJobs() {
+        removeExpired();
+        return new ArrayList<CompileJob>(jobs.values());
+    }
+
+    /**
+     * @return jobs which are queued or running, oldest first
+     */
+    public synchronized List<CompileJob> getActiveJobs() {
+        List<CompileJob> active = new ArrayList<CompileJob>();
+        for (CompileJob job : jobs.values()) {
+            if (!job.isDone()) {
+                active.add(job);
+            }
+        }
+        return active;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<CompileJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            CompileJob job = iterator.next();
+            if (job.isDone() && now - job.getFinishTime() > retentionMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void cancelAll() {
+        for (CompileJob job : getActiveJobs()) {
+            job.cancel();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles permutations in parallel local processes, each running GWT's
+ * CompilePerms for a share of the permutations.
+ */
+public class LocalPermutationWorkerPool implements PermutationWorkerPool {
+
+    private final List<Process> processes = new CopyOnWriteArrayList<Process>();
+    private volatile boolean terminated;
+
+    public boolean compilePermutations(PermutationRequest request, List<Integer> permutations)
+            throws InterruptedException {
+        List<List<Integer>> batches = split(permutations, Math.max(1, request.getMaxWorkers()));
+
+        // Two extra threads per worker for reading its output
+        ExecutorService executor = Executors.newFixedThreadPool(batches.size() * 3);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < batches.size(); i++) {
+                results.add(executor.submit(createWorker(request, batches.get(i), i + 1, executor)));
+            }
+
+            boolean successful = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    successful &= result.get();
+                } catch (ExecutionException e) {
+                    request.getOutputLog().log("ERROR: Permutation worker failed: " + e.getCause());
+                    successful = false;
+                }
+            }
+            return successful && !terminated;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void terminate() {
+        terminated = true;
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    private Callable<Boolean> createWorker(final PermutationRequest request, final List<Integer> batch,
+                                           final int workerNumber, final ExecutorService executor) {
+        return new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                if (terminated) {
+                    return false;
+                }
+
+                List<String> args = new ArrayList<String>();
+                args.add(request.getJava());
+                args.addAll(request.getJvmArgs());
+                args.add("-classpath");
+                args.add(getClasspath(request.getClasspath()));
+                args.add("com.google.gwt.dev.CompilePerms");
+                args.add("-workDir");
+                args.add(request.getWorkDir().getAbsolutePath());
+                args.add("-logLevel");
+                args.add(request.getLogLevel());
+                args.add("-perms");
+                args.add(join(batch));
+                args.add(request.getModule());
+
+                String prefix = "[worker " + workerNumber + "] ";
+                request.getOutputLog().log(prefix + "Compiling permutations " + join(batch));
+
+                Process process = new ProcessBuilder(args).start();
+                processes.add(process);
+                try {
+                    // Terminated while starting, after the processes were destroyed
+                    if (terminated) {
+                        process.destroy();
+                    }
+                    Future<?> out = executor.submit(createOutputReader(process.getInputStream(), prefix,
+                            request.getOutputLog()));
+                    Future<?> err = executor.submit(createOutputReader(process.getErrorStream(), prefix,
+                            request.getOutputLog()));
+                    int exitCode = process.waitFor();
+                    out.get();
+                    err.get();
+                    if (exitCode != 0) {
+                        return false;
+                    }
+                    request.markCompiled(batch);
+                    return true;
+                } finally {
+                    processes.remove(process);
+                }
+            }
+        };
+    }
+
+    private static Runnable createOutputReader(final InputStream stream, final String prefix, final ILog outputLog) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        outputLog.log(prefix + line);
+                    }
+                } catch (IOException e) {
+                    // process ended
+                }
+            }
+        };
+    }
+
+    /**
+     * Splits the permutations round robin into at most the given number of
+     * batches.
+     */
+    static List<List<Integer>> split(List<Integer> permutations, int maxBatches) {
+        int batchCount = Math.min(maxBatches, permutations.size());
+        List<List<Integer>> batches = new ArrayList<List<Integer>>();
+        for (int i = 0; i < batchCount; i++) {
+            batches.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < permutations.size(); i++) {
+            batches.get(i % batchCount).add(permutations.get(i));
+        }
+        return batches;
+    }
+
+    private static String join(List<Integer> values) {
+        StringBuilder result = new StringBuilder();
+        for (Integer value : values) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+
+    private static String getClasspath(List<File> entries) {
+        StringBuilder classpath = new StringBuilder();
+        for (File entry : entries) {
+            if (classpath.length() > 0) {
+                classpath.append(File.pathSeparator);
+            }
+            classpath.append(entry.getAbsolutePath());
+        }
+        return classpath.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size buffer keeping the most recent log lines. Not thread safe.
+ */
+public class LogBuffer {
+
+    private final String[] lines;
+    private int start;
+    private int size;
+    private long dropped;
+
+    public LogBuffer(int capacity) {
+        lines = new String[Math.max(1, capacity)];
+    }
+
+    public void add(String line) {
+        if (size < lines.length) {
+            lines[(start + size) % lines.length] = line;
+            size++;
+        } else {
+            lines[start] = line;
+            start = (start + 1) % lines.length;
+            dropped++;
+        }
+    }
+
+    /**
+     * @return buffered lines, oldest first
+     */
+    public List<String> getLines() {
+        List<String> result = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(lines[(start + i) % lines.length]);
+        }
+        return result;
+    }
+
+    /**
+     * @param index position in the buffer, 0 being the oldest line
+     */
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return lines[(start + index) % lines.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+
+    /**
+     * @return number of lines which were pushed out of the buffer
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public void clear() {
+        start = 0;
+        size = 0;
+        dropped = 0;
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Severity of a line of compiler or job output.
+ */
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR;
+
+    /**
+     * Determines the level of an output line from GWT's <code>[ERROR]</code>
+     * style tags, the <code>ERROR:</code> prefix of the plugin's own
+     * messages and stack trace lines. Other lines are INFO.
+     */
+    public static LogLevel of(String line) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith("[worker ")) {
+            int end = trimmed.indexOf("] ");
+            if (end > 0) {
+                trimmed = trimmed.substring(end + 2).trim();
+            }
+        }
+        if (trimmed.startsWith("[ERROR]") || trimmed.startsWith("ERROR:") || trimmed.startsWith("at ")
+                || trimmed.startsWith("Caused by:") || trimmed.contains("OutOfMemoryError")) {
+            return ERROR;
+        }
+        if (trimmed.startsWith("[WARN]") || trimmed.startsWith("WARNING:")) {
+            return WARN;
+        }
+        if (trimmed.startsWith("[DEBUG]") || trimmed.startsWith("[TRACE]") || trimmed.startsWith("[SPAM]")) {
+            return DEBUG;
+        }
+        return INFO;
+    }
+
+    /**
+     * Parses a level name, falling back to the given default.
+     */
+    public static LogLevel parse(String name, LogLevel defaultLevel) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the manifest of a jar without opening it as a {@link JarFile}.
+ *
+ * The end of central directory record is located at the end of the file,
+ * the central directory is searched for the manifest entry, and only that
+ * entry is read and inflated. The file is closed and the inflater ended
+ * before returning, so reading the manifests of many jars repeatedly leaves
+ * no jar open, unlike a cached <code>JarURLConnection</code>.
+ *
+ * Jars in the ZIP64 format are read through a {@link JarFile} which is
+ * closed right away.
+ */
+public class ManifestReader {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    /**
+     * @return the manifest, or null if the jar has none
+     * @throws IOException if the file is not a valid zip file
+     */
+    public static Manifest read(File jar) throws IOException {
+        byte[] content;
+        RandomAccessFile file = new RandomAccessFile(jar, "r");
+        try {
+            content = readEntry(file, JarFile.MANIFEST_NAME);
+        } catch (Zip64Exception e) {
+            return readWithJarFile(jar);
+        } finally {
+            file.close();
+        }
+        return content != null ? new Manifest(new ByteArrayInputStream(content)) : null;
+    }
+
+    private static Manifest readWithJarFile(File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar, false);
+        try {
+            return jarFile.getManifest();
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * Thrown for archives using ZIP64 extensions, which are not parsed here.
+     */
+    private static class Zip64Exception extends ZipException {
+        private static final long serialVersionUID = 1L;
+
+        Zip64Exception() {
+            super("ZIP64 archive");
+        }
+    }
+
+    /**
+     * Reads the content of an entry, matching its name case-insensitively.
+     *
+     * @return null if there is no such entry
+     */
+    static byte[] readEntry(RandomAccessFile file, String name) throws IOException {
+        long length = file.length();
+        if (length < END_SIZE) {
+            throw new ZipException("Not a zip file");
+        }
+
+        // The end record is followed only by a comment of up to 64 KB
+        int tailSize = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailSize];
+        file.seek(length - tailSize);
+        file.readFully(tail);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        int entryCount = getShort(tail, end + 10);
+        long directorySize = getInt(tail, end + 12) & 0xffffffffL;
+        long directoryOffset = getInt(tail, end + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+            throw new Zip64Exception();
+        }
+        if (directoryOffset + directorySize > length) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        byte[] directory = new byte[(int) directorySize];
+        file.seek(directoryOffset);
+        file.readFully(directory);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.length || getInt(directory, position) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry");
+            }
+            int nameLength = getShort(directory, position + 28);
+            int extraLength = getShort(directory, position + 30);
+            int commentLength = getShort(directory, position + 32);
+            String entryName = new String(directory, position + CENTRAL_HEADER_SIZE, nameLength, "ISO-8859-1");
+            if (entryName.equalsIgnoreCase(name)) {
+                int method = getShort(directory, position + 10);
+                long compressedSize = getInt(directory, position + 20) & 0xffffffffL;
+                long size = getInt(directory, position + 24) & 0xffffffffL;
+                long localOffset = getInt(directory, position + 42) & 0xffffffffL;
+                return readData(file, method, compressedSize, size, localOffset);
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return null;
+    }
+
+    private static byte[] readData(RandomAccessFile file, int method, long compressedSize, long size,
+                                   long localOffset) throws IOException {
+        if (compressedSize == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL) {
+            throw new Zip64Exception();
+        }
+        if (size > MAX_MANIFEST_SIZE || compressedSize > MAX_MANIFEST_SIZE) {
+            throw new ZipException("Entry too large: " + size + " bytes");
+        }
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        file.seek(localOffset);
+        file.readFully(header);
+        if (getInt(header, 0) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local entry header");
+        }
+        // The local name and extra field may differ from the central ones
+        file.seek(localOffset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28));
+        byte[] data = new byte[(int) compressedSize];
+        file.readFully(data);
+
+        if (method == STORED) {
+            return data;
+        }
+        if (method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            // A dummy byte is needed by the inflater in nowrap mode
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy(data, 0, input, 0, data.length);
+            inflater.setInput(input);
+            byte[] content = new byte[(int) size];
+            int read = 0;
+            while (read < content.length) {
+                int n = inflater.inflate(content, read, content.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != content.length) {
+                throw new ZipException("Truncated entry: " + read + " of " + content.length + " bytes");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int getShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+    }
+}
@@ -0,0 +1,358 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Settings of the generated widgetset module which reduce the number of
+ * permutations GWT compiles: the target browsers and property collapsing,
+ * and which reduce the initial download: the connector load styles.
+ *
+ * Load styles replace the ones connectors declare in their
+ * <code>@Connect</code> annotation. They are given for connector classes or
+ * for packages with a <code>.*</code> suffix, and a default style can be set
+ * for all connectors outside Vaadin's own packages. They are applied at
+ * compile time by a connector bundle loader factory of the plugin, see
+ * {@link #LOADER_FACTORY_CLASS}.
+ *
+ * Connector load styles exist from Vaadin 7.1 on. For older portal Vaadin
+ * versions the load style options are kept but not written to the module.
+ */
+public class ModuleOptions {
+
+    public static final String USER_AGENTS_PROPERTY = "vaadin.control.panel.widgetset.user.agents";
+    public static final String COLLAPSE_ALL_PROPERTY = "vaadin.control.panel.widgetset.collapse.all.properties";
+    public static final String COLLAPSE_PROPERTIES_PROPERTY = "vaadin.control.panel.widgetset.collapse.properties";
+
+    public static final String LOAD_STYLES_PROPERTY = "vaadin.control.panel.widgetset.load.styles";
+    public static final String DEFAULT_LOAD_STYLE_PROPERTY = "vaadin.control.panel.widgetset.default.load.style";
+
+    private static final Log log = LogFactoryUtil.getLog(ModuleOptions.class);
+
+    /**
+     * Generator replacing Vaadin's connector bundle loader factory. It is
+     * only loaded by the compiler, so it is referred to by name.
+     */
+    public static final String LOADER_FACTORY_CLASS =
+            "com.arcusys.liferay.vaadinplugin.widgetset.ConfigurableConnectorBundleLoaderFactory";
+
+    /**
+     * Names of the GWT configuration properties read by
+     * {@link #LOADER_FACTORY_CLASS}.
+     */
+    public static final String LOAD_STYLES_MODULE_PROPERTY = "vaadin.control.panel.load.styles";
+    public static final String DEFAULT_LOAD_STYLE_MODULE_PROPERTY = "vaadin.control.panel.default.load.style";
+
+    public static final String EAGER = "eager";
+    public static final String DEFERRED = "deferred";
+    public static final String LAZY = "lazy";
+
+    /**
+     * Connector load styles of Vaadin 7.1 and later.
+     */
+    public static final List<String> LOAD_STYLES = Collections.unmodifiableList(Arrays.asList(EAGER, DEFERRED, LAZY));
+
+    private static final Version LOAD_STYLES_VERSION = new Version("7.1");
+
+    /**
+     * Values of the user.agent property supported by GWT 2.5, used by Vaadin
+     * 7.0 and 7.1.
+     */
+    private static final List<String> GWT_25_USER_AGENTS = Collections.unmodifiableList(
+            Arrays.asList("ie8", "ie9", "gecko1_8", "safari", "opera"));
+
+    /**
+     * Values of the user.agent property supported by GWT 2.6, used from
+     * Vaadin 7.2 on, which added ie10.
+     */
+    private static final List<String> GWT_26_USER_AGENTS = Collections.unmodifiableList(
+            Arrays.asList("ie8", "ie9", "ie10", "gecko1_8", "safari", "opera"));
+
+    private static final Version GWT_26_VERSION = new Version("7.2");
+
+    private Version vaadinVersion;
+    private final Set<String> userAgents = new TreeSet<String>();
+    private boolean collapseAllProperties;
+    private final Map<String, String> collapsedProperties = new LinkedHashMap<String, String>();
+    private String defaultLoadStyle;
+    private final Map<String, String> loadStyles = new TreeMap<String, String>();
+
+    /**
+     * Reads the options from the portal properties.
+     *
+     * {@link #COLLAPSE_PROPERTIES_PROPERTY} has the form
+     * <code>user.agent:ie8,ie9;locale:*</code>.
+     */
+    public static ModuleOptions getDefault() {
+        ModuleOptions options = new ModuleOptions();
+        options.setVaadinVersion(ControlPanelPortletUtil.getPortalVaadinVersion());
+        options.setUserAgents(Arrays.asList(ControlPanelPortletUtil.getProperty(USER_AGENTS_PROPERTY, "").split(",")));
+        options.setCollapseAllProperties(ControlPanelPortletUtil.getBooleanProperty(COLLAPSE_ALL_PROPERTY, false));
+        for (String collapse : ControlPanelPortletUtil.getProperty(COLLAPSE_PROPERTIES_PROPERTY, "").split(";")) {
+            int separator = collapse.indexOf(':');
+            if (separator > 0) {
+                options.addCollapsedProperty(collapse.substring(0, separator).trim(),
+                        collapse.substring(separator + 1).trim());
+            }
+        }
+        options.setDefaultLoadStyle(ControlPanelPortletUtil.getProperty(DEFAULT_LOAD_STYLE_PROPERTY, ""));
+        options.setLoadStyles(parseLoadStyles(ControlPanelPortletUtil.getProperty(LOAD_STYLES_PROPERTY, "")));
+
+        if (!options.isLoadStylesSupported() && (options.getDefaultLoadStyle() != null
+                || !options.getLoadStyles().isEmpty())) {
+            log.warn("Connector load styles need Vaadin " + LOAD_STYLES_VERSION + " or later, ignoring them for Vaadin "
+                    + options.vaadinVersion);
+        }
+        return options;
+    }
+
+    /**
+     * Parses load styles of the form
+     * <code>org.vaadin.addon.*:lazy;com.example.client.MyConnector:eager</code>.
+     */
+    public static Map<String, String> parseLoadStyles(String value) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (String rule : value.split("[;\\n]")) {
+            int separator = rule.lastIndexOf(':');
+            if (separator > 0) {
+                result.put(rule.substring(0, separator).trim(), rule.substring(separator + 1).trim().toLowerCase());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the load style pattern matching the connectors of an add-on:
+     * the package of its widgetset module and its subpackages.
+     */
+    public static String getAddonPattern(String widgetset) {
+        int end = widgetset.lastIndexOf('.');
+        return (end > 0 ? widgetset.substring(0, end) : widgetset) + ".*";
+    }
+
+    /**
+     * @return target browsers; empty if all browsers are targeted
+     */
+    public Set<String> getUserAgents() {
+        return Collections.unmodifiableSet(userAgents);
+    }
+
+    /**
+     * @return true if the given Vaadin version has connector load styles
+     */
+    public static boolean supportsLoadStyles(Version vaadinVersion) {
+        return vaadinVersion.compareTo(LOAD_STYLES_VERSION) >= 0;
+    }
+
+    /**
+     * Sets the Vaadin version the module is compiled with. Without a
+     * version, all options are assumed to be supported.
+     */
+    public void setVaadinVersion(Version vaadinVersion) {
+        this.vaadinVersion = vaadinVersion;
+    }
+
+    public boolean isLoadStylesSupported() {
+        return vaadinVersion == null || supportsLoadStyles(vaadinVersion);
+    }
+
+    /**
+     * @return the values of the user.agent property supported by the GWT
+     * version of the given Vaadin version
+     */
+    public static List<String> getSupportedUserAgents(Version vaadinVersion) {
+        return vaadinVersion.compareTo(GWT_26_VERSION) >= 0 ? GWT_26_USER_AGENTS : GWT_25_USER_AGENTS;
+    }
+
+    /**
+     * @return the user.agent values supported by the Vaadin version of these
+     * options, all known values if it is not set
+     */
+    public List<String> getSupportedUserAgents() {
+        return vaadinVersion != null ? getSupportedUserAgents(vaadinVersion) : GWT_26_USER_AGENTS;
+    }
+
+    /**
+     * Restricts the compilation to the given user.agent values. Values not
+     * supported by the Vaadin version and empty values are ignored, an empty
+     * collection targets all browsers.
+     */
+    public void setUserAgents(Collection<String> userAgents) {
+        List<String> supported = getSupportedUserAgents();
+        this.userAgents.clear();
+        for (String userAgent : userAgents) {
+            String value = userAgent.trim();
+            if (supported.contains(value)) {
+                this.userAgents.add(value);
+            }
+        }
+        if (this.userAgents.size() == supported.size()) {
+            this.userAgents.clear();
+        }
+    }
+
+    public boolean isCollapseAllProperties() {
+        return collapseAllProperties;
+    }
+
+    public void setCollapseAllProperties(boolean collapseAllProperties) {
+        this.collapseAllProperties = collapseAllProperties;
+    }
+
+    /**
+     * Collapses the given values of a deferred binding property into one
+     * permutation.
+     *
+     * @param values comma separated values, may contain wildcards
+     */
+    public void addCollapsedProperty(String name, String values) {
+        if (name.length() > 0 && values.length() > 0) {
+            collapsedProperties.put(name, values);
+        }
+    }
+
+    public Map<String, String> getCollapsedProperties() {
+        return Collections.unmodifiableMap(collapsedProperties);
+    }
+
+    /**
+     * @return load style of the connectors outside Vaadin's packages without
+     * a load style of their own, or null for the annotated styles
+     */
+    public String getDefaultLoadStyle() {
+        return defaultLoadStyle;
+    }
+
+    /**
+     * @param loadStyle one of {@link #LOAD_STYLES}; other values keep the
+     *                  annotated styles
+     */
+    public void setDefaultLoadStyle(String loadStyle) {
+        defaultLoadStyle = LOAD_STYLES.contains(loadStyle) ? loadStyle : null;
+    }
+
+    public Map<String, String> getLoadStyles() {
+        return Collections.unmodifiableMap(loadStyles);
+    }
+
+    /**
+     * Replaces the load styles by connector class or package pattern. Rules
+     * with unknown styles are ignored.
+     */
+    public void setLoadStyles(Map<String, String> loadStyles) {
+        this.loadStyles.clear();
+        for (Map.Entry<String, String> entry : loadStyles.entrySet()) {
+            if (entry.getKey().length() > 0 && LOAD_STYLES.contains(entry.getValue())) {
+                this.loadStyles.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if the connector bundle loader factory of the plugin is
+     * needed on the compile classpath
+     */
+    public boolean hasLoadStyles() {
+        return isLoadStylesSupported()
+                && (defaultLoadStyle != null || !loadStyles.isEmpty());
+    }
+
+    /**
+     * Writes the module elements for these options. Must be written after
+     * the inherited modules.
+     */
+    public void writeTo(PrintStream printStream) {
+        if (!userAgents.isEmpty()) {
+            printStream.print("<set-property name=\"user.agent\" value=\"" + join(userAgents) + "\" />\n");
+        }
+        if (collapseAllProperties) {
+            printStream.print("<collapse-all-properties />\n");
+        }
+        for (Map.Entry<String, String> entry : collapsedProperties.entrySet()) {
+            printStream.print("<collapse-property name=\"" + entry.getKey() + "\" values=\""
+                    + entry.getValue() + "\" />\n");
+        }
+        if (hasLoadStyles()) {
+            printStream.print("<generate-with class=\"" + LOADER_FACTORY_CLASS + "\">\n"
+                    + "\t<when-type-assignable class=\"com.vaadin.client.metadata.ConnectorBundleLoader\" />\n"
+                    + "</generate-with>\n");
+            printStream.print("<define-configuration-property name=\"" + LOAD_STYLES_MODULE_PROPERTY
+                    + "\" is-multi-valued=\"true\" />\n");
+            for (Map.Entry<String, String> entry : loadStyles.entrySet()) {
+                printStream.print("<extend-configuration-property name=\"" + LOAD_STYLES_MODULE_PROPERTY
+                        + "\" value=\"" + entry.getKey() + "=" + entry.getValue() + "\" />\n");
+            }
+            if (defaultLoadStyle != null) {
+                printStream.print("<define-configuration-property name=\"" + DEFAULT_LOAD_STYLE_MODULE_PROPERTY
+                        + "\" is-multi-valued=\"false\" />\n");
+                printStream.print("<set-configuration-property name=\"" + DEFAULT_LOAD_STYLE_MODULE_PROPERTY
+                        + "\" value=\"" + defaultLoadStyle + "\" />\n");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<String>();
+        parts.add("user.agent=" + (userAgents.isEmpty() ? "*" : join(userAgents)));
+        if (collapseAllProperties) {
+            parts.add("collapse-all");
+        }
+        for (Map.Entry<String, String> entry : collapsedProperties.entrySet()) {
+            parts.add("collapse " + entry.getKey() + "=" + entry.getValue());
+        }
+        if (!hasLoadStyles()) {
+            return parts.toString();
+        }
+        if (defaultLoadStyle != null) {
+            parts.add("load " + defaultLoadStyle + " except core");
+        }
+        for (Map.Entry<String, String> entry : loadStyles.entrySet()) {
+            parts.add("load " + entry.getKey() + "=" + entry.getValue());
+        }
+        return parts.toString();
+    }
+
+    private static String join(Collection<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+}
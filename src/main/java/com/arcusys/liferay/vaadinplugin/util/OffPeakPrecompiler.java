@@ -0,0 +1,247 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Precompiles widgetsets in the background when the add-ons they were
+ * compiled with change, so that the new build does not have to be compiled
+ * under peak load.
+ *
+ * A widgetset is precompiled with the {@link CompileSettings} of its
+ * deployed build, using the current jars of its add-ons, when the client
+ * code of those differs from the deployed build. Compilations run only in
+ * the configured maintenance window or while the system load is below the
+ * configured threshold, and only when no other compilation is running. The
+ * result is staged as a {@link StagedWidgetset}, ready to be activated from
+ * the control panel.
+ *
+ * Add-ons are checked after the {@link AddonDirectoryWatcher} reports a
+ * change, on start and each time the maintenance window opens.
+ */
+public class OffPeakPrecompiler implements AddonDirectoryWatcher.Listener {
+    private static final Log log = LogFactoryUtil.getLog(OffPeakPrecompiler.class);
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.precompile.enabled";
+    public static final String WINDOW_PROPERTY = "vaadin.control.panel.precompile.window";
+    public static final String MAX_LOAD_PROPERTY = "vaadin.control.panel.precompile.max.load";
+
+    private static final String DEFAULT_WINDOW = "22:00-06:00";
+    private static final long CHECK_INTERVAL_MINUTES = 1;
+
+    private static OffPeakPrecompiler instance;
+    private static ScheduledExecutorService checker;
+
+    // Minutes of the day, start inclusive and end exclusive; null if none
+    private final int[] window;
+    // Load average per processor; 0 if not used
+    private final double maxLoad;
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private boolean offPeak;
+
+    OffPeakPrecompiler(int[] window, double maxLoad) {
+        this.window = window;
+        this.maxLoad = maxLoad;
+    }
+
+    /**
+     * Starts checking the add-ons of the deployed widgetsets, if enabled in
+     * the portal properties.
+     */
+    public static synchronized void start() {
+        if (instance != null || !ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, false)) {
+            return;
+        }
+        String windowValue = ControlPanelPortletUtil.getProperty(WINDOW_PROPERTY, DEFAULT_WINDOW);
+        int[] window = parseWindow(windowValue);
+        if (window == null && windowValue.trim().length() > 0) {
+            log.warn("Invalid precompile window " + windowValue + ", expected for example " + DEFAULT_WINDOW);
+        }
+        double maxLoad = 0;
+        try {
+            maxLoad = Double.parseDouble(ControlPanelPortletUtil.getProperty(MAX_LOAD_PROPERTY, "0"));
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + MAX_LOAD_PROPERTY + ", precompiling only in the maintenance window.");
+        }
+
+        final OffPeakPrecompiler precompiler = new OffPeakPrecompiler(window, maxLoad);
+        if (!AddonDirectoryWatcher.addListener(precompiler)) {
+            log.info("The add-on directory is not watched, add-ons are checked when the precompile window opens.");
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vaadin-precompile-checker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        checker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    precompiler.check();
+                } catch (RuntimeException e) {
+                    log.warn("Could not check widgetsets for precompiling.", e);
+                }
+            }
+        }, CHECK_INTERVAL_MINUTES, CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        instance = precompiler;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            checker.shutdownNow();
+            checker = null;
+            AddonDirectoryWatcher.removeListener(instance);
+            instance = null;
+        }
+    }
+
+    public void addonsChanged(AddonCatalog.Changes changes) {
+        changed.set(true);
+    }
+
+    /**
+     * Submits the precompilations needed, if it is off-peak and the add-ons
+     * may have changed since the last check.
+     */
+    void check() {
+        boolean wasOffPeak = offPeak;
+        offPeak = isOffPeak(Calendar.getInstance(), getLoadPerProcessor());
+        if (!offPeak) {
+            return;
+        }
+        if (!wasOffPeak) {
+            changed.set(true);
+        }
+        CompileJobScheduler scheduler = CompileJobScheduler.getInstance();
+        if (scheduler.getRunningCount() > 0 || scheduler.getQueueDepth() > 0 || !changed.getAndSet(false)) {
+            return;
+        }
+
+        File[] settingsFiles = CompileSettings.getDeployedDir().listFiles();
+        if (settingsFiles == null) {
+            return;
+        }
+        File libDir = ControlPanelPortletUtil.getPortalLibLocation();
+        List<VaadinAddonInfo> available = WidgetsetUtil.getAvailableWidgetSets(libDir);
+        for (File file : settingsFiles) {
+            try {
+                CompileSettings settings = CompileSettings.load(file);
+                if (settings != null) {
+                    precompileIfStale(settings, available, libDir);
+                }
+            } catch (IOException e) {
+                log.warn("Could not check " + file + " for precompiling.", e);
+            }
+        }
+    }
+
+    private void precompileIfStale(CompileSettings settings, List<VaadinAddonInfo> available, File libDir)
+            throws IOException {
+        String widgetset = settings.getWidgetset();
+        Map<String, ClientFingerprint> deployed = ClientFingerprint.getDeployedAddons(widgetset);
+        if (deployed == null) {
+            return;
+        }
+        List<VaadinAddonInfo> addons = settings.findAddons(available);
+        ClientFingerprint.Changes changes = ClientFingerprint.compare(deployed, addons);
+        if (!changes.isStale()) {
+            return;
+        }
+        log.info("Precompiling " + widgetset + ": " + changes.getClientChanges());
+        // An identical build already staged is found by the job
+        CompileJobScheduler.getInstance().submit(new WidgetsetCompileJob(widgetset, addons,
+                settings.findDependencies(libDir), settings.getProfile(), settings.createModuleOptions(),
+                CompileJob.Priority.LOW, true), null);
+    }
+
+    /**
+     * @return true if in the maintenance window, or if the load is known and
+     * below the threshold
+     */
+    boolean isOffPeak(Calendar now, double loadPerProcessor) {
+        if (window != null && isInWindow(now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE), window)) {
+            return true;
+        }
+        return maxLoad > 0 && loadPerProcessor >= 0 && loadPerProcessor < maxLoad;
+    }
+
+    /**
+     * @return the system load average divided by the processors this process
+     * may use, or -1 if not available
+     */
+    private static double getLoadPerProcessor() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        return load < 0 ? -1 : load / new SystemResources().getAvailableProcessors();
+    }
+
+    /**
+     * Parses a window of the form <code>22:00-06:00</code>, which may span
+     * midnight.
+     *
+     * @return the start and end minute of the day, or null if not valid
+     */
+    static int[] parseWindow(String value) {
+        String[] times = value.trim().split("-");
+        if (times.length != 2) {
+            return null;
+        }
+        int start = parseTime(times[0]);
+        int end = parseTime(times[1]);
+        return start >= 0 && end >= 0 && start != end ? new int[]{start, end} : null;
+    }
+
+    private static int parseTime(String value) {
+        String[] parts = value.trim().split(":");
+        try {
+            int hours = Integer.parseInt(parts[0]);
+            int minutes = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+            if (parts.length > 2 || hours < 0 || hours > 24 || minutes < 0 || minutes > 59) {
+                return -1;
+            }
+            return (hours * 60 + minutes) % (24 * 60);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static boolean isInWindow(int minuteOfDay, int[] window) {
+        if (window[0] < window[1]) {
+            return minuteOfDay >= window[0] && minuteOfDay < window[1];
+        }
+        return minuteOfDay >= window[0] || minuteOfDay < window[1];
+    }
+}
@@ -0,0 +1,123 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Everything a {@link PermutationWorkerPool} needs for compiling the
+ * permutations of a precompiled module.
+ */
+public class PermutationRequest {
+
+    /**
+     * Notified when permutations have been compiled completely.
+     */
+    public interface CompletionListener {
+
+        void permutationsCompiled(List<Integer> permutations);
+    }
+
+    private final String java;
+    private final List<String> jvmArgs;
+    private final List<File> classpath;
+    private final File workDir;
+    private final String module;
+    private final String logLevel;
+    private final int maxWorkers;
+    private final ILog outputLog;
+    private final CompletionListener completionListener;
+
+    public PermutationRequest(String java, List<String> jvmArgs, List<File> classpath, File workDir,
+                              String module, String logLevel, int maxWorkers, ILog outputLog,
+                              CompletionListener completionListener) {
+        this.java = java;
+        this.jvmArgs = jvmArgs;
+        this.classpath = classpath;
+        this.workDir = workDir;
+        this.module = module;
+        this.logLevel = logLevel;
+        this.maxWorkers = maxWorkers;
+        this.outputLog = outputLog;
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * @return the java executable
+     */
+    public String getJava() {
+        return java;
+    }
+
+    /**
+     * @return arguments for each worker JVM
+     */
+    public List<String> getJvmArgs() {
+        return jvmArgs;
+    }
+
+    public List<File> getClasspath() {
+        return classpath;
+    }
+
+    /**
+     * @return the GWT work directory containing the precompilation
+     */
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public ILog getOutputLog() {
+        return outputLog;
+    }
+
+    /**
+     * @return the file the given permutation is compiled to
+     */
+    public File getPermutationFile(int permutation) {
+        return new File(workDir, module + File.separator + "compiler" + File.separator
+                + "permutation-" + permutation + ".js");
+    }
+
+    /**
+     * Records permutations as compiled. Pools call this only once the worker
+     * that compiled them has finished successfully; a permutation file
+     * existing in the work directory may still be incomplete.
+     */
+    public void markCompiled(List<Integer> permutations) {
+        if (completionListener != null) {
+            completionListener.permutationsCompiled(permutations);
+        }
+    }
+}
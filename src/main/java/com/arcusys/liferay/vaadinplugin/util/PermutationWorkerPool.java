@@ -0,0 +1,55 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+/**
+ * Runs the CompilePerms stage of a staged compilation.
+ *
+ * The implementation is chosen with the
+ * {@link #POOL_CLASS_PROPERTY} portal property and must have a public no
+ * argument constructor. {@link LocalPermutationWorkerPool} runs the
+ * permutations in local processes; other implementations may hand them
+ * to remote machines, as long as the permutation files end up in the
+ * compiler work directory of the request and each completed batch is
+ * reported with {@link PermutationRequest#markCompiled(List)}.
+ */
+public interface PermutationWorkerPool {
+
+    String POOL_CLASS_PROPERTY = "vaadin.control.panel.compile.permutation.pool";
+
+    /**
+     * Compiles the given permutations and returns when all are done or one
+     * failed. Permutations completed before a failure are kept in the work
+     * directory and reported to the request as compiled, so a resumed
+     * compilation skips them.
+     *
+     * @return true if all permutations were compiled
+     */
+    boolean compilePermutations(PermutationRequest request, List<Integer> permutations)
+            throws InterruptedException;
+
+    /**
+     * Stops all running permutation compiles.
+     */
+    void terminate();
+}
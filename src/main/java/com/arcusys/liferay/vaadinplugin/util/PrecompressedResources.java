@@ -0,0 +1,202 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip compressed variants next to the static text resources of a
+ * directory tree, so that they can be served without compressing them on
+ * every request.
+ *
+ * A variant is named after its file with a <code>.gz</code> suffix and is
+ * only kept if it is smaller than the file; otherwise an empty
+ * <code>.gz.skipped</code> marker records that the file was tried, so it is
+ * not compressed again until it changes. Files below a minimum size are not
+ * compressed at all. Variants and markers older than their file are
+ * rewritten and those without a file are removed, so a tree whose variants
+ * were written before it was swapped in or restored stays in sync.
+ */
+public class PrecompressedResources {
+
+    public static final String ENABLED_PROPERTY = "vaadin.control.panel.precompress.enabled";
+
+    public static final String SUFFIX = ".gz";
+    public static final String SKIPPED_SUFFIX = ".gz.skipped";
+
+    // Gzip headers outweigh what smaller files could save
+    static final long MIN_SIZE = 256;
+
+    private static final String[] EXTENSIONS = {".js", ".css", ".html", ".htm", ".svg", ".json", ".xml", ".txt"};
+
+    public static boolean isEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(ENABLED_PROPERTY, true);
+    }
+
+    /**
+     * Brings the compressed variants of a directory tree up to date, using
+     * a thread per processor.
+     *
+     * @return number of variants written
+     */
+    public static int update(File dir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        collect(dir, files);
+        if (files.isEmpty()) {
+            return 0;
+        }
+
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return compress(file);
+                    }
+                }));
+            }
+            int written = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    written++;
+                }
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compressing resources was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not compress resources in " + dir, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Collects the files needing a new variant and removes the variants
+     * whose file is gone.
+     */
+    private static void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else if (name.endsWith(SUFFIX) || name.endsWith(SKIPPED_SUFFIX)) {
+                String suffix = name.endsWith(SUFFIX) ? SUFFIX : SKIPPED_SUFFIX;
+                File source = new File(dir, name.substring(0, name.length() - suffix.length()));
+                if (!source.isFile()) {
+                    child.delete();
+                }
+            } else if (isCompressible(name)) {
+                if (child.length() < MIN_SIZE) {
+                    // Possibly written while the file was larger
+                    getVariant(child).delete();
+                } else if (!isUpToDate(getVariant(child), child) && !isUpToDate(getSkippedMarker(child), child)) {
+                    files.add(child);
+                }
+            }
+        }
+    }
+
+    static boolean isCompressible(String name) {
+        String lowerCaseName = name.toLowerCase();
+        for (String extension : EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUpToDate(File derived, File file) {
+        return derived.isFile() && derived.lastModified() >= file.lastModified();
+    }
+
+    public static File getVariant(File file) {
+        return new File(file.getParentFile(), file.getName() + SUFFIX);
+    }
+
+    static File getSkippedMarker(File file) {
+        return new File(file.getParentFile(), file.getName() + SKIPPED_SUFFIX);
+    }
+
+    /**
+     * @return true if a variant was written, false if it would not have
+     * been smaller than the file and the file was marked as skipped
+     */
+    static boolean compress(File file) throws IOException {
+        File variant = getVariant(file);
+        File tmpVariant = new File(file.getParentFile(), variant.getName() + ".tmp");
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmpVariant))) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        File skippedMarker = getSkippedMarker(file);
+        if (tmpVariant.length() >= file.length()) {
+            FileUtils.deleteQuietly(tmpVariant);
+            FileUtils.deleteQuietly(variant);
+            FileUtils.touch(skippedMarker);
+            return false;
+        }
+        FileUtils.deleteQuietly(skippedMarker);
+        if (!tmpVariant.renameTo(variant)) {
+            variant.delete();
+            if (!tmpVariant.renameTo(variant)) {
+                FileUtils.deleteQuietly(tmpVariant);
+                throw new IOException("Could not write " + variant.getAbsolutePath());
+            }
+        }
+        return true;
+    }
+}
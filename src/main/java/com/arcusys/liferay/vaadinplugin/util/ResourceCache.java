@@ -0,0 +1,130 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the contents of the most recently served static
+ * resources, bounded by the total size of the contents.
+ *
+ * An entry is tied to the size and modification time of its file, so a
+ * redeployed file is read again. Files larger than a fraction of the cache
+ * are never cached, so that a single large file cannot evict the others.
+ */
+public class ResourceCache {
+
+    public static final String SIZE_PROPERTY = "vaadin.control.panel.resources.cache.size";
+
+    private static final long DEFAULT_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_ENTRY_FRACTION = 16;
+
+    private static ResourceCache instance;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long size;
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final byte[] content;
+
+        Entry(long length, long lastModified, byte[] content) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
+    ResourceCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public static synchronized ResourceCache getInstance() {
+        if (instance == null) {
+            long maxBytes = ControlPanelPortletUtil.getLongProperty(SIZE_PROPERTY, DEFAULT_SIZE);
+            instance = new ResourceCache(maxBytes, maxBytes / MAX_ENTRY_FRACTION);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the content of a file, reading it into the cache if needed.
+     *
+     * @return null if the file is too large to be cached
+     */
+    public byte[] get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (length > maxEntryBytes) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                return entry.content;
+            }
+        }
+
+        // Read outside the lock so that a slow read does not block hits
+        byte[] content = FileUtils.readFileToByteArray(file);
+        if (content.length != length || file.lastModified() != lastModified) {
+            // Changed while being read, serve it but do not cache it
+            return content;
+        }
+        put(key, new Entry(length, lastModified, content));
+        return content;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.content.length;
+        }
+        size += entry.content.length;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (size > maxBytes && eldest.hasNext()) {
+            size -= eldest.next().getValue().content.length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,373 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Content addressed store of file tree snapshots, used for widgetset and
+ * Vaadin upgrade backups.
+ *
+ * Every file is stored once per content under its SHA-1 hash, so a file
+ * unchanged since an earlier snapshot costs neither I/O nor disk space. A
+ * snapshot is a manifest mapping paths to hashes. Restored files are hard
+ * links to the stored objects where the platform supports them, so they
+ * must be replaced, not overwritten in place; the plugin always writes new
+ * files and renames them into place.
+ *
+ * Snapshots are grouped by name, for example one name per widgetset, and
+ * only the most recent ones of each name are kept.
+ *
+ * Instances of the same directory may be used at the same time, also by
+ * other JVMs; every operation holds a lock on the store, so that pruning
+ * never removes objects of a snapshot being created.
+ */
+public class SnapshotStore {
+    private static final Log log = LogFactoryUtil.getLog(SnapshotStore.class);
+
+    public static final String RETENTION_PROPERTY = "vaadin.control.panel.snapshot.retention";
+    private static final int DEFAULT_RETENTION = 5;
+
+    private static final String OBJECTS_DIR = "objects";
+    private static final String SNAPSHOTS_DIR = "snapshots";
+    private static final String MANIFEST_SUFFIX = ".properties";
+    private static final String LOCK_FILE = "store.lock";
+
+    // File locks are held per JVM, threads of this JVM are serialized here
+    private static final Object jvmLock = new Object();
+
+    private static Method toPathMethod;
+    private static Method createLinkMethod;
+
+    static {
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            toPathMethod = File.class.getMethod("toPath");
+            createLinkMethod = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+        } catch (Exception e) {
+            // Before Java 7, files are copied instead of linked
+        }
+    }
+
+    private final File root;
+    private final int retention;
+
+    SnapshotStore(File root, int retention) {
+        this.root = root;
+        this.retention = Math.max(1, retention);
+    }
+
+    public static SnapshotStore getDefault() {
+        return new SnapshotStore(new File(ControlPanelPortletUtil.getPluginDataDir(), "snapshots"),
+                ControlPanelPortletUtil.getIntegerProperty(RETENTION_PROPERTY, DEFAULT_RETENTION));
+    }
+
+    /**
+     * Takes a snapshot of files and directories.
+     *
+     * @param name    group of the snapshot
+     * @param entries files or directories by the entry name they are
+     *                restored with; missing ones are skipped
+     * @param move    true for moving the files into the store instead of
+     *                copying them, for sources which are deleted afterwards
+     * @return id of the snapshot
+     */
+    public String create(String name, Map<String, File> entries, boolean move) throws IOException {
+        synchronized (jvmLock) {
+            FileLock lock = lock();
+            try {
+                return createLocked(name, entries, move);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private String createLocked(String name, Map<String, File> entries, boolean move) throws IOException {
+        Properties manifest = new Properties();
+        for (Map.Entry<String, File> entry : entries.entrySet()) {
+            if (entry.getValue().exists()) {
+                addToManifest(manifest, entry.getKey(), entry.getValue(), move);
+            }
+        }
+
+        File snapshotDir = getSnapshotDir(name);
+        if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            throw new IOException("Could not create dir: " + snapshotDir.getAbsolutePath());
+        }
+        String id = Long.toString(System.currentTimeMillis());
+        while (new File(snapshotDir, id + MANIFEST_SUFFIX).exists()) {
+            id = Long.toString(Long.parseLong(id) + 1);
+        }
+        ControlPanelPortletUtil.storeProperties(manifest, new File(snapshotDir, id + MANIFEST_SUFFIX),
+                "Snapshot " + name);
+
+        prune(name);
+        return id;
+    }
+
+    private void addToManifest(Properties manifest, String path, File file, boolean move) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addToManifest(manifest, path + "/" + child.getName(), child, move);
+                }
+            }
+            return;
+        }
+
+        String hash = FileDigestUtil.sha1(file);
+        File object = getObjectFile(hash);
+        if (!object.exists()) {
+            File parent = object.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create dir: " + parent.getAbsolutePath());
+            }
+            File tmpObject = new File(parent, hash + ".tmp");
+            if (!move || !file.renameTo(tmpObject)) {
+                FileUtils.copyFile(file, tmpObject);
+            }
+            if (!tmpObject.renameTo(object)) {
+                FileUtils.deleteQuietly(tmpObject);
+                if (!object.exists()) {
+                    throw new IOException("Could not store " + file.getAbsolutePath());
+                }
+            }
+        }
+        manifest.setProperty(path, hash);
+    }
+
+    /**
+     * @return ids of the snapshots of the given name, newest first
+     */
+    public List<String> getSnapshots(String name) throws IOException {
+        synchronized (jvmLock) {
+            FileLock lock = lock();
+            try {
+                return listSnapshots(name);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private List<String> listSnapshots(String name) {
+        List<String> ids = new ArrayList<String>();
+        String[] files = getSnapshotDir(name).list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(MANIFEST_SUFFIX)) {
+                    ids.add(file.substring(0, file.length() - MANIFEST_SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(ids, Collections.reverseOrder(new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return Long.valueOf(o1).compareTo(Long.valueOf(o2));
+            }
+        }));
+        return ids;
+    }
+
+    /**
+     * Restores an entry of a snapshot. A directory is assembled next to the
+     * target and then swapped in with renames; a file is linked or copied
+     * next to the target and renamed over it.
+     *
+     * @return false if the snapshot does not contain the entry
+     */
+    public boolean restore(String name, String id, String entry, File target) throws IOException {
+        synchronized (jvmLock) {
+            FileLock lock = lock();
+            try {
+                return restoreLocked(name, id, entry, target);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private boolean restoreLocked(String name, String id, String entry, File target) throws IOException {
+        Properties manifest = ControlPanelPortletUtil.loadProperties(
+                new File(getSnapshotDir(name), id + MANIFEST_SUFFIX));
+
+        String fileHash = manifest.getProperty(entry);
+        if (fileHash != null) {
+            File tmpFile = new File(target.getParentFile(), target.getName() + ".restore");
+            FileUtils.deleteQuietly(tmpFile);
+            linkOrCopy(getObjectFile(fileHash), tmpFile);
+            replace(tmpFile, target);
+            return true;
+        }
+
+        File stagingDir = new File(target.getParentFile(), target.getName() + ".restore");
+        FileUtils.deleteDirectory(stagingDir);
+        String prefix = entry + "/";
+        boolean found = false;
+        for (String path : manifest.stringPropertyNames()) {
+            if (path.startsWith(prefix)) {
+                File file = new File(stagingDir, path.substring(prefix.length()));
+                linkOrCopy(getObjectFile(manifest.getProperty(path)), file);
+                found = true;
+            }
+        }
+        if (!found) {
+            return false;
+        }
+
+        File oldDir = new File(target.getParentFile(), target.getName() + ".old");
+        FileUtils.deleteDirectory(oldDir);
+        if (target.exists() && !target.renameTo(oldDir)) {
+            throw new IOException("Could not rename " + target.getAbsolutePath());
+        }
+        if (!stagingDir.renameTo(target)) {
+            if (oldDir.exists()) {
+                oldDir.renameTo(target);
+            }
+            throw new IOException("Could not rename " + stagingDir.getAbsolutePath());
+        }
+        FileUtils.deleteDirectory(oldDir);
+        return true;
+    }
+
+    /**
+     * Removes the oldest snapshots of a name beyond the retention count and
+     * the objects no snapshot refers to anymore.
+     */
+    private void prune(String name) throws IOException {
+        List<String> ids = listSnapshots(name);
+        if (ids.size() <= retention) {
+            return;
+        }
+        for (String id : ids.subList(retention, ids.size())) {
+            new File(getSnapshotDir(name), id + MANIFEST_SUFFIX).delete();
+        }
+
+        Set<String> referenced = new HashSet<String>();
+        File[] names = new File(root, SNAPSHOTS_DIR).listFiles();
+        if (names != null) {
+            for (File snapshotDir : names) {
+                File[] manifests = snapshotDir.listFiles();
+                if (manifests == null) {
+                    continue;
+                }
+                for (File manifestFile : manifests) {
+                    if (manifestFile.getName().endsWith(MANIFEST_SUFFIX)) {
+                        Properties manifest = ControlPanelPortletUtil.loadProperties(manifestFile);
+                        for (String path : manifest.stringPropertyNames()) {
+                            referenced.add(manifest.getProperty(path));
+                        }
+                    }
+                }
+            }
+        }
+
+        File[] objectDirs = new File(root, OBJECTS_DIR).listFiles();
+        if (objectDirs != null) {
+            for (File objectDir : objectDirs) {
+                File[] objects = objectDir.listFiles();
+                if (objects == null) {
+                    continue;
+                }
+                for (File object : Arrays.asList(objects)) {
+                    if (!referenced.contains(object.getName())) {
+                        FileUtils.deleteQuietly(object);
+                    }
+                }
+            }
+        }
+    }
+
+    private FileLock lock() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create dir: " + root.getAbsolutePath());
+        }
+        FileChannel channel = new RandomAccessFile(new File(root, LOCK_FILE), "rw").getChannel();
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            ControlPanelPortletUtil.close(channel);
+            throw e;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.warn(e);
+        } finally {
+            ControlPanelPortletUtil.close(lock.channel());
+        }
+    }
+
+    private File getSnapshotDir(String name) {
+        return new File(new File(root, SNAPSHOTS_DIR), name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    private File getObjectFile(String hash) {
+        return new File(new File(root, OBJECTS_DIR), hash.substring(0, 2) + File.separator + hash);
+    }
+
+    private static void linkOrCopy(File object, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create dir: " + parent.getAbsolutePath());
+        }
+        if (createLinkMethod != null) {
+            try {
+                createLinkMethod.invoke(null, toPathMethod.invoke(target), toPathMethod.invoke(object));
+                return;
+            } catch (Exception e) {
+                log.debug("Could not link " + target + ", copying it", e);
+            }
+        }
+        FileUtils.copyFile(object, target);
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        if (!source.renameTo(target)) {
+            // Windows does not rename over an existing file
+            if (!target.delete() || !source.renameTo(target)) {
+                throw new IOException("Could not replace " + target.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * A compiled widgetset kept ready to be deployed, with the input key, the
+ * settings it was compiled with and its {@link CompileReport}.
+ *
+ * A compilation whose inputs have the key of the staged build deploys the
+ * staged build instead of compiling. Unlike the entries of the
+ * {@link WidgetsetArtifactStore}, a staged build is kept until a build of
+ * the widgetset is deployed or it is replaced.
+ */
+public class StagedWidgetset {
+
+    private static final String BUILD_FILE = "build.properties";
+    private static final String SETTINGS_FILE = "settings.properties";
+    private static final String REPORT_FILE = "report.properties";
+    private static final String WIDGETSET_DIR = "widgetset";
+    private static final String KEY_PROPERTY = "key";
+    private static final String TIME_PROPERTY = "time";
+
+    private final String key;
+    private final long time;
+    private final CompileSettings settings;
+
+    private StagedWidgetset(String key, long time, CompileSettings settings) {
+        this.key = key;
+        this.time = time;
+        this.settings = settings;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return when the build was staged
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the settings to compile the staged build again, which finds it
+     * by its key
+     */
+    public CompileSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Stages a compiled widgetset, replacing the previously staged build.
+     *
+     * @param report the report of the build, or null if there is none
+     */
+    public static synchronized void stage(String widgetset, String key, File compiledWidgetset,
+                                          CompileSettings settings, CompileReport report) throws IOException {
+        File dir = getDir(widgetset);
+        File tmpDir = new File(dir.getParentFile(), dir.getName() + ".tmp");
+        FileUtils.deleteDirectory(tmpDir);
+        FileUtils.copyDirectory(compiledWidgetset, new File(tmpDir, WIDGETSET_DIR));
+        settings.store(new File(tmpDir, SETTINGS_FILE));
+        if (report != null) {
+            report.store(new File(tmpDir, REPORT_FILE));
+        }
+        Properties properties = new Properties();
+        properties.setProperty(KEY_PROPERTY, key);
+        properties.setProperty(TIME_PROPERTY, Long.toString(System.currentTimeMillis()));
+        ControlPanelPortletUtil.storeProperties(properties, new File(tmpDir, BUILD_FILE), "Staged widgetset build");
+
+        FileUtils.deleteDirectory(dir);
+        if (!tmpDir.renameTo(dir)) {
+            throw new IOException("Could not move " + tmpDir + " to " + dir);
+        }
+    }
+
+    /**
+     * @return the staged build of a widgetset, or null if there is none
+     */
+    public static synchronized StagedWidgetset load(String widgetset) throws IOException {
+        File dir = getDir(widgetset);
+        File buildFile = new File(dir, BUILD_FILE);
+        if (!buildFile.exists()) {
+            return null;
+        }
+        Properties properties = ControlPanelPortletUtil.loadProperties(buildFile);
+        CompileSettings settings = CompileSettings.load(new File(dir, SETTINGS_FILE));
+        String key = properties.getProperty(KEY_PROPERTY);
+        if (key == null || settings == null) {
+            return null;
+        }
+        try {
+            return new StagedWidgetset(key, Long.parseLong(properties.getProperty(TIME_PROPERTY, "0")), settings);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid staged build " + buildFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the staged build of a widgetset to the destination if it was
+     * compiled from inputs with the given key.
+     *
+     * @return false if no build with the key is staged
+     */
+    public static synchronized boolean copyTo(String widgetset, String key, File destDir) throws IOException {
+        StagedWidgetset staged = load(widgetset);
+        if (staged == null || !staged.key.equals(key)) {
+            return false;
+        }
+        FileUtils.copyDirectory(new File(getDir(widgetset), WIDGETSET_DIR), destDir);
+        return true;
+    }
+
+    /**
+     * @return the report of the staged build of a widgetset, or null if there
+     * is none
+     */
+    public static synchronized CompileReport loadReport(String widgetset) throws IOException {
+        return CompileReport.load(new File(getDir(widgetset), REPORT_FILE));
+    }
+
+    public static synchronized void clear(String widgetset) {
+        FileUtils.deleteQuietly(getDir(widgetset));
+    }
+
+    private static File getDir(String widgetset) {
+        return new File(ControlPanelPortletUtil.getPluginDataDir(), "staged" + File.separator + widgetset);
+    }
+}
@@ -0,0 +1,140 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * CPU and memory limits of the host, taking Linux cgroup (v1 and v2) limits
+ * into account so that containers are not mistaken for the whole machine.
+ */
+public class SystemResources {
+
+    private static final long UNLIMITED = -1;
+
+    // Values at or above this are how cgroup v1 reports "no limit"
+    private static final long CGROUP_V1_NO_LIMIT = Long.MAX_VALUE / 2;
+
+    private final File cgroupRoot;
+
+    public SystemResources() {
+        this(new File("/sys/fs/cgroup"));
+    }
+
+    SystemResources(File cgroupRoot) {
+        this.cgroupRoot = cgroupRoot;
+    }
+
+    /**
+     * @return number of processors this process may use
+     */
+    public int getAvailableProcessors() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        long quota = UNLIMITED;
+        long period = UNLIMITED;
+
+        String cpuMax = read("cpu.max");
+        if (cpuMax != null) {
+            // cgroup v2: "<quota> <period>" or "max <period>"
+            String[] parts = cpuMax.split("\\s+");
+            if (parts.length == 2 && !"max".equals(parts[0])) {
+                quota = parseLong(parts[0]);
+                period = parseLong(parts[1]);
+            }
+        } else {
+            quota = parseLong(read("cpu/cpu.cfs_quota_us"));
+            period = parseLong(read("cpu/cpu.cfs_period_us"));
+        }
+
+        if (quota > 0 && period > 0) {
+            int limit = (int) Math.max(1, (quota + period - 1) / period);
+            processors = Math.min(processors, limit);
+        }
+        return processors;
+    }
+
+    /**
+     * @return memory in bytes available to this process or its container, or
+     * -1 if it could not be determined
+     */
+    public long getMemoryLimit() {
+        long limit = UNLIMITED;
+
+        String memoryMax = read("memory.max");
+        if (memoryMax != null) {
+            if (!"max".equals(memoryMax)) {
+                limit = parseLong(memoryMax);
+            }
+        } else {
+            long v1Limit = parseLong(read("memory/memory.limit_in_bytes"));
+            if (v1Limit > 0 && v1Limit < CGROUP_V1_NO_LIMIT) {
+                limit = v1Limit;
+            }
+        }
+
+        long physical = getPhysicalMemory();
+        if (limit <= 0) {
+            return physical;
+        }
+        return physical > 0 ? Math.min(limit, physical) : limit;
+    }
+
+    private static long getPhysicalMemory() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            // Only available on Sun/Oracle compatible JVMs
+            Method method = bean.getClass().getMethod("getTotalPhysicalMemorySize");
+            method.setAccessible(true);
+            return ((Number) method.invoke(bean)).longValue();
+        } catch (Exception e) {
+            return UNLIMITED;
+        }
+    }
+
+    private String read(String path) {
+        File file = new File(cgroupRoot, path);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return FileUtils.readFileToString(file).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return UNLIMITED;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return UNLIMITED;
+        }
+    }
+}
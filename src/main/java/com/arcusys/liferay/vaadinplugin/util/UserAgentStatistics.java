@@ -0,0 +1,180 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Counts requests per GWT user.agent value in a log of user agent strings,
+ * either one user agent per line or web server access log lines, and
+ * suggests the browsers to compile for.
+ *
+ * Only the user.agent values of the GWT version compiled with are counted;
+ * without ie10, GWT serves Internet Explorer 10 the ie9 permutation.
+ */
+public class UserAgentStatistics {
+
+    public static final String LOG_FILE_PROPERTY = "vaadin.control.panel.widgetset.user.agent.log";
+    public static final String COVERAGE_PROPERTY = "vaadin.control.panel.widgetset.user.agent.coverage";
+
+    private final List<String> userAgents;
+    private final Map<String, Long> counts = new HashMap<String, Long>();
+    private long total;
+
+    /**
+     * @param userAgents the user.agent values supported by the GWT version
+     */
+    public UserAgentStatistics(List<String> userAgents) {
+        this.userAgents = userAgents;
+    }
+
+    public static UserAgentStatistics read(File logFile, List<String> userAgents) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(logFile), "UTF-8");
+        try {
+            return read(reader, userAgents);
+        } finally {
+            ControlPanelPortletUtil.close(reader);
+        }
+    }
+
+    public static UserAgentStatistics read(Reader reader, List<String> userAgents) throws IOException {
+        UserAgentStatistics statistics = new UserAgentStatistics(userAgents);
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            statistics.add(line);
+        }
+        return statistics;
+    }
+
+    public void add(String userAgent) {
+        String value = getGwtUserAgent(userAgent);
+        if ("ie10".equals(value) && !userAgents.contains(value)) {
+            value = "ie9";
+        }
+        if (value != null && userAgents.contains(value)) {
+            Long count = counts.get(value);
+            counts.put(value, count == null ? 1 : count + 1);
+            total++;
+        }
+    }
+
+    /**
+     * @return number of recognized requests
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public long getCount(String gwtUserAgent) {
+        Long count = counts.get(gwtUserAgent);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the smallest set of user.agent values which covers at least the
+     * given share of the requests.
+     *
+     * @param coverage share of requests to cover, between 0 and 1
+     */
+    public Set<String> suggest(double coverage) {
+        List<String> values = new ArrayList<String>(counts.keySet());
+        Collections.sort(values, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return counts.get(o2).compareTo(counts.get(o1));
+            }
+        });
+
+        Set<String> suggestion = new TreeSet<String>();
+        long covered = 0;
+        for (String value : values) {
+            if (total > 0 && covered >= coverage * total) {
+                break;
+            }
+            suggestion.add(value);
+            covered += counts.get(value);
+        }
+        return suggestion;
+    }
+
+    /**
+     * Maps a user agent string to the user.agent value GWT selects for it,
+     * following the rules of GWT's user agent property provider.
+     *
+     * @return the value or null if the line is not a recognized browser
+     */
+    static String getGwtUserAgent(String userAgent) {
+        String ua = userAgent.toLowerCase();
+        if (ua.contains("opera") || ua.contains("opr/")) {
+            return ua.contains("webkit") ? "safari" : "opera";
+        }
+        if (ua.contains("webkit")) {
+            return "safari";
+        }
+        if (ua.contains("msie")) {
+            int index = ua.indexOf("msie") + 4;
+            int version = parseVersion(ua, index);
+            if (version >= 10) {
+                return "ie10";
+            }
+            if (version == 9) {
+                return "ie9";
+            }
+            if (version >= 6) {
+                return "ie8";
+            }
+            return null;
+        }
+        if (ua.contains("gecko")) {
+            // Includes IE 11, which GWT treats as gecko1_8
+            return "gecko1_8";
+        }
+        return null;
+    }
+
+    private static int parseVersion(String ua, int index) {
+        int start = index;
+        while (start < ua.length() && ua.charAt(start) == ' ') {
+            start++;
+        }
+        int end = start;
+        while (end < ua.length() && Character.isDigit(ua.charAt(end))) {
+            end++;
+        }
+        if (end == start) {
+            return -1;
+        }
+        return Integer.parseInt(ua.substring(start, end));
+    }
+}
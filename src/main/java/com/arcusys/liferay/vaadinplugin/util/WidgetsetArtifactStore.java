@@ -0,0 +1,242 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Content addressed store of compiled widgetsets.
+ *
+ * Entries are keyed by a hash of all compilation inputs, so a compilation
+ * whose inputs match an earlier one can be replaced by copying the stored
+ * output. Jars are represented by their {@link ClientFingerprint}, so
+ * server side changes to add-ons do not change the key. The store may be shared by several portal instances on the same
+ * host: entries are published by renaming a fully written directory and all
+ * access is coordinated through a lock file in the store root.
+ *
+ * The {@link CompileReport} of an entry is kept next to it, so that a
+ * widgetset deployed from the store gets the report of its build.
+ */
+public class WidgetsetArtifactStore {
+    private static final Log log = LogFactoryUtil.getLog(WidgetsetArtifactStore.class);
+
+    public static final String STORE_DIR_PROPERTY = "vaadin.control.panel.widgetset.cache.dir";
+    public static final String MAX_ENTRIES_PROPERTY = "vaadin.control.panel.widgetset.cache.max.entries";
+    private static final int DEFAULT_MAX_ENTRIES = 10;
+
+    private static final String LOCK_FILE = "store.lock";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String REPORT_SUFFIX = ".report.properties";
+
+    // File locks are held per JVM, threads of this JVM are serialized here
+    private static final Object jvmLock = new Object();
+
+    private final File storeRoot;
+    private final int maxEntries;
+
+    public WidgetsetArtifactStore(File storeRoot, int maxEntries) {
+        this.storeRoot = storeRoot;
+        this.maxEntries = maxEntries;
+    }
+
+    public static WidgetsetArtifactStore getDefault() {
+        String defaultDir = FileUtils.getTempDirectoryPath() + File.separator + "vaadin-widgetset-cache";
+        return new WidgetsetArtifactStore(
+                new File(ControlPanelPortletUtil.getProperty(STORE_DIR_PROPERTY, defaultDir)),
+                ControlPanelPortletUtil.getIntegerProperty(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Computes the store key for a compilation.
+     *
+     * @param vaadinVersion  the Vaadin version the widgetset is compiled with
+     * @param widgetset      name of the compiled widgetset
+     * @param moduleFile     the generated .gwt.xml file
+     * @param classpath      compilation classpath; directories are ignored,
+     *                       jars are represented by their client entries
+     * @param compilerFlags  GWT compiler flags
+     */
+    public static String computeKey(String vaadinVersion, String widgetset, File moduleFile,
+                                    List<File> classpath, List<String> compilerFlags) throws IOException {
+        List<String> jarHashes = new ArrayList<String>();
+        for (File entry : classpath) {
+            if (entry.isFile()) {
+                jarHashes.add(entry.getName() + "=" + ClientFingerprint.of(entry));
+            }
+        }
+        Collections.sort(jarHashes);
+
+        StringBuilder inputs = new StringBuilder();
+        inputs.append(vaadinVersion).append('\n');
+        inputs.append(widgetset).append('\n');
+        inputs.append(FileUtils.readFileToString(moduleFile, "UTF-8")).append('\n');
+        inputs.append(jarHashes).append('\n');
+        inputs.append(compilerFlags);
+        return FileDigestUtil.sha1(inputs.toString());
+    }
+
+    /**
+     * Copies the stored widgetset with the given key to the destination.
+     *
+     * @return false if the store has no entry for the key
+     */
+    public boolean copyTo(String key, File destDir) throws IOException {
+        File entry = new File(storeRoot, key);
+        if (!entry.isDirectory()) {
+            return false;
+        }
+
+        synchronized (jvmLock) {
+            FileLock lock = lock(true);
+            try {
+                if (!entry.isDirectory()) {
+                    return false;
+                }
+                FileUtils.copyDirectory(entry, destDir);
+                entry.setLastModified(System.currentTimeMillis());
+                return true;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * @return the report of the stored widgetset with the given key, or null
+     * if it was stored without one
+     */
+    public CompileReport loadReport(String key) throws IOException {
+        return CompileReport.load(getReportFile(key));
+    }
+
+    /**
+     * Adds a compiled widgetset to the store. If another instance stored the
+     * same key meanwhile, its entry is kept.
+     *
+     * @param report the report of the build, or null if there is none
+     */
+    public void store(String key, File compiledWidgetset, CompileReport report) throws IOException {
+        ensureStoreRoot();
+        File tmpEntry = new File(storeRoot, key + "." + UUID.randomUUID() + TMP_SUFFIX);
+        FileUtils.copyDirectory(compiledWidgetset, tmpEntry);
+        File tmpReport = null;
+        if (report != null) {
+            tmpReport = new File(storeRoot, tmpEntry.getName() + REPORT_SUFFIX);
+            report.store(tmpReport);
+        }
+
+        synchronized (jvmLock) {
+            FileLock lock = lock(false);
+            try {
+                File entry = new File(storeRoot, key);
+                if (entry.exists() || !tmpEntry.renameTo(entry)) {
+                    FileUtils.deleteDirectory(tmpEntry);
+                }
+                File reportFile = getReportFile(key);
+                if (tmpReport != null && entry.isDirectory() && !reportFile.exists()) {
+                    tmpReport.renameTo(reportFile);
+                }
+                collectGarbage();
+            } finally {
+                release(lock);
+                if (tmpReport != null) {
+                    FileUtils.deleteQuietly(tmpReport);
+                }
+            }
+        }
+    }
+
+    private File getReportFile(String key) {
+        return new File(storeRoot, key + REPORT_SUFFIX);
+    }
+
+    private void collectGarbage() {
+        File[] files = storeRoot.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> entries = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory() && !file.getName().endsWith(TMP_SUFFIX)) {
+                entries.add(file);
+            }
+        }
+
+        File[] sorted = entries.toArray(new File[entries.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return Long.valueOf(o1.lastModified()).compareTo(o2.lastModified());
+            }
+        });
+
+        for (int i = 0; i < sorted.length - maxEntries; i++) {
+            try {
+                FileUtils.deleteDirectory(sorted[i]);
+                FileUtils.deleteQuietly(getReportFile(sorted[i].getName()));
+                log.info("Removed cached widgetset " + sorted[i].getName());
+            } catch (IOException e) {
+                log.warn("Could not remove cached widgetset " + sorted[i].getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private void ensureStoreRoot() throws IOException {
+        if (!storeRoot.isDirectory() && !storeRoot.mkdirs()) {
+            throw new IOException("Could not create dir: " + storeRoot.getAbsolutePath());
+        }
+    }
+
+    private FileLock lock(boolean shared) throws IOException {
+        ensureStoreRoot();
+        FileChannel channel = new RandomAccessFile(new File(storeRoot, LOCK_FILE), "rw").getChannel();
+        try {
+            return channel.lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException e) {
+            ControlPanelPortletUtil.close(channel);
+            throw e;
+        }
+    }
+
+    private void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.warn(e);
+        } finally {
+            ControlPanelPortletUtil.close(lock.channel());
+        }
+    }
+}
@@ -29,14 +29,23 @@ import org.apache.commons.io.FileUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 public class WidgetsetCompilationHandler implements Runnable {
     private static final Log log = LogFactoryUtil.getLog(WidgetsetCompilationHandler.class);
 
-    private WidgetsetCompiler compiler;
+    private volatile WidgetsetCompiler compiler;
 
     private final String widgetset;
     private final List<VaadinAddonInfo> includeAddons;
@@ -44,6 +53,23 @@ public class WidgetsetCompilationHandler implements Runnable {
 
     private ILog outputLog;
 
+    private CompileProfile compileProfile = CompileProfile.getDefault();
+
+    private ModuleOptions moduleOptions = new ModuleOptions();
+
+    private boolean stageOnly;
+
+    private final CompileProgress progress = new CompileProgress();
+
+    private volatile boolean successful;
+    private volatile boolean terminated;
+
+    private static final int MAX_STAGED_WORK_DIRS = 3;
+
+    public static final String BUDGET_SIZE_PROPERTY = "vaadin.control.panel.compile.report.budget.size";
+    public static final String BUDGET_GROWTH_PROPERTY = "vaadin.control.panel.compile.report.budget.growth";
+    public static final String BUDGET_ACTION_PROPERTY = "vaadin.control.panel.compile.report.budget.action";
+
     public WidgetsetCompilationHandler(String widgetset, List<VaadinAddonInfo> includeAddons, List<File> additionalDependencies, ILog outputLog) {
         this.widgetset = widgetset;
         this.includeAddons = includeAddons;
@@ -51,36 +77,159 @@ public class WidgetsetCompilationHandler implements Runnable {
         this.outputLog = outputLog;
     }
 
+    public void setCompileProfile(CompileProfile compileProfile) {
+        this.compileProfile = compileProfile;
+    }
+
+    public void setModuleOptions(ModuleOptions moduleOptions) {
+        this.moduleOptions = moduleOptions;
+    }
+
+    /**
+     * @param stageOnly true to stage the compiled widgetset as a
+     *                  {@link StagedWidgetset} instead of deploying it
+     */
+    public void setStageOnly(boolean stageOnly) {
+        this.stageOnly = stageOnly;
+    }
+
     public void run() {
+        long startTime = System.currentTimeMillis();
+        CompileRecord.Result result = CompileRecord.Result.FAILED;
+        long outputBytes = 0;
         File tmpDir = null;
         try {
             tmpDir = WidgetsetUtil.createTempDir();
 
-            WidgetsetUtil.createWidgetset(tmpDir, widgetset, getIncludeWidgetsets());
+            File moduleFile = WidgetsetUtil.createWidgetset(tmpDir, widgetset, getIncludeWidgetsets(),
+                    moduleOptions);
+            outputLog.log("Module options: " + moduleOptions);
+            if (isCancelled()) {
+                return;
+            }
 
-            compiler = new WidgetsetCompiler(outputLog, widgetset, tmpDir.getAbsolutePath(), getClasspathEntries(tmpDir));
+            List<File> classpathEntries = getClasspathEntries(tmpDir);
+            if (ClasspathMinimizer.isEnabled()) {
+                classpathEntries = minimizeClasspath(classpathEntries);
+            }
+            if (isCancelled()) {
+                return;
+            }
+            compiler = new WidgetsetCompiler(outputLog, widgetset, tmpDir.getAbsolutePath(), classpathEntries);
+            compiler.setProfile(compileProfile);
+            compiler.setProgress(progress);
+            compiler.setVaadinVersion(ControlPanelPortletUtil.getPortalVaadinVersion());
+            compiler.setToolClasspath(VaadinVersion.getVaadinVersion(ControlPanelPortletUtil.getPortalVaadinVersion())
+                    .getVaadinFileInfoForCompilation());
 
-            try {
-                compiler.compileWidgetset();
-            } catch (InterruptedException e1) {
-                Thread.currentThread().interrupt();
+            WidgetsetArtifactStore artifactStore = WidgetsetArtifactStore.getDefault();
+            String artifactKey = WidgetsetArtifactStore.computeKey(
+                    ControlPanelPortletUtil.getPortalVaadinVersion().toString(), widgetset, moduleFile,
+                    classpathEntries, compiler.getCompilerFlags());
+
+            if (isDeployedBuild(artifactKey)) {
+                outputLog.log("The deployed widgetset was built from the same client code (" + artifactKey
+                        + "), skipping compilation");
+                progress.finish();
+                successful = true;
+                result = CompileRecord.Result.UP_TO_DATE;
+                return;
             }
 
+            if (stageOnly && isStagedBuild(artifactKey)) {
+                outputLog.log("A build from the same inputs (" + artifactKey + ") is already staged");
+                progress.finish();
+                successful = true;
+                result = CompileRecord.Result.UP_TO_DATE;
+                return;
+            }
+
+            if (isCancelled()) {
+                return;
+            }
             File compiledWidgetset = new File(tmpDir, widgetset);
-            if (compiledWidgetset.exists() && compiledWidgetset.isDirectory()) {
-                String ws = ControlPanelPortletUtil.getWidgetsetDir() + widgetset;
-                WidgetsetUtil.rotateWidgetsetBackups(ws);
-                WidgetsetUtil.backupOldWidgetset(ws);
-                File destDir = new File(ws);
+            if (!stageOnly && StagedWidgetset.copyTo(widgetset, artifactKey, compiledWidgetset)) {
+                outputLog.log("Widgetset with identical inputs was precompiled (" + artifactKey + "), skipping compilation");
+                deployWidgetset(compiledWidgetset, artifactKey, StagedWidgetset.loadReport(widgetset));
+                progress.finish();
+                successful = true;
+                result = CompileRecord.Result.CACHED;
+                outputBytes = FileUtils.sizeOfDirectory(compiledWidgetset);
+                return;
+            }
+            if (artifactStore.copyTo(artifactKey, compiledWidgetset)) {
+                outputLog.log("Widgetset with identical inputs found in cache (" + artifactKey + "), skipping compilation");
+                if (isCancelled()) {
+                    return;
+                }
+                CompileReport report = artifactStore.loadReport(artifactKey);
+                if (stageOnly) {
+                    stageWidgetset(compiledWidgetset, artifactKey, report);
+                    result = CompileRecord.Result.STAGED;
+                } else {
+                    deployWidgetset(compiledWidgetset, artifactKey, report);
+                    result = CompileRecord.Result.CACHED;
+                }
+                progress.finish();
+                successful = true;
+                outputBytes = FileUtils.sizeOfDirectory(compiledWidgetset);
+                return;
+            }
 
-                outputLog.log("Copying widgetset from " + compiledWidgetset + " to " + destDir);
+            if (CompilePreflight.isEnabled() && !preflight(classpathEntries) || isCancelled()) {
+                return;
+            }
 
-                System.out.println("Copying widgetset from " + compiledWidgetset + " to " + destDir);
+            compiler.setUnitCacheDir(prepareUnitCache());
+            File reportDir = null;
+            if (CompileReport.isEnabled()) {
+                reportDir = new File(tmpDir, "extras");
+                compiler.setReportDir(reportDir);
+            }
+            File stagedWorkDir = null;
+            if (WidgetsetCompiler.isStagedCompilationEnabled()) {
+                stagedWorkDir = prepareStagedWorkDir(artifactKey);
+                compiler.setStagedWorkDir(stagedWorkDir);
+            }
+            // A later terminate() reaches the compiler, which is set by now
+            if (isCancelled()) {
+                return;
+            }
 
-                FileUtils.copyDirectory(compiledWidgetset, destDir);
+            try {
+                compiler.compileWidgetset();
+            } catch (InterruptedException e1) {
+                Thread.currentThread().interrupt();
+            }
 
-                outputLog.log("Copying done");
-                System.out.println("Copying done");
+            // Output of a failed compilation may be incomplete, so only a
+            // successful one replaces the live widgetset
+            if (compiledWidgetset.exists() && compiledWidgetset.isDirectory() && compiler.isSuccessful()) {
+                CompileReport report = reportDir != null ? readCompileReport(reportDir) : null;
+                if (report != null && !checkSizeBudget(report)) {
+                    return;
+                }
+                try {
+                    artifactStore.store(artifactKey, compiledWidgetset, report);
+                } catch (IOException e) {
+                    log.warn("Could not store compiled widgetset in cache.", e);
+                }
+                if (stagedWorkDir != null) {
+                    FileUtils.deleteQuietly(stagedWorkDir);
+                }
+                outputBytes = FileUtils.sizeOfDirectory(compiledWidgetset);
+                if (isCancelled()) {
+                    return;
+                }
+                if (stageOnly) {
+                    stageWidgetset(compiledWidgetset, artifactKey, report);
+                    successful = true;
+                    result = CompileRecord.Result.STAGED;
+                    return;
+                }
+                deployWidgetset(compiledWidgetset, artifactKey, report);
+                successful = true;
+                result = CompileRecord.Result.SUCCESSFUL;
             }
 
         } catch (IOException e) {
@@ -96,10 +245,148 @@ public class WidgetsetCompilationHandler implements Runnable {
                 System.out.println("Could not delete temporary directory: " + tmpDir + "  " + e);
             }
 
+            // Cancelled too late to stop the deployment
+            recordHistory(startTime, terminated && !successful ? CompileRecord.Result.CANCELLED : result,
+                    outputBytes);
+
             compilationFinished();
         }
     }
 
+    /**
+     * Checked between the steps preparing the compilation, so that a
+     * cancellation before the compiler runs stops the job as well.
+     */
+    private boolean isCancelled() {
+        if (terminated) {
+            outputLog.log("Compilation cancelled");
+        }
+        return terminated;
+    }
+
+    private void recordHistory(long startTime, CompileRecord.Result result, long outputBytes) {
+        Map<CompileProgress.Phase, Long> phaseMillis =
+                new EnumMap<CompileProgress.Phase, Long>(CompileProgress.Phase.class);
+        StringBuilder timing = new StringBuilder();
+        for (CompileProgress.Phase phase : CompileProgress.Phase.values()) {
+            long millis = progress.getPhaseMillis(phase);
+            phaseMillis.put(phase, millis);
+            timing.append(", ").append(phase).append(' ').append(formatSeconds(millis));
+        }
+        long wallMillis = System.currentTimeMillis() - startTime;
+        outputLog.log("Compilation took " + formatSeconds(wallMillis) + timing + ", output " + outputBytes / 1024 + " KB");
+
+        List<String> addons = new ArrayList<String>();
+        for (VaadinAddonInfo addon : includeAddons) {
+            addons.add(addon.getName() + " " + addon.getVersion());
+        }
+        for (File dependency : additionalDependencies) {
+            addons.add(dependency.getName());
+        }
+        Collections.sort(addons);
+
+        CompileRecord record = new CompileRecord(startTime, widgetset, compileProfile.toString(), result, wallMillis,
+                phaseMillis, progress.getPermutationCount(), outputBytes, addons,
+                compileProfile.getCompilerFlags(ControlPanelPortletUtil.getPortalVaadinVersion()));
+        try {
+            CompileHistory.getDefault().add(record);
+        } catch (IOException e) {
+            log.warn("Could not store compile history.", e);
+        }
+    }
+
+    private static String formatSeconds(long millis) {
+        return String.format("%.1f s", millis / 1000.0);
+    }
+
+    /**
+     * @return estimated share of the compilation done, between 0 and 1
+     */
+    public float getProgress() {
+        return progress.getProgress();
+    }
+
+    /**
+     * @return true if the live widgetset was deployed from a build with the
+     * given input key
+     */
+    private boolean isDeployedBuild(String artifactKey) {
+        if (!new File(ControlPanelPortletUtil.getWidgetsetDir() + widgetset).isDirectory()) {
+            return false;
+        }
+        try {
+            return artifactKey.equals(ClientFingerprint.getDeployedKey(widgetset));
+        } catch (IOException e) {
+            log.warn("Could not read client fingerprints of the deployed widgetset.", e);
+            return false;
+        }
+    }
+
+    private boolean isStagedBuild(String artifactKey) {
+        try {
+            StagedWidgetset staged = StagedWidgetset.load(widgetset);
+            return staged != null && artifactKey.equals(staged.getKey());
+        } catch (IOException e) {
+            log.warn("Could not read the staged build.", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param report the report of the build, or null if there is none
+     */
+    private void deployWidgetset(File compiledWidgetset, String artifactKey, CompileReport report)
+            throws IOException {
+        String ws = ControlPanelPortletUtil.getWidgetsetDir() + widgetset;
+
+        outputLog.log("Deploying widgetset from " + compiledWidgetset + " to " + ws);
+        log.info("Deploying widgetset from " + compiledWidgetset + " to " + ws);
+
+        if (PrecompressedResources.isEnabled()) {
+            // Compressed before the swap, so the variants move with their files
+            int compressed = PrecompressedResources.update(compiledWidgetset);
+            outputLog.log("Compressed " + compressed + " resources");
+        }
+        WidgetsetUtil.deployWidgetset(compiledWidgetset, ws, SnapshotStore.getDefault());
+        try {
+            ClientFingerprint.storeDeployed(widgetset, artifactKey, includeAddons);
+        } catch (IOException e) {
+            log.warn("Could not store client fingerprints of the deployed widgetset.", e);
+        }
+        try {
+            getSettings().store(CompileSettings.getDeployedFile(widgetset));
+        } catch (IOException e) {
+            log.warn("Could not store compile settings of the deployed widgetset.", e);
+        }
+        // Kept in step with the deployed build, so budgets compare with it
+        try {
+            if (report != null) {
+                report.store(CompileReport.getDeployedReportFile(widgetset));
+            } else {
+                CompileReport.clearDeployed(widgetset);
+            }
+        } catch (IOException e) {
+            log.warn("Could not store size report.", e);
+            CompileReport.clearDeployed(widgetset);
+        }
+        // A staged build was compiled for the previously deployed one
+        StagedWidgetset.clear(widgetset);
+
+        outputLog.log("Deploying done");
+        log.info("Deploying done");
+    }
+
+    private void stageWidgetset(File compiledWidgetset, String artifactKey, CompileReport report)
+            throws IOException {
+        outputLog.log("Staging widgetset from " + compiledWidgetset + ", ready to be deployed");
+        StagedWidgetset.stage(widgetset, artifactKey, compiledWidgetset, getSettings(), report);
+        outputLog.log("Staging done");
+    }
+
+    private CompileSettings getSettings() {
+        return new CompileSettings(widgetset, compileProfile, includeAddons, additionalDependencies, moduleOptions);
+    }
+
     private List<File> getClasspathEntries(File entry) {
         Version version = ControlPanelPortletUtil.getPortalVaadinVersion();
 
@@ -120,8 +407,211 @@ public class WidgetsetCompilationHandler implements Runnable {
         return classpathEntries;
     }
 
+    /**
+     * Leaves out the add-ons which provide no GWT module, client code or
+     * class the widgetset needs. Additional dependencies are always kept, as
+     * they are selected for the classes connectors and generators refer to.
+     */
+    private List<File> minimizeClasspath(List<File> classpathEntries) {
+        List<File> fixedEntries = new ArrayList<File>(VaadinVersion.getVaadinVersion(
+                ControlPanelPortletUtil.getPortalVaadinVersion()).getVaadinFileInfoForCompilation());
+        List<File> candidates = new ArrayList<File>();
+        for (File entry : classpathEntries) {
+            if (entry.isFile() && !fixedEntries.contains(entry) && !additionalDependencies.contains(entry)) {
+                candidates.add(entry);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        List<File> needed;
+        try {
+            needed = ClasspathMinimizer.minimize(fixedEntries, candidates, getIncludeWidgetsets());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return classpathEntries;
+        }
+        List<File> minimized = new ArrayList<File>();
+        for (File entry : classpathEntries) {
+            if (!candidates.contains(entry) || needed.contains(entry)) {
+                minimized.add(entry);
+            } else {
+                outputLog.log("Leaving " + entry.getName() + " out of the classpath, the widgetset does not use it");
+            }
+        }
+        outputLog.log("Classpath reduced from " + classpathEntries.size() + " to " + minimized.size()
+                + " entries in " + (System.currentTimeMillis() - start) + " ms");
+        return minimized;
+    }
+
+    /**
+     * @return false if the classpath has errors which would make the
+     * compilation fail
+     */
+    private boolean preflight(List<File> classpathEntries) {
+        Version version = ControlPanelPortletUtil.getPortalVaadinVersion();
+        List<File> vaadinEntries = new ArrayList<File>(
+                VaadinVersion.getVaadinVersion(version).getVaadinFileInfoForCompilation());
+        List<File> otherEntries = new ArrayList<File>(classpathEntries);
+        otherEntries.removeAll(vaadinEntries);
+
+        long start = System.currentTimeMillis();
+        CompilePreflight.Report report;
+        try {
+            report = new CompilePreflight(version).check(vaadinEntries, otherEntries, getIncludeWidgetsets());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        for (String warning : report.getWarnings()) {
+            outputLog.log("WARNING: " + warning);
+        }
+        for (String error : report.getErrors()) {
+            outputLog.log("ERROR: " + error);
+        }
+        outputLog.log("Classpath checked in " + (System.currentTimeMillis() - start) + " ms, "
+                + report.getErrors().size() + " errors, " + report.getWarnings().size() + " warnings");
+        return !report.hasErrors();
+    }
+
+    private CompileReport readCompileReport(File reportDir) {
+        File storiesFile = CompileReport.getStoriesFile(reportDir, widgetset);
+        if (!storiesFile.exists()) {
+            outputLog.log("WARNING: The compiler wrote no size report to " + storiesFile);
+            return null;
+        }
+        try {
+            CompileReport report = CompileReport.read(storiesFile, getPackageOwners());
+            outputLog.log("JavaScript size: initial download " + report.getInitialSize() / 1024 + " KB, "
+                    + "split points " + report.getDeferredSize() / 1024 + " KB");
+            for (String addon : CompileReport.sortBySize(report.getAddonSizes())) {
+                long[] sizes = report.getAddonSizes().get(addon);
+                outputLog.log("  " + addon + ": " + sizes[0] / 1024 + " KB initial, " + sizes[1] / 1024 + " KB deferred");
+            }
+            return report;
+        } catch (IOException e) {
+            log.warn("Could not read compile report " + storiesFile, e);
+            outputLog.log("WARNING: Could not read compile report: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Compares the size of the compiled widgetset with the budget and with
+     * the deployed build.
+     *
+     * @return false if a budget is exceeded and the widgetset must not be
+     * deployed
+     */
+    private boolean checkSizeBudget(CompileReport report) {
+        CompileReport deployed = null;
+        try {
+            deployed = CompileReport.load(CompileReport.getDeployedReportFile(widgetset));
+        } catch (IOException e) {
+            log.warn("Could not read size report of the deployed widgetset.", e);
+        }
+        List<String> exceeded = report.checkBudget(deployed,
+                ControlPanelPortletUtil.getLongProperty(BUDGET_SIZE_PROPERTY, 0),
+                ControlPanelPortletUtil.getIntegerProperty(BUDGET_GROWTH_PROPERTY, 0));
+        boolean fail = "fail".equalsIgnoreCase(ControlPanelPortletUtil.getProperty(BUDGET_ACTION_PROPERTY, "warn"));
+        for (String message : exceeded) {
+            outputLog.log((fail ? "ERROR: " : "WARNING: ") + message);
+        }
+        if (fail && !exceeded.isEmpty()) {
+            outputLog.log("ERROR: Size budget exceeded, the widgetset was not deployed.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return add-on names by the client packages of their jars
+     */
+    private Map<String, String> getPackageOwners() {
+        Map<String, String> owners = new HashMap<String, String>();
+        for (VaadinAddonInfo addon : includeAddons) {
+            addPackageOwners(addon.getJarFile(), addon.getName(), owners);
+        }
+        for (File dependency : additionalDependencies) {
+            if (dependency.isFile()) {
+                addPackageOwners(dependency, dependency.getName(), owners);
+            }
+        }
+        return owners;
+    }
+
+    private static void addPackageOwners(File jar, String owner, Map<String, String> owners) {
+        try {
+            JarFile jarFile = new JarFile(jar);
+            try {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    int end = name.lastIndexOf('/');
+                    if (end > 0 && CompilePreflight.isClientEntry(name)) {
+                        owners.put(name.substring(0, end).replace('/', '.'), owner);
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read " + jar, e);
+        }
+    }
+
+    private File prepareUnitCache() {
+        Version version = ControlPanelPortletUtil.getPortalVaadinVersion();
+        VaadinVersion currentVaadinVersion = VaadinVersion.getVaadinVersion(version);
+
+        List<File> addonJars = new ArrayList<File>();
+        for (VaadinAddonInfo addon : includeAddons) {
+            addonJars.add(addon.getJarFile());
+        }
+        addonJars.addAll(additionalDependencies);
+
+        try {
+            return GwtUnitCache.getDefault().prepare(version.toString(),
+                    currentVaadinVersion.getVaadinFileInfoForCompilation(), addonJars,
+                    compiler.getCompilerFlags(), outputLog);
+        } catch (IOException e) {
+            log.warn("Could not prepare GWT unit cache, compiling without it.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the work directory of a staged compilation. It is kept after a
+     * failed compilation so that a retry with the same inputs can continue
+     * from the completed stages; only the most recent ones are kept.
+     */
+    private File prepareStagedWorkDir(String artifactKey) {
+        File workRoot = new File(ControlPanelPortletUtil.getPluginDataDir(), "gwt-work");
+        File workDir = new File(workRoot, artifactKey);
+
+        File[] dirs = workRoot.listFiles();
+        if (dirs != null && dirs.length >= MAX_STAGED_WORK_DIRS) {
+            Arrays.sort(dirs, new Comparator<File>() {
+                public int compare(File o1, File o2) {
+                    return Long.valueOf(o2.lastModified()).compareTo(o1.lastModified());
+                }
+            });
+            for (int i = MAX_STAGED_WORK_DIRS - 1; i < dirs.length; i++) {
+                if (!dirs[i].equals(workDir)) {
+                    FileUtils.deleteQuietly(dirs[i]);
+                }
+            }
+        }
+
+        if (workDir.exists()) {
+            workDir.setLastModified(System.currentTimeMillis());
+            outputLog.log("Continuing staged compilation in " + workDir);
+        }
+        return workDir;
+    }
+
     private Set<String> getIncludeWidgetsets() {
-        Set<String> widgetsets = new HashSet<String>();
+        // Sorted, so that equal add-on selections generate identical modules
+        Set<String> widgetsets = new TreeSet<String>();
         if (includeAddons != null) {
             for (VaadinAddonInfo addon : includeAddons) {
                 widgetsets.addAll(addon.getWidgetsets());
@@ -131,8 +621,21 @@ public class WidgetsetCompilationHandler implements Runnable {
         return widgetsets;
     }
 
+    /**
+     * @return true if the widgetset was compiled, or taken from the cache,
+     * and deployed
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
     public void terminate() {
-        compiler.terminate();
+        terminated = true;
+        // Not set before the compilation inputs are prepared
+        WidgetsetCompiler activeCompiler = compiler;
+        if (activeCompiler != null) {
+            activeCompiler.terminate();
+        }
         compilationFinished();
     }
 
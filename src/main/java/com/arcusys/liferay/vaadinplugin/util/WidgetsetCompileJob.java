@@ -0,0 +1,107 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compiles and deploys, or only stages, a widgetset through the
+ * {@link CompileJobScheduler}.
+ */
+public class WidgetsetCompileJob extends CompileJob {
+
+    private final String widgetset;
+    private final WidgetsetCompilationHandler handler;
+    private final String description;
+
+    public WidgetsetCompileJob(String widgetset, List<VaadinAddonInfo> includeAddons,
+                               List<File> additionalDependencies, CompileProfile profile,
+                               ModuleOptions moduleOptions, Priority priority) {
+        this(widgetset, includeAddons, additionalDependencies, profile, moduleOptions, priority, false);
+    }
+
+    /**
+     * @param stageOnly true to stage the compiled widgetset instead of
+     *                  deploying it, see {@link StagedWidgetset}
+     */
+    public WidgetsetCompileJob(String widgetset, List<VaadinAddonInfo> includeAddons,
+                               List<File> additionalDependencies, CompileProfile profile,
+                               ModuleOptions moduleOptions, Priority priority, boolean stageOnly) {
+        super((stageOnly ? "stage|" : "") + createKey(widgetset, includeAddons, additionalDependencies, profile,
+                moduleOptions), priority);
+        this.widgetset = widgetset;
+        handler = new WidgetsetCompilationHandler(widgetset, includeAddons, additionalDependencies, this);
+        handler.setCompileProfile(profile);
+        handler.setModuleOptions(moduleOptions);
+        handler.setStageOnly(stageOnly);
+        description = (stageOnly ? "Precompile " : "Compile ") + widgetset + " (" + profile + ", "
+                + includeAddons.size() + " add-ons)";
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Jobs for the same widgetset with different add-ons deploy into the same
+     * directory, so they run one after another.
+     */
+    @Override
+    protected String getResource() {
+        return widgetset;
+    }
+
+    @Override
+    public float getProgress() {
+        return handler.getProgress();
+    }
+
+    @Override
+    protected void execute() {
+        handler.run();
+        setSuccessful(handler.isSuccessful());
+    }
+
+    @Override
+    protected void terminate() {
+        handler.terminate();
+    }
+
+    private static String createKey(String widgetset, List<VaadinAddonInfo> includeAddons,
+                                    List<File> additionalDependencies, CompileProfile profile,
+                                    ModuleOptions moduleOptions) {
+        Set<String> jars = new TreeSet<String>();
+        for (VaadinAddonInfo addon : includeAddons) {
+            jars.add(addon.getJarFile().getAbsolutePath());
+        }
+        Set<String> dependencies = new TreeSet<String>();
+        if (additionalDependencies != null) {
+            for (File dependency : additionalDependencies) {
+                dependencies.add(dependency.getAbsolutePath());
+            }
+        }
+        return widgetset + "|" + profile + "|" + moduleOptions + "|" + jars + "|" + dependencies;
+    }
+}
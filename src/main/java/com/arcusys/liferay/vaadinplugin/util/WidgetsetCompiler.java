@@ -21,23 +21,64 @@ package com.arcusys.liferay.vaadinplugin.util;
  * #L%
  */
 
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import org.apache.commons.io.FileUtils;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class WidgetsetCompiler {
+    private static final Log log = LogFactoryUtil.getLog(WidgetsetCompiler.class);
+
+    public static final String MAX_HEAP_PROPERTY = "vaadin.control.panel.compile.max.heap";
+    public static final String STAGED_PROPERTY = "vaadin.control.panel.compile.staged";
+
+    private static final String CHECKPOINT_FILE = "checkpoint.properties";
+    private static final String PRECOMPILED_KEY = "precompiled";
+    private static final String PERMUTATION_COUNT_KEY = "permutations";
+    private static final String COMPILED_PERMUTATIONS_KEY = "permutations.compiled";
+
+    private static final int DEFAULT_MAX_HEAP_MB = 2048;
+    private static final int BASE_HEAP_MB = 512;
+    private static final int HEAP_PER_WORKER_MB = 256;
+    // Kept free for the non-heap memory of the portal and compiler JVMs
+    private static final int RESERVED_MEMORY_MB = 256;
+    private static final long MB = 1024 * 1024;
 
     private String widgetset;
     private String outputDir;
     private List<File> classpathEntries;
 
+    private File unitCacheDir;
+    private CompileProfile profile = CompileProfile.PRODUCTION;
+    private Version vaadinVersion;
+    private final SystemResources systemResources = new SystemResources();
+
+    private List<File> toolClasspathEntries;
+
+    private File stagedWorkDir;
+    private File reportDir;
+    private CompileProgress progress = new CompileProgress();
+    private volatile PermutationWorkerPool permutationPool;
+
     private Process process;
-    private boolean controlledTermination;
+    private volatile CompilerDaemon daemon;
+    private volatile boolean controlledTermination;
+    private volatile boolean outOfMemory;
+    private boolean successful;
     private final ILog outputLog;
 
     public WidgetsetCompiler(ILog outputLog, String widgetset, String outputDir, List<File> classpathEntries)
@@ -48,134 +89,494 @@ public class WidgetsetCompiler {
         this.classpathEntries = classpathEntries;
     }
 
-    public void compileWidgetset() throws IOException, InterruptedException {
+    /**
+     * Sets the persistent GWT unit cache directory. If not set, GWT falls back
+     * to its default location next to the output directory.
+     */
+    public void setUnitCacheDir(File unitCacheDir) {
+        this.unitCacheDir = unitCacheDir;
+    }
+
+    /**
+     * Sets the jars of the GWT compiler itself. They are needed for running
+     * the compilation in the warm {@link CompilerDaemon}; without them a new
+     * compiler process is started for every compilation.
+     */
+    public void setToolClasspath(Collection<File> toolClasspathEntries) {
+        this.toolClasspathEntries = new ArrayList<File>(toolClasspathEntries);
+    }
+
+    /**
+     * Makes the compiler run GWT's Precompile, CompilePerms and Link stages
+     * separately instead of the monolithic compiler. Completed stages are
+     * recorded in the work directory, so a compilation with the same inputs
+     * and work directory continues after the last completed stage.
+     *
+     * @param stagedWorkDir work directory, unique for the compilation inputs
+     */
+    public void setStagedWorkDir(File stagedWorkDir) {
+        this.stagedWorkDir = stagedWorkDir;
+    }
+
+    /**
+     * Makes the compiler write the compile report, with the SOYC size maps
+     * read by {@link CompileReport}, under the given directory.
+     */
+    public void setReportDir(File reportDir) {
+        this.reportDir = reportDir;
+    }
+
+    /**
+     * Sets the progress updated from the compiler output.
+     */
+    public void setProgress(CompileProgress progress) {
+        this.progress = progress;
+    }
+
+    public static boolean isStagedCompilationEnabled() {
+        return ControlPanelPortletUtil.getBooleanProperty(STAGED_PROPERTY, false);
+    }
+
+    public void setProfile(CompileProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Sets the Vaadin version, used for enabling compiler features supported
+     * by the bundled GWT version only.
+     */
+    public void setVaadinVersion(Version vaadinVersion) {
+        this.vaadinVersion = vaadinVersion;
+    }
 
-        WidgetsetUtil.removeGwtUnitCachePath();
+    /**
+     * Compiles the widgetset, unless {@link #terminate()} was called before.
+     * A compiler is used for a single compilation.
+     */
+    public void compileWidgetset() throws IOException, InterruptedException {
+        successful = false;
+        if (controlledTermination) {
+            return;
+        }
 
         boolean someNotExists = false;
         StringBuilder nonExistedFiles = new StringBuilder("ERROR: Can't found files: ");
         for (File classpathEntry : classpathEntries) {
             if(!classpathEntry.exists()){
                 someNotExists = true;
-                nonExistedFiles.append(classpathEntry.getName()).append(" (").append(classpathEntry.getAbsolutePath()).append(")<br/>");
+                nonExistedFiles.append(classpathEntry.getName()).append(" (").append(classpathEntry.getAbsolutePath()).append(") ");
             }
         }
 
         if(someNotExists) {
             System.out.println(nonExistedFiles.toString());
             outputLog.log(nonExistedFiles.toString());
-            terminate();
+            // Nothing is started, the compiler would only fail later
+            return;
+        }
+
+        int maxHeap = getMaxHeapMegabytes();
+        int heap = getInitialHeapMegabytes(maxHeap);
+        int workers = getLocalWorkers(heap);
+        outputLog.log("Compiling with profile " + profile + ", heap " + heap + "M, " + workers + " local workers");
+
+        while (true) {
+            progress.reset();
+            if (stagedWorkDir != null) {
+                runStaged(heap, workers);
+            } else {
+                runCompiler(heap, workers);
+            }
+            if (successful || controlledTermination || !outOfMemory || heap >= maxHeap) {
+                break;
+            }
+            heap = Math.min(maxHeap, heap * 3 / 2);
+            outputLog.log("Compiler ran out of memory, retrying with heap " + heap + "M");
+        }
+
+        if (!successful && outputLog != null && !controlledTermination) {
+            outputLog.log("ERROR: Compilation ended due to an error.");
+        }
+    }
+
+    private void runCompiler(int heapMegabytes, int localWorkers) throws IOException, InterruptedException {
+        List<String> jvmArgs = getJvmArgs(heapMegabytes);
+        List<String> compilerArgs = getCompilerArgs(localWorkers);
+        outOfMemory = false;
+        progress.startPhase(CompileProgress.Phase.PRECOMPILE);
+
+        if (toolClasspathEntries != null && CompilerDaemon.isEnabled()) {
+            try {
+                daemon = CompilerDaemon.getInstance();
+                if (controlledTermination) {
+                    return;
+                }
+                int exitCode = daemon.compile(getJava(), jvmArgs, toolClasspathEntries, classpathEntries,
+                        compilerArgs, createMonitoredOutputLog());
+                successful = exitCode == 0 && !controlledTermination;
+                if (successful) {
+                    progress.finish();
+                }
+                return;
+            } catch (IOException e) {
+                if (controlledTermination) {
+                    return;
+                }
+                outputLog.log("Compiler daemon not available (" + e.getMessage() + "), starting a new compiler process");
+            } finally {
+                daemon = null;
+            }
+        }
+
+        int exitCode = runProcess("com.google.gwt.dev.Compiler", jvmArgs, compilerArgs);
+        successful = exitCode == 0 && !controlledTermination;
+        if (successful) {
+            progress.finish();
+        }
+    }
+
+    /**
+     * Runs the Precompile, CompilePerms and Link stages, skipping stages
+     * recorded as completed in the work directory.
+     */
+    private void runStaged(int heapMegabytes, int localWorkers) throws IOException, InterruptedException {
+        outOfMemory = false;
+        if (!stagedWorkDir.isDirectory() && !stagedWorkDir.mkdirs()) {
+            throw new IOException("Could not create dir: " + stagedWorkDir.getAbsolutePath());
+        }
+        File checkpointFile = new File(stagedWorkDir, CHECKPOINT_FILE);
+        Properties checkpoint = checkpointFile.exists()
+                ? ControlPanelPortletUtil.loadProperties(checkpointFile) : new Properties();
+        File compilerDir = new File(stagedWorkDir, widgetset + File.separator + "compiler");
+        progress.startPhase(CompileProgress.Phase.PRECOMPILE);
+
+        if (!Boolean.parseBoolean(checkpoint.getProperty(PRECOMPILED_KEY))
+                || !new File(compilerDir, "precompilation.ser").exists()) {
+            outputLog.log("Stage 1/3: precompiling " + widgetset);
+            List<String> args = new ArrayList<String>();
+            args.add("-workDir");
+            args.add(stagedWorkDir.getAbsolutePath());
+            args.addAll(getCompilerFlags());
+            if (reportDir != null) {
+                args.add("-compileReport");
+            }
+            args.add("-logLevel");
+            args.add(profile.getLogLevel());
+            args.add(widgetset);
+            if (runProcess("com.google.gwt.dev.Precompile", getJvmArgs(heapMegabytes), args) != 0
+                    || controlledTermination) {
+                return;
+            }
+
+            String permutationCount = FileUtils.readFileToString(new File(compilerDir, "permCount.txt")).trim();
+            checkpoint.setProperty(PRECOMPILED_KEY, "true");
+            checkpoint.setProperty(PERMUTATION_COUNT_KEY, permutationCount);
+            checkpoint.remove(COMPILED_PERMUTATIONS_KEY);
+            ControlPanelPortletUtil.storeProperties(checkpoint, checkpointFile, "Staged compilation of " + widgetset);
+        } else {
+            outputLog.log("Stage 1/3: reusing precompilation from " + stagedWorkDir);
+        }
+
+        int workers = getPermutationWorkers(heapMegabytes, localWorkers);
+        final Properties compiledCheckpoint = checkpoint;
+        final File compiledCheckpointFile = checkpointFile;
+        PermutationRequest request = new PermutationRequest(getJava(), getJvmArgs(heapMegabytes / workers),
+                classpathEntries, stagedWorkDir, widgetset, profile.getLogLevel(), workers,
+                createMonitoredOutputLog(), new PermutationRequest.CompletionListener() {
+                    public void permutationsCompiled(List<Integer> permutations) {
+                        synchronized (compiledCheckpoint) {
+                            addCompiledPermutations(compiledCheckpoint, permutations);
+                            try {
+                                ControlPanelPortletUtil.storeProperties(compiledCheckpoint, compiledCheckpointFile,
+                                        "Staged compilation of " + widgetset);
+                            } catch (IOException e) {
+                                log.warn("Could not record compiled permutations " + permutations, e);
+                            }
+                        }
+                    }
+                });
+
+        int permutationCount = Integer.parseInt(checkpoint.getProperty(PERMUTATION_COUNT_KEY));
+        List<Integer> missing = getMissingPermutations(checkpoint, permutationCount);
+        for (Integer permutation : missing) {
+            // Possibly left incomplete by a worker that was killed
+            FileUtils.deleteQuietly(request.getPermutationFile(permutation));
+        }
+        outputLog.log("Stage 2/3: compiling " + missing.size() + " of " + permutationCount + " permutations");
+        progress.startPhase(CompileProgress.Phase.PERMUTATIONS);
+        progress.setPermutationCount(missing.size());
+        if (!missing.isEmpty()) {
+            permutationPool = createPermutationPool();
+            try {
+                // Terminated before the pool was visible to terminate()
+                if (controlledTermination
+                        || !permutationPool.compilePermutations(request, missing) || controlledTermination) {
+                    return;
+                }
+            } finally {
+                permutationPool = null;
+            }
+        }
+
+        outputLog.log("Stage 3/3: linking " + widgetset);
+        progress.startPhase(CompileProgress.Phase.LINK);
+        List<String> args = new ArrayList<String>();
+        args.add("-workDir");
+        args.add(stagedWorkDir.getAbsolutePath());
+        args.add("-war");
+        args.add(outputDir);
+        addReportArgs(args);
+        args.add("-logLevel");
+        args.add(profile.getLogLevel());
+        args.add(widgetset);
+        int exitCode = runProcess("com.google.gwt.dev.Link", getJvmArgs(heapMegabytes), args);
+        successful = exitCode == 0 && !controlledTermination;
+        if (successful) {
+            progress.finish();
+        }
+    }
+
+    /**
+     * Caps the number of permutation workers so that each gets at least the
+     * base heap without exceeding the total heap budget.
+     */
+    static int getPermutationWorkers(int heapMegabytes, int localWorkers) {
+        return Math.max(1, Math.min(localWorkers, heapMegabytes / BASE_HEAP_MB));
+    }
+
+    /**
+     * @return the permutations not recorded as compiled in the checkpoint
+     */
+    static List<Integer> getMissingPermutations(Properties checkpoint, int permutationCount) {
+        Set<Integer> compiled = new HashSet<Integer>();
+        for (String value : checkpoint.getProperty(COMPILED_PERMUTATIONS_KEY, "").split(",")) {
+            if (value.trim().length() > 0) {
+                compiled.add(Integer.valueOf(value.trim()));
+            }
+        }
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < permutationCount; i++) {
+            if (!compiled.contains(i)) {
+                missing.add(i);
+            }
         }
+        return missing;
+    }
+
+    static void addCompiledPermutations(Properties checkpoint, List<Integer> permutations) {
+        StringBuilder compiled = new StringBuilder(checkpoint.getProperty(COMPILED_PERMUTATIONS_KEY, ""));
+        for (Integer permutation : permutations) {
+            if (compiled.length() > 0) {
+                compiled.append(',');
+            }
+            compiled.append(permutation);
+        }
+        checkpoint.setProperty(COMPILED_PERMUTATIONS_KEY, compiled.toString());
+    }
+
+    private static PermutationWorkerPool createPermutationPool() {
+        String className = ControlPanelPortletUtil.getProperty(PermutationWorkerPool.POOL_CLASS_PROPERTY,
+                LocalPermutationWorkerPool.class.getName());
+        try {
+            return (PermutationWorkerPool) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            log.warn("Could not create permutation worker pool " + className + ", using local workers", e);
+            return new LocalPermutationWorkerPool();
+        }
+    }
 
+    /**
+     * Runs a GWT tool in a new process and waits for it. No process is
+     * started once the compilation has been terminated.
+     *
+     * @return the exit code of the process, or -1 if it was not started
+     */
+    int runProcess(String mainClass, List<String> jvmArgs, List<String> toolArgs)
+            throws IOException, InterruptedException {
         ArrayList<String> args = new ArrayList<String>();
         args.add(getJava());
+        args.addAll(jvmArgs);
+
+        args.add("-classpath");
+
+        args.add(getClassPathArg());
+
+        args.add(mainClass);
+        args.addAll(toolArgs);
+
+        final String[] argsStr = new String[args.size()];
+        args.toArray(argsStr);
+        for (String arg : argsStr) {
+            System.out.print(arg + " ");
+        }
+        System.out.println("");
+
+        Process process;
+        synchronized (this) {
+            if (controlledTermination) {
+                return -1;
+            }
+            process = new ProcessBuilder(argsStr).start();
+            this.process = process;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        executor.execute(createOutputReader(process.getInputStream()));
+        executor.execute(createOutputReader(process.getErrorStream()));
+
+        process.waitFor();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        return process.exitValue();
+    }
 
+    private List<String> getJvmArgs(int heapMegabytes) {
+        List<String> args = new ArrayList<String>();
         args.add("-Djava.awt.headless=true");
         args.add("-Dgwt.nowarn.legacy.tools");
         args.add("-Dgwt.usearchives=false");
         args.add("-Xss8M");
-        args.add("-Xmx512M");
-        args.add("-XX:MaxPermSize=512M");
+        args.add("-Xmx" + heapMegabytes + "M");
+        if (hasPermGen()) {
+            args.add("-XX:MaxPermSize=512M");
+        }
+
+        if (unitCacheDir != null) {
+            args.add("-Dgwt.persistentunitcache=true");
+            args.add("-Dgwt.persistentunitcachedir=" + unitCacheDir.getAbsolutePath());
+        }
 
         //args.add("-verbose:class");
 
         if (System.getProperty("os.name").equals("mac")) {
             args.add("-XstartOnFirstThread");
         }
+        return args;
+    }
 
-        args.add("-classpath");
-
-        args.add(getClassPathArg());
-
-        String compilerClass = "com.google.gwt.dev.Compiler";
-        args.add(compilerClass);
-
+    private List<String> getCompilerArgs(int localWorkers) {
+        List<String> args = new ArrayList<String>();
         args.add("-war");
         args.add(outputDir);
-        /*-
-        String style = prefStore
-                .getString(VaadinPlugin.PREFERENCES_WIDGETSET_STYLE);
-        if ("DRAFT".equals(style)) {
-            args.add("-style");
-            args.add("PRETTY");
-            args.add("-draftCompile");
-        } else if (!"".equals(style)) {
-            args.add("-style");
-            args.add(style);
-        }*/
-
-        // String parallelism = prefStore
-        // .getString(VaadinPlugin.PREFERENCES_WIDGETSET_PARALLELISM);
-        // if ("".equals(parallelism)) {
+        args.addAll(getCompilerFlags());
+        if (reportDir != null) {
+            args.add("-compileReport");
+            addReportArgs(args);
+        }
+
         args.add("-localWorkers");
-        args.add("" + Runtime.getRuntime().availableProcessors());
-        // } else {
-        // args.add("-localWorkers");
-        // args.add(parallelism);
-        // }
+        args.add("" + localWorkers);
 
-        // if (verbose) {
         args.add("-logLevel");
-
-        args.add("INFO");
-       // args.add("INFO");
-        // } else {
-        // args.add("-logLevel");
-        // args.add("WARN");
-        // }
+        args.add(profile.getLogLevel());
 
         args.add(widgetset);
+        return args;
+    }
 
-        final String[] argsStr = new String[args.size()];
-        args.toArray(argsStr);
-        for (String arg : argsStr) {
-            System.out.print(arg + " ");
+    private void addReportArgs(List<String> args) {
+        if (reportDir != null) {
+            args.add("-extra");
+            args.add(reportDir.getAbsolutePath());
         }
-        System.out.println("");
-
-        controlledTermination = false;
+    }
 
-        process = new ProcessBuilder(argsStr).start();
+    private ILog createMonitoredOutputLog() {
+        return new ILog() {
+            public void log(String message) {
+                if (message.contains("OutOfMemoryError")) {
+                    outOfMemory = true;
+                }
+                progress.parse(message);
+                System.out.println(message);
+                if (outputLog != null) {
+                    outputLog.log(message);
+                }
+            }
+        };
+    }
 
-        if (outputLog != null) {
-            ExecutorService executor = Executors.newFixedThreadPool(2);
-            executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        BufferedReader stdInput = new BufferedReader(
-                                new InputStreamReader(process.getInputStream()));
-                        String s = null;
-                        while ((s = stdInput.readLine()) != null) {
-                            System.out.println(s);
-                            outputLog.log(s);
+    private Runnable createOutputReader(final InputStream stream) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(stream));
+                    String s = null;
+                    while ((s = reader.readLine()) != null) {
+                        if (s.contains("OutOfMemoryError")) {
+                            outOfMemory = true;
                         }
-                    } catch (IOException e) {
-                    }
-                }
-            });
-
-            executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        BufferedReader stdError = new BufferedReader(
-                                new InputStreamReader(process.getErrorStream()));
-                        String s = null;
-                        while ((s = stdError.readLine()) != null) {
-                            System.out.println(s);
+                        progress.parse(s);
+                        System.out.println(s);
+                        if (outputLog != null) {
                             outputLog.log(s);
                         }
-                    } catch (IOException e) {
                     }
+                } catch (IOException e) {
                 }
-            });
+            }
+        };
+    }
+
+    /**
+     * Returns the GWT compiler flags which affect the compiled output,
+     * excluding the output directory and the module name which differ for
+     * every compilation.
+     */
+    public List<String> getCompilerFlags() {
+        return profile.getCompilerFlags(vaadinVersion);
+    }
+
+    /**
+     * @return true if the last compilation finished without errors
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * The compiler may use the memory left after the portal's own heap,
+     * capped by {@link #MAX_HEAP_PROPERTY}.
+     */
+    private int getMaxHeapMegabytes() {
+        int configuredMax = ControlPanelPortletUtil.getIntegerProperty(MAX_HEAP_PROPERTY, DEFAULT_MAX_HEAP_MB);
+        int profileHeap = profile.getHeapMegabytes();
+        long memoryLimit = systemResources.getMemoryLimit();
+        if (memoryLimit <= 0) {
+            return Math.max(configuredMax, profileHeap);
         }
 
-        process.waitFor();
+        long available = memoryLimit - Runtime.getRuntime().maxMemory() - RESERVED_MEMORY_MB * MB;
+        int availableMb = (int) Math.max(0, available / MB);
+        return Math.max(Math.max(BASE_HEAP_MB, profileHeap), Math.min(configuredMax, availableMb));
+    }
 
-        if (process.exitValue() != 0 && outputLog != null
-                && !controlledTermination) {
-            outputLog.log("ERROR: Compilation ended due to an error.");
+    private int getInitialHeapMegabytes(int maxHeap) {
+        if (profile.getHeapMegabytes() > 0) {
+            return profile.getHeapMegabytes();
         }
+        int processors = systemResources.getAvailableProcessors();
+        return Math.min(maxHeap, BASE_HEAP_MB + processors * HEAP_PER_WORKER_MB);
+    }
+
+    private int getLocalWorkers(int heapMegabytes) {
+        if (profile.getLocalWorkers() > 0) {
+            return profile.getLocalWorkers();
+        }
+        int processors = systemResources.getAvailableProcessors();
+        int fittingInHeap = (heapMegabytes - BASE_HEAP_MB) / HEAP_PER_WORKER_MB;
+        return Math.max(1, Math.min(processors, fittingInHeap));
+    }
+
+    /**
+     * Assumes the compiler runs on the same Java version as the portal;
+     * Java 8 removed the permanent generation.
+     */
+    private static boolean hasPermGen() {
+        String version = System.getProperty("java.specification.version", "");
+        return version.startsWith("1.") && new Version(version.substring(2)).compareTo(new Version("8")) < 0;
     }
 
     private String getClassPathArg() {
@@ -193,7 +594,19 @@ public class WidgetsetCompiler {
 
     public void terminate() {
         controlledTermination = true;
-        process.destroy();
+        CompilerDaemon activeDaemon = daemon;
+        if (activeDaemon != null) {
+            activeDaemon.terminateActiveJob();
+        }
+        PermutationWorkerPool activePool = permutationPool;
+        if (activePool != null) {
+            activePool.terminate();
+        }
+        synchronized (this) {
+            if (process != null) {
+                process.destroy();
+            }
+        }
     }
 
     /**
@@ -22,27 +22,25 @@ package com.arcusys.liferay.vaadinplugin.util;
  */
 
 import java.io.*;
-import java.net.JarURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.jar.Attributes;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 import org.apache.commons.io.FileUtils;
 
-import com.liferay.portal.kernel.log.Log;
-import com.liferay.portal.kernel.log.LogFactoryUtil;
-
 public abstract class WidgetsetUtil {
-    private static final Log log = LogFactoryUtil.getLog(WidgetsetUtil.class);
 
     private static final String TMP_DIR_PREFIX = "vaadinws";
-    private static final String BCKP_DIR_PREFIX = "vaadinbckp";
 
-    private static final int MAX_NUMBER_OF_WIDGETSET_BACKUPS = 5;
+    private static final int LEGACY_NUMBER_OF_WIDGETSET_BACKUPS = 5;
+
+    /**
+     * Entry of a widgetset snapshot containing the widgetset directory.
+     */
+    public static final String WIDGETSET_SNAPSHOT_ENTRY = "widgetset";
 
     public static final FilenameFilter JAR_FILES_ONLY = new FilenameFilter() {
         public boolean accept(File dir, String name) {
@@ -50,72 +48,54 @@ public abstract class WidgetsetUtil {
         }
     };
 
+    /**
+     * Lists the Vaadin add-ons in a directory. Jars are read through the
+     * {@link AddonCatalog}, so only new and changed jars are opened.
+     */
     public static List<VaadinAddonInfo> getAvailableWidgetSets(File dir) {
-        List<VaadinAddonInfo> addons = new ArrayList<VaadinAddonInfo>();
-        File[] jars = dir.listFiles(JAR_FILES_ONLY);
-        for (File jar : jars) {
-            includeVaadinAddonJar(jar, addons);
-        }
-//        StringBuilder sb = new StringBuilder();
-        // sb.append("Widgetsets found:\n");
-        // for (String ws : widgetsets.keySet()) {
-        // sb.append("\t");
-        // sb.append(ws);
-        // sb.append(" in ");
-        // sb.append(widgetsets.get(ws));
-        // sb.append("\n");
-        // }
-        // System.out.println(sb.toString());
-        return addons;
-    }
-
-    private static void includeVaadinAddonJar(File file,
-                                              List<VaadinAddonInfo> addons) {
-        try {
-            URL url = new URL("file:" + file.getCanonicalPath());
-            url = new URL("jar:" + url.toExternalForm() + "!/");
-            JarURLConnection conn = (JarURLConnection) url.openConnection();
-            JarFile jarFile = conn.getJarFile();
-            if (jarFile != null) {
-                Manifest manifest = jarFile.getManifest();
-                if (manifest == null) {
-                    // No manifest so this is not a Vaadin Add-on
-                    return;
-                }
-
-                Attributes attrs = manifest.getMainAttributes();
-                String value = attrs.getValue("Vaadin-Widgetsets");
-                if (value != null) {
-                    String name = attrs.getValue("Implementation-Title");
-                    String version = attrs.getValue("Implementation-Version");
-                    if (name == null || version == null) {
-                        // A jar file with Vaadin-Widgetsets but name or version
-                        // missing. Most probably vaadin.jar itself, skipping it
-                        // here
-                        return;
-                    }
-
-                    List<String> widgetsets = new ArrayList<String>();
-                    String[] widgetsetNames = value.split(",");
-                    for(String wName: widgetsetNames )
-                    {
-                        String widgetsetname = wName.trim()
-                                .intern();
-                        if (!widgetsetname.equals("")) {
-                            widgetsets.add(widgetsetname);
-                        }
-                    }
-
-                    if (!widgetsets.isEmpty()) {
-                        addons.add(new VaadinAddonInfo(name, version, file,
-                                widgetsets));
-                    }
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Exception trying to include Vaadin Add-ons.", e);
+        return AddonCatalog.getDefault().getAddons(dir);
+    }
+
+    /**
+     * Reads the add-on information from the manifest of a jar.
+     *
+     * @return null if the jar is not a Vaadin add-on with widgetsets
+     * @throws IOException if the jar could not be read, for example while it
+     * is still being copied
+     */
+    static VaadinAddonInfo readAddonInfo(File file) throws IOException {
+        Manifest manifest = ManifestReader.read(file);
+        if (manifest == null) {
+            // No manifest so this is not a Vaadin Add-on
+            return null;
+        }
+        return toAddonInfo(file, manifest.getMainAttributes());
+    }
+
+    private static VaadinAddonInfo toAddonInfo(File file, Attributes attrs) {
+        String value = attrs.getValue("Vaadin-Widgetsets");
+        if (value == null) {
+            return null;
+        }
+        String name = attrs.getValue("Implementation-Title");
+        String version = attrs.getValue("Implementation-Version");
+        if (name == null || version == null) {
+            // A jar file with Vaadin-Widgetsets but name or version
+            // missing. Most probably vaadin.jar itself, skipping it
+            // here
+            return null;
         }
 
+        List<String> widgetsets = new ArrayList<String>();
+        String[] widgetsetNames = value.split(",");
+        for (String wName : widgetsetNames) {
+            String widgetsetname = wName.trim()
+                    .intern();
+            if (!widgetsetname.equals("")) {
+                widgetsets.add(widgetsetname);
+            }
+        }
+        return widgetsets.isEmpty() ? null : new VaadinAddonInfo(name, version, file, widgetsets);
     }
 
     /**
@@ -123,10 +103,26 @@ public abstract class WidgetsetUtil {
      *
      * @param widgetset
      *            the name of Widgetset. For example: com.example.TestWidgetSet
+     * @return the created .gwt.xml file
      * @throws java.io.IOException
      */
-    public static void createWidgetset(File tmpDir, String widgetset,
+    public static File createWidgetset(File tmpDir, String widgetset,
                                        Set<String> includeWidgetsets) throws IOException {
+        return createWidgetset(tmpDir, widgetset, includeWidgetsets, new ModuleOptions());
+    }
+
+    /**
+     * Creates a widgetset .gwt.xml file under a given directory, restricting
+     * the compiled permutations with the given options.
+     *
+     * @param widgetset
+     *            the name of Widgetset. For example: com.example.TestWidgetSet
+     * @return the created .gwt.xml file
+     * @throws java.io.IOException
+     */
+    public static File createWidgetset(File tmpDir, String widgetset,
+                                       Set<String> includeWidgetsets,
+                                       ModuleOptions options) throws IOException {
 
         String dir = widgetset.substring(0, widgetset.lastIndexOf("."))
                 .replace(".", ControlPanelPortletUtil.FileSeparator);
@@ -155,17 +151,36 @@ public abstract class WidgetsetUtil {
         for (String ws : includeWidgetsets) {
             printStream.print("<inherits name=\"" + ws + "\" />\n");
         }
+        options.writeTo(printStream);
 
         printStream.print("\n</module>\n");
         printStream.close();
+
+        if (options.hasLoadStyles()) {
+            copyClassToClasspath(tmpDir, ModuleOptions.LOADER_FACTORY_CLASS);
+        }
+        return widgetsetFile;
     }
 
-    public static File createTempDir() throws IOException {
-        return createTmpWorkDir(TMP_DIR_PREFIX);
+    /**
+     * Copies a class of this plugin under a directory on the compile
+     * classpath, without loading the class.
+     */
+    private static void copyClassToClasspath(File classpathDir, String className) throws IOException {
+        String resource = className.replace('.', '/') + ".class";
+        InputStream in = WidgetsetUtil.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Class not found: " + className);
+        }
+        try {
+            FileUtils.copyInputStreamToFile(in, new File(classpathDir, resource));
+        } finally {
+            in.close();
+        }
     }
 
-    public static File createBackupDir() throws IOException {
-        return createTmpWorkDir(BCKP_DIR_PREFIX);
+    public static File createTempDir() throws IOException {
+        return createTmpWorkDir(TMP_DIR_PREFIX);
     }
 
     private static File createTmpWorkDir(String dirName)throws IOException {
@@ -184,35 +199,127 @@ public abstract class WidgetsetUtil {
         return temp;
     }
 
-public static String removeGwtUnitCachePath() throws IOException {
+    /**
+     * Replaces the live widgetset with a compiled one. The compiled files are
+     * first copied to a staging directory next to the live one, which is
+     * then swapped in with two renames, so the live widgetset is never half
+     * written and missing only between the renames. The previous widgetset
+     * becomes the first backup, and the backup it replaces is moved to the
+     * snapshot store.
+     *
+     * @param liveWidgetset path of the deployed widgetset directory
+     */
+    public static synchronized void deployWidgetset(File compiledWidgetset, String liveWidgetset,
+                                                    SnapshotStore snapshots) throws IOException {
+        File liveDir = new File(liveWidgetset);
+        File stagingDir = new File(liveWidgetset + ".staging");
+        FileUtils.deleteDirectory(stagingDir);
+        FileUtils.copyDirectory(compiledWidgetset, stagingDir);
 
-    String unitCachePath = FileUtils.getTempDirectoryPath() + File.separator + "gwt-unitCache";
-    File unitCacheDirectory = new File(unitCachePath);
-    if(unitCacheDirectory.exists()){
-       FileUtils.deleteDirectory(unitCacheDirectory);
+        // Older plugin versions kept numbered full copies, oldest last
+        for (int i = LEGACY_NUMBER_OF_WIDGETSET_BACKUPS - 1; i > 0; i--) {
+            snapshotBackup(new File(liveWidgetset + "." + i + ".bak"), snapshots);
+        }
+        File backupDir = new File(liveWidgetset + ".0.bak");
+        snapshotBackup(backupDir, snapshots);
+        if (liveDir.exists()) {
+            rename(liveDir, backupDir);
+        }
+        try {
+            rename(stagingDir, liveDir);
+        } catch (IOException e) {
+            if (backupDir.exists()) {
+                rename(backupDir, liveDir);
+            }
+            throw e;
+        }
     }
-    return  unitCachePath;
-}
 
-    public static void backupOldWidgetset(String originalWidgetset)
-            throws IOException {
-        File srcDir = new File(originalWidgetset);
-        File destDir = new File(originalWidgetset + ".0.bak");
-        if (srcDir.exists() || srcDir.isDirectory()) {
-            FileUtils.deleteDirectory(destDir);
-            FileUtils.moveDirectory(srcDir, destDir);
+    /**
+     * @return true if there is a previous widgetset to roll back to
+     */
+    public static boolean canRollbackWidgetset(String liveWidgetset) {
+        return new File(liveWidgetset + ".0.bak").isDirectory();
+    }
+
+    /**
+     * Swaps the live widgetset with the first backup by renaming, so a
+     * second rollback restores the widgetset rolled back from.
+     */
+    public static synchronized void rollbackWidgetset(String liveWidgetset) throws IOException {
+        File liveDir = new File(liveWidgetset);
+        File backupDir = new File(liveWidgetset + ".0.bak");
+        File swapDir = new File(liveWidgetset + ".swap");
+        if (!backupDir.isDirectory()) {
+            throw new IOException("No backup of " + liveWidgetset + " to roll back to");
+        }
+        FileUtils.deleteDirectory(swapDir);
+        if (liveDir.exists()) {
+            rename(liveDir, swapDir);
+        }
+        try {
+            rename(backupDir, liveDir);
+        } catch (IOException e) {
+            if (swapDir.exists()) {
+                rename(swapDir, liveDir);
+            }
+            throw e;
+        }
+        if (swapDir.exists()) {
+            rename(swapDir, backupDir);
         }
     }
 
-    public static void rotateWidgetsetBackups(String originalWidgetset)
+    /**
+     * @return ids of the earlier versions of the widgetset kept in the
+     * snapshot store, newest first; the first backup is not among them
+     */
+    public static List<String> getWidgetsetSnapshots(String liveWidgetset, SnapshotStore snapshots)
             throws IOException {
-        for (int i = MAX_NUMBER_OF_WIDGETSET_BACKUPS - 1; i > 0; i--) {
-            File srcDir = new File(originalWidgetset + "." + (i - 1) + ".bak");
-            File destDir = new File(originalWidgetset + "." + i + ".bak");
-            if (srcDir.exists() || srcDir.isDirectory()) {
-                FileUtils.deleteDirectory(destDir);
-                FileUtils.moveDirectory(srcDir, destDir);
+        return snapshots.getSnapshots(getSnapshotName(new File(liveWidgetset).getName()));
+    }
+
+    /**
+     * Deploys an earlier version of the widgetset from the snapshot store the
+     * same way as a compiled one, so the replaced widgetset becomes the first
+     * backup.
+     *
+     * @param snapshotId one of the ids of {@link #getWidgetsetSnapshots}
+     */
+    public static synchronized void restoreWidgetset(String liveWidgetset, String snapshotId,
+                                                     SnapshotStore snapshots) throws IOException {
+        String name = new File(liveWidgetset).getName();
+        File restoreDir = createTempDir();
+        try {
+            File restored = new File(restoreDir, name);
+            if (!snapshots.restore(getSnapshotName(name), snapshotId, WIDGETSET_SNAPSHOT_ENTRY, restored)) {
+                throw new IOException("No widgetset in snapshot " + snapshotId + " of " + name);
             }
+            deployWidgetset(restored, liveWidgetset, snapshots);
+        } finally {
+            FileUtils.deleteDirectory(restoreDir);
         }
     }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+        }
+    }
+
+    private static void snapshotBackup(File backupDir, SnapshotStore snapshots) throws IOException {
+        if (backupDir.isDirectory()) {
+            String name = backupDir.getName().replaceAll("\\.\\d+\\.bak$", "");
+            snapshots.create(getSnapshotName(name), Collections.singletonMap(WIDGETSET_SNAPSHOT_ENTRY, backupDir),
+                    true);
+            FileUtils.deleteDirectory(backupDir);
+        }
+    }
+
+    /**
+     * @return name of the snapshots of earlier versions of a widgetset
+     */
+    public static String getSnapshotName(String widgetset) {
+        return "widgetset-" + widgetset;
+    }
 }
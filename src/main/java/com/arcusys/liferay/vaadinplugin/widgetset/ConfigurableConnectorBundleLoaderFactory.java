@@ -0,0 +1,120 @@
+package com.arcusys.liferay.vaadinplugin.widgetset;
+
+/*
+ * #%L
+ * Liferay Vaadin Plugin
+ * %%
+ * Copyright (C) 2013 Arcusys Ltd.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.gwt.core.ext.BadPropertyValueException;
+import com.google.gwt.core.ext.GeneratorContext;
+import com.google.gwt.core.ext.TreeLogger;
+import com.google.gwt.core.ext.UnableToCompleteException;
+import com.google.gwt.core.ext.typeinfo.JClassType;
+import com.vaadin.server.widgetsetutils.ConnectorBundleLoaderFactory;
+import com.vaadin.shared.ui.Connect;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Connector bundle loader factory of the widgetsets compiled by the control
+ * panel. Replaces the load styles connectors declare in their
+ * <code>@Connect</code> annotation with the ones configured in the module.
+ *
+ * The module configures the styles with two configuration properties: the
+ * multi-valued <code>vaadin.control.panel.load.styles</code> with values like
+ * <code>org.vaadin.addon.*=lazy</code> or
+ * <code>com.example.client.MyConnector=eager</code>, and
+ * <code>vaadin.control.panel.default.load.style</code> for connectors outside
+ * the <code>com.vaadin</code> packages. A connector class rule wins over a
+ * package rule, and a longer package over a shorter one.
+ *
+ * This class runs only inside the GWT compiler; it is copied to the compile
+ * classpath and must not be loaded by the portlet.
+ */
+public class ConfigurableConnectorBundleLoaderFactory extends ConnectorBundleLoaderFactory {
+
+    static final String LOAD_STYLES_PROPERTY = "vaadin.control.panel.load.styles";
+    static final String DEFAULT_LOAD_STYLE_PROPERTY = "vaadin.control.panel.default.load.style";
+
+    private static final String WILDCARD = ".*";
+
+    private final Map<String, Connect.LoadStyle> loadStyles = new HashMap<String, Connect.LoadStyle>();
+    private Connect.LoadStyle defaultLoadStyle;
+
+    @Override
+    public String generate(TreeLogger logger, GeneratorContext context, String typeName)
+            throws UnableToCompleteException {
+        loadStyles.clear();
+        defaultLoadStyle = null;
+        for (String rule : getValues(context, LOAD_STYLES_PROPERTY)) {
+            int separator = rule.lastIndexOf('=');
+            Connect.LoadStyle loadStyle = separator > 0 ? parseLoadStyle(rule.substring(separator + 1)) : null;
+            if (loadStyle == null) {
+                logger.log(TreeLogger.WARN, "Ignoring invalid connector load style: " + rule);
+                continue;
+            }
+            loadStyles.put(rule.substring(0, separator).trim(), loadStyle);
+        }
+        List<String> defaults = getValues(context, DEFAULT_LOAD_STYLE_PROPERTY);
+        if (!defaults.isEmpty()) {
+            defaultLoadStyle = parseLoadStyle(defaults.get(0));
+        }
+        logger.log(TreeLogger.INFO, "Using " + loadStyles.size() + " connector load styles"
+                + (defaultLoadStyle != null ? ", " + defaultLoadStyle + " by default for add-ons" : ""));
+        return super.generate(logger, context, typeName);
+    }
+
+    @Override
+    protected Connect.LoadStyle getLoadStyle(JClassType connectorType) {
+        String name = connectorType.getQualifiedSourceName();
+        Connect.LoadStyle loadStyle = loadStyles.get(name);
+        String packageName = name;
+        while (loadStyle == null && packageName.lastIndexOf('.') > 0) {
+            packageName = packageName.substring(0, packageName.lastIndexOf('.'));
+            loadStyle = loadStyles.get(packageName + WILDCARD);
+        }
+        if (loadStyle != null) {
+            return loadStyle;
+        }
+        if (defaultLoadStyle != null && !name.startsWith("com.vaadin.")) {
+            return defaultLoadStyle;
+        }
+        return super.getLoadStyle(connectorType);
+    }
+
+    private static List<String> getValues(GeneratorContext context, String property) {
+        try {
+            return context.getPropertyOracle().getConfigurationProperty(property).getValues();
+        } catch (BadPropertyValueException e) {
+            // Not defined by the module
+            return Collections.emptyList();
+        }
+    }
+
+    private static Connect.LoadStyle parseLoadStyle(String value) {
+        try {
+            return Connect.LoadStyle.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
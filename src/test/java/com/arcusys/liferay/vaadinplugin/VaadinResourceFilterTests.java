@@ -0,0 +1,16 @@
+package com.arcusys.liferay.vaadinplugin;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class VaadinResourceFilterTests {
+
+    @Test
+    public void getsPathInVaadinDirectoryTest() {
+        Assert.assertEquals("/widgetsets/ws/ws.nocache.js",
+                VaadinResourceFilter.getVaadinPath("/html/VAADIN/widgetsets/ws/ws.nocache.js"));
+        Assert.assertEquals("/themes/reindeer/styles.css",
+                VaadinResourceFilter.getVaadinPath("/custom/VAADIN/themes/reindeer/styles.css"));
+        Assert.assertNull(VaadinResourceFilter.getVaadinPath("/html/js/everything.jsp"));
+    }
+}
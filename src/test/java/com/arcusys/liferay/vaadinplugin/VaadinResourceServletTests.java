@@ -0,0 +1,102 @@
+package com.arcusys.liferay.vaadinplugin;
+
+import com.arcusys.liferay.vaadinplugin.util.PrecompressedResources;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+public class VaadinResourceServletTests {
+
+    @Test
+    public void parsesSingleRangesTest() {
+        Assert.assertEquals(10, VaadinResourceServlet.parseRange("bytes=10-", 100)[0]);
+        Assert.assertEquals(99, VaadinResourceServlet.parseRange("bytes=10-", 100)[1]);
+        Assert.assertEquals(90, VaadinResourceServlet.parseRange("bytes=-10", 100)[0]);
+        Assert.assertEquals(99, VaadinResourceServlet.parseRange("bytes=0-500", 100)[1]);
+        Assert.assertNull(VaadinResourceServlet.parseRange("bytes=100-", 100));
+        Assert.assertEquals(0, VaadinResourceServlet.parseRange("bytes=0-1,5-6", 100).length);
+        Assert.assertEquals(0, VaadinResourceServlet.parseRange("lines=1-2", 100).length);
+    }
+
+    @Test
+    public void matchesEtagsTest() {
+        Assert.assertTrue(VaadinResourceServlet.matchesEtag("\"a\", W/\"b\"", "\"b\""));
+        Assert.assertTrue(VaadinResourceServlet.matchesEtag("*", "\"b\""));
+        Assert.assertFalse(VaadinResourceServlet.matchesEtag("\"a\"", "\"b\""));
+    }
+
+    @Test
+    public void sendsContentEncodingOnlyWithBodyTest() throws Exception {
+        File file = File.createTempFile("widgetset", ".js");
+        File variant = PrecompressedResources.getVariant(file);
+        try {
+            FileUtils.writeStringToFile(file, "content");
+            FileUtils.writeStringToFile(variant, "compressed");
+            variant.setLastModified(file.lastModified());
+
+            Map<String, String> requestHeaders = new HashMap<String, String>();
+            requestHeaders.put("Accept-Encoding", "gzip, deflate");
+            requestHeaders.put("If-None-Match", "*");
+            Map<String, Object> responseHeaders = new HashMap<String, Object>();
+            VaadinResourceServlet.serve(createRequest(requestHeaders), createResponse(responseHeaders), file,
+                    createProxy(ServletContext.class, new HashMap<String, Object>()), false);
+            Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, responseHeaders.get("status"));
+            Assert.assertFalse(responseHeaders.containsKey("Content-Encoding"));
+
+            requestHeaders.remove("If-None-Match");
+            responseHeaders.clear();
+            VaadinResourceServlet.serve(createRequest(requestHeaders), createResponse(responseHeaders), file,
+                    createProxy(ServletContext.class, new HashMap<String, Object>()), false);
+            Assert.assertEquals("gzip", responseHeaders.get("Content-Encoding"));
+        } finally {
+            file.delete();
+            variant.delete();
+        }
+    }
+
+    private static HttpServletRequest createRequest(final Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(VaadinResourceServletTests.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader")) {
+                            return headers.get((String) args[0]);
+                        }
+                        if (method.getName().equals("getDateHeader")) {
+                            return -1L;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Records the headers set on the response, and the status as "status".
+     */
+    private static HttpServletResponse createResponse(Map<String, Object> headers) {
+        return createProxy(HttpServletResponse.class, headers);
+    }
+
+    private static <T> T createProxy(Class<T> type, final Map<String, Object> headers) {
+        return type.cast(Proxy.newProxyInstance(VaadinResourceServletTests.class.getClassLoader(),
+                new Class<?>[]{type}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setStatus")) {
+                            headers.put("status", args[0]);
+                        } else if (method.getName().startsWith("set") && method.getName().endsWith("Header")) {
+                            headers.put((String) args[0], args[1]);
+                        }
+                        return null;
+                    }
+                }));
+    }
+}
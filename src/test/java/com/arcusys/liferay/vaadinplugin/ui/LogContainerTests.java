@@ -0,0 +1,42 @@
+package com.arcusys.liferay.vaadinplugin.ui;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LogContainerTests {
+
+    @Test
+    public void keepsIdsStableWhenLinesAreDroppedTest() {
+        LogContainer container = new LogContainer(3);
+        container.addLines(Arrays.asList("a", "b", "c", "d", "e"));
+
+        Assert.assertEquals(3, container.size());
+        Assert.assertEquals(2L, container.firstItemId());
+        Assert.assertEquals(4L, container.lastItemId());
+        Assert.assertFalse(container.containsId(1L));
+        Assert.assertEquals("c", container.getItem(2L).getItemProperty(LogContainer.LINE_PROPERTY).getValue());
+        Assert.assertEquals(3L, container.nextItemId(2L));
+        Assert.assertEquals(Arrays.asList(3L, 4L), container.getItemIds(1, 5));
+    }
+
+    @Test
+    public void handlesManyLinesWithBoundedSizeTest() {
+        LogContainer container = new LogContainer(1000);
+        List<String> batch = new ArrayList<String>();
+        for (int i = 0; i < 200000; i++) {
+            batch.add("line " + i);
+            if (batch.size() == 500) {
+                container.addLines(batch);
+                batch.clear();
+            }
+        }
+        Assert.assertEquals(1000, container.size());
+        Assert.assertEquals(1000, container.getItemIds().size());
+        Assert.assertEquals("line 199999",
+                container.getItem(container.lastItemId()).getItemProperty(LogContainer.LINE_PROPERTY).getValue());
+    }
+}
@@ -0,0 +1,110 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+public class AddonCatalogTests {
+
+    static File createAddonJar(File dir, String name, String title, String version, String widgetsets)
+            throws Exception {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (title != null) {
+            manifest.getMainAttributes().putValue("Implementation-Title", title);
+            manifest.getMainAttributes().putValue("Implementation-Version", version);
+            manifest.getMainAttributes().putValue("Vaadin-Widgetsets", widgetsets);
+        }
+        File jar = new File(dir, name);
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+        return jar;
+    }
+
+    @Test
+    public void readsOnlyChangedJarsTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File lib = new File(root, "lib");
+            lib.mkdirs();
+            File indexFile = new File(root, "index.properties");
+            createAddonJar(lib, "b-addon.jar", "B Addon", "1.0", "org.b.BWidgetset, org.b.Other");
+            File a = createAddonJar(lib, "a-addon.jar", "A Addon", "2.0", "org.a.AWidgetset");
+            createAddonJar(lib, "server.jar", null, null, null);
+
+            List<VaadinAddonInfo> addons = new AddonCatalog(indexFile).getAddons(lib);
+            Assert.assertEquals(2, addons.size());
+            Assert.assertEquals("A Addon", addons.get(0).getName());
+            Assert.assertEquals(Arrays.asList("org.b.BWidgetset", "org.b.Other"), addons.get(1).getWidgetsets());
+            Assert.assertTrue(indexFile.exists());
+
+            // A persisted entry is trusted while size and time match, so a
+            // fake entry shows that the jar is not read again
+            AddonCatalog.Entry fake = new AddonCatalog.Entry(a.length(), a.lastModified(),
+                    new VaadinAddonInfo("Indexed", "2.0", a, Arrays.asList("org.a.AWidgetset")));
+            Properties index = new Properties();
+            index.setProperty(a.getAbsolutePath(), AddonCatalog.formatEntry(fake));
+            ControlPanelPortletUtil.storeProperties(index, indexFile, null);
+            addons = new AddonCatalog(indexFile).getAddons(lib);
+            Assert.assertEquals("Indexed", addons.get(0).getName());
+
+            a.delete();
+            createAddonJar(lib, "c-addon.jar", "C Addon", "1.0", "org.c.CWidgetset");
+            AddonCatalog catalog = new AddonCatalog(indexFile);
+            addons = catalog.getAddons(lib);
+            Assert.assertEquals(2, addons.size());
+            Assert.assertEquals("B Addon", addons.get(0).getName());
+            Assert.assertEquals("C Addon", addons.get(1).getName());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void parsesIndexEntriesTest() {
+        File jar = new File("addon.jar");
+        AddonCatalog.Entry entry = new AddonCatalog.Entry(10, 20,
+                new VaadinAddonInfo("Name with spaces", "1.0", jar, Arrays.asList("a.W", "b.W")));
+        AddonCatalog.Entry parsed = AddonCatalog.parseEntry(jar, AddonCatalog.formatEntry(entry));
+        Assert.assertEquals(10, parsed.length);
+        Assert.assertEquals("Name with spaces", parsed.addon.getName());
+        Assert.assertEquals(Arrays.asList("a.W", "b.W"), parsed.addon.getWidgetsets());
+
+        Assert.assertNull(AddonCatalog.parseEntry(jar, "10\t20").addon);
+        Assert.assertNull(AddonCatalog.parseEntry(jar, "10\t20\tname"));
+        Assert.assertNull(AddonCatalog.parseEntry(jar, "x\t20"));
+    }
+
+    @Test
+    public void leavesUnreadableJarsUnindexedTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File lib = new File(root, "lib");
+            lib.mkdirs();
+            File indexFile = new File(root, "index.properties");
+            createAddonJar(lib, "a-addon.jar", "A Addon", "1.0", "org.a.AWidgetset");
+            File broken = new File(lib, "b-addon.jar");
+            FileUtils.writeStringToFile(broken, "Half copied jar, not a zip file yet");
+
+            AddonCatalog catalog = new AddonCatalog(indexFile);
+            Assert.assertEquals(1, catalog.getAddons(lib).size());
+            Assert.assertFalse(ControlPanelPortletUtil.loadProperties(indexFile)
+                    .containsKey(broken.getAbsolutePath()));
+
+            // Read again once the copy is complete
+            createAddonJar(lib, "b-addon.jar", "B Addon", "1.0", "org.b.BWidgetset");
+            Assert.assertEquals(2, catalog.getAddons(lib).size());
+            Assert.assertEquals("B Addon", catalog.update(Arrays.asList(broken)).getAddon(broken).getName());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AddonDirectoryWatcherTests {
+
+    @Test
+    public void reportsBurstOfChangesOnceTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File lib = new File(root, "lib");
+            lib.mkdirs();
+            File old = AddonCatalogTests.createAddonJar(lib, "old-addon.jar", "Old Addon", "1.0", "org.old.W");
+            File updated = AddonCatalogTests.createAddonJar(lib, "b-addon.jar", "B Addon", "1.0", "org.b.W");
+            AddonCatalog catalog = new AddonCatalog(new File(root, "index.properties"));
+            Assert.assertEquals(2, catalog.getAddons(lib).size());
+
+            AddonDirectoryWatcher watcher = new AddonDirectoryWatcher(lib, catalog, 0);
+            final List<AddonCatalog.Changes> reported = new ArrayList<AddonCatalog.Changes>();
+            watcher.addWatcherListener(new AddonDirectoryWatcher.Listener() {
+                public void addonsChanged(AddonCatalog.Changes changes) {
+                    reported.add(changes);
+                }
+            });
+            watcher.initialize();
+
+            // Jars landing one by one over several polls
+            File added = AddonCatalogTests.createAddonJar(lib, "a-addon.jar", "A Addon", "1.0", "org.a.W");
+            watcher.poll();
+            Assert.assertTrue(old.delete());
+            AddonCatalogTests.createAddonJar(lib, "b-addon.jar", "B Addon", "2.0.1", "org.b.W");
+            File server = AddonCatalogTests.createAddonJar(lib, "server.jar", null, null, null);
+            watcher.poll();
+            Assert.assertTrue(reported.isEmpty());
+
+            watcher.poll();
+            Assert.assertEquals(1, reported.size());
+            AddonCatalog.Changes changes = reported.get(0);
+            Assert.assertEquals(Arrays.asList(added, updated, server), changes.getChangedJars());
+            Assert.assertEquals(Arrays.asList(old), changes.getRemovedJars());
+            Assert.assertEquals("A Addon", changes.getAddon(added).getName());
+            Assert.assertEquals("2.0.1", changes.getAddon(updated).getVersion());
+            Assert.assertNull(changes.getAddon(server));
+
+            watcher.poll();
+            Assert.assertEquals(1, reported.size());
+            Assert.assertEquals(2, catalog.getAddons(lib).size());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void waitsForQuietPeriodTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File lib = new File(root, "lib");
+            lib.mkdirs();
+            AddonCatalog catalog = new AddonCatalog(new File(root, "index.properties"));
+            AddonDirectoryWatcher watcher = new AddonDirectoryWatcher(lib, catalog, 60000);
+            final List<AddonCatalog.Changes> reported = new ArrayList<AddonCatalog.Changes>();
+            watcher.addWatcherListener(new AddonDirectoryWatcher.Listener() {
+                public void addonsChanged(AddonCatalog.Changes changes) {
+                    reported.add(changes);
+                }
+            });
+            watcher.initialize();
+
+            AddonCatalogTests.createAddonJar(lib, "a-addon.jar", "A Addon", "1.0", "org.a.W");
+            watcher.poll();
+            watcher.poll();
+            Assert.assertTrue(reported.isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
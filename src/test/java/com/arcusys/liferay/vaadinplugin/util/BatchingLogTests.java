@@ -0,0 +1,79 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchingLogTests {
+
+    private static class CollectingSink implements BatchingLog.Sink {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        public void write(List<String> messages) {
+            batches.add(messages);
+        }
+    }
+
+    @Test
+    public void writesQueuedMessagesInOneBatchTest() {
+        CollectingSink sink = new CollectingSink();
+        BatchingLog log = new BatchingLog(sink, 10, BatchingLog.OverflowPolicy.DROP, LogLevel.INFO, false);
+        log.log("a");
+        log.log("b");
+        log.flush();
+        log.flush();
+        Assert.assertEquals("[[a, b]]", sink.batches.toString());
+    }
+
+    @Test
+    public void filtersByLevelTest() {
+        CollectingSink sink = new CollectingSink();
+        BatchingLog log = new BatchingLog(sink, 10, BatchingLog.OverflowPolicy.DROP, LogLevel.WARN, false);
+        log.log("   Compiling permutation 0...");
+        log.log("   [WARN] Unused import");
+        log.log("[worker 1] [ERROR] Errors in 'Foo.java'");
+        log.log("[DEBUG] noise");
+        log.flush();
+        Assert.assertEquals("[[   [WARN] Unused import, [worker 1] [ERROR] Errors in 'Foo.java']]",
+                sink.batches.toString());
+    }
+
+    @Test
+    public void dropsAndReportsOverflowTest() {
+        CollectingSink sink = new CollectingSink();
+        BatchingLog log = new BatchingLog(sink, 2, BatchingLog.OverflowPolicy.DROP, LogLevel.INFO, false);
+        for (String message : new String[]{"a", "b", "c", "d"}) {
+            log.log(message);
+        }
+        log.flush();
+        Assert.assertEquals(1, sink.batches.size());
+        List<String> batch = sink.batches.get(0);
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals("a", batch.get(0));
+        Assert.assertTrue(batch.get(2).startsWith("... 2 lines dropped"));
+    }
+
+    @Test
+    public void blockingWaitsForFlushTest() throws Exception {
+        CollectingSink sink = new CollectingSink();
+        final BatchingLog log = new BatchingLog(sink, 1, BatchingLog.OverflowPolicy.BLOCK, LogLevel.INFO, false);
+        log.log("a");
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                log.log("b");
+            }
+        };
+        producer.start();
+        producer.join(100);
+        Assert.assertTrue(producer.isAlive());
+
+        log.flush();
+        producer.join(1000);
+        Assert.assertFalse(producer.isAlive());
+        log.flush();
+        Assert.assertEquals("[[a], [b]]", sink.batches.toString());
+    }
+}
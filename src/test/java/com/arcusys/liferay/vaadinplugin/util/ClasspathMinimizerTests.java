@@ -0,0 +1,135 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+public class ClasspathMinimizerTests {
+
+    @Test
+    public void keepsOnlyJarsOfInheritedModulesTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File vaadin = CompilePreflightTests.createJar(root, "vaadin-client.jar",
+                    "com/vaadin/DefaultWidgetSet.gwt.xml", "<module/>");
+            File addon = CompilePreflightTests.createJar(root, "addon.jar",
+                    "org/addon/AddonWidgetset.gwt.xml", "<module><inherits name=\"com.vaadin.DefaultWidgetSet\"/>"
+                            + "<inherits name=\"org.lib.Lib\" /></module>",
+                    "org/addon/client/Widget.class", "");
+            File lib = CompilePreflightTests.createJar(root, "lib.jar",
+                    "org/lib/Lib.gwt.xml", "<module><source path='ui'><exclude name='**/Test*'/></source></module>",
+                    "org/lib/ui/Part.java", "");
+            File split = CompilePreflightTests.createJar(root, "lib-sources.jar",
+                    "org/lib/ui/Other.java", "");
+            File server = CompilePreflightTests.createJar(root, "server.jar",
+                    "org/lib/server/Service.class", "");
+            File unused = CompilePreflightTests.createJar(root, "unused.jar",
+                    "org/unused/Unused.gwt.xml", "<module/>",
+                    "org/unused/client/Widget.class", "");
+            File broken = new File(root, "broken.jar");
+            FileUtils.writeStringToFile(broken, "not a zip");
+
+            List<File> needed = ClasspathMinimizer.minimize(Collections.singletonList(vaadin),
+                    Arrays.asList(addon, lib, split, server, unused, broken),
+                    Arrays.asList("com.vaadin.DefaultWidgetSet", "org.addon.AddonWidgetset"));
+
+            Assert.assertEquals(Arrays.asList(addon, lib, split, broken), needed);
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Returns a class file with only a constant pool naming the class and
+     * the given classes.
+     */
+    private static byte[] createClassFile(String className, String... references) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(50);
+        out.writeShort(2 * (references.length + 1) + 1);
+        List<String> names = new ArrayList<String>(Arrays.asList(references));
+        names.add(0, className);
+        for (int i = 0; i < names.size(); i++) {
+            out.writeByte(1);
+            out.writeUTF(names.get(i).replace('.', '/'));
+            out.writeByte(7);
+            out.writeShort(2 * i + 1);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static File createClassJar(File dir, String name, String className, String... references)
+            throws Exception {
+        File jar = new File(dir, name);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry(className.replace('.', '/') + ".class"));
+            out.write(createClassFile(className, references));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    @Test
+    public void keepsJarsOfReferencedServerClassesTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File vaadin = CompilePreflightTests.createJar(root, "vaadin-client.jar",
+                    "com/vaadin/DefaultWidgetSet.gwt.xml", "<module/>");
+            File addon = CompilePreflightTests.createJar(root, "addon.jar",
+                    "org/addon/AddonWidgetset.gwt.xml", "<module><inherits name=\"com.vaadin.DefaultWidgetSet\"/></module>",
+                    "org/addon/client/MyConnector.java", "package org.addon.client;\n"
+                            + "import com.vaadin.shared.ui.Connect;\n"
+                            + "@Connect(org.server.MyComponent.class)\n"
+                            + "public class MyConnector {}\n");
+            File server = createClassJar(root, "server.jar", "org.server.MyComponent", "org.base.BaseComponent",
+                    "java.lang.Object");
+            File base = createClassJar(root, "base.jar", "org.base.BaseComponent", "com.vaadin.ui.AbstractComponent");
+            File unused = createClassJar(root, "unused.jar", "org.unused.Service", "org.base.BaseComponent");
+
+            List<File> needed = ClasspathMinimizer.minimize(Collections.singletonList(vaadin),
+                    Arrays.asList(addon, server, base, unused),
+                    Arrays.asList("com.vaadin.DefaultWidgetSet", "org.addon.AddonWidgetset"));
+
+            Assert.assertEquals(Arrays.asList(addon, server, base), needed);
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void readsClassReferencesTest() throws Exception {
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("org.a.A", "org.b.B")),
+                ClasspathMinimizer.getClassReferences(createClassFile("org.a.A", "org.b.B")));
+        Assert.assertTrue(ClasspathMinimizer.getClassReferences(new byte[0]).isEmpty());
+        Assert.assertTrue(ClasspathMinimizer.getSourceReferences("import org.a.A;\nclass X extends org.b.B {}")
+                .containsAll(Arrays.asList("org.a.A", "org.b.B")));
+    }
+
+    @Test
+    public void defaultsToClientAndPublicPathsTest() {
+        Assert.assertEquals(Arrays.asList("org/addon/client/", "org/addon/public/"),
+                ClasspathMinimizer.getModulePaths("org/addon/Addon.gwt.xml", "<module/>"));
+        Assert.assertEquals(Arrays.asList("org/addon/shared/", "org/addon/client/", "org/addon/"),
+                ClasspathMinimizer.getModulePaths("org/addon/Addon.gwt.xml",
+                        "<module><source path=\"shared\"/><source path=\"client\" /><public path=\"\"/></module>"));
+    }
+}
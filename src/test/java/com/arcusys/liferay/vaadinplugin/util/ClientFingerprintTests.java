@@ -0,0 +1,100 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ClientFingerprintTests {
+
+    private static final String MODULE = "<module><source path=\"ui\"/></module>";
+
+    @Test
+    public void ignoresServerSideChangesTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File original = CompilePreflightTests.createJar(root, "addon-1.0.jar",
+                    "org/addon/Addon.gwt.xml", MODULE,
+                    "org/addon/ui/Widget.java", "class Widget {}",
+                    "org/addon/server/Component.class", "1");
+            File serverFix = CompilePreflightTests.createJar(root, "addon-1.0.1.jar",
+                    "org/addon/server/Component.class", "2",
+                    "org/addon/server/Helper.class", "",
+                    "org/addon/ui/Widget.java", "class Widget {}",
+                    "org/addon/Addon.gwt.xml", MODULE);
+            File clientFix = CompilePreflightTests.createJar(root, "addon-1.1.jar",
+                    "org/addon/Addon.gwt.xml", MODULE,
+                    "org/addon/ui/Widget.java", "class Widget { int fixed; }",
+                    "org/addon/server/Component.class", "1");
+
+            Assert.assertEquals(ClientFingerprint.of(original), ClientFingerprint.of(serverFix));
+            Assert.assertFalse(ClientFingerprint.of(original).equals(ClientFingerprint.of(clientFix)));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void detectsGeneratorChangesTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            String module = "<module><generate-with class=\"org.addon.gen.WidgetGenerator\">"
+                    + "<when-type-assignable class=\"org.addon.ui.Widget\"/></generate-with></module>";
+            File original = CompilePreflightTests.createJar(root, "addon-1.0.jar",
+                    "org/addon/Addon.gwt.xml", module,
+                    "org/addon/gen/WidgetGenerator.class", "1",
+                    "org/addon/widgetsetutils/Helper.class", "1",
+                    "org/addon/server/Component.class", "1");
+            File generatorFix = CompilePreflightTests.createJar(root, "addon-1.0.1.jar",
+                    "org/addon/Addon.gwt.xml", module,
+                    "org/addon/gen/WidgetGenerator.class", "2",
+                    "org/addon/widgetsetutils/Helper.class", "1",
+                    "org/addon/server/Component.class", "1");
+            File helperFix = CompilePreflightTests.createJar(root, "addon-1.0.2.jar",
+                    "org/addon/Addon.gwt.xml", module,
+                    "org/addon/gen/WidgetGenerator.class", "1",
+                    "org/addon/widgetsetutils/Helper.class", "2",
+                    "org/addon/server/Component.class", "1");
+
+            Assert.assertFalse(ClientFingerprint.of(original).equals(ClientFingerprint.of(generatorFix)));
+            Assert.assertFalse(ClientFingerprint.of(original).equals(ClientFingerprint.of(helperFix)));
+            Assert.assertEquals(Arrays.asList("org/addon/gen/"), ClientFingerprint.getRebindPaths(module));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void comparesWithDeployedAddonsTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File jar = CompilePreflightTests.createJar(root, "addon.jar",
+                    "org/addon/client/Widget.java", "class Widget {}");
+            File other = CompilePreflightTests.createJar(root, "other.jar",
+                    "org/other/client/Widget.java", "class Widget {}");
+            VaadinAddonInfo addon = new VaadinAddonInfo("Addon", "1.0", jar,
+                    Collections.singletonList("org.addon.Widgetset"));
+            VaadinAddonInfo otherAddon = new VaadinAddonInfo("Other", "1.0", other,
+                    Collections.singletonList("org.other.Widgetset"));
+
+            Map<String, ClientFingerprint> deployed = new HashMap<String, ClientFingerprint>();
+            deployed.put("addon.jar", new ClientFingerprint(ClientFingerprint.of(jar), "older"));
+            deployed.put("removed.jar", new ClientFingerprint("a", "b"));
+
+            ClientFingerprint.Changes changes = ClientFingerprint.compare(deployed, Arrays.asList(addon, otherAddon));
+            Assert.assertTrue(changes.isStale());
+            Assert.assertEquals(Arrays.asList("Other added", "removed.jar removed"), changes.getClientChanges());
+            Assert.assertEquals(Collections.singletonList("Addon"), changes.getServerChanges());
+
+            deployed.remove("removed.jar");
+            Assert.assertFalse(ClientFingerprint.compare(deployed, Collections.singletonList(addon)).isStale());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+public class CompileHistoryTests {
+
+    private static CompileRecord createRecord(long startTime, String profile, List<String> addons) {
+        Map<CompileProgress.Phase, Long> phaseMillis =
+                new EnumMap<CompileProgress.Phase, Long>(CompileProgress.Phase.class);
+        phaseMillis.put(CompileProgress.Phase.PRECOMPILE, 1000L);
+        phaseMillis.put(CompileProgress.Phase.PERMUTATIONS, 5000L);
+        phaseMillis.put(CompileProgress.Phase.LINK, 500L);
+        return new CompileRecord(startTime, "com.example.Widgetset", profile, CompileRecord.Result.SUCCESSFUL,
+                7000, phaseMillis, 6, 123456, addons, Arrays.asList("-style", "OBF"));
+    }
+
+    @Test
+    public void keepsRecentRecordsAcrossInstancesTest() throws Exception {
+        File file = File.createTempFile("compile-history", ".txt");
+        try {
+            CompileHistory history = new CompileHistory(file, 2);
+            for (int i = 1; i <= 3; i++) {
+                history.add(createRecord(i, "production", Arrays.asList("Addon " + i)));
+            }
+
+            List<CompileRecord> records = new CompileHistory(file, 2).getRecords();
+            Assert.assertEquals(2, records.size());
+            CompileRecord record = records.get(1);
+            Assert.assertEquals(3, record.getStartTime());
+            Assert.assertEquals(5000, record.getPhaseMillis(CompileProgress.Phase.PERMUTATIONS));
+            Assert.assertEquals(6, record.getPermutationCount());
+            Assert.assertEquals(123456, record.getOutputBytes());
+            Assert.assertEquals("[Addon 3]", record.getAddons().toString());
+            Assert.assertEquals("[-style, OBF]", record.getFlags().toString());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void describesChangesTest() {
+        CompileRecord previous = createRecord(1, "draft", Arrays.asList("A 1.0", "B 1.0"));
+        CompileRecord current = createRecord(2, "production", Arrays.asList("A 1.0", "C 2.0"));
+        Assert.assertEquals("+C 2.0, -B 1.0, profile draft -> production",
+                CompileHistory.describeChanges(previous, current));
+        Assert.assertEquals("", CompileHistory.describeChanges(null, current));
+    }
+}
@@ -0,0 +1,255 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CompileJobSchedulerTests {
+
+    private CompileJobScheduler scheduler;
+    private CountDownLatch release;
+    private List<String> executed;
+
+    @Before
+    public void setUp() {
+        scheduler = new CompileJobScheduler(1, new JobRegistry(60000, 100));
+        release = new CountDownLatch(1);
+        executed = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void identicalJobsAreMergedTest() throws InterruptedException {
+        TestJob blocking = new TestJob("blocking", CompileJob.Priority.NORMAL, release);
+        scheduler.submit(blocking, null);
+
+        TestJob first = new TestJob("job", CompileJob.Priority.NORMAL, null);
+        TestJob second = new TestJob("job", CompileJob.Priority.NORMAL, null);
+        Assert.assertSame(first, scheduler.submit(first, null));
+        Assert.assertSame(first, scheduler.submit(second, null));
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        RecordingListener listener = new RecordingListener();
+        scheduler.submit(new TestJob("job", CompileJob.Priority.NORMAL, null), listener);
+
+        release.countDown();
+        Assert.assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, executed.size());
+    }
+
+    @Test
+    public void conflictingJobsAreRejectedTest() throws InterruptedException {
+        scheduler.submit(new TestJob("blocking", CompileJob.Priority.NORMAL, release), null);
+
+        CompileJob first = scheduler.submit(new TargetJob("7.1.0"), null);
+        Assert.assertSame(first, scheduler.submit(new TargetJob("7.1.0"), null));
+        Assert.assertNull(scheduler.submit(new TargetJob("7.2.0"), null));
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        RecordingListener listener = new RecordingListener();
+        first.attach(listener);
+        release.countDown();
+        Assert.assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[blocking, target]", executed.toString());
+    }
+
+    @Test
+    public void jobsRunInPriorityOrderTest() throws InterruptedException {
+        scheduler.submit(new TestJob("blocking", CompileJob.Priority.NORMAL, release), null);
+
+        RecordingListener listener = new RecordingListener();
+        scheduler.submit(new TestJob("low", CompileJob.Priority.LOW, null), listener);
+        scheduler.submit(new TestJob("normal", CompileJob.Priority.NORMAL, null), null);
+        CompileJob high = new TestJob("high", CompileJob.Priority.HIGH, null);
+        scheduler.submit(high, null);
+        Assert.assertEquals(0, scheduler.getJobsAhead(high));
+
+        release.countDown();
+        Assert.assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[blocking, high, normal, low]", executed.toString());
+    }
+
+    @Test
+    public void cancelQueuedJobTest() throws InterruptedException {
+        scheduler.submit(new TestJob("blocking", CompileJob.Priority.NORMAL, release), null);
+
+        RecordingListener cancelledListener = new RecordingListener();
+        CompileJob cancelled = scheduler.submit(new TestJob("cancelled", CompileJob.Priority.NORMAL, null),
+                cancelledListener);
+        RecordingListener lastListener = new RecordingListener();
+        scheduler.submit(new TestJob("last", CompileJob.Priority.NORMAL, null), lastListener);
+
+        cancelled.cancel();
+        Assert.assertTrue(cancelledListener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        release.countDown();
+        Assert.assertTrue(lastListener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[blocking, last]", executed.toString());
+    }
+
+    @Test
+    public void attachReplaysBufferedOutputTest() throws InterruptedException {
+        TestJob job = new TestJob("job", CompileJob.Priority.NORMAL, release);
+        scheduler.submit(job, null);
+        job.log("first");
+        job.log("second");
+
+        RecordingListener listener = new RecordingListener();
+        job.attach(listener);
+        job.log("third");
+        release.countDown();
+
+        Assert.assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[first, second, third]", listener.lines.toString());
+    }
+
+    @Test
+    public void exclusiveJobRunsAloneTest() throws InterruptedException {
+        scheduler = new CompileJobScheduler(3, new JobRegistry(60000, 100));
+        scheduler.submit(new TestJob("blocking", CompileJob.Priority.NORMAL, release), null);
+        awaitExecuted("blocking");
+
+        RecordingListener exclusiveListener = new RecordingListener();
+        scheduler.submit(new ResourceJob("exclusive", null, true), exclusiveListener);
+        exclusiveListener.awaitLine("Waiting for the running jobs to finish");
+        RecordingListener lastListener = new RecordingListener();
+        scheduler.submit(new TestJob("last", CompileJob.Priority.NORMAL, null), lastListener);
+        lastListener.awaitLine("Waiting for an exclusive job to finish");
+        Assert.assertEquals("[blocking]", executed.toString());
+
+        release.countDown();
+        Assert.assertTrue(lastListener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[blocking, exclusive, last]", executed.toString());
+    }
+
+    @Test
+    public void jobsChangingTheSameResourceRunInSequenceTest() throws InterruptedException {
+        scheduler = new CompileJobScheduler(3, new JobRegistry(60000, 100));
+        ResourceJob first = new ResourceJob("first", "widgetset", false);
+        first.latch = release;
+        scheduler.submit(first, null);
+        awaitExecuted("first");
+
+        RecordingListener secondListener = new RecordingListener();
+        scheduler.submit(new ResourceJob("second", "widgetset", false), secondListener);
+        secondListener.awaitLine("Waiting for another job changing widgetset to finish");
+        RecordingListener otherListener = new RecordingListener();
+        scheduler.submit(new ResourceJob("other", "other", false), otherListener);
+        Assert.assertTrue(otherListener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[first, other]", executed.toString());
+
+        release.countDown();
+        Assert.assertTrue(secondListener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[first, other, second]", executed.toString());
+    }
+
+    private void awaitExecuted(String key) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!executed.contains(key)) {
+            Assert.assertTrue("Not executed: " + key, System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private class TestJob extends CompileJob {
+        CountDownLatch latch;
+
+        TestJob(String key, Priority priority, CountDownLatch latch) {
+            super(key, priority, 100);
+            this.latch = latch;
+        }
+
+        @Override
+        public String getDescription() {
+            return getKey();
+        }
+
+        @Override
+        protected void execute() {
+            executed.add(getKey());
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected void terminate() {
+        }
+    }
+
+    private class TargetJob extends TestJob {
+        private final String target;
+
+        TargetJob(String target) {
+            super("target", Priority.NORMAL, null);
+            this.target = target;
+        }
+
+        @Override
+        protected boolean conflictsWith(CompileJob other) {
+            return !target.equals(((TargetJob) other).target);
+        }
+    }
+
+    private class ResourceJob extends TestJob {
+        private final String resource;
+        private final boolean exclusive;
+
+        ResourceJob(String key, String resource, boolean exclusive) {
+            super(key, Priority.NORMAL, null);
+            this.resource = resource;
+            this.exclusive = exclusive;
+        }
+
+        @Override
+        protected String getResource() {
+            return resource;
+        }
+
+        @Override
+        protected boolean isExclusive() {
+            return exclusive;
+        }
+    }
+
+    private static class RecordingListener implements CompileJob.Listener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+        public void log(String message) {
+            lines.add(message);
+        }
+
+        public void jobStarted(CompileJob job) {
+        }
+
+        public void jobFinished(CompileJob job) {
+            finished.countDown();
+        }
+
+        void awaitLine(String line) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000;
+            while (!lines.contains(line)) {
+                Assert.assertTrue("No line: " + line, System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+        }
+    }
+}
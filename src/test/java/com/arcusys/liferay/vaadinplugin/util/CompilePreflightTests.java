@@ -0,0 +1,90 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+public class CompilePreflightTests {
+
+    static File createJar(File dir, String name, String... entries) throws Exception {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Vaadin-Package-Version", "1");
+        File jar = new File(dir, name);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+        try {
+            for (int i = 0; i < entries.length; i += 2) {
+                out.putNextEntry(new ZipEntry(entries[i]));
+                out.write(entries[i + 1].getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    @Test
+    public void reportsBrokenClasspathTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File vaadin = createJar(root, "vaadin-client.jar",
+                    "com/vaadin/DefaultWidgetSet.gwt.xml", "<module/>");
+            File addon = createJar(root, "addon.jar",
+                    "org/addon/AddonWidgetset.gwt.xml", "<module><inherits name=\"com.vaadin.DefaultWidgetSet\"/>"
+                            + "<inherits name=\"org.missing.Module\" /></module>",
+                    "org/addon/client/Widget.java", "class Widget {}");
+            File other = createJar(root, "other.jar",
+                    "org/other/OtherWidgetset.gwt.xml", "<module><inherits name='"
+                            + "com.vaadin.terminal.gwt.DefaultWidgetSet'/></module>",
+                    "org/addon/client/Widget.java", "class Widget { int changed; }");
+            File broken = new File(root, "broken.jar");
+            FileUtils.writeStringToFile(broken, "not a zip");
+
+            CompilePreflight.Report report = new CompilePreflight(new Version("7.2.4")).check(
+                    Collections.singletonList(vaadin),
+                    Arrays.asList(addon, other, broken, new File(root, "missing.jar")),
+                    Arrays.asList("org.addon.AddonWidgetset", "org.other.OtherWidgetset"));
+
+            Assert.assertEquals(report.getErrors().toString(), 5, report.getErrors().size());
+            Assert.assertTrue(report.getErrors().toString().contains("org.missing.Module inherited by "
+                    + "org.addon.AddonWidgetset"));
+            Assert.assertTrue(report.getErrors().toString().contains("other.jar is built for Vaadin 6"));
+            Assert.assertEquals(1, report.getWarnings().size());
+            Assert.assertTrue(report.getWarnings().get(0).startsWith("Conflicting client classes"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void passesValidClasspathTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File vaadin = createJar(root, "vaadin-client.jar",
+                    "com/vaadin/DefaultWidgetSet.gwt.xml", "<module/>",
+                    "com/vaadin/client/Util.java", "class Util {}");
+            File source = new File(root, "src");
+            FileUtils.writeStringToFile(new File(source, "org/app/AppWidgetset.gwt.xml"),
+                    "<module><inherits name=\"com.vaadin.DefaultWidgetSet\"/></module>");
+
+            CompilePreflight.Report report = new CompilePreflight(new Version("7.2.4")).check(
+                    Collections.singletonList(vaadin), Collections.singletonList(source),
+                    Collections.singletonList("org.app.AppWidgetset"));
+
+            Assert.assertFalse(report.hasErrors());
+            Assert.assertTrue(report.getWarnings().isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
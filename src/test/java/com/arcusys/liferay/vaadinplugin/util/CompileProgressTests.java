@@ -0,0 +1,47 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class CompileProgressTests {
+
+    @Test
+    public void followsCompilerOutputTest() {
+        CompileProgress progress = new CompileProgress();
+        Assert.assertEquals(0f, progress.getProgress());
+
+        progress.parse("Compiling module com.example.Widgetset");
+        Assert.assertEquals(CompileProgress.Phase.PRECOMPILE, progress.getCurrentPhase());
+
+        progress.parse("   Compiling 4 permutations");
+        Assert.assertEquals(CompileProgress.Phase.PERMUTATIONS, progress.getCurrentPhase());
+        Assert.assertEquals(4, progress.getPermutationCount());
+        Assert.assertEquals(0.3f, progress.getProgress(), 0.001f);
+
+        progress.parse("      Compiling permutation 0...");
+        progress.parse("      Compiling permutation 1...");
+        Assert.assertEquals(0.6f, progress.getProgress(), 0.001f);
+
+        progress.parse("   Compile of permutations succeeded");
+        progress.parse("Linking into /tmp/war/com.example.Widgetset");
+        Assert.assertEquals(CompileProgress.Phase.LINK, progress.getCurrentPhase());
+        Assert.assertEquals(0.9f, progress.getProgress(), 0.001f);
+
+        progress.parse("   Link succeeded");
+        Assert.assertNull(progress.getCurrentPhase());
+        Assert.assertEquals(1f, progress.getProgress(), 0.001f);
+    }
+
+    @Test
+    public void resetForgetsPhasesTest() {
+        CompileProgress progress = new CompileProgress();
+        progress.startPhase(CompileProgress.Phase.PRECOMPILE);
+        progress.startPhase(CompileProgress.Phase.PERMUTATIONS);
+        progress.finish();
+        Assert.assertEquals(1f, progress.getProgress());
+
+        progress.reset();
+        Assert.assertEquals(0f, progress.getProgress());
+        Assert.assertEquals(0, progress.getPhaseMillis(CompileProgress.Phase.PRECOMPILE));
+    }
+}
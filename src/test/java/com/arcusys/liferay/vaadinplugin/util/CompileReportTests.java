@@ -0,0 +1,63 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+public class CompileReportTests {
+
+    private static final String STORIES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<soyc><sizemaps>\n"
+            + "<sizemap fragment=\"0\" size=\"1600\">\n"
+            + "<size type=\"type\" ref=\"com.vaadin.client.ApplicationConnection\" size=\"1000\"/>\n"
+            + "<size type=\"method\" ref=\"org.addon.client.ui.Widget::render()V\" size=\"400\"/>\n"
+            + "<size type=\"string\" ref=\"hello\" size=\"200\"/>\n"
+            + "</sizemap>\n"
+            + "<sizemap fragment=\"1\" size=\"300\">\n"
+            + "<size type=\"type\" ref=\"org.addon.client.Lazy\" size=\"300\"/>\n"
+            + "</sizemap>\n"
+            + "</sizemaps></soyc>";
+
+    private static CompileReport readReport() throws Exception {
+        Map<String, String> owners = Collections.singletonMap("org.addon.client", "Addon");
+        return CompileReport.read(new ByteArrayInputStream(STORIES.getBytes("UTF-8")), owners);
+    }
+
+    @Test
+    public void sumsSizesPerAddonTest() throws Exception {
+        CompileReport report = readReport();
+
+        Assert.assertEquals(1600, report.getInitialSize());
+        Assert.assertEquals(300, report.getDeferredSize());
+        Assert.assertEquals(1000, report.getAddonSizes().get(CompileReport.VAADIN)[0]);
+        Assert.assertEquals(400, report.getAddonSizes().get("Addon")[0]);
+        Assert.assertEquals(300, report.getAddonSizes().get("Addon")[1]);
+        Assert.assertEquals(200, report.getAddonSizes().get(CompileReport.OTHER)[0]);
+        Assert.assertEquals(400, report.getPackageSizes().get("org.addon.client.ui")[0]);
+        Assert.assertEquals(CompileReport.VAADIN, CompileReport.sortBySize(report.getAddonSizes()).get(0));
+    }
+
+    @Test
+    public void checksBudgetAgainstStoredReportTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File file = new File(root, "reports/ws.properties");
+            readReport().store(file);
+            CompileReport previous = CompileReport.load(file);
+            Assert.assertEquals(1600, previous.getInitialSize());
+            Assert.assertEquals(300, previous.getAddonSizes().get("Addon")[1]);
+
+            CompileReport report = readReport();
+            Assert.assertTrue(report.checkBudget(previous, 0, 10).isEmpty());
+            Assert.assertEquals(1, report.checkBudget(previous, 1024, 0).size());
+            Assert.assertNull(CompileReport.load(new File(root, "missing.properties")));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
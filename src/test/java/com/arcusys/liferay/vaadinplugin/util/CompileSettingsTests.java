@@ -0,0 +1,68 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CompileSettingsTests {
+
+    private static VaadinAddonInfo addon(String name, String version, String jarName) {
+        return new VaadinAddonInfo(name, version, new File(jarName), Arrays.asList("org.example.Widgetset"));
+    }
+
+    @Test
+    public void storesSettingsTest() throws Exception {
+        File dir = WidgetsetUtil.createTempDir();
+        try {
+            ModuleOptions options = new ModuleOptions();
+            options.setUserAgents(Arrays.asList("gecko1_8", "safari"));
+            options.setDefaultLoadStyle(ModuleOptions.LAZY);
+            Map<String, String> loadStyles = new LinkedHashMap<String, String>();
+            loadStyles.put("org.a.*", ModuleOptions.EAGER);
+            loadStyles.put("org.b.client.BConnector", ModuleOptions.DEFERRED);
+            options.setLoadStyles(loadStyles);
+
+            File dependency = new File(dir, "dependency.jar");
+            FileUtils.writeStringToFile(dependency, "jar");
+            CompileSettings settings = new CompileSettings("com.example.Widgetset", CompileProfile.DRAFT,
+                    Arrays.asList(addon("A Addon", "1.0", "a-1.0.jar")),
+                    Arrays.asList(dependency, new File(dir, "removed.jar")), options);
+            File file = new File(dir, "settings.properties");
+            settings.store(file);
+
+            CompileSettings loaded = CompileSettings.load(file);
+            Assert.assertEquals("com.example.Widgetset", loaded.getWidgetset());
+            Assert.assertEquals(CompileProfile.DRAFT, loaded.getProfile());
+            Assert.assertEquals("A Addon", loaded.getAddons().get("a-1.0.jar"));
+            Assert.assertEquals(Arrays.asList(dependency), loaded.findDependencies(dir));
+
+            ModuleOptions loadedOptions = new ModuleOptions();
+            loaded.applyTo(loadedOptions);
+            Assert.assertEquals(options.toString(), loadedOptions.toString());
+            Assert.assertEquals(options.getLoadStyles(), loadedOptions.getLoadStyles());
+
+            Assert.assertNull(CompileSettings.load(new File(dir, "missing.properties")));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void findsReplacedAddonsTest() {
+        CompileSettings settings = new CompileSettings("com.example.Widgetset", CompileProfile.PRODUCTION,
+                Arrays.asList(addon("A Addon", "1.0", "a-1.0.jar"), addon("B Addon", "1.0", "b.jar"),
+                        addon("C Addon", "1.0", "c.jar")), null, new ModuleOptions());
+
+        VaadinAddonInfo newA = addon("A Addon", "1.1", "a-1.1.jar");
+        VaadinAddonInfo b = addon("B Addon", "2.0", "b.jar");
+        List<VaadinAddonInfo> found = settings.findAddons(Arrays.asList(
+                addon("Unselected", "1.0", "d.jar"), b, newA));
+        Assert.assertEquals(Arrays.asList(newA, b), found);
+    }
+}
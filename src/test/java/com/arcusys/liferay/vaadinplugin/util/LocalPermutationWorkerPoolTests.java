@@ -0,0 +1,58 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class LocalPermutationWorkerPoolTests {
+
+    @Test
+    public void splitsRoundRobinTest() {
+        List<List<Integer>> batches = LocalPermutationWorkerPool.split(Arrays.asList(0, 1, 2, 3, 4), 2);
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(Arrays.asList(0, 2, 4), batches.get(0));
+        Assert.assertEquals(Arrays.asList(1, 3), batches.get(1));
+    }
+
+    @Test
+    public void createsNoEmptyBatchesTest() {
+        List<List<Integer>> batches = LocalPermutationWorkerPool.split(Arrays.asList(3, 7), 4);
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(Arrays.asList(3), batches.get(0));
+        Assert.assertEquals(Arrays.asList(7), batches.get(1));
+        Assert.assertTrue(LocalPermutationWorkerPool.split(Arrays.<Integer>asList(), 4).isEmpty());
+    }
+
+    @Test
+    public void marksPermutationsCompiledOnlyAfterSuccessfulWorkersTest() throws Exception {
+        Assert.assertEquals(Arrays.asList(0, 1, 2), compile("true"));
+        Assert.assertEquals(Collections.<Integer>emptyList(), compile("false"));
+    }
+
+    // The worker command ignores the CompilePerms arguments and only exits
+    private static List<Integer> compile(String command) throws InterruptedException {
+        final List<Integer> compiled = Collections.synchronizedList(new ArrayList<Integer>());
+        PermutationRequest request = new PermutationRequest(command, Collections.<String>emptyList(),
+                Collections.<File>emptyList(), new File("work"), "com.example.Widgetset", "INFO", 2,
+                new ILog() {
+                    public void log(String message) {
+                    }
+                }, new PermutationRequest.CompletionListener() {
+                    public void permutationsCompiled(List<Integer> permutations) {
+                        compiled.addAll(permutations);
+                    }
+                });
+        boolean successful = new LocalPermutationWorkerPool().compilePermutations(request, Arrays.asList(0, 1, 2));
+
+        Assert.assertEquals(command.equals("true"), successful);
+        Collections.sort(compiled);
+        return compiled;
+    }
+}
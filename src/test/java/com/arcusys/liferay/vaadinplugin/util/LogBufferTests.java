@@ -0,0 +1,27 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class LogBufferTests {
+
+    @Test
+    public void keepsAllLinesBelowCapacityTest() {
+        LogBuffer buffer = new LogBuffer(3);
+        buffer.add("a");
+        buffer.add("b");
+        Assert.assertEquals("[a, b]", buffer.getLines().toString());
+        Assert.assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void dropsOldestLinesTest() {
+        LogBuffer buffer = new LogBuffer(3);
+        for (String line : new String[]{"a", "b", "c", "d", "e"}) {
+            buffer.add(line);
+        }
+        Assert.assertEquals("[c, d, e]", buffer.getLines().toString());
+        Assert.assertEquals(2, buffer.getDroppedCount());
+        Assert.assertEquals(3, buffer.size());
+    }
+}
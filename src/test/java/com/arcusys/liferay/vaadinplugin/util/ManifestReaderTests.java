@@ -0,0 +1,154 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ManifestReaderTests {
+
+    private static Manifest createManifest(String title) {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Implementation-Title", title);
+        manifest.getMainAttributes().putValue("Vaadin-Widgetsets", "org.example.Widgetset");
+        return manifest;
+    }
+
+    private static File createJar(File dir, String name, Manifest manifest, boolean stored, String comment)
+            throws Exception {
+        File jar = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("org/example/client/Widget.java"));
+            out.write("class Widget {}".getBytes("UTF-8"));
+            out.closeEntry();
+            if (manifest != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                manifest.write(content);
+                ZipEntry entry = new ZipEntry(JarFile.MANIFEST_NAME);
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content.toByteArray());
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.size());
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                content.writeTo(out);
+                out.closeEntry();
+            }
+            if (comment != null) {
+                out.setComment(comment);
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    @Test
+    public void readsManifestsTest() throws Exception {
+        File dir = WidgetsetUtil.createTempDir();
+        try {
+            File deflated = createJar(dir, "deflated.jar", createManifest("Deflated"), false, null);
+            File stored = createJar(dir, "stored.jar", createManifest("Stored"), true, "A zip comment");
+            File none = createJar(dir, "none.jar", null, false, null);
+
+            Assert.assertEquals("Deflated", ManifestReader.read(deflated).getMainAttributes()
+                    .getValue("Implementation-Title"));
+            Assert.assertEquals("Stored", ManifestReader.read(stored).getMainAttributes()
+                    .getValue("Implementation-Title"));
+            Assert.assertNull(ManifestReader.read(none));
+
+            JarFile jarFile = new JarFile(deflated);
+            try {
+                Assert.assertEquals(jarFile.getManifest().getMainAttributes(),
+                        ManifestReader.read(deflated).getMainAttributes());
+            } finally {
+                jarFile.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidFilesTest() throws Exception {
+        File dir = WidgetsetUtil.createTempDir();
+        try {
+            File file = new File(dir, "broken.jar");
+            FileUtils.writeStringToFile(file, "Not a zip file, just some text that is long enough");
+            try {
+                ManifestReader.read(file);
+                Assert.fail("Read a manifest from a text file");
+            } catch (java.util.zip.ZipException e) {
+                // expected
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void repeatedScansHoldNoFilesTest() throws Exception {
+        File fdDir = new File("/proc/self/fd");
+        File dir = WidgetsetUtil.createTempDir();
+        try {
+            List<File> jars = new ArrayList<File>();
+            for (int i = 0; i < 20; i++) {
+                jars.add(createJar(dir, "addon" + i + ".jar", createManifest("Addon " + i), i % 2 == 0, null));
+            }
+            jars.add(createJar(dir, "server.jar", null, false, null));
+
+            // Warm up so that lazily opened JDK files are not counted
+            for (File jar : jars) {
+                WidgetsetUtil.readAddonInfo(jar);
+            }
+            String[] before = fdDir.list();
+            for (int scan = 0; scan < 1000; scan++) {
+                for (File jar : jars) {
+                    WidgetsetUtil.readAddonInfo(jar);
+                }
+            }
+            String[] after = fdDir.list();
+            if (before != null && after != null) {
+                // Allow for a few descriptors opened by other threads
+                Assert.assertTrue("Open files grew from " + before.length + " to " + after.length,
+                        after.length <= before.length + 5);
+
+                // No descriptor of the process refers to one of the jars
+                Set<String> jarPaths = new HashSet<String>();
+                for (File jar : jars) {
+                    jarPaths.add(jar.getCanonicalPath());
+                }
+                for (String fd : after) {
+                    String target;
+                    try {
+                        target = new File(fdDir, fd).getCanonicalPath();
+                    } catch (IOException e) {
+                        // Closed meanwhile
+                        continue;
+                    }
+                    Assert.assertFalse("Jar left open: " + target, jarPaths.contains(target));
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
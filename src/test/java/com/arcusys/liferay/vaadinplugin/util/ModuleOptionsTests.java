@@ -0,0 +1,80 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class ModuleOptionsTests {
+
+    @Test
+    public void parsesLoadStyles() {
+        Map<String, String> loadStyles = ModuleOptions.parseLoadStyles(
+                "org.vaadin.addon.*:LAZY; com.example.client.MyConnector : eager\ninvalid");
+        Assert.assertEquals(2, loadStyles.size());
+        Assert.assertEquals("lazy", loadStyles.get("org.vaadin.addon.*"));
+        Assert.assertEquals("eager", loadStyles.get("com.example.client.MyConnector"));
+    }
+
+    @Test
+    public void writesLoaderFactoryOnlyWithLoadStyles() {
+        ModuleOptions options = new ModuleOptions();
+        Assert.assertFalse(write(options).contains("generate-with"));
+
+        options.setDefaultLoadStyle("unknown");
+        Assert.assertFalse(options.hasLoadStyles());
+
+        options.setDefaultLoadStyle(ModuleOptions.LAZY);
+        options.setLoadStyles(ModuleOptions.parseLoadStyles("org.vaadin.addon.*:eager;com.example.*:sometimes"));
+        String module = write(options);
+        Assert.assertTrue(module.contains("<generate-with class=\"" + ModuleOptions.LOADER_FACTORY_CLASS + "\">"));
+        Assert.assertTrue(module.contains("value=\"org.vaadin.addon.*=eager\""));
+        Assert.assertFalse(module.contains("com.example.*"));
+        Assert.assertTrue(module.contains("<set-configuration-property name=\""
+                + ModuleOptions.DEFAULT_LOAD_STYLE_MODULE_PROPERTY + "\" value=\"lazy\" />"));
+    }
+
+    @Test
+    public void writesLoadStylesOnlyForVaadin71AndLater() {
+        ModuleOptions options = new ModuleOptions();
+        options.setDefaultLoadStyle(ModuleOptions.LAZY);
+        options.setVaadinVersion(new Version("7.0.7"));
+        Assert.assertFalse(options.hasLoadStyles());
+        Assert.assertFalse(write(options).contains("generate-with"));
+        Assert.assertFalse(options.toString().contains("lazy"));
+
+        options.setVaadinVersion(new Version("7.1.0"));
+        Assert.assertTrue(options.hasLoadStyles());
+        Assert.assertTrue(write(options).contains("generate-with"));
+    }
+
+    @Test
+    public void restrictsUserAgentsToGwtVersionTest() {
+        ModuleOptions options = new ModuleOptions();
+        options.setVaadinVersion(new Version("7.1.15"));
+        Assert.assertFalse(options.getSupportedUserAgents().contains("ie10"));
+        options.setUserAgents(Arrays.asList("ie10", "gecko1_8"));
+        Assert.assertEquals(Collections.singleton("gecko1_8"), options.getUserAgents());
+
+        options.setVaadinVersion(new Version("7.2.4"));
+        options.setUserAgents(Arrays.asList("ie10", "gecko1_8"));
+        Assert.assertEquals(2, options.getUserAgents().size());
+    }
+
+    @Test
+    public void getsAddonPatternFromWidgetset() {
+        Assert.assertEquals("org.vaadin.addon.*", ModuleOptions.getAddonPattern("org.vaadin.addon.AddonWidgetset"));
+    }
+
+    private static String write(ModuleOptions options) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(out);
+        options.writeTo(printStream);
+        printStream.close();
+        return out.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Calendar;
+
+public class OffPeakPrecompilerTests {
+
+    private static Calendar at(int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        return calendar;
+    }
+
+    @Test
+    public void parsesWindowTest() {
+        int[] window = OffPeakPrecompiler.parseWindow("22:00-06:30");
+        Assert.assertEquals(22 * 60, window[0]);
+        Assert.assertEquals(6 * 60 + 30, window[1]);
+        Assert.assertEquals(2 * 60, OffPeakPrecompiler.parseWindow(" 2 - 24:00 ")[0]);
+        Assert.assertEquals(0, OffPeakPrecompiler.parseWindow("2-24:00")[1]);
+        Assert.assertNull(OffPeakPrecompiler.parseWindow(""));
+        Assert.assertNull(OffPeakPrecompiler.parseWindow("22:00"));
+        Assert.assertNull(OffPeakPrecompiler.parseWindow("25:00-06:00"));
+        Assert.assertNull(OffPeakPrecompiler.parseWindow("06:00-06:00"));
+        Assert.assertNull(OffPeakPrecompiler.parseWindow("night-day"));
+    }
+
+    @Test
+    public void checksWindowAcrossMidnightTest() {
+        int[] night = OffPeakPrecompiler.parseWindow("22:00-06:00");
+        Assert.assertTrue(OffPeakPrecompiler.isInWindow(23 * 60, night));
+        Assert.assertTrue(OffPeakPrecompiler.isInWindow(0, night));
+        Assert.assertFalse(OffPeakPrecompiler.isInWindow(6 * 60, night));
+        Assert.assertFalse(OffPeakPrecompiler.isInWindow(12 * 60, night));
+
+        int[] lunch = OffPeakPrecompiler.parseWindow("12:00-13:00");
+        Assert.assertTrue(OffPeakPrecompiler.isInWindow(12 * 60 + 30, lunch));
+        Assert.assertFalse(OffPeakPrecompiler.isInWindow(13 * 60, lunch));
+    }
+
+    @Test
+    public void usesWindowOrLoadTest() {
+        OffPeakPrecompiler windowOnly = new OffPeakPrecompiler(OffPeakPrecompiler.parseWindow("22:00-06:00"), 0);
+        Assert.assertTrue(windowOnly.isOffPeak(at(23, 0), 5.0));
+        Assert.assertFalse(windowOnly.isOffPeak(at(10, 0), 0.0));
+
+        OffPeakPrecompiler loadOnly = new OffPeakPrecompiler(null, 0.25);
+        Assert.assertTrue(loadOnly.isOffPeak(at(10, 0), 0.1));
+        Assert.assertFalse(loadOnly.isOffPeak(at(10, 0), 0.5));
+        // Unknown load
+        Assert.assertFalse(loadOnly.isOffPeak(at(10, 0), -1));
+    }
+}
@@ -0,0 +1,79 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class PrecompressedResourcesTests {
+
+    @Test
+    public void writesOnlySmallerVariantsTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            StringBuilder script = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                script.append("function f").append(i).append("() { return ").append(i).append("; }\n");
+            }
+            File scriptFile = new File(root, "ws/ws.cache.js");
+            FileUtils.writeStringToFile(scriptFile, script.toString());
+            FileUtils.writeStringToFile(new File(root, "ws/tiny.css"), "a{}");
+            FileUtils.writeStringToFile(new File(root, "ws/image.png"), script.toString());
+            FileUtils.writeStringToFile(new File(root, "ws/removed.js.gz"), "stale");
+
+            Assert.assertEquals(1, PrecompressedResources.update(root));
+
+            InputStream in = new GZIPInputStream(new FileInputStream(PrecompressedResources.getVariant(scriptFile)));
+            try {
+                Assert.assertEquals(script.toString(), IOUtils.toString(in));
+            } finally {
+                in.close();
+            }
+            Assert.assertFalse(new File(root, "ws/tiny.css.gz").exists());
+            Assert.assertFalse(new File(root, "ws/image.png.gz").exists());
+            Assert.assertFalse(new File(root, "ws/removed.js.gz").exists());
+
+            Assert.assertEquals(0, PrecompressedResources.update(root));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void marksIncompressibleFilesOnceTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            byte[] random = new byte[4096];
+            new Random(1).nextBytes(random);
+            File file = new File(root, "ws/random.txt");
+            FileUtils.writeByteArrayToFile(file, random);
+            file.setLastModified(1000000000000L);
+
+            Assert.assertEquals(0, PrecompressedResources.update(root));
+            File marker = PrecompressedResources.getSkippedMarker(file);
+            Assert.assertTrue(marker.exists());
+            Assert.assertFalse(PrecompressedResources.getVariant(file).exists());
+
+            // Not compressed again while the file is unchanged
+            marker.setLastModified(1000000005000L);
+            Assert.assertEquals(0, PrecompressedResources.update(root));
+            Assert.assertEquals(1000000005000L, marker.lastModified());
+
+            file.setLastModified(1000000010000L);
+            Assert.assertEquals(0, PrecompressedResources.update(root));
+            Assert.assertTrue(marker.lastModified() > 1000000010000L);
+
+            Assert.assertTrue(file.delete());
+            Assert.assertEquals(0, PrecompressedResources.update(root));
+            Assert.assertFalse(marker.exists());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+
+public class ResourceCacheTests {
+
+    @Test
+    public void evictsLeastRecentlyUsedTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File a = new File(root, "a.js");
+            File b = new File(root, "b.js");
+            File c = new File(root, "c.js");
+            File large = new File(root, "large.js");
+            FileUtils.writeStringToFile(a, "aaaa");
+            FileUtils.writeStringToFile(b, "bbbb");
+            FileUtils.writeStringToFile(c, "cccc");
+            FileUtils.writeStringToFile(large, "0123456789");
+            ResourceCache cache = new ResourceCache(8, 5);
+
+            Assert.assertEquals("aaaa", new String(cache.get(a)));
+            Assert.assertEquals("bbbb", new String(cache.get(b)));
+            byte[] cachedA = cache.get(a);
+            Assert.assertEquals("cccc", new String(cache.get(c)));
+            Assert.assertEquals(8, cache.getSize());
+            Assert.assertSame(cachedA, cache.get(a));
+
+            Assert.assertNull(cache.get(large));
+            Assert.assertEquals(8, cache.getSize());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
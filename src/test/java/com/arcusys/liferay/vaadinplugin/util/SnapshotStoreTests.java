@@ -0,0 +1,106 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SnapshotStoreTests {
+
+    private static int countObjects(File root) {
+        return FileUtils.listFiles(new File(root, "objects"), null, true).size();
+    }
+
+    @Test
+    public void storesUnchangedFilesOnceTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File source = new File(root, "source");
+            FileUtils.writeStringToFile(new File(source, "a.txt"), "same");
+            FileUtils.writeStringToFile(new File(source, "sub/b.txt"), "same");
+            SnapshotStore store = new SnapshotStore(new File(root, "store"), 5);
+
+            store.create("test", Collections.singletonMap("dir", source), false);
+            FileUtils.writeStringToFile(new File(source, "c.txt"), "new");
+            String id = store.create("test", Collections.singletonMap("dir", source), false);
+
+            Assert.assertEquals(2, countObjects(new File(root, "store")));
+            List<String> ids = store.getSnapshots("test");
+            Assert.assertEquals(2, ids.size());
+            Assert.assertEquals(id, ids.get(0));
+
+            File target = new File(root, "target");
+            FileUtils.writeStringToFile(new File(target, "stale.txt"), "stale");
+            Assert.assertTrue(store.restore("test", id, "dir", target));
+            Assert.assertEquals("same", FileUtils.readFileToString(new File(target, "sub/b.txt")));
+            Assert.assertEquals("new", FileUtils.readFileToString(new File(target, "c.txt")));
+            Assert.assertFalse(new File(target, "stale.txt").exists());
+            Assert.assertFalse(store.restore("test", id, "missing", target));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void prunesOldSnapshotsAndObjectsTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            File file = new File(root, "file.txt");
+            SnapshotStore store = new SnapshotStore(new File(root, "store"), 2);
+            for (int i = 0; i < 4; i++) {
+                FileUtils.writeStringToFile(file, "version " + i);
+                store.create("test", Collections.singletonMap("file", file), false);
+            }
+
+            Assert.assertEquals(2, store.getSnapshots("test").size());
+            Assert.assertEquals(2, countObjects(new File(root, "store")));
+
+            Assert.assertTrue(store.restore("test", store.getSnapshots("test").get(1), "file", file));
+            Assert.assertEquals("version 2", FileUtils.readFileToString(file));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void concurrentInstancesKeepObjectsOfNewSnapshotsTest() throws Exception {
+        final File root = WidgetsetUtil.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                final int thread = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        // A separate instance per thread, as getDefault() returns
+                        SnapshotStore store = new SnapshotStore(new File(root, "store"), 1);
+                        File file = new File(root, "file" + thread + ".txt");
+                        for (int j = 0; j < 20; j++) {
+                            FileUtils.writeStringToFile(file, "version " + thread + " " + j);
+                            String id = store.create("test" + thread, Collections.singletonMap("file", file), false);
+                            File restored = new File(root, "restored" + thread + ".txt");
+                            Assert.assertTrue(store.restore("test" + thread, id, "file", restored));
+                            Assert.assertEquals("version " + thread + " " + j, FileUtils.readFileToString(restored));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            Assert.assertEquals(4, countObjects(new File(root, "store")));
+        } finally {
+            executor.shutdown();
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
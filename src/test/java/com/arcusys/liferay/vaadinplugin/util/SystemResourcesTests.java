@@ -0,0 +1,59 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SystemResourcesTests {
+
+    private File cgroupRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        cgroupRoot = WidgetsetUtil.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(cgroupRoot);
+    }
+
+    @Test
+    public void cgroupV2CpuQuotaTest() throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupRoot, "cpu.max"), "150000 100000\n");
+        int expected = Math.min(2, Runtime.getRuntime().availableProcessors());
+        Assert.assertEquals(expected, new SystemResources(cgroupRoot).getAvailableProcessors());
+    }
+
+    @Test
+    public void cgroupV2UnlimitedCpuTest() throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupRoot, "cpu.max"), "max 100000\n");
+        Assert.assertEquals(Runtime.getRuntime().availableProcessors(),
+                new SystemResources(cgroupRoot).getAvailableProcessors());
+    }
+
+    @Test
+    public void cgroupV1CpuQuotaTest() throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupRoot, "cpu/cpu.cfs_quota_us"), "100000\n");
+        FileUtils.writeStringToFile(new File(cgroupRoot, "cpu/cpu.cfs_period_us"), "100000\n");
+        Assert.assertEquals(1, new SystemResources(cgroupRoot).getAvailableProcessors());
+    }
+
+    @Test
+    public void cgroupMemoryLimitTest() throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupRoot, "memory.max"), "1073741824\n");
+        long limit = new SystemResources(cgroupRoot).getMemoryLimit();
+        Assert.assertTrue(limit > 0 && limit <= 1073741824L);
+    }
+
+    @Test
+    public void cgroupV1UnlimitedMemoryTest() throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupRoot, "memory/memory.limit_in_bytes"), "9223372036854771712\n");
+        Assert.assertTrue(new SystemResources(cgroupRoot).getMemoryLimit() != 9223372036854771712L);
+    }
+}
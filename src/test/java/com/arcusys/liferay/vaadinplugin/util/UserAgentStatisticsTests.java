@@ -0,0 +1,67 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+public class UserAgentStatisticsTests {
+
+    private static final String CHROME = "Mozilla/5.0 (Windows NT 6.1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/35.0.1916.153 Safari/537.36";
+    private static final String FIREFOX = "Mozilla/5.0 (Windows NT 6.1; rv:30.0) Gecko/20100101 Firefox/30.0";
+    private static final String IE9 = "Mozilla/5.0 (compatible; MSIE 9.0; Windows NT 6.1; Trident/5.0)";
+    private static final String IE11 = "Mozilla/5.0 (Windows NT 6.3; Trident/7.0; rv:11.0) like Gecko";
+    private static final String IE10 = "Mozilla/5.0 (compatible; MSIE 10.0; Windows NT 6.2; Trident/6.0)";
+    private static final String OPERA = "Opera/9.80 (Windows NT 6.1) Presto/2.12.388 Version/12.16";
+
+    @Test
+    public void mapsUserAgentsTest() {
+        Assert.assertEquals("safari", UserAgentStatistics.getGwtUserAgent(CHROME));
+        Assert.assertEquals("gecko1_8", UserAgentStatistics.getGwtUserAgent(FIREFOX));
+        Assert.assertEquals("ie9", UserAgentStatistics.getGwtUserAgent(IE9));
+        Assert.assertEquals("gecko1_8", UserAgentStatistics.getGwtUserAgent(IE11));
+        Assert.assertEquals("opera", UserAgentStatistics.getGwtUserAgent(OPERA));
+        Assert.assertEquals("ie8", UserAgentStatistics.getGwtUserAgent("Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1)"));
+        Assert.assertNull(UserAgentStatistics.getGwtUserAgent("curl/7.30.0"));
+    }
+
+    @Test
+    public void suggestsMostUsedBrowsersTest() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            log.append(CHROME).append('\n');
+        }
+        for (int i = 0; i < 39; i++) {
+            log.append("127.0.0.1 - - [01/Jul/2014:10:00:00 +0300] \"GET / HTTP/1.1\" 200 512 \"-\" \"")
+                    .append(FIREFOX).append("\"\n");
+        }
+        log.append(IE9).append('\n');
+        log.append("curl/7.30.0\n");
+
+        UserAgentStatistics statistics = UserAgentStatistics.read(new StringReader(log.toString()),
+                ModuleOptions.getSupportedUserAgents(new Version("7.2.4")));
+        Assert.assertEquals(100, statistics.getTotal());
+        Assert.assertEquals(39, statistics.getCount("gecko1_8"));
+        Assert.assertEquals("[gecko1_8, safari]", statistics.suggest(0.99).toString());
+        Assert.assertEquals("[gecko1_8, ie9, safari]", statistics.suggest(1).toString());
+    }
+
+    @Test
+    public void countsOnlySupportedUserAgentsTest() throws Exception {
+        String log = IE10 + "\n" + IE10 + "\n" + FIREFOX + "\n";
+
+        UserAgentStatistics gwt26 = UserAgentStatistics.read(new StringReader(log),
+                ModuleOptions.getSupportedUserAgents(new Version("7.2.0")));
+        Assert.assertEquals("[ie10]", gwt26.suggest(0.5).toString());
+
+        UserAgentStatistics gwt25 = UserAgentStatistics.read(new StringReader(log),
+                ModuleOptions.getSupportedUserAgents(new Version("7.1.15")));
+        Assert.assertEquals(0, gwt25.getCount("ie10"));
+        Assert.assertEquals(2, gwt25.getCount("ie9"));
+        Assert.assertEquals("[ie9]", gwt25.suggest(0.5).toString());
+
+        UserAgentStatistics safariOnly = UserAgentStatistics.read(new StringReader(log), Arrays.asList("safari"));
+        Assert.assertEquals(0, safariOnly.getTotal());
+    }
+}
@@ -0,0 +1,53 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class WidgetsetArtifactStoreTests {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("store", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void keepsReportWithEntryTest() throws IOException {
+        WidgetsetArtifactStore store = new WidgetsetArtifactStore(new File(dir, "store"), 1);
+        File compiled = new File(dir, "compiled");
+        FileUtils.writeStringToFile(new File(compiled, "ws.nocache.js"), "nocache");
+        File reportFile = new File(dir, "report.properties");
+        FileUtils.writeStringToFile(reportFile, "initial=1000\ndeferred=200\n");
+
+        store.store("first", compiled, CompileReport.load(reportFile));
+        Assert.assertEquals(200, store.loadReport("first").getDeferredSize());
+        new File(dir, "store/first").setLastModified(System.currentTimeMillis() - 60000);
+        store.store("second", compiled, null);
+
+        Assert.assertNull(store.loadReport("second"));
+        // Removed together with its entry
+        Assert.assertNull(store.loadReport("first"));
+        Assert.assertFalse(store.copyTo("first", new File(dir, "copy")));
+
+        new File(dir, "store/second").setLastModified(System.currentTimeMillis() - 60000);
+        store.store("third", compiled, CompileReport.load(reportFile));
+        Assert.assertEquals(1000, store.loadReport("third").getInitialSize());
+        File copy = new File(dir, "copy");
+        Assert.assertTrue(store.copyTo("third", copy));
+        Assert.assertEquals(1, copy.list().length);
+    }
+}
@@ -0,0 +1,71 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+public class WidgetsetCompilerTests {
+
+    @Test
+    public void resumesWithUncompiledPermutationsTest() {
+        Properties checkpoint = new Properties();
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), WidgetsetCompiler.getMissingPermutations(checkpoint, 4));
+
+        WidgetsetCompiler.addCompiledPermutations(checkpoint, Arrays.asList(0, 2));
+        WidgetsetCompiler.addCompiledPermutations(checkpoint, Arrays.asList(3));
+        Assert.assertEquals(Arrays.asList(1), WidgetsetCompiler.getMissingPermutations(checkpoint, 4));
+
+        WidgetsetCompiler.addCompiledPermutations(checkpoint, Arrays.asList(1));
+        Assert.assertEquals(Collections.<Integer>emptyList(), WidgetsetCompiler.getMissingPermutations(checkpoint, 4));
+    }
+
+    @Test
+    public void capsWorkersToHeapBudgetTest() {
+        Assert.assertEquals(4, WidgetsetCompiler.getPermutationWorkers(2048, 8));
+        Assert.assertEquals(2, WidgetsetCompiler.getPermutationWorkers(2048, 2));
+        Assert.assertEquals(1, WidgetsetCompiler.getPermutationWorkers(768, 4));
+        Assert.assertEquals(1, WidgetsetCompiler.getPermutationWorkers(256, 4));
+    }
+
+    @Test
+    public void startsNothingWhenTerminatedDuringPreparationTest() throws Exception {
+        File marker = File.createTempFile("compiler-process", ".marker");
+        try {
+            WidgetsetCompiler compiler = createCompiler();
+            Assert.assertTrue(marker.delete());
+            Assert.assertEquals(0, compiler.runProcess(CreateFile.class.getName(),
+                    Collections.<String>emptyList(), Arrays.asList(marker.getAbsolutePath())));
+            Assert.assertTrue(marker.exists());
+
+            compiler = createCompiler();
+            // As the handler does on a cancel before the compiler runs
+            compiler.terminate();
+            Assert.assertTrue(marker.delete());
+            compiler.compileWidgetset();
+            Assert.assertFalse(compiler.isSuccessful());
+            Assert.assertEquals(-1, compiler.runProcess(CreateFile.class.getName(),
+                    Collections.<String>emptyList(), Arrays.asList(marker.getAbsolutePath())));
+            Assert.assertFalse(marker.exists());
+        } finally {
+            marker.delete();
+        }
+    }
+
+    private static WidgetsetCompiler createCompiler() throws Exception {
+        File testClasses = new File(WidgetsetCompilerTests.class.getProtectionDomain().getCodeSource()
+                .getLocation().toURI());
+        return new WidgetsetCompiler(null, "com.example.Widgetset", testClasses.getAbsolutePath(),
+                Arrays.asList(testClasses));
+    }
+
+    public static class CreateFile {
+        public static void main(String[] args) throws IOException {
+            new File(args[0]).createNewFile();
+        }
+    }
+}
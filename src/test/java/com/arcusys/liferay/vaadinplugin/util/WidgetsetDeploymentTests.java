@@ -0,0 +1,79 @@
+package com.arcusys.liferay.vaadinplugin.util;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class WidgetsetDeploymentTests {
+
+    private static File createCompiled(File root, String name, String content) throws Exception {
+        File dir = new File(root, name);
+        FileUtils.writeStringToFile(new File(dir, "ws.nocache.js"), content);
+        return dir;
+    }
+
+    private static String readLive(String live) throws Exception {
+        return FileUtils.readFileToString(new File(live, "ws.nocache.js"));
+    }
+
+    @Test
+    public void deploysAndRollsBackBySwappingTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            String live = new File(root, "com.example.Widgetset").getAbsolutePath();
+            SnapshotStore snapshots = new SnapshotStore(new File(root, "snapshots"), 5);
+            Assert.assertFalse(WidgetsetUtil.canRollbackWidgetset(live));
+
+            WidgetsetUtil.deployWidgetset(createCompiled(root, "first", "1"), live, snapshots);
+            WidgetsetUtil.deployWidgetset(createCompiled(root, "second", "2"), live, snapshots);
+            Assert.assertEquals("2", readLive(live));
+            Assert.assertFalse(new File(live + ".staging").exists());
+            Assert.assertTrue(WidgetsetUtil.canRollbackWidgetset(live));
+
+            WidgetsetUtil.rollbackWidgetset(live);
+            Assert.assertEquals("1", readLive(live));
+
+            WidgetsetUtil.rollbackWidgetset(live);
+            Assert.assertEquals("2", readLive(live));
+
+            WidgetsetUtil.deployWidgetset(createCompiled(root, "third", "3"), live, snapshots);
+            String snapshotName = WidgetsetUtil.getSnapshotName("com.example.Widgetset");
+            Assert.assertEquals(1, snapshots.getSnapshots(snapshotName).size());
+            Assert.assertFalse(new File(live + ".1.bak").exists());
+
+            File restored = new File(root, "restored");
+            Assert.assertTrue(snapshots.restore(snapshotName, snapshots.getSnapshots(snapshotName).get(0),
+                    WidgetsetUtil.WIDGETSET_SNAPSHOT_ENTRY, restored));
+            Assert.assertEquals("1", readLive(restored.getPath()));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void restoresEarlierVersionsFromSnapshotsTest() throws Exception {
+        File root = WidgetsetUtil.createTempDir();
+        try {
+            String live = new File(root, "com.example.Widgetset").getAbsolutePath();
+            SnapshotStore snapshots = new SnapshotStore(new File(root, "snapshots"), 5);
+            for (int i = 1; i <= 4; i++) {
+                WidgetsetUtil.deployWidgetset(createCompiled(root, "build" + i, "" + i), live, snapshots);
+            }
+            // Version 3 is the first backup, the older ones are snapshots
+            List<String> ids = WidgetsetUtil.getWidgetsetSnapshots(live, snapshots);
+            Assert.assertEquals(2, ids.size());
+
+            WidgetsetUtil.restoreWidgetset(live, ids.get(1), snapshots);
+            Assert.assertEquals("1", readLive(live));
+            Assert.assertFalse(new File(live + ".staging").exists());
+
+            WidgetsetUtil.rollbackWidgetset(live);
+            Assert.assertEquals("4", readLive(live));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}